@@ -0,0 +1,179 @@
+#version 330
+
+const int NUM_CASCADES = 3;
+
+out vec4 fragColor;
+
+struct Attenuation
+{
+    float constant;
+    float linear;
+    float exponent;
+};
+
+struct PointLight
+{
+    vec3 colour;
+    // Light position is assumed to be in view coordinates
+    vec3 position;
+    float intensity;
+    Attenuation att;
+};
+
+#ifdef COMPACT_GBUFFER
+uniform sampler2D normalsText;
+uniform sampler2D diffuseText;
+uniform sampler2D specularText;
+uniform sampler2D depthText;
+#else
+uniform sampler2D positionsText;
+uniform sampler2D diffuseText;
+uniform sampler2D specularText;
+uniform sampler2D normalsText;
+uniform sampler2D shadowText;
+uniform sampler2D depthText;
+#endif
+
+uniform vec2 screenSize;
+
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
+uniform float specularPower;
+
+// Three texels per light: position and radius, colour and intensity, attenuation
+uniform samplerBuffer lightsData;
+// Offset and number of lights of each cluster in lightIndices
+uniform isamplerBuffer clustersData;
+uniform isamplerBuffer lightIndices;
+
+// Number of tiles in x and y and number of depth slices
+uniform vec3 clusterSize;
+uniform float clusterZNear;
+uniform float clusterLogDepthRatio;
+
+vec2 getTextCoord()
+{
+    return gl_FragCoord.xy / screenSize;
+}
+
+int getClusterIndex(vec2 textCoord, float depth)
+{
+    ivec3 size = ivec3(clusterSize);
+    ivec2 tile = clamp(ivec2(textCoord * clusterSize.xy), ivec2(0), size.xy - 1);
+    int slice = 0;
+    if (depth > clusterZNear)
+    {
+        slice = min(int(log(depth / clusterZNear) / clusterLogDepthRatio * clusterSize.z), size.z - 1);
+    }
+    return (slice * size.y + tile.y) * size.x + tile.x;
+}
+
+PointLight getLight(int lightIndex)
+{
+    vec4 positionRadius = texelFetch(lightsData, lightIndex * 3);
+    vec4 colourIntensity = texelFetch(lightsData, lightIndex * 3 + 1);
+    vec4 att = texelFetch(lightsData, lightIndex * 3 + 2);
+    return PointLight(colourIntensity.rgb, positionRadius.xyz, colourIntensity.w, Attenuation(att.x, att.y, att.z));
+}
+
+#ifdef COMPACT_GBUFFER
+vec2 signNotZero(vec2 v)
+{
+    return vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+}
+
+vec3 decodeNormal(vec2 e)
+{
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0)
+    {
+        n.xy = (1.0 - abs(n.yx)) * signNotZero(n.xy);
+    }
+    return normalize(n);
+}
+
+// View coordinates from the depth buffer and the perspective projection
+vec3 getPosition(vec2 textCoord)
+{
+    float ndcZ = texture(depthText, textCoord).r * 2.0 - 1.0;
+    float viewZ = -projectionMatrix[3][2] / (ndcZ + projectionMatrix[2][2]);
+    vec2 ndcXY = textCoord * 2.0 - 1.0;
+    return vec3(ndcXY * -viewZ / vec2(projectionMatrix[0][0], projectionMatrix[1][1]), viewZ);
+}
+#endif
+
+vec4 calcLightColour(vec4 diffuseC, vec4 speculrC, float reflectance, vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
+{
+    vec4 diffuseColour = vec4(0, 0, 0, 1);
+    vec4 specColour = vec4(0, 0, 0, 1);
+
+    // Diffuse Light
+    float diffuseFactor = max(dot(normal, to_light_dir), 0.0);
+    diffuseColour = diffuseC * vec4(light_colour, 1.0) * light_intensity * diffuseFactor;
+
+    // Specular Light
+    vec3 camera_direction = normalize(-position);
+    vec3 from_light_dir = -to_light_dir;
+    vec3 reflected_light = normalize(reflect(from_light_dir , normal));
+    float specularFactor = max( dot(camera_direction, reflected_light), 0.0);
+    specularFactor = pow(specularFactor, specularPower);
+    specColour = speculrC * light_intensity  * specularFactor * reflectance * vec4(light_colour, 1.0);
+
+    return (diffuseColour + specColour);
+}
+
+vec4 calcPointLight(vec4 diffuseC, vec4 speculrC, float reflectance, PointLight light, vec3 position, vec3 normal)
+{
+    vec3 light_direction = light.position - position;
+    vec3 to_light_dir  = normalize(light_direction);
+    vec4 light_colour = calcLightColour(diffuseC, speculrC, reflectance, light.colour, light.intensity, position, to_light_dir, normal);
+
+    // Apply Attenuation
+    float distance = length(light_direction);
+    float attenuationInv = light.att.constant + light.att.linear * distance +
+        light.att.exponent * distance * distance;
+    return light_colour / attenuationInv;
+}
+
+void main()
+{
+    vec2 textCoord = getTextCoord();
+#ifdef COMPACT_GBUFFER
+    vec3 worldPos = getPosition(textCoord);
+    vec4 diffuseShadow = texture(diffuseText, textCoord);
+    vec4 specularReflectance = texture(specularText, textCoord);
+    vec4 diffuseC = vec4(diffuseShadow.rgb, 1);
+    vec4 speculrC = vec4(specularReflectance.rgb, 1);
+    vec3 normal  = decodeNormal(texture(normalsText, textCoord).xy);
+	float shadowFactor = diffuseShadow.a;
+	float reflectance = specularReflectance.a;
+#else
+    float depth = texture(depthText, textCoord).r;
+    vec3 worldPos = texture(positionsText, textCoord).xyz;
+    vec4 diffuseC = texture(diffuseText, textCoord);
+    vec4 speculrC = texture(specularText, textCoord);
+    vec3 normal  = texture(normalsText, textCoord).xyz;
+	float shadowFactor = texture(shadowText, textCoord).r;
+	float reflectance = texture(shadowText, textCoord).g;
+#endif
+
+    // Only the lights binned into the cluster of the fragment
+    ivec2 cluster = texelFetch(clustersData, getClusterIndex(textCoord, -worldPos.z)).xy;
+    vec4 colour = vec4(0, 0, 0, 0);
+    for (int i = 0; i < cluster.y; i++)
+    {
+        PointLight pointLight = getLight(texelFetch(lightIndices, cluster.x + i).r);
+        colour += calcPointLight(diffuseC, speculrC, reflectance, pointLight, worldPos.xyz, normal.xyz);
+    }
+	fragColor = colour * shadowFactor;
+}
\ No newline at end of file
@@ -2,6 +2,7 @@
 
 const int MAX_WEIGHTS = 4;
 const int MAX_JOINTS = 150;
+const int NUM_CASCADES = 3;
 
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
@@ -10,11 +11,22 @@ layout (location=3) in vec4 jointWeights;
 layout (location=4) in ivec4 jointIndices;
 layout (location=5) in mat4 modelInstancedMatrix;
 
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform int isInstanced;
+uniform int cascadeIndex;
 uniform mat4 modelNonInstancedMatrix;
-uniform mat4 lightViewMatrix;
 uniform mat4 jointsMatrix[MAX_JOINTS];
-uniform mat4 orthoProjectionMatrix;
 
 void main()
 {
@@ -45,5 +57,5 @@ void main()
             initPos = vec4(position, 1.0);
         }
     }
-    gl_Position = orthoProjectionMatrix * lightViewMatrix * modelMatrix * initPos;
+    gl_Position = orthoProjectionMatrix[cascadeIndex] * lightViewMatrix[cascadeIndex] * modelMatrix * initPos;
 }
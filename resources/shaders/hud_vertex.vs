@@ -0,0 +1,14 @@
+#version 330
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec2 texCoord;
+
+out vec2 outTexCoord;
+
+uniform mat4 projModelMatrix;
+
+void main()
+{
+    gl_Position = projModelMatrix * vec4(position, 1.0);
+    outTexCoord = texCoord;
+}
@@ -0,0 +1,6 @@
+#version 330
+
+// Only the depth and stencil tests of the light volumes are needed
+void main()
+{
+}
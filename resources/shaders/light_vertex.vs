@@ -1,7 +1,21 @@
 #version 330
 
+const int NUM_CASCADES = 3;
+
 layout (location=0) in vec3 position;
-uniform mat4 projectionMatrix;
+
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform mat4 modelMatrix;
 
 void main()
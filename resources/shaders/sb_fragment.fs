@@ -6,7 +6,7 @@ out vec4 fragColor;
 
 uniform sampler2D texture_sampler;
 uniform vec4 colour;
-uniform vec3 ambientLight;
+uniform vec3 skyBoxLight;
 uniform int hasTexture;
 
 uniform sampler2D depthsText;
@@ -26,7 +26,7 @@ void main()
 	{
         if ( hasTexture == 1 )
         {
-            fragColor = vec4(ambientLight, 1) * texture(texture_sampler, outTexCoord);
+            fragColor = vec4(skyBoxLight, 1) * texture(texture_sampler, outTexCoord);
         }
         else
         {
@@ -1,13 +1,26 @@
 #version 330
 
+const int NUM_CASCADES = 3;
+
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
 layout (location=2) in vec3 vertexNormal;
 
 out vec2 outTexCoord;
 
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform mat4 modelViewMatrix;
-uniform mat4 projectionMatrix;
 
 void main()
 {
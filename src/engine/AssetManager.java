@@ -0,0 +1,351 @@
+package engine;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.lwjgl.system.MemoryUtil;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshCache;
+import engine.graph.Texture;
+import engine.graph.TextureCache;
+import engine.loaders.assimp.StaticMeshesLoader;
+import engine.loaders.obj.OBJLoader;
+import engine.loaders.texture.TextureLoader;
+
+/**
+ * Loads assets in the background. Files are read, parsed and decoded on a
+ * pool of loader threads, and only the creation of the GL objects is queued
+ * to the GL thread, which runs it from {@link #processUploads} within a time
+ * budget each frame.
+ *
+ * The returned futures complete on the GL thread, so their callbacks can
+ * use the assets and change the scene. A material whose texture is not
+ * ready shows a white placeholder texture. Textures are kept in the
+ * {@link TextureCache}, and each texture future holds a reference.
+ *
+ * With zero threads the files are read on the calling thread, which is
+ * useful when loading has to be deterministic.
+ */
+public class AssetManager {
+
+    private static final int PLACEHOLDER_COLOUR = 0xFFFFFFFF;
+
+    private static final String PLACEHOLDER_NAME = "engine:placeholder";
+
+    private final ExecutorService loaders;
+
+    private final BlockingQueue<Runnable> uploads;
+
+    /**
+     * Textures being loaded, by cache key.
+     */
+    private final Map<String, CompletableFuture<Texture>> textures;
+
+    /**
+     * Models being loaded, by cache key.
+     */
+    private final Map<String, CompletableFuture<Mesh[]>> models;
+
+    /**
+     * Loads that have been requested and not finished yet.
+     */
+    private final AtomicInteger pending;
+
+    private Texture placeholderTexture;
+
+    public AssetManager(int numThreads) {
+        uploads = new LinkedBlockingQueue<>();
+        textures = new ConcurrentHashMap<>();
+        models = new ConcurrentHashMap<>();
+        pending = new AtomicInteger();
+        if (numThreads > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            loaders = Executors.newFixedThreadPool(numThreads, task -> {
+                Thread thread = new Thread(task, "asset-loader-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            loaders = null;
+        }
+    }
+
+    /**
+     * Loads a texture, or gets it from the {@link TextureCache}. The texture
+     * of the future has a reference that the caller must release. Must be
+     * called on the GL thread.
+     */
+    public CompletableFuture<Texture> loadTexture(String fileName) {
+        return loadTexture(fileName, 1, 1);
+    }
+
+    public CompletableFuture<Texture> loadTexture(String fileName, int numCols, int numRows) {
+        TextureCache textureCache = TextureCache.getInstance();
+        Texture cached = textureCache.acquireIfPresent(fileName, numCols, numRows);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        // Requests for a file that is being loaded share its load
+        String key = numCols == 1 && numRows == 1 ? fileName : fileName + "#" + numCols + "x" + numRows;
+        CompletableFuture<Texture> shared = textures.computeIfAbsent(key,
+                k -> load(() -> TextureLoader.loadTextureData(fileName), data -> {
+            try {
+                textures.remove(key);
+                return textureCache.add(fileName, numCols, numRows, new Texture(data, numCols, numRows));
+            } finally {
+                data.close();
+            }
+        }));
+        shared.whenComplete((result, excp) -> {
+            if (excp != null) {
+                textures.remove(key);
+            }
+        });
+        return shared.thenApply(texture -> {
+            textureCache.retain(texture);
+            return texture;
+        });
+    }
+
+    /**
+     * Sets the placeholder texture to a material, and the texture of a file
+     * once it is loaded. The material owns the reference to the texture.
+     */
+    public CompletableFuture<Texture> loadTexture(String fileName, Material material) {
+        return loadTexture(fileName, 1, 1, material);
+    }
+
+    public CompletableFuture<Texture> loadTexture(String fileName, int numCols, int numRows, Material material) {
+        CompletableFuture<Texture> texture = loadTexture(fileName, numCols, numRows);
+        if (!texture.isDone()) {
+            Texture placeholder = getPlaceholderTexture();
+            TextureCache.getInstance().retain(placeholder);
+            material.setTexture(placeholder);
+        }
+        texture.whenComplete((result, excp) -> {
+            if (excp != null) {
+                // Keep the placeholder, a missing texture should not stop the game
+                System.err.println("Could not load texture " + fileName + ": " + excp);
+            } else if (material.isCleanedUp()) {
+                // The material was deleted meanwhile, for instance with a model dropped by the MeshCache
+                TextureCache.getInstance().release(result);
+            } else {
+                material.setTexture(result);
+            }
+        });
+        return texture;
+    }
+
+    /**
+     * Loads an OBJ file, see {@link OBJLoader}.
+     */
+    public CompletableFuture<Mesh> loadMesh(String fileName) {
+        return loadMesh(fileName, 1);
+    }
+
+    public CompletableFuture<Mesh> loadMesh(String fileName, int instances) {
+        return load(() -> OBJLoader.loadMeshData(fileName), data -> {
+            try {
+                return data.createMesh(instances);
+            } finally {
+                data.close();
+            }
+        });
+    }
+
+    /**
+     * Loads the meshes of a model with Assimp, see {@link StaticMeshesLoader},
+     * or gets them from the {@link MeshCache}. The meshes of the future hold
+     * a reference, released by {@link Mesh#cleanUp}. They are ready before
+     * their textures, which are loaded after them with placeholders. Must be
+     * called on the GL thread.
+     */
+    public CompletableFuture<Mesh[]> loadMeshes(String resourcePath, String texturesDir) {
+        return loadMeshes(resourcePath, texturesDir, StaticMeshesLoader.DEFAULT_FLAGS);
+    }
+
+    public CompletableFuture<Mesh[]> loadMeshes(String resourcePath, String texturesDir, int flags) {
+        MeshCache meshCache = MeshCache.getInstance();
+        Mesh[] cached = meshCache.acquireIfPresent(resourcePath, flags);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        String key = resourcePath + "#" + Integer.toHexString(flags);
+        CompletableFuture<Mesh[]> shared = models.computeIfAbsent(key,
+                k -> load(() -> StaticMeshesLoader.importModel(resourcePath, texturesDir, flags), model -> {
+            try {
+                models.remove(key);
+                List<Material> materials = model.getMaterials();
+                for (int i = 0; i < materials.size(); i++) {
+                    String textureFile = model.getTextureFile(i);
+                    if (textureFile != null) {
+                        loadTexture(textureFile, materials.get(i));
+                    }
+                }
+                return meshCache.add(resourcePath, flags, model.createMeshes());
+            } finally {
+                model.close();
+            }
+        }));
+        shared.whenComplete((result, excp) -> {
+            if (excp != null) {
+                models.remove(key);
+            }
+        });
+        return shared.thenApply(meshes -> {
+            meshCache.retain(meshes);
+            return meshes;
+        });
+    }
+
+    /**
+     * Returns a 1x1 white texture, creating it the first time. It is kept in
+     * the {@link TextureCache} while the manager is alive. Must be called on
+     * the GL thread.
+     */
+    public Texture getPlaceholderTexture() {
+        if (placeholderTexture == null) {
+            ByteBuffer pixel = MemoryUtil.memAlloc(4);
+            try {
+                pixel.putInt(0, PLACEHOLDER_COLOUR);
+                TextureCache textureCache = TextureCache.getInstance();
+                placeholderTexture = textureCache.add(PLACEHOLDER_NAME, 1, 1, new Texture(pixel, 1, 1));
+                textureCache.retain(placeholderTexture);
+            } finally {
+                MemoryUtil.memFree(pixel);
+            }
+        }
+        return placeholderTexture;
+    }
+
+    /**
+     * Runs the queued uploads until there are no more or the budget is spent.
+     * At least one upload is run if there is any, so loading always makes
+     * progress. Must be called on the GL thread.
+     *
+     * @param budgetNanos Time allowed for the uploads
+     * @return The number of uploads run
+     */
+    public int processUploads(long budgetNanos) {
+        long start = System.nanoTime();
+        int count = 0;
+        Runnable upload;
+        while ((upload = uploads.poll()) != null) {
+            upload.run();
+            count++;
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs uploads until an asset is loaded. Must be called on the GL thread.
+     */
+    public <T> T waitFor(CompletableFuture<T> asset) throws Exception {
+        while (!asset.isDone()) {
+            runNextUpload();
+        }
+        try {
+            return asset.get();
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        }
+    }
+
+    /**
+     * Runs uploads until every requested asset is loaded. Must be called on
+     * the GL thread.
+     */
+    public void waitForAll() {
+        while (pending.get() > 0) {
+            runNextUpload();
+        }
+    }
+
+    public boolean isLoading() {
+        return pending.get() > 0;
+    }
+
+    public int getNumPendingUploads() {
+        return uploads.size();
+    }
+
+    public void cleanup() {
+        if (loaders != null) {
+            loaders.shutdownNow();
+        }
+        uploads.clear();
+        if (placeholderTexture != null) {
+            TextureCache.getInstance().release(placeholderTexture);
+            placeholderTexture = null;
+        }
+    }
+
+    private void runNextUpload() {
+        try {
+            Runnable upload = uploads.poll(1, TimeUnit.MILLISECONDS);
+            if (upload != null) {
+                upload.run();
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(excp);
+        }
+    }
+
+    /**
+     * Runs read on a loader thread and then upload with its result on the GL
+     * thread. The future fails if any of them throws.
+     */
+    private <D, T> CompletableFuture<T> load(Callable<D> read, Upload<D, T> upload) {
+        CompletableFuture<T> asset = new CompletableFuture<>();
+        pending.incrementAndGet();
+        Runnable job = () -> {
+            D data;
+            try {
+                data = read.call();
+            } catch (Throwable excp) {
+                // Failures complete on the GL thread too
+                uploads.add(() -> {
+                    pending.decrementAndGet();
+                    asset.completeExceptionally(excp);
+                });
+                return;
+            }
+            uploads.add(() -> {
+                try {
+                    asset.complete(upload.run(data));
+                } catch (Throwable excp) {
+                    asset.completeExceptionally(excp);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            });
+        };
+        if (loaders != null) {
+            loaders.execute(job);
+        } else {
+            job.run();
+        }
+        return asset;
+    }
+
+    private interface Upload<D, T> {
+
+        T run(D data) throws Exception;
+    }
+}
@@ -0,0 +1,294 @@
+package engine;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL15.GL_QUERY_RESULT;
+import static org.lwjgl.opengl.GL15.GL_QUERY_RESULT_AVAILABLE;
+import static org.lwjgl.opengl.GL15.glBeginQuery;
+import static org.lwjgl.opengl.GL15.glDeleteQueries;
+import static org.lwjgl.opengl.GL15.glEndQuery;
+import static org.lwjgl.opengl.GL15.glGenQueries;
+import static org.lwjgl.opengl.GL15.glGetQueryObjecti;
+import static org.lwjgl.opengl.GL33.GL_TIME_ELAPSED;
+import static org.lwjgl.opengl.GL33.glGetQueryObjecti64;
+
+/**
+ * Measures where the frame time goes. The render passes are timed on the
+ * GPU with GL_TIME_ELAPSED queries and the stages of the game loop on the
+ * CPU. Each section keeps its last samples to report rolling percentiles.
+ *
+ * GPU queries are double buffered: the queries of a frame are only read
+ * two frames later, when their set is reused, so reading them does not
+ * stall the pipeline. A result that is still not available by then is
+ * dropped. Time queries can not be nested, so only one GPU section can be
+ * open at a time.
+ *
+ * When the profiler is disabled all the calls return immediately.
+ */
+public class FrameProfiler {
+
+    public static final int SHADOW_CASCADE_0 = 0;
+
+    public static final int SHADOW_CASCADE_1 = 1;
+
+    public static final int SHADOW_CASCADE_2 = 2;
+
+    public static final int GEOMETRY = 3;
+
+    public static final int POINT_LIGHTS = 4;
+
+    public static final int DIRECTIONAL_LIGHT = 5;
+
+    public static final int FOG = 6;
+
+    public static final int SKYBOX = 7;
+
+    public static final int PARTICLES = 8;
+
+    public static final int NUM_GPU_SECTIONS = 9;
+
+    public static final int INPUT = 0;
+
+    public static final int UPDATE = 1;
+
+    public static final int RENDER = 2;
+
+    public static final int UPLOADS = 3;
+
+    public static final int NUM_CPU_SECTIONS = 4;
+
+    private static final String[] GPU_SECTION_NAMES = {"shadow cascade 0", "shadow cascade 1", "shadow cascade 2",
+        "geometry", "point lights", "directional light", "fog", "skybox", "particles"};
+
+    private static final String[] CPU_SECTION_NAMES = {"input", "update", "render", "uploads"};
+
+    /**
+     * Number of samples kept per section for the percentiles.
+     */
+    private static final int MAX_SAMPLES = 256;
+
+    private final boolean enabled;
+
+    private final boolean gpuTimers;
+
+    private final int[][] queryIds;
+
+    private final boolean[][] queryIssued;
+
+    private int currentSet;
+
+    private int openGpuSection;
+
+    private final long[] cpuStart;
+
+    private final long[] cpuTotal;
+
+    private final float[][] gpuSamples;
+
+    private final int[] gpuNumSamples;
+
+    private final float[][] cpuSamples;
+
+    private final int[] cpuNumSamples;
+
+    private final float[] sortedSamples;
+
+    public FrameProfiler(boolean enabled) {
+        this.enabled = enabled;
+        GLCapabilities caps = enabled ? GL.getCapabilities() : null;
+        gpuTimers = caps != null && (caps.OpenGL33 || caps.GL_ARB_timer_query);
+
+        queryIds = new int[2][NUM_GPU_SECTIONS];
+        queryIssued = new boolean[2][NUM_GPU_SECTIONS];
+        if (gpuTimers) {
+            for (int i = 0; i < 2; i++) {
+                glGenQueries(queryIds[i]);
+            }
+        }
+        openGpuSection = -1;
+
+        cpuStart = new long[NUM_CPU_SECTIONS];
+        cpuTotal = new long[NUM_CPU_SECTIONS];
+        gpuSamples = new float[NUM_GPU_SECTIONS][MAX_SAMPLES];
+        gpuNumSamples = new int[NUM_GPU_SECTIONS];
+        cpuSamples = new float[NUM_CPU_SECTIONS][MAX_SAMPLES];
+        cpuNumSamples = new int[NUM_CPU_SECTIONS];
+        sortedSamples = new float[MAX_SAMPLES];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if the GPU passes are timed. Timer queries need GL 3.3
+     * or the ARB_timer_query extension
+     */
+    public boolean hasGpuTimers() {
+        return gpuTimers;
+    }
+
+    /**
+     * Starts a frame, collecting the GPU times of the frame before the
+     * previous one.
+     */
+    public void beginFrame() {
+        if (!enabled) {
+            return;
+        }
+        currentSet = 1 - currentSet;
+        if (gpuTimers) {
+            // The queries of this set were issued two frames ago
+            int[] ids = queryIds[currentSet];
+            boolean[] issued = queryIssued[currentSet];
+            for (int i = 0; i < NUM_GPU_SECTIONS; i++) {
+                if (issued[i] && glGetQueryObjecti(ids[i], GL_QUERY_RESULT_AVAILABLE) != 0) {
+                    long time = glGetQueryObjecti64(ids[i], GL_QUERY_RESULT);
+                    gpuNumSamples[i] = addSample(gpuSamples[i], gpuNumSamples[i], time / 1_000_000.0f);
+                }
+                issued[i] = false;
+            }
+        }
+        Arrays.fill(cpuTotal, 0);
+    }
+
+    /**
+     * Ends a frame, storing the CPU times accumulated during it.
+     */
+    public void endFrame() {
+        if (!enabled) {
+            return;
+        }
+        for (int i = 0; i < NUM_CPU_SECTIONS; i++) {
+            cpuNumSamples[i] = addSample(cpuSamples[i], cpuNumSamples[i], cpuTotal[i] / 1_000_000.0f);
+        }
+    }
+
+    public void beginGpu(int section) {
+        if (!gpuTimers) {
+            return;
+        }
+        if (openGpuSection >= 0) {
+            throw new IllegalStateException("GPU section " + GPU_SECTION_NAMES[openGpuSection] + " is still open");
+        }
+        glBeginQuery(GL_TIME_ELAPSED, queryIds[currentSet][section]);
+        openGpuSection = section;
+    }
+
+    public void endGpu() {
+        if (!gpuTimers) {
+            return;
+        }
+        if (openGpuSection < 0) {
+            throw new IllegalStateException("No GPU section is open");
+        }
+        glEndQuery(GL_TIME_ELAPSED);
+        queryIssued[currentSet][openGpuSection] = true;
+        openGpuSection = -1;
+    }
+
+    /**
+     * Starts timing a stage of the game loop. A stage may run several times
+     * in a frame, its sample is the sum of all the runs.
+     */
+    public void beginCpu(int section) {
+        if (!enabled) {
+            return;
+        }
+        cpuStart[section] = System.nanoTime();
+    }
+
+    public void endCpu(int section) {
+        if (!enabled) {
+            return;
+        }
+        cpuTotal[section] += System.nanoTime() - cpuStart[section];
+    }
+
+    public static String getGpuSectionName(int section) {
+        return GPU_SECTION_NAMES[section];
+    }
+
+    public static String getCpuSectionName(int section) {
+        return CPU_SECTION_NAMES[section];
+    }
+
+    /**
+     * @param section GPU section
+     * @param percentile Between 0 and 100
+     * @return The time in milliseconds below which the given percentage of
+     * the recent samples fall, or NaN if there are no samples
+     */
+    public float getGpuPercentile(int section, float percentile) {
+        return percentile(gpuSamples[section], gpuNumSamples[section], percentile);
+    }
+
+    public float getCpuPercentile(int section, float percentile) {
+        return percentile(cpuSamples[section], cpuNumSamples[section], percentile);
+    }
+
+    public int getGpuNumSamples(int section) {
+        return Math.min(gpuNumSamples[section], MAX_SAMPLES);
+    }
+
+    public int getCpuNumSamples(int section) {
+        return Math.min(cpuNumSamples[section], MAX_SAMPLES);
+    }
+
+    /**
+     * Writes the percentiles of every section, in milliseconds, as CSV.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("section,type,samples,p50_ms,p95_ms,p99_ms");
+        for (int i = 0; i < NUM_CPU_SECTIONS; i++) {
+            out.println(String.format(Locale.ROOT, "%s,cpu,%d,%.4f,%.4f,%.4f", CPU_SECTION_NAMES[i],
+                    getCpuNumSamples(i), getCpuPercentile(i, 50), getCpuPercentile(i, 95), getCpuPercentile(i, 99)));
+        }
+        for (int i = 0; i < NUM_GPU_SECTIONS; i++) {
+            out.println(String.format(Locale.ROOT, "%s,gpu,%d,%.4f,%.4f,%.4f", GPU_SECTION_NAMES[i],
+                    getGpuNumSamples(i), getGpuPercentile(i, 50), getGpuPercentile(i, 95), getGpuPercentile(i, 99)));
+        }
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("Could not write the frame profile");
+        }
+    }
+
+    public void cleanup() {
+        if (gpuTimers) {
+            for (int i = 0; i < 2; i++) {
+                glDeleteQueries(queryIds[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds a sample to a ring of samples.
+     *
+     * @return The new total number of samples added to the ring
+     */
+    private static int addSample(float[] samples, int numSamples, float value) {
+        samples[numSamples % MAX_SAMPLES] = value;
+        // Keep the count bounded while remembering that the ring is full
+        return numSamples + 1 == 2 * MAX_SAMPLES ? MAX_SAMPLES : numSamples + 1;
+    }
+
+    private float percentile(float[] samples, int numSamples, float percentile) {
+        int count = Math.min(numSamples, MAX_SAMPLES);
+        if (count == 0) {
+            return Float.NaN;
+        }
+        System.arraycopy(samples, 0, sortedSamples, 0, count);
+        Arrays.sort(sortedSamples, 0, count);
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0f * count);
+        return sortedSamples[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+}
@@ -1,11 +1,30 @@
 package engine;
 
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import engine.graph.MeshCache;
+import engine.graph.TextureCache;
+import engine.graph.VertexBufferCache;
+
 public class GameEngine implements Runnable {
 
     public static final int TARGET_FPS = 75;
 
     public static final int TARGET_UPS = 30;
 
+    /**
+     * Time per frame given to the uploads of the assets being loaded
+     */
+    public static final long UPLOAD_BUDGET_NANOS = 2_000_000;
+
+    /**
+     * File where the frame profile is written on exit, when profiling
+     */
+    public static final String PROFILE_FILE = "frame_profile.csv";
+
     private final Window window;
 
     private final Timer timer;
@@ -14,6 +33,10 @@ public class GameEngine implements Runnable {
 
     private final MouseInput mouseInput;
 
+    private final JobSystem jobSystem;
+
+    private final AssetManager assetManager;
+
     private double lastFps;
     
     private int fps;
@@ -30,6 +53,10 @@ public class GameEngine implements Runnable {
         mouseInput = new MouseInput();
         this.gameLogic = gameLogic;
         timer = new Timer();
+        // Keep one core for the GLFW thread
+        int numThreads = opts.parallelUpdate ? Runtime.getRuntime().availableProcessors() - 1 : 1;
+        jobSystem = new JobSystem(numThreads);
+        assetManager = new AssetManager(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
     }
 
     @Override
@@ -48,18 +75,23 @@ public class GameEngine implements Runnable {
         window.init();
         timer.init();
         mouseInput.init(window);
-        gameLogic.init(window);
+        gameLogic.init(window, assetManager);
         lastFps = timer.getTime();
         fps = 0;
     }
 
     protected void gameLoop() {
+        if (jobSystem.isParallel()) {
+            pipelinedGameLoop();
+            return;
+        }
         float elapsedTime;
         float accumulator = 0f;
         float interval = 1f / TARGET_UPS;
 
         boolean running = true;
         while (running && !window.windowShouldClose()) {
+            window.getProfiler().beginFrame();
             elapsedTime = timer.getElapsedTime();
             accumulator += elapsedTime;
 
@@ -70,7 +102,51 @@ public class GameEngine implements Runnable {
                 accumulator -= interval;
             }
 
+            uploadAssets();
             render();
+            window.getProfiler().endFrame();
+
+            if ( !window.isvSync() ) {
+                sync();
+            }
+        }
+    }
+
+    /**
+     * Game loop used when updates run in parallel. Input is read as in the
+     * serial loop, then the updates of the frame run on the job system while
+     * this thread presents the previous frame, whose GL commands have
+     * already been submitted. The frame is only rendered after its updates
+     * have finished, so the renderer never sees a half updated scene. The
+     * updates do not overlap the render of the previous frame, as the
+     * renderer reads the game items directly.
+     */
+    protected void pipelinedGameLoop() {
+        float interval = 1f / TARGET_UPS;
+        float[] accumulator = new float[1];
+        ForkJoinTask<?> updateJob = jobSystem.createJob(() -> {
+            while (accumulator[0] >= interval) {
+                update(interval);
+                accumulator[0] -= interval;
+            }
+        });
+
+        boolean running = true;
+        while (running && !window.windowShouldClose()) {
+            window.getProfiler().beginFrame();
+            accumulator[0] += timer.getElapsedTime();
+
+            window.pollEvents();
+            input();
+
+            Future<?> updates = jobSystem.start(updateJob);
+            // Present the previous frame while the updates are running
+            window.swapBuffers();
+            JobSystem.waitFor(updates);
+
+            uploadAssets();
+            renderFrame();
+            window.getProfiler().endFrame();
 
             if ( !window.isvSync() ) {
                 sync();
@@ -79,7 +155,21 @@ public class GameEngine implements Runnable {
     }
 
     protected void cleanup() {
+        FrameProfiler profiler = window.getProfiler();
+        if (profiler != null && profiler.isEnabled()) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(PROFILE_FILE))) {
+                profiler.writeCsv(writer);
+            } catch (Exception excp) {
+                excp.printStackTrace();
+            }
+            profiler.cleanup();
+        }
         gameLogic.cleanup();
+        jobSystem.cleanup();
+        assetManager.cleanup();
+        MeshCache.getInstance().cleanup();
+        TextureCache.getInstance().cleanup();
+        VertexBufferCache.getInstance().cleanup();
     }
     
     private void sync() {
@@ -94,23 +184,43 @@ public class GameEngine implements Runnable {
     }
 
     protected void input() {
+        FrameProfiler profiler = window.getProfiler();
+        profiler.beginCpu(FrameProfiler.INPUT);
         mouseInput.input(window);
         gameLogic.input(window, mouseInput);
+        profiler.endCpu(FrameProfiler.INPUT);
     }
 
     protected void update(float interval) {
-        gameLogic.update(interval, mouseInput, window);
+        FrameProfiler profiler = window.getProfiler();
+        profiler.beginCpu(FrameProfiler.UPDATE);
+        gameLogic.update(interval, mouseInput, window, jobSystem);
+        profiler.endCpu(FrameProfiler.UPDATE);
+    }
+
+    protected void uploadAssets() {
+        FrameProfiler profiler = window.getProfiler();
+        profiler.beginCpu(FrameProfiler.UPLOADS);
+        assetManager.processUploads(UPLOAD_BUDGET_NANOS);
+        profiler.endCpu(FrameProfiler.UPLOADS);
     }
 
     protected void render() {
+        renderFrame();
+        window.update();
+    }
+
+    protected void renderFrame() {
         if ( window.getWindowOptions().showFps && timer.getLastLoopTime() - lastFps > 1 ) {
             lastFps = timer.getLastLoopTime();
             window.setWindowTitle(windowTitle + " - " + fps + " FPS");
             fps = 0;
         }
         fps++;
+        FrameProfiler profiler = window.getProfiler();
+        profiler.beginCpu(FrameProfiler.RENDER);
         gameLogic.render(window);
-        window.update();
+        profiler.endCpu(FrameProfiler.RENDER);
     }
 
 }
@@ -3,10 +3,27 @@ package engine;
 public interface IGameLogic {
 
     void init(Window window) throws Exception;
+
+    /**
+     * Init hook that can load assets in the background. The engine runs the
+     * uploads of the assets each frame, before rendering.
+     */
+    default void init(Window window, AssetManager assetManager) throws Exception {
+        init(window);
+    }
     
     void input(Window window, MouseInput mouseInput);
 
     void update(float interval, MouseInput mouseInput, Window window);
+
+    /**
+     * Update hook that can split its work into jobs. When the window options
+     * enable parallel updates it runs while the previous frame is presented,
+     * so it must not call GL or GLFW functions.
+     */
+    default void update(float interval, MouseInput mouseInput, Window window, JobSystem jobSystem) {
+        update(interval, mouseInput, window);
+    }
     
     void render(Window window);
     
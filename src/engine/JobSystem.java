@@ -0,0 +1,137 @@
+package engine;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs game logic jobs on a work stealing pool. When it is created with a
+ * single thread there is no pool and every job runs on the calling thread,
+ * so game logic can use it the same way in both modes.
+ *
+ * Jobs must not call GL or GLFW functions, those are only valid on the
+ * thread that owns the window.
+ */
+public class JobSystem {
+
+    private final ForkJoinPool pool;
+
+    private final int numThreads;
+
+    public JobSystem(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        pool = this.numThreads > 1 ? new ForkJoinPool(this.numThreads) : null;
+    }
+
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public Future<?> submit(Runnable job) {
+        if (pool == null) {
+            FutureTask<?> task = new FutureTask<>(job, null);
+            task.run();
+            return task;
+        }
+        return pool.submit(job);
+    }
+
+    /**
+     * Wraps a job that runs every frame, so it can be started again with
+     * {@link #start} without allocating a future each time.
+     */
+    public ForkJoinTask<?> createJob(Runnable job) {
+        return ForkJoinTask.adapt(job);
+    }
+
+    /**
+     * Starts a job created by {@link #createJob}. If it was started before
+     * it must have finished.
+     *
+     * @return The job, to wait for it
+     */
+    public Future<?> start(ForkJoinTask<?> job) {
+        job.reinitialize();
+        if (pool == null) {
+            job.quietlyInvoke();
+        } else {
+            pool.execute(job);
+        }
+        return job;
+    }
+
+    /**
+     * Runs body for every index in [0, count), splitting the range in
+     * batches of at least batchSize indices. Returns when all of them
+     * have finished.
+     *
+     * @param count Number of indices
+     * @param batchSize Minimum number of indices run by a single job
+     * @param body The work to do for each index
+     */
+    public void parallelFor(int count, int batchSize, IntConsumer body) {
+        if (pool == null || count <= batchSize) {
+            for (int i = 0; i < count; i++) {
+                body.accept(i);
+            }
+            return;
+        }
+        pool.invoke(new RangeTask(0, count, Math.max(1, batchSize), body));
+    }
+
+    public static void waitFor(Future<?> job) {
+        try {
+            job.get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException excp) {
+            throw new RuntimeException(excp.getCause());
+        }
+    }
+
+    public void cleanup() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+
+        private final int end;
+
+        private final int batchSize;
+
+        private final IntConsumer body;
+
+        RangeTask(int start, int end, int batchSize, IntConsumer body) {
+            this.start = start;
+            this.end = end;
+            this.batchSize = batchSize;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= batchSize) {
+                for (int i = start; i < end; i++) {
+                    body.accept(i);
+                }
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RangeTask(start, middle, batchSize, body), new RangeTask(middle, end, batchSize, body));
+            }
+        }
+    }
+}
@@ -2,7 +2,9 @@ package engine;
 
 import engine.items.SkyBox;
 import engine.items.GameItem;
+import engine.items.TransformStore;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +19,16 @@ public class Scene {
 
     private final Map<InstancedMesh, List<GameItem>> instancedMeshMap;
 
+    /**
+     * The lists of game items per mesh. The maps above hold read only views
+     * of them.
+     */
+    private final Map<Mesh, List<GameItem>> gameItemLists;
+
+    private final Map<Mesh, List<GameItem>> meshMapView;
+
+    private final Map<InstancedMesh, List<GameItem>> instancedMeshMapView;
+
     private SkyBox skyBox;
 
     private SceneLight sceneLight;
@@ -27,19 +39,35 @@ public class Scene {
     
     private IParticleEmitter[] particleEmitters;
 
+    private TransformStore transformStore;
+
+    private final SceneSpatialIndex spatialIndex;
+
     public Scene() {
         meshMap = new HashMap<Mesh, List<GameItem>>();
         instancedMeshMap = new HashMap<InstancedMesh, List<GameItem>>();
+        gameItemLists = new HashMap<Mesh, List<GameItem>>();
+        meshMapView = Collections.unmodifiableMap(meshMap);
+        instancedMeshMapView = Collections.unmodifiableMap(instancedMeshMap);
+        spatialIndex = new SceneSpatialIndex();
         fog = Fog.NOFOG;
         renderShadows = true;
     }
 
+    /**
+     * @return A read only view of the non instanced meshes and their game
+     * items. Items are added and removed through the scene so the spatial
+     * index and the transform store stay in sync
+     */
     public Map<Mesh, List<GameItem>> getGameMeshes() {
-        return meshMap;
+        return meshMapView;
     }
 
+    /**
+     * @return A read only view of the instanced meshes and their game items
+     */
     public Map<InstancedMesh, List<GameItem>> getGameInstancedMeshes() {
-        return instancedMeshMap;
+        return instancedMeshMapView;
     }
 
     public boolean isRenderShadows() {
@@ -51,21 +79,71 @@ public class Scene {
         int numGameItems = gameItems != null ? gameItems.length : 0;
         for (int i = 0; i < numGameItems; i++) {
             GameItem gameItem = gameItems[i];
+            if (transformStore != null) {
+                transformStore.attach(gameItem);
+            }
             Mesh[] meshes = gameItem.getMeshes();
             for (Mesh mesh : meshes) {
-                boolean instancedMesh = mesh instanceof InstancedMesh;
-                List<GameItem> list = instancedMesh ? instancedMeshMap.get(mesh) : meshMap.get(mesh);
+                List<GameItem> list = gameItemLists.get(mesh);
                 if (list == null) {
                     list = new ArrayList<>();
-                    if (instancedMesh) {
-                        instancedMeshMap.put((InstancedMesh)mesh, list);
+                    gameItemLists.put(mesh, list);
+                    if (mesh instanceof InstancedMesh) {
+                        instancedMeshMap.put((InstancedMesh)mesh, Collections.unmodifiableList(list));
                     } else {
-                        meshMap.put(mesh, list);
+                        meshMap.put(mesh, Collections.unmodifiableList(list));
                     }
                 }
                 list.add(gameItem);
+                spatialIndex.add(gameItem);
+            }
+        }
+    }
+
+    /**
+     * Removes a mesh and the game items that use it.
+     *
+     * @param mesh The mesh to remove
+     * @return The game items that were using the mesh, or null if the mesh
+     * was not in the scene
+     */
+    public List<GameItem> removeMesh(Mesh mesh) {
+        List<GameItem> list = gameItemLists.remove(mesh);
+        if (list != null) {
+            if (mesh instanceof InstancedMesh) {
+                instancedMeshMap.remove(mesh);
+            } else {
+                meshMap.remove(mesh);
+            }
+            for (GameItem gameItem : list) {
+                removeGameItem(gameItem);
             }
         }
+        return list;
+    }
+
+    /**
+     * Removes all the non instanced meshes and their game items.
+     */
+    public void clearGameMeshes() {
+        for (Mesh mesh : meshMap.keySet()) {
+            for (GameItem gameItem : gameItemLists.remove(mesh)) {
+                removeGameItem(gameItem);
+            }
+        }
+        meshMap.clear();
+    }
+
+    private void removeGameItem(GameItem gameItem) {
+        spatialIndex.remove(gameItem);
+        // The index counts the meshes of the item, it is only gone with its last mesh
+        if (transformStore != null && !spatialIndex.contains(gameItem)) {
+            transformStore.detach(gameItem);
+        }
+    }
+
+    public SceneSpatialIndex getSpatialIndex() {
+        return spatialIndex;
     }
 
     public void cleanup() {
@@ -124,4 +202,24 @@ public class Scene {
         this.particleEmitters = particleEmitters;
     }
 
+    public TransformStore getTransformStore() {
+        return transformStore;
+    }
+
+    /**
+     * Sets the store that caches the model matrices of the game items. Items
+     * already in the scene are moved to the new store.
+     *
+     * @param transformStore The store, or null to build the matrices per draw
+     */
+    public void setTransformStore(TransformStore transformStore) {
+        if (this.transformStore != null) {
+            spatialIndex.forEach(this.transformStore::detach);
+        }
+        this.transformStore = transformStore;
+        if (transformStore != null) {
+            spatialIndex.forEach(transformStore::attach);
+        }
+    }
+
 }
@@ -0,0 +1,599 @@
+package engine;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.joml.FrustumIntersection;
+import org.joml.Intersectionf;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import engine.items.GameItem;
+import engine.items.TransformStore;
+
+/**
+ * Dynamic AABB tree over the game items of a scene. Each item is a leaf
+ * whose box is enlarged by a margin, so small movements do not change the
+ * tree. Only the items that leave their enlarged box are reinserted by
+ * {@link #update}, which only looks at the items that the transform store
+ * has rebuilt when the scene has one. Internal nodes enclose their children, which lets the
+ * queries accept or reject whole subtrees with a single test.
+ *
+ * Nodes are stored in flat arrays and addressed by index.
+ */
+public class SceneSpatialIndex {
+
+    private static final int NULL_NODE = -1;
+
+    private static final int BOUNDS_SIZE = 6;
+
+    private static final float MARGIN_FACTOR = 0.2f;
+
+    private static final float MIN_MARGIN = 0.1f;
+
+    private float[] bounds;
+
+    private int[] parents;
+
+    private int[] children1;
+
+    private int[] children2;
+
+    private int[] heights;
+
+    private int[] refCounts;
+
+    private GameItem[] items;
+
+    private int nodeCapacity;
+
+    private int nodeCount;
+
+    private int freeList;
+
+    private int root;
+
+    private int[] stack;
+
+    private final Map<GameItem, Integer> leaves;
+
+    private final float[] tmpBounds;
+
+    private final Matrix4f tmpMatrix;
+
+    private final Vector3f tmpMin;
+
+    private final Vector3f tmpMax;
+
+    private int version;
+
+    public SceneSpatialIndex() {
+        leaves = new HashMap<>();
+        tmpBounds = new float[BOUNDS_SIZE];
+        tmpMatrix = new Matrix4f();
+        tmpMin = new Vector3f();
+        tmpMax = new Vector3f();
+        stack = new int[64];
+        root = NULL_NODE;
+        allocateNodes(16);
+    }
+
+    /**
+     * Adds an item to the index. An item added several times, once per mesh,
+     * stays in the index until it has been removed the same number of times.
+     */
+    public void add(GameItem gameItem) {
+        Integer leaf = leaves.get(gameItem);
+        if (leaf != null) {
+            refCounts[leaf]++;
+            return;
+        }
+        int node = allocateNode();
+        items[node] = gameItem;
+        refCounts[node] = 1;
+        computeFatBounds(gameItem, node);
+        insertLeaf(node);
+        leaves.put(gameItem, node);
+        version++;
+    }
+
+    public void remove(GameItem gameItem) {
+        Integer leaf = leaves.get(gameItem);
+        if (leaf == null) {
+            return;
+        }
+        if (--refCounts[leaf] > 0) {
+            return;
+        }
+        leaves.remove(gameItem);
+        removeLeaf(leaf);
+        freeNode(leaf);
+        version++;
+    }
+
+    public void clear() {
+        leaves.clear();
+        root = NULL_NODE;
+        nodeCount = 0;
+        allocateNodes(nodeCapacity);
+        version++;
+    }
+
+    public boolean contains(GameItem gameItem) {
+        return leaves.containsKey(gameItem);
+    }
+
+    public int size() {
+        return leaves.size();
+    }
+
+    /**
+     * @return A number that changes every time items are added or removed
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public int getHeight() {
+        return root == NULL_NODE ? 0 : heights[root];
+    }
+
+    /**
+     * Reinserts the items that have moved out of their enlarged boxes.
+     *
+     * @return Number of items reinserted
+     */
+    public int update() {
+        int moved = 0;
+        for (int node = 0; node < nodeCapacity; node++) {
+            GameItem gameItem = items[node];
+            if (gameItem != null && refit(node, gameItem)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Same as {@link #update()}, but only checks the items whose rows have
+     * been rebuilt by the last update of the transform store. All the items
+     * of the index must be attached to the store.
+     *
+     * @param transformStore The store the items are attached to
+     * @return Number of items reinserted
+     */
+    public int update(TransformStore transformStore) {
+        int moved = 0;
+        int numDirty = transformStore.getNumDirty();
+        for (int i = 0; i < numDirty; i++) {
+            GameItem gameItem = transformStore.getDirtyItem(i);
+            Integer leaf = gameItem != null ? leaves.get(gameItem) : null;
+            if (leaf != null && refit(leaf, gameItem)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    public void forEach(Consumer<GameItem> consumer) {
+        for (int node = 0; node < nodeCapacity; node++) {
+            if (items[node] != null) {
+                consumer.accept(items[node]);
+            }
+        }
+    }
+
+    /**
+     * Collects the items whose boxes intersect the frustum. Subtrees fully
+     * inside it are accepted without testing their nodes.
+     */
+    public void queryFrustum(FrustumIntersection frustum, List<GameItem> result) {
+        queryFrustum(frustum, result, result);
+    }
+
+    /**
+     * Same as {@link #queryFrustum(FrustumIntersection, List)}, but the items
+     * whose enlarged boxes cross the frustum planes are put apart, so they
+     * can be tested again with tighter bounds.
+     *
+     * @param frustum The frustum
+     * @param inside Destination for the items that are inside the frustum
+     * @param partial Destination for the items that may be inside the frustum
+     */
+    public void queryFrustum(FrustumIntersection frustum, List<GameItem> inside, List<GameItem> partial) {
+        if (root == NULL_NODE) {
+            return;
+        }
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * BOUNDS_SIZE;
+            int test = frustum.intersectAab(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5]);
+            if (test == FrustumIntersection.INSIDE) {
+                collect(node, inside);
+            } else if (test == FrustumIntersection.INTERSECT) {
+                if (items[node] != null) {
+                    partial.add(items[node]);
+                } else {
+                    top = push(top, children1[node]);
+                    top = push(top, children2[node]);
+                }
+            }
+        }
+    }
+
+    public void querySphere(float x, float y, float z, float radius, List<GameItem> result) {
+        if (root == NULL_NODE) {
+            return;
+        }
+        float radiusSquared = radius * radius;
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * BOUNDS_SIZE;
+            if (Intersectionf.testAabSphere(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5],
+                    x, y, z, radiusSquared)) {
+                if (items[node] != null) {
+                    result.add(items[node]);
+                } else {
+                    top = push(top, children1[node]);
+                    top = push(top, children2[node]);
+                }
+            }
+        }
+    }
+
+    public void queryRay(Vector3f origin, Vector3f direction, List<GameItem> result) {
+        if (root == NULL_NODE) {
+            return;
+        }
+        int top = push(0, root);
+        while (top > 0) {
+            int node = stack[--top];
+            int b = node * BOUNDS_SIZE;
+            if (Intersectionf.testRayAab(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z,
+                    bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])) {
+                if (items[node] != null) {
+                    result.add(items[node]);
+                } else {
+                    top = push(top, children1[node]);
+                    top = push(top, children2[node]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the world box that encloses the mesh boxes of an item once
+     * rotated, scaled and translated.
+     *
+     * @param gameItem The item
+     * @param dest Destination array with minX, minY, minZ, maxX, maxY, maxZ
+     */
+    public void computeBounds(GameItem gameItem, float[] dest) {
+        gameItem.getLocalBounds(tmpMin, tmpMax);
+        gameItem.getModelMatrix(tmpMatrix).transformAab(tmpMin, tmpMax, tmpMin, tmpMax);
+        dest[0] = tmpMin.x;
+        dest[1] = tmpMin.y;
+        dest[2] = tmpMin.z;
+        dest[3] = tmpMax.x;
+        dest[4] = tmpMax.y;
+        dest[5] = tmpMax.z;
+    }
+
+    /**
+     * Reinserts a leaf if its item has moved out of the enlarged box.
+     *
+     * @return true if the leaf has been reinserted
+     */
+    private boolean refit(int node, GameItem gameItem) {
+        computeBounds(gameItem, tmpBounds);
+        if (contains(node, tmpBounds)) {
+            return false;
+        }
+        removeLeaf(node);
+        computeFatBounds(gameItem, node);
+        insertLeaf(node);
+        return true;
+    }
+
+    private void computeFatBounds(GameItem gameItem, int node) {
+        computeBounds(gameItem, tmpBounds);
+        int b = node * BOUNDS_SIZE;
+        for (int i = 0; i < 3; i++) {
+            float margin = Math.max(MIN_MARGIN, (tmpBounds[i + 3] - tmpBounds[i]) * MARGIN_FACTOR);
+            bounds[b + i] = tmpBounds[i] - margin;
+            bounds[b + i + 3] = tmpBounds[i + 3] + margin;
+        }
+    }
+
+    private void collect(int node, List<GameItem> result) {
+        if (items[node] != null) {
+            result.add(items[node]);
+        } else {
+            collect(children1[node], result);
+            collect(children2[node], result);
+        }
+    }
+
+    private int push(int top, int node) {
+        ensureStack(top + 1);
+        stack[top] = node;
+        return top + 1;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            int[] newStack = new int[Math.max(size, stack.length * 2)];
+            System.arraycopy(stack, 0, newStack, 0, stack.length);
+            stack = newStack;
+        }
+    }
+
+    private boolean contains(int node, float[] box) {
+        int b = node * BOUNDS_SIZE;
+        return bounds[b] <= box[0] && bounds[b + 1] <= box[1] && bounds[b + 2] <= box[2]
+                && bounds[b + 3] >= box[3] && bounds[b + 4] >= box[4] && bounds[b + 5] >= box[5];
+    }
+
+    private float area(int node) {
+        int b = node * BOUNDS_SIZE;
+        return surfaceArea(bounds[b + 3] - bounds[b], bounds[b + 4] - bounds[b + 1], bounds[b + 5] - bounds[b + 2]);
+    }
+
+    private float combinedArea(int nodeA, int nodeB) {
+        int a = nodeA * BOUNDS_SIZE;
+        int b = nodeB * BOUNDS_SIZE;
+        float dx = Math.max(bounds[a + 3], bounds[b + 3]) - Math.min(bounds[a], bounds[b]);
+        float dy = Math.max(bounds[a + 4], bounds[b + 4]) - Math.min(bounds[a + 1], bounds[b + 1]);
+        float dz = Math.max(bounds[a + 5], bounds[b + 5]) - Math.min(bounds[a + 2], bounds[b + 2]);
+        return surfaceArea(dx, dy, dz);
+    }
+
+    private static float surfaceArea(float dx, float dy, float dz) {
+        return 2.0f * (dx * dy + dy * dz + dz * dx);
+    }
+
+    private void combine(int dest, int nodeA, int nodeB) {
+        int d = dest * BOUNDS_SIZE;
+        int a = nodeA * BOUNDS_SIZE;
+        int b = nodeB * BOUNDS_SIZE;
+        for (int i = 0; i < 3; i++) {
+            bounds[d + i] = Math.min(bounds[a + i], bounds[b + i]);
+            bounds[d + i + 3] = Math.max(bounds[a + i + 3], bounds[b + i + 3]);
+        }
+    }
+
+    private void insertLeaf(int leaf) {
+        if (root == NULL_NODE) {
+            root = leaf;
+            parents[leaf] = NULL_NODE;
+            return;
+        }
+
+        // Find the best sibling, descending where the cost of the enlarged box is lower
+        int node = root;
+        while (items[node] == null) {
+            int child1 = children1[node];
+            int child2 = children2[node];
+
+            float area = area(node);
+            float combined = combinedArea(node, leaf);
+            // Cost of creating a new parent for this node and the new leaf
+            float cost = 2.0f * combined;
+            // Minimum cost of pushing the leaf further down the tree
+            float inheritanceCost = 2.0f * (combined - area);
+
+            float cost1 = descendCost(child1, leaf) + inheritanceCost;
+            float cost2 = descendCost(child2, leaf) + inheritanceCost;
+            if (cost < cost1 && cost < cost2) {
+                break;
+            }
+            node = cost1 < cost2 ? child1 : child2;
+        }
+        int sibling = node;
+
+        int oldParent = parents[sibling];
+        int newParent = allocateNode();
+        parents[newParent] = oldParent;
+        combine(newParent, leaf, sibling);
+        heights[newParent] = heights[sibling] + 1;
+        children1[newParent] = sibling;
+        children2[newParent] = leaf;
+        parents[sibling] = newParent;
+        parents[leaf] = newParent;
+        if (oldParent != NULL_NODE) {
+            if (children1[oldParent] == sibling) {
+                children1[oldParent] = newParent;
+            } else {
+                children2[oldParent] = newParent;
+            }
+        } else {
+            root = newParent;
+        }
+
+        refitAncestors(parents[leaf]);
+    }
+
+    private float descendCost(int child, int leaf) {
+        if (items[child] != null) {
+            return combinedArea(child, leaf);
+        }
+        return combinedArea(child, leaf) - area(child);
+    }
+
+    private void removeLeaf(int leaf) {
+        if (leaf == root) {
+            root = NULL_NODE;
+            return;
+        }
+        int parent = parents[leaf];
+        int grandParent = parents[parent];
+        int sibling = children1[parent] == leaf ? children2[parent] : children1[parent];
+
+        if (grandParent != NULL_NODE) {
+            // Replace the parent by the sibling
+            if (children1[grandParent] == parent) {
+                children1[grandParent] = sibling;
+            } else {
+                children2[grandParent] = sibling;
+            }
+            parents[sibling] = grandParent;
+            freeNode(parent);
+            refitAncestors(grandParent);
+        } else {
+            root = sibling;
+            parents[sibling] = NULL_NODE;
+            freeNode(parent);
+        }
+    }
+
+    /**
+     * Walks up from node fixing heights and boxes, rotating unbalanced
+     * nodes on the way.
+     */
+    private void refitAncestors(int node) {
+        while (node != NULL_NODE) {
+            node = balance(node);
+            int child1 = children1[node];
+            int child2 = children2[node];
+            heights[node] = 1 + Math.max(heights[child1], heights[child2]);
+            combine(node, child1, child2);
+            node = parents[node];
+        }
+    }
+
+    /**
+     * Performs a left or right rotation if node A is unbalanced.
+     *
+     * @return The new root of the subtree
+     */
+    private int balance(int nodeA) {
+        if (items[nodeA] != null || heights[nodeA] < 2) {
+            return nodeA;
+        }
+        int nodeB = children1[nodeA];
+        int nodeC = children2[nodeA];
+        int balance = heights[nodeC] - heights[nodeB];
+        if (balance > 1) {
+            return rotate(nodeA, nodeC, nodeB, false);
+        }
+        if (balance < -1) {
+            return rotate(nodeA, nodeB, nodeC, true);
+        }
+        return nodeA;
+    }
+
+    /**
+     * Promotes the taller child of A. The shorter grandchild is moved under A.
+     *
+     * @param nodeA The unbalanced node
+     * @param up The taller child of A, which takes its place
+     * @param other The other child of A
+     * @param upIsChild1 true if up is the first child of A
+     * @return The new root of the subtree
+     */
+    private int rotate(int nodeA, int up, int other, boolean upIsChild1) {
+        int nodeF = children1[up];
+        int nodeG = children2[up];
+
+        // Swap A and its child
+        children1[up] = nodeA;
+        parents[up] = parents[nodeA];
+        parents[nodeA] = up;
+
+        int parent = parents[up];
+        if (parent != NULL_NODE) {
+            if (children1[parent] == nodeA) {
+                children1[parent] = up;
+            } else {
+                children2[parent] = up;
+            }
+        } else {
+            root = up;
+        }
+
+        int keep = heights[nodeF] > heights[nodeG] ? nodeF : nodeG;
+        int move = keep == nodeF ? nodeG : nodeF;
+        children2[up] = keep;
+        if (upIsChild1) {
+            children1[nodeA] = move;
+        } else {
+            children2[nodeA] = move;
+        }
+        parents[move] = nodeA;
+        combine(nodeA, other, move);
+        combine(up, nodeA, keep);
+        heights[nodeA] = 1 + Math.max(heights[other], heights[move]);
+        heights[up] = 1 + Math.max(heights[nodeA], heights[keep]);
+        return up;
+    }
+
+    private int allocateNode() {
+        if (freeList == NULL_NODE) {
+            allocateNodes(nodeCapacity * 2);
+        }
+        int node = freeList;
+        freeList = parents[node];
+        parents[node] = NULL_NODE;
+        children1[node] = NULL_NODE;
+        children2[node] = NULL_NODE;
+        heights[node] = 0;
+        items[node] = null;
+        nodeCount++;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        items[node] = null;
+        refCounts[node] = 0;
+        heights[node] = -1;
+        parents[node] = freeList;
+        freeList = node;
+        nodeCount--;
+    }
+
+    /**
+     * Grows the node arrays, or resets them when called with the current
+     * capacity on an empty tree, and links the unused nodes in the free list.
+     */
+    private void allocateNodes(int capacity) {
+        int oldCapacity = nodeCount == 0 ? 0 : nodeCapacity;
+        bounds = grow(bounds, capacity * BOUNDS_SIZE, oldCapacity * BOUNDS_SIZE);
+        parents = grow(parents, capacity, oldCapacity);
+        children1 = grow(children1, capacity, oldCapacity);
+        children2 = grow(children2, capacity, oldCapacity);
+        heights = grow(heights, capacity, oldCapacity);
+        refCounts = grow(refCounts, capacity, oldCapacity);
+        GameItem[] newItems = new GameItem[capacity];
+        if (items != null && oldCapacity > 0) {
+            System.arraycopy(items, 0, newItems, 0, oldCapacity);
+        }
+        items = newItems;
+
+        for (int i = oldCapacity; i < capacity - 1; i++) {
+            parents[i] = i + 1;
+            heights[i] = -1;
+        }
+        parents[capacity - 1] = NULL_NODE;
+        heights[capacity - 1] = -1;
+        freeList = oldCapacity;
+        nodeCapacity = capacity;
+    }
+
+    private static float[] grow(float[] array, int length, int used) {
+        float[] result = new float[length];
+        if (array != null && used > 0) {
+            System.arraycopy(array, 0, result, 0, used);
+        }
+        return result;
+    }
+
+    private static int[] grow(int[] array, int length, int used) {
+        int[] result = new int[length];
+        if (array != null && used > 0) {
+            System.arraycopy(array, 0, result, 0, used);
+        }
+        return result;
+    }
+}
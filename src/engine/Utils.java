@@ -7,15 +7,18 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.system.MemoryUtil;
 
 public class Utils {
@@ -40,20 +43,6 @@ public class Utils {
         return list;
     }
 
-    public static int[] listIntToArray(List<Integer> list) {
-        int[] result = list.stream().mapToInt((Integer v) -> v).toArray();
-        return result;
-    }
-
-    public static float[] listToArray(List<Float> list) {
-        int size = list != null ? list.size() : 0;
-        float[] floatArr = new float[size];
-        for (int i = 0; i < size; i++) {
-            floatArr[i] = list.get(i);
-        }
-        return floatArr;
-    }
-
     public static boolean existsResourceFile(String fileName) {
         boolean result;
         try (InputStream is = Utils.class.getResourceAsStream(fileName)) {
@@ -74,9 +63,11 @@ public class Utils {
                 while (fc.read(buffer) != -1) ;
             }
         } else {
-            try (
-                InputStream source = Utils.class.getResourceAsStream(resource);
-                ReadableByteChannel rbc = Channels.newChannel(source)) {
+            InputStream source = Utils.class.getResourceAsStream(resource);
+            if (source == null) {
+                throw new IOException("Resource not found: " + resource);
+            }
+            try (ReadableByteChannel rbc = Channels.newChannel(source)) {
                 buffer = MemoryUtil.memAlloc(bufferSize);
 
                 while (true) {
@@ -96,10 +87,32 @@ public class Utils {
     }
 
     private static ByteBuffer resizeBuffer(ByteBuffer buffer, int newCapacity) {
-        ByteBuffer newBuffer = BufferUtils.createByteBuffer(newCapacity);
-        buffer.flip();
-        newBuffer.put(buffer);
-        return newBuffer;
+        // Keep the buffer in the native heap, callers release it with memFree
+        return MemoryUtil.memRealloc(buffer, newCapacity);
+    }
+
+    /**
+     * Writes the data to a temporary file which then replaces the file, so a
+     * reader never sees a partial file.
+     */
+    public static void writeAtomically(Path file, ByteBuffer data) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                ByteBuffer src = data.duplicate();
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException excp) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
     }
 
 }
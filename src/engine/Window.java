@@ -7,6 +7,7 @@ import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.system.MemoryUtil.NULL;
+import engine.loaders.texture.TextureLoader;
 
 public class Window {
 
@@ -41,6 +42,8 @@ public class Window {
 
     private final Matrix4f projectionMatrix;
 
+    private FrameProfiler profiler;
+
     public Window(String title, int width, int height, boolean vSync, WindowOptions opts) {
         this.title = title;
         this.width = width;
@@ -49,6 +52,8 @@ public class Window {
         this.resized = false;
         this.opts = opts;
         projectionMatrix = new Matrix4f();
+        // Replaced in init, once there is a context for the queries
+        profiler = new FrameProfiler(false);
     }
 
     public void init() {
@@ -104,7 +109,7 @@ public class Window {
 
         if (maximized) {
             glfwMaximizeWindow(windowHandle);
-        } else {
+        } else if (!opts.headless) {
             // Get the resolution of the primary monitor
             GLFWVidMode vidmode = glfwGetVideoMode(glfwGetPrimaryMonitor());
             // Center our window
@@ -124,9 +129,14 @@ public class Window {
         }
 
         // Make the window visible
-        glfwShowWindow(windowHandle);
+        if (!opts.headless) {
+            glfwShowWindow(windowHandle);
+        }
 
         GL.createCapabilities();
+        TextureLoader.setCompressionEnabled(opts.compressTextures && GL.getCapabilities().GL_EXT_texture_compression_s3tc);
+
+        profiler = new FrameProfiler(opts.profileFrames);
 
         // Set the clear color
         glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
@@ -228,13 +238,29 @@ public class Window {
     }
 
     public void update() {
+        swapBuffers();
+        pollEvents();
+    }
+
+    public void swapBuffers() {
         glfwSwapBuffers(windowHandle);
+    }
+
+    public void pollEvents() {
         glfwPollEvents();
     }
 
     public WindowOptions getOptions() {
         return opts;
     }
+
+    /**
+     * @return The profiler of the frames, which does nothing unless the
+     * profileFrames option is set
+     */
+    public FrameProfiler getProfiler() {
+        return profiler;
+    }
     
     public static class WindowOptions {
 
@@ -249,5 +275,21 @@ public class Window {
         public boolean antialiasing;
 
         public boolean frustumCulling;        
+
+        public boolean exactFrustumCulling;
+
+        public boolean compactGBuffer;
+
+        public boolean clusteredLighting;
+
+        public boolean parallelUpdate;
+
+        public boolean batchStaticMeshes;
+
+        public boolean profileFrames;
+
+        public boolean compressTextures;
+
+        public boolean headless;
     }
 }
@@ -0,0 +1,89 @@
+package engine.collections;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of floats, used instead of a List&lt;Float&gt; to build
+ * vertex data without boxing every value.
+ */
+public class FloatArrayBuilder {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private float[] data;
+
+    private int size;
+
+    public FloatArrayBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FloatArrayBuilder(int initialCapacity) {
+        data = new float[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(float value) {
+        ensureCapacity(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(float x, float y) {
+        ensureCapacity(size + 2);
+        data[size++] = x;
+        data[size++] = y;
+    }
+
+    public void add(float x, float y, float z) {
+        ensureCapacity(size + 3);
+        data[size++] = x;
+        data[size++] = y;
+        data[size++] = z;
+    }
+
+    public float get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data[index];
+    }
+
+    public void set(int index, float value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+    /**
+     * @return The backing array, which may be longer than the size. It is
+     * replaced when the builder grows.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return A copy of the values
+     */
+    public float[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,89 @@
+package engine.collections;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of ints, used instead of a List&lt;Integer&gt; to build
+ * indices without boxing every value.
+ */
+public class IntArrayBuilder {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] data;
+
+    private int size;
+
+    public IntArrayBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntArrayBuilder(int initialCapacity) {
+        data = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        data[size++] = value;
+    }
+
+    public void add(int a, int b) {
+        ensureCapacity(size + 2);
+        data[size++] = a;
+        data[size++] = b;
+    }
+
+    public void add(int a, int b, int c) {
+        ensureCapacity(size + 3);
+        data[size++] = a;
+        data[size++] = b;
+        data[size++] = c;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data[index];
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        data[index] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length) {
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+        }
+    }
+
+    /**
+     * @return The backing array, which may be longer than the size. It is
+     * replaced when the builder grows.
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    /**
+     * @return A copy of the values
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
@@ -0,0 +1,96 @@
+package engine.collections;
+
+import java.nio.FloatBuffer;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Growable array of floats in native memory. The values can be handed to
+ * glBufferData without copying them, see {@link #getBuffer}. The memory
+ * must be released with {@link #close}.
+ */
+public class NativeFloatArrayBuilder implements AutoCloseable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private FloatBuffer data;
+
+    private int size;
+
+    public NativeFloatArrayBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NativeFloatArrayBuilder(int initialCapacity) {
+        data = MemoryUtil.memAllocFloat(Math.max(initialCapacity, 1));
+    }
+
+    public void add(float value) {
+        ensureCapacity(size + 1);
+        data.put(size++, value);
+    }
+
+    public void add(float x, float y) {
+        ensureCapacity(size + 2);
+        data.put(size++, x);
+        data.put(size++, y);
+    }
+
+    public void add(float x, float y, float z) {
+        ensureCapacity(size + 3);
+        data.put(size++, x);
+        data.put(size++, y);
+        data.put(size++, z);
+    }
+
+    public float get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data.get(index);
+    }
+
+    public void set(int index, float value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        data.put(index, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.capacity()) {
+            data = MemoryUtil.memRealloc(data, Math.max(capacity, data.capacity() * 2));
+        }
+    }
+
+    /**
+     * @return A view of the values, from position zero to the size. It
+     * shares the memory of the builder, so it is only valid until the
+     * builder grows or is closed.
+     */
+    public FloatBuffer getBuffer() {
+        FloatBuffer buffer = data.duplicate();
+        buffer.position(0);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        if (data != null) {
+            MemoryUtil.memFree(data);
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package engine.collections;
+
+import java.nio.IntBuffer;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Growable array of ints in native memory. The values can be handed to
+ * glBufferData without copying them, see {@link #getBuffer}. The memory
+ * must be released with {@link #close}.
+ */
+public class NativeIntArrayBuilder implements AutoCloseable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private IntBuffer data;
+
+    private int size;
+
+    public NativeIntArrayBuilder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NativeIntArrayBuilder(int initialCapacity) {
+        data = MemoryUtil.memAllocInt(Math.max(initialCapacity, 1));
+    }
+
+    public void add(int value) {
+        ensureCapacity(size + 1);
+        data.put(size++, value);
+    }
+
+    public void add(int a, int b) {
+        ensureCapacity(size + 2);
+        data.put(size++, a);
+        data.put(size++, b);
+    }
+
+    public void add(int a, int b, int c) {
+        ensureCapacity(size + 3);
+        data.put(size++, a);
+        data.put(size++, b);
+        data.put(size++, c);
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return data.get(index);
+    }
+
+    public void set(int index, int value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        data.put(index, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.capacity()) {
+            data = MemoryUtil.memRealloc(data, Math.max(capacity, data.capacity() * 2));
+        }
+    }
+
+    /**
+     * @return A view of the values, from position zero to the size. It
+     * shares the memory of the builder, so it is only valid until the
+     * builder grows or is closed.
+     */
+    public IntBuffer getBuffer() {
+        IntBuffer buffer = data.duplicate();
+        buffer.position(0);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        if (data != null) {
+            MemoryUtil.memFree(data);
+            data = null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import org.lwjgl.system.MemoryUtil;
+import engine.Scene;
+import engine.SceneLight;
+import engine.Window;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.shadow.ShadowCascade;
+import engine.graph.shadow.ShadowRenderer;
+
+/**
+ * Holds the data shared by all the passes of a frame (camera, shadow cascades
+ * and scene lights) in a std140 uniform buffer. The buffer is uploaded once
+ * per frame and stays bound to {@link #BINDING_POINT}, shaders declare it as:
+ *
+ * <pre>
+ * layout (std140) uniform FrameData
+ * {
+ *     mat4 viewMatrix;
+ *     mat4 projectionMatrix;
+ *     mat4 orthoProjectionMatrix[NUM_CASCADES];
+ *     mat4 lightViewMatrix[NUM_CASCADES];
+ *     vec4 cascadeFarPlanes;
+ *     vec4 ambientLight;
+ *     vec4 dirLightColour;     // rgb colour, intensity in w
+ *     vec4 dirLightDirection;  // view coordinates
+ * };
+ * </pre>
+ */
+public class FrameUniforms {
+
+    public static final String BLOCK_NAME = "FrameData";
+
+    public static final int BINDING_POINT = 0;
+
+    private static final int MATRIX_SIZE_FLOATS = 16;
+
+    private static final int VEC4_SIZE_FLOATS = 4;
+
+    private static final int VIEW_OFFSET = 0;
+
+    private static final int PROJECTION_OFFSET = VIEW_OFFSET + MATRIX_SIZE_FLOATS;
+
+    private static final int ORTHO_PROJECTION_OFFSET = PROJECTION_OFFSET + MATRIX_SIZE_FLOATS;
+
+    private static final int LIGHT_VIEW_OFFSET = ORTHO_PROJECTION_OFFSET + MATRIX_SIZE_FLOATS * ShadowRenderer.NUM_CASCADES;
+
+    private static final int CASCADE_FAR_PLANES_OFFSET = LIGHT_VIEW_OFFSET + MATRIX_SIZE_FLOATS * ShadowRenderer.NUM_CASCADES;
+
+    private static final int AMBIENT_LIGHT_OFFSET = CASCADE_FAR_PLANES_OFFSET + VEC4_SIZE_FLOATS;
+
+    private static final int DIR_LIGHT_COLOUR_OFFSET = AMBIENT_LIGHT_OFFSET + VEC4_SIZE_FLOATS;
+
+    private static final int DIR_LIGHT_DIRECTION_OFFSET = DIR_LIGHT_COLOUR_OFFSET + VEC4_SIZE_FLOATS;
+
+    private static final int SIZE_FLOATS = DIR_LIGHT_DIRECTION_OFFSET + VEC4_SIZE_FLOATS;
+
+    private final int uboId;
+
+    private final FloatBuffer buffer;
+
+    private final Vector4f tmpVec;
+
+    public FrameUniforms() {
+        // The far planes of the cascades are packed in a single vec4
+        if (ShadowRenderer.NUM_CASCADES > VEC4_SIZE_FLOATS) {
+            throw new IllegalStateException("FrameData supports up to " + VEC4_SIZE_FLOATS + " cascades");
+        }
+        buffer = MemoryUtil.memAllocFloat(SIZE_FLOATS);
+        tmpVec = new Vector4f();
+
+        uboId = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, uboId);
+        glBufferData(GL_UNIFORM_BUFFER, SIZE_FLOATS * 4, GL_STREAM_DRAW);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        glBindBufferBase(GL_UNIFORM_BUFFER, BINDING_POINT, uboId);
+    }
+
+    public void update(Window window, Camera camera, Scene scene, List<ShadowCascade> shadowCascades) {
+        Matrix4f viewMatrix = camera.getViewMatrix();
+        viewMatrix.get(VIEW_OFFSET, buffer);
+        window.getProjectionMatrix().get(PROJECTION_OFFSET, buffer);
+
+        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
+            ShadowCascade shadowCascade = shadowCascades.get(i);
+            shadowCascade.getOrthoProjMatrix().get(ORTHO_PROJECTION_OFFSET + MATRIX_SIZE_FLOATS * i, buffer);
+            shadowCascade.getLightViewMatrix().get(LIGHT_VIEW_OFFSET + MATRIX_SIZE_FLOATS * i, buffer);
+            buffer.put(CASCADE_FAR_PLANES_OFFSET + i, ShadowRenderer.CASCADE_SPLITS[i]);
+        }
+
+        SceneLight sceneLight = scene.getSceneLight();
+        Vector3f ambientLight = sceneLight != null ? sceneLight.getAmbientLight() : null;
+        if (ambientLight != null) {
+            putVec4(AMBIENT_LIGHT_OFFSET, ambientLight.x, ambientLight.y, ambientLight.z, 0);
+        } else {
+            putVec4(AMBIENT_LIGHT_OFFSET, 0, 0, 0, 0);
+        }
+
+        DirectionalLight dirLight = sceneLight != null ? sceneLight.getDirectionalLight() : null;
+        if (dirLight != null) {
+            Vector3f colour = dirLight.getColor();
+            putVec4(DIR_LIGHT_COLOUR_OFFSET, colour.x, colour.y, colour.z, dirLight.getIntensity());
+            // Transform the direction to view coordinates
+            tmpVec.set(dirLight.getDirection(), 0);
+            tmpVec.mul(viewMatrix);
+            putVec4(DIR_LIGHT_DIRECTION_OFFSET, tmpVec.x, tmpVec.y, tmpVec.z, 0);
+        } else {
+            putVec4(DIR_LIGHT_COLOUR_OFFSET, 0, 0, 0, 0);
+            putVec4(DIR_LIGHT_DIRECTION_OFFSET, 0, 0, 0, 0);
+        }
+
+        // Orphan the previous contents so the driver does not wait for the last frame to finish with them
+        glBindBuffer(GL_UNIFORM_BUFFER, uboId);
+        glBufferData(GL_UNIFORM_BUFFER, SIZE_FLOATS * 4, GL_STREAM_DRAW);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, buffer);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+    }
+
+    private void putVec4(int offset, float x, float y, float z, float w) {
+        buffer.put(offset, x);
+        buffer.put(offset + 1, y);
+        buffer.put(offset + 2, z);
+        buffer.put(offset + 3, w);
+    }
+
+    public void cleanup() {
+        glDeleteBuffers(uboId);
+        MemoryUtil.memFree(buffer);
+    }
+}
@@ -1,21 +1,74 @@
 package engine.graph;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import engine.SceneSpatialIndex;
 import engine.items.GameItem;
 
+/**
+ * Tests the game items against the view frustum using the boxes of their
+ * meshes. In conservative mode the mesh box is transformed into a world
+ * axis aligned box, which may be larger than the item. In exact mode the
+ * items that pass that test are tested again as oriented boxes, moving the
+ * frustum into the model space of the item.
+ */
 public class FrustumCullingFilter {
 
     private final Matrix4f prjViewMatrix;
 
     private final FrustumIntersection frustumInt;
 
+    private final FrustumIntersection localFrustumInt;
+
+    private final Matrix4f modelMatrix;
+
+    private final Matrix4f prjViewModelMatrix;
+
+    private final Vector3f min;
+
+    private final Vector3f max;
+
+    private final Vector3f worldMin;
+
+    private final Vector3f worldMax;
+
+    private final List<GameItem> visibleItems;
+
+    private final List<GameItem> partialItems;
+
+    private final BiConsumer<Mesh, List<GameItem>> meshFilter;
+
+    private int indexVersion;
+
+    private boolean exact;
+
+    private int numItems;
+
+    private int numVisible;
+
+    private int numRejectedAabb;
+
+    private int numRejectedObb;
+
     public FrustumCullingFilter() {
         prjViewMatrix = new Matrix4f();
         frustumInt = new FrustumIntersection();
+        localFrustumInt = new FrustumIntersection();
+        modelMatrix = new Matrix4f();
+        prjViewModelMatrix = new Matrix4f();
+        min = new Vector3f();
+        max = new Vector3f();
+        worldMin = new Vector3f();
+        worldMax = new Vector3f();
+        visibleItems = new ArrayList<>();
+        partialItems = new ArrayList<>();
+        meshFilter = (mesh, gameItems) -> filterItems(gameItems);
+        indexVersion = -1;
     }
 
     public void updateFrustum(Matrix4f projMatrix, Matrix4f viewMatrix) {
@@ -24,19 +77,73 @@ public class FrustumCullingFilter {
         prjViewMatrix.mul(viewMatrix);
         // Update frustum intersection class
         frustumInt.set(prjViewMatrix);
+
+        numItems = 0;
+        numVisible = 0;
+        numRejectedAabb = 0;
+        numRejectedObb = 0;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
+    /**
+     * @return Number of items culled since the frustum was updated
+     */
+    public int getNumItems() {
+        return numItems;
+    }
+
+    public int getNumVisible() {
+        return numVisible;
+    }
+
+    /**
+     * @return Number of items rejected by their world axis aligned boxes,
+     * including the ones rejected by the spatial index
+     */
+    public int getNumRejectedAabb() {
+        return numRejectedAabb;
+    }
+
+    /**
+     * @return Number of items that passed the axis aligned box test but were
+     * rejected by their oriented boxes. Always zero in conservative mode
+     */
+    public int getNumRejectedObb() {
+        return numRejectedObb;
     }
 
     public void filter(Map<? extends Mesh, List<GameItem>> mapMesh) {
-        for (Map.Entry<? extends Mesh, List<GameItem>> entry : mapMesh.entrySet()) {
-            List<GameItem> gameItems = entry.getValue();
-            filter(gameItems, entry.getKey().getBoundingRadius());
+        mapMesh.forEach(meshFilter);
+    }
+
+    private void filterItems(List<GameItem> gameItems) {
+        int numGameItems = gameItems.size();
+        for (int i = 0; i < numGameItems; i++) {
+            GameItem gameItem = gameItems.get(i);
+            if (!gameItem.isDisableFrustumCulling()) {
+                numItems++;
+                boolean inside = insideFrustum(gameItem);
+                gameItem.setInsideFrustum(inside);
+                if (inside) {
+                    numVisible++;
+                }
+            }
         }
     }
 
     public void filter(List<GameItem> gameItems, float meshBoundingRadius) {
         float boundingRadius;
         Vector3f pos;
-        for (GameItem gameItem : gameItems) {
+        int numGameItems = gameItems.size();
+        for (int i = 0; i < numGameItems; i++) {
+            GameItem gameItem = gameItems.get(i);
             if (!gameItem.isDisableFrustumCulling()) {
                 boundingRadius = gameItem.getScale() * meshBoundingRadius;
                 pos = gameItem.getPosition();
@@ -45,6 +152,66 @@ public class FrustumCullingFilter {
         }
     }
 
+    /**
+     * Culls the items of a spatial index, querying the tree instead of
+     * testing every item. Only the items found visible in the previous call
+     * are reset, unless items have been added or removed since then.
+     */
+    public void filter(SceneSpatialIndex spatialIndex) {
+        if (spatialIndex.getVersion() != indexVersion) {
+            indexVersion = spatialIndex.getVersion();
+            spatialIndex.forEach(gameItem -> gameItem.setInsideFrustum(gameItem.isDisableFrustumCulling()));
+        } else {
+            int numVisibleItems = visibleItems.size();
+            for (int i = 0; i < numVisibleItems; i++) {
+                GameItem gameItem = visibleItems.get(i);
+                gameItem.setInsideFrustum(gameItem.isDisableFrustumCulling());
+            }
+        }
+        visibleItems.clear();
+        partialItems.clear();
+        spatialIndex.queryFrustum(frustumInt, visibleItems, partialItems);
+        // Items outside the tree query, those rejected in the retest are counted by insideFrustum
+        numRejectedAabb += spatialIndex.size() - visibleItems.size() - partialItems.size();
+        // The leaf boxes are enlarged, test the items on the frustum planes again
+        int numPartialItems = partialItems.size();
+        for (int i = 0; i < numPartialItems; i++) {
+            GameItem gameItem = partialItems.get(i);
+            if (gameItem.isDisableFrustumCulling() || insideFrustum(gameItem)) {
+                visibleItems.add(gameItem);
+            }
+        }
+        int numVisibleItems = visibleItems.size();
+        for (int i = 0; i < numVisibleItems; i++) {
+            visibleItems.get(i).setInsideFrustum(true);
+        }
+        numItems += spatialIndex.size();
+        numVisible += visibleItems.size();
+    }
+
+    /**
+     * Tests an item using the current mode and updates the statistics of the
+     * rejected items.
+     */
+    public boolean insideFrustum(GameItem gameItem) {
+        gameItem.getLocalBounds(min, max);
+        gameItem.getModelMatrix(modelMatrix);
+        modelMatrix.transformAab(min, max, worldMin, worldMax);
+        if (!frustumInt.testAab(worldMin, worldMax)) {
+            numRejectedAabb++;
+            return false;
+        }
+        if (exact) {
+            prjViewMatrix.mul(modelMatrix, prjViewModelMatrix);
+            localFrustumInt.set(prjViewModelMatrix, false);
+            if (!localFrustumInt.testAab(min, max)) {
+                numRejectedObb++;
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean insideFrustum(float x0, float y0, float z0, float boundingRadius) {
         return frustumInt.testSphere(x0, y0, z0, boundingRadius);
     }
@@ -12,8 +12,29 @@ import static org.lwjgl.opengl.GL30.*;
 
 public class GBuffer {
 
+    /**
+     * Shader define that selects the compact layout in the geometry and
+     * lighting shaders.
+     */
+    public static final String COMPACT_DEFINE = "COMPACT_GBUFFER";
+
     private static final int TOTAL_TEXTURES = 6;
 
+    /**
+     * Normal (octahedral, view coordinates), diffuse colour and shadow factor,
+     * specular colour and reflectance, and depth. Position is rebuilt from
+     * depth.
+     */
+    private static final int COMPACT_TOTAL_TEXTURES = 4;
+
+    private static final int[] COMPACT_FORMATS = {GL_RG16F, GL_RGBA8, GL_RGBA8};
+
+    private static final int[] COMPACT_PIXEL_FORMATS = {GL_RG, GL_RGBA, GL_RGBA};
+
+    private static final int[] COMPACT_PIXEL_TYPES = {GL_HALF_FLOAT, GL_UNSIGNED_BYTE, GL_UNSIGNED_BYTE};
+
+    private final boolean compact;
+
     private int gBufferId;
 
     private int[] textureIds;
@@ -23,11 +44,18 @@ public class GBuffer {
     private int height;
 
     public GBuffer(Window window) throws Exception {
+        this(window, false);
+    }
+
+    public GBuffer(Window window, boolean compact) throws Exception {
+        this.compact = compact;
+
         // Create G-Buffer
         gBufferId = glGenFramebuffers();
         glBindFramebuffer(GL_DRAW_FRAMEBUFFER, gBufferId);
 
-        textureIds = new int[TOTAL_TEXTURES];
+        int totalTextures = compact ? COMPACT_TOTAL_TEXTURES : TOTAL_TEXTURES;
+        textureIds = new int[totalTextures];
         glGenTextures(textureIds);
 
         this.width = window.getWidth();
@@ -35,20 +63,21 @@ public class GBuffer {
 
         // Create textures for position, diffuse color, specular color, normal, shadow factor and depth
         // All coordinates are in world coordinates system
-        for(int i=0; i<TOTAL_TEXTURES; i++) {
+        for(int i=0; i<totalTextures; i++) {
             glBindTexture(GL_TEXTURE_2D, textureIds[i]);
             int attachmentType;
-            switch(i) {
-                case TOTAL_TEXTURES - 1:
-                    // Depth component
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT32F, width, height, 0, GL_DEPTH_COMPONENT, GL_FLOAT,
-                            (ByteBuffer) null);
-                    attachmentType = GL_DEPTH_ATTACHMENT;
-                    break;
-                default:
-                    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB32F, width, height, 0, GL_RGB, GL_FLOAT, (ByteBuffer) null);
-                    attachmentType = GL_COLOR_ATTACHMENT0 + i;
-                    break;
+            if (i == totalTextures - 1) {
+                // Depth component, with stencil so it can be copied to the depth stencil buffer of the light pass
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH32F_STENCIL8, width, height, 0, GL_DEPTH_STENCIL,
+                        GL_FLOAT_32_UNSIGNED_INT_24_8_REV, (ByteBuffer) null);
+                attachmentType = GL_DEPTH_STENCIL_ATTACHMENT;
+            } else if (compact) {
+                glTexImage2D(GL_TEXTURE_2D, 0, COMPACT_FORMATS[i], width, height, 0, COMPACT_PIXEL_FORMATS[i],
+                        COMPACT_PIXEL_TYPES[i], (ByteBuffer) null);
+                attachmentType = GL_COLOR_ATTACHMENT0 + i;
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB32F, width, height, 0, GL_RGB, GL_FLOAT, (ByteBuffer) null);
+                attachmentType = GL_COLOR_ATTACHMENT0 + i;
             }
             // For sampling
             glTexParameterf(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
@@ -59,10 +88,10 @@ public class GBuffer {
         }
 
         try (MemoryStack stack = MemoryStack.stackPush()) {
-            IntBuffer intBuff = stack.mallocInt(TOTAL_TEXTURES);
-            int values[] = {GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1, GL_COLOR_ATTACHMENT2, GL_COLOR_ATTACHMENT3, GL_COLOR_ATTACHMENT4, GL_COLOR_ATTACHMENT5};
-            for(int i = 0; i < values.length; i++) {
-                intBuff.put(values[i]);
+            int numColourTextures = totalTextures - 1;
+            IntBuffer intBuff = stack.mallocInt(numColourTextures);
+            for(int i = 0; i < numColourTextures; i++) {
+                intBuff.put(GL_COLOR_ATTACHMENT0 + i);
             }
             intBuff.flip();
             glDrawBuffers(intBuff);
@@ -72,6 +101,10 @@ public class GBuffer {
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
 
+    public boolean isCompact() {
+        return compact;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -88,19 +121,23 @@ public class GBuffer {
         return textureIds;
     }
 
+    /**
+     * @return The position texture, or 0 in the compact layout, which does
+     * not store positions
+     */
     public int getPositionTexture() {
-        return textureIds[0];
+        return compact ? 0 : textureIds[0];
     }
 
     public int getDepthTexture() {
-        return textureIds[TOTAL_TEXTURES-1];
+        return textureIds[textureIds.length - 1];
     }
 
     public void cleanUp() {
         glDeleteFramebuffers(gBufferId);
 
         if (textureIds != null) {
-            for (int i=0; i<TOTAL_TEXTURES; i++) {
+            for (int i=0; i<textureIds.length; i++) {
                 glDeleteTextures(textureIds[i]);
             }
         }
@@ -1,10 +1,9 @@
 package engine.graph;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import org.joml.Vector3f;
-import engine.Utils;
+import engine.collections.NativeFloatArrayBuilder;
+import engine.collections.NativeIntArrayBuilder;
 
 public class HeightMapMesh {
 
@@ -28,50 +27,45 @@ public class HeightMapMesh {
         
         heightArray = new float[height][width];
         
-        Texture texture = new Texture(textureFile);
+        Texture texture = TextureCache.getInstance().acquire(textureFile);
 
         float incx = getXLength() / (width - 1);
         float incz = getZLength() / (height - 1);
 
-        List<Float> positions = new ArrayList<>();
-        List<Float> textCoords = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++) {
-                // Create vertex for current position
-                positions.add(STARTX + col * incx); // x
-                float currentHeight = getHeight(col, row, width, heightMapImage);
-                heightArray[row][col] = currentHeight;
-                positions.add(currentHeight); //y
-                positions.add(STARTZ + row * incz); //z
-
-                // Set texture coordinates
-                textCoords.add((float) textInc * (float) col / (float) width);
-                textCoords.add((float) textInc * (float) row / (float) height);
-
-                // Create indices
-                if (col < width - 1 && row < height - 1) {
-                    int leftTop = row * width + col;
-                    int leftBottom = (row + 1) * width + col;
-                    int rightBottom = (row + 1) * width + col + 1;
-                    int rightTop = row * width + col + 1;
-
-                    indices.add(rightTop);
-                    indices.add(leftBottom);
-                    indices.add(rightBottom);
-
-                    indices.add(leftTop);
-                    indices.add(leftBottom);
-                    indices.add(rightTop);
+        int numVertices = width * height;
+        try (NativeFloatArrayBuilder positions = new NativeFloatArrayBuilder(numVertices * 3);
+                NativeFloatArrayBuilder textCoords = new NativeFloatArrayBuilder(numVertices * 2);
+                NativeFloatArrayBuilder normals = new NativeFloatArrayBuilder(numVertices * 3);
+                NativeIntArrayBuilder indices = new NativeIntArrayBuilder((width - 1) * (height - 1) * 6)) {
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    // Create vertex for current position
+                    float currentHeight = getHeight(col, row, width, heightMapImage);
+                    heightArray[row][col] = currentHeight;
+                    positions.add(STARTX + col * incx, currentHeight, STARTZ + row * incz);
+
+                    // Set texture coordinates
+                    textCoords.add((float) textInc * (float) col / (float) width,
+                            (float) textInc * (float) row / (float) height);
+
+                    // Create indices
+                    if (col < width - 1 && row < height - 1) {
+                        int leftTop = row * width + col;
+                        int leftBottom = (row + 1) * width + col;
+                        int rightBottom = (row + 1) * width + col + 1;
+                        int rightTop = row * width + col + 1;
+
+                        indices.add(rightTop, leftBottom, rightBottom);
+                        indices.add(leftTop, leftBottom, rightTop);
+                    }
                 }
             }
+            calcNormals(positions, normals, width, height);
+            // The rows of the grid are too long for the vertex cache
+            MeshOptimizer.optimize(positions.getBuffer(), textCoords.getBuffer(), normals.getBuffer(), indices.getBuffer(),
+                    null, null);
+            this.mesh = new Mesh(positions.getBuffer(), textCoords.getBuffer(), normals.getBuffer(), indices.getBuffer());
         }
-        float[] posArr = Utils.listToArray(positions);
-        int[] indicesArr = indices.stream().mapToInt(i -> i).toArray();
-        float[] textCoordsArr = Utils.listToArray(textCoords);
-        float[] normalsArr = calcNormals(posArr, width, height);
-        this.mesh = new Mesh(posArr, textCoordsArr, normalsArr, indicesArr);
         Material material = new Material(texture, 0.0f);
         mesh.setMaterial(material);
     }
@@ -98,7 +92,7 @@ public class HeightMapMesh {
         return Math.abs(-STARTZ*2);
     }
 
-    private float[] calcNormals(float[] posArr, int width, int height) {
+    private void calcNormals(NativeFloatArrayBuilder posArr, NativeFloatArrayBuilder normals, int width, int height) {
         Vector3f v0 = new Vector3f();
         Vector3f v1 = new Vector3f();
         Vector3f v2 = new Vector3f();
@@ -108,38 +102,37 @@ public class HeightMapMesh {
         Vector3f v23 = new Vector3f();
         Vector3f v34 = new Vector3f();
         Vector3f v41 = new Vector3f();
-        List<Float> normals = new ArrayList<>();
         Vector3f normal = new Vector3f();
         for (int row = 0; row < height; row++) {
             for (int col = 0; col < width; col++) {
                 if (row > 0 && row < height -1 && col > 0 && col < width -1) {
                     int i0 = row*width*3 + col*3;
-                    v0.x = posArr[i0];
-                    v0.y = posArr[i0 + 1];
-                    v0.z = posArr[i0 + 2];
+                    v0.x = posArr.get(i0);
+                    v0.y = posArr.get(i0 + 1);
+                    v0.z = posArr.get(i0 + 2);
 
                     int i1 = row*width*3 + (col-1)*3;
-                    v1.x = posArr[i1];
-                    v1.y = posArr[i1 + 1];
-                    v1.z = posArr[i1 + 2];                    
+                    v1.x = posArr.get(i1);
+                    v1.y = posArr.get(i1 + 1);
+                    v1.z = posArr.get(i1 + 2);                    
                     v1 = v1.sub(v0);
 
                     int i2 = (row+1)*width*3 + col*3;
-                    v2.x = posArr[i2];
-                    v2.y = posArr[i2 + 1];
-                    v2.z = posArr[i2 + 2];
+                    v2.x = posArr.get(i2);
+                    v2.y = posArr.get(i2 + 1);
+                    v2.z = posArr.get(i2 + 2);
                     v2 = v2.sub(v0);
 
                     int i3 = (row)*width*3 + (col+1)*3;
-                    v3.x = posArr[i3];
-                    v3.y = posArr[i3 + 1];
-                    v3.z = posArr[i3 + 2];
+                    v3.x = posArr.get(i3);
+                    v3.y = posArr.get(i3 + 1);
+                    v3.z = posArr.get(i3 + 2);
                     v3 = v3.sub(v0);
 
                     int i4 = (row-1)*width*3 + col*3;
-                    v4.x = posArr[i4];
-                    v4.y = posArr[i4 + 1];
-                    v4.z = posArr[i4 + 2];
+                    v4.x = posArr.get(i4);
+                    v4.y = posArr.get(i4 + 1);
+                    v4.z = posArr.get(i4 + 2);
                     v4 = v4.sub(v0);
                     
                     v1.cross(v2, v12);
@@ -162,12 +155,9 @@ public class HeightMapMesh {
                     normal.z = 0;
                 }
                 normal.normalize();
-                normals.add(normal.x);
-                normals.add(normal.y);
-                normals.add(normal.z);
+                normals.add(normal.x, normal.y, normal.z);
             }
         }
-        return Utils.listToArray(normals);
     }
 
     private float getHeight(int x, int z, int width, ByteBuffer buffer) {
@@ -3,18 +3,18 @@ package engine.graph;
 import org.joml.Matrix4f;
 import org.lwjgl.system.MemoryUtil;
 import engine.items.GameItem;
+import engine.items.TransformStore;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.List;
 
 import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
 import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
-import static org.lwjgl.opengl.GL15.GL_DYNAMIC_READ;
 import static org.lwjgl.opengl.GL15.glBindBuffer;
-import static org.lwjgl.opengl.GL15.glBufferData;
-import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
 import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
@@ -27,62 +27,88 @@ public class InstancedMesh extends Mesh {
 
     private static final int VECTOR4F_SIZE_BYTES = 4 * InstancedMesh.FLOAT_SIZE_BYTES;
 
-    private static final int MATRIX_SIZE_FLOATS = 4 * 4;
+    static final int MATRIX_SIZE_FLOATS = 4 * 4;
 
     private static final int MATRIX_SIZE_BYTES = InstancedMesh.MATRIX_SIZE_FLOATS * InstancedMesh.FLOAT_SIZE_BYTES;
 
-    private static final int INSTANCE_SIZE_BYTES = InstancedMesh.MATRIX_SIZE_BYTES + InstancedMesh.FLOAT_SIZE_BYTES * 2 + InstancedMesh.FLOAT_SIZE_BYTES;
+    static final int INSTANCE_SIZE_BYTES = InstancedMesh.MATRIX_SIZE_BYTES + InstancedMesh.FLOAT_SIZE_BYTES * 2 + InstancedMesh.FLOAT_SIZE_BYTES;
 
-    private static final int INSTANCE_SIZE_FLOATS = InstancedMesh.MATRIX_SIZE_FLOATS + 3;
+    static final int INSTANCE_SIZE_FLOATS = InstancedMesh.MATRIX_SIZE_FLOATS + 3;
 
-    private final int numInstances;
+    private int numInstances;
 
-    private final int instanceDataVBO;
+    private final RingBuffer instanceRingBuffer;
 
     private FloatBuffer instanceDataBuffer;
 
     public InstancedMesh(float[] positions, float[] textCoords, float[] normals, int[] indices, int numInstances) {
-        super(positions, textCoords, normals, indices, Mesh.createEmptyIntArray(Mesh.MAX_WEIGHTS * positions.length / 3, 0), Mesh.createEmptyFloatArray(Mesh.MAX_WEIGHTS * positions.length / 3, 0));
+        super(positions, textCoords, normals, indices);
 
         this.numInstances = numInstances;
+        instanceRingBuffer = new RingBuffer(numInstances * InstancedMesh.INSTANCE_SIZE_BYTES);
+        instanceDataBuffer = MemoryUtil.memAllocFloat(numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS);
+        setupInstanceAttributes();
+    }
 
-        glBindVertexArray(vaoId);
+    public InstancedMesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices, int numInstances) {
+        super(positions, textCoords, normals, indices);
 
-        instanceDataVBO = glGenBuffers();
-        vboIdList.add(instanceDataVBO);
+        this.numInstances = numInstances;
+        instanceRingBuffer = new RingBuffer(numInstances * InstancedMesh.INSTANCE_SIZE_BYTES);
         instanceDataBuffer = MemoryUtil.memAllocFloat(numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS);
-        glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
+        setupInstanceAttributes();
+    }
+
+    public InstancedMesh(ByteBuffer vertices, VertexLayout layout, IntBuffer indices, int numInstances) {
+        super(vertices, layout, indices);
+
+        this.numInstances = numInstances;
+        instanceRingBuffer = new RingBuffer(numInstances * InstancedMesh.INSTANCE_SIZE_BYTES);
+        instanceDataBuffer = MemoryUtil.memAllocFloat(numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS);
+        setupInstanceAttributes();
+    }
+
+    private void setupInstanceAttributes() {
+        glBindVertexArray(vaoId);
+
+        glBindBuffer(GL_ARRAY_BUFFER, instanceRingBuffer.getVboId());
+        setInstanceAttributes(0);
+        for (int i = 5; i <= 10; i++) {
+            glVertexAttribDivisor(i, 1);
+            glEnableVertexAttribArray(i);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Points the per instance attributes (5 to 10) of the bound VAO to the
+     * instance data starting at offset in the bound array buffer.
+     */
+    static void setInstanceAttributes(int offset) {
         int start = 5;
-        int strideStart = 0;
+        int strideStart = offset;
         // Model matrix
         for (int i = 0; i < 4; i++) {
             glVertexAttribPointer(start, 4, GL_FLOAT, false, InstancedMesh.INSTANCE_SIZE_BYTES, strideStart);
-            glVertexAttribDivisor(start, 1);
-            glEnableVertexAttribArray(start);
             start++;
             strideStart += InstancedMesh.VECTOR4F_SIZE_BYTES;
         }
 
         // Texture offsets
         glVertexAttribPointer(start, 2, GL_FLOAT, false, InstancedMesh.INSTANCE_SIZE_BYTES, strideStart);
-        glVertexAttribDivisor(start, 1);
-        glEnableVertexAttribArray(start);
         strideStart += InstancedMesh.FLOAT_SIZE_BYTES * 2;
         start++;
 
         // Selected or Scaling (for particles)
         glVertexAttribPointer(start, 1, GL_FLOAT, false, InstancedMesh.INSTANCE_SIZE_BYTES, strideStart);
-        glVertexAttribDivisor(start, 1);
-        glEnableVertexAttribArray(start);
-        start++;
-
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        glBindVertexArray(0);
     }
 
     @Override
     public void cleanUp() {
         super.cleanUp();
+        instanceRingBuffer.cleanup();
         if (this.instanceDataBuffer != null) {
             MemoryUtil.memFree(this.instanceDataBuffer);
             this.instanceDataBuffer = null;
@@ -94,54 +120,75 @@ public class InstancedMesh extends Mesh {
     }
 
     public void renderListInstanced(List<GameItem> gameItems, boolean billBoard, Transformation transformation, Matrix4f viewMatrix) {
-        initRender();
-
-        int chunkSize = numInstances;
-        int length = gameItems.size();
-        for (int i = 0; i < length; i += chunkSize) {
-            int end = Math.min(length, i + chunkSize);
-            List<GameItem> subList = gameItems.subList(i, end);
-            renderChunkInstanced(subList, billBoard, transformation, viewMatrix);
+        renderListInstanced(gameItems, billBoard, transformation, viewMatrix, true);
+    }
+
+    public void renderListInstanced(List<GameItem> gameItems, boolean billBoard, Transformation transformation, Matrix4f viewMatrix, boolean bindTextures) {
+        if (gameItems.isEmpty()) {
+            return;
         }
+        initRender(bindTextures);
 
-        endRender();
+        // Grow instead of splitting the list in several draws
+        if (gameItems.size() > numInstances) {
+            numInstances = Math.max(gameItems.size(), numInstances * 2);
+            instanceDataBuffer = MemoryUtil.memRealloc(instanceDataBuffer, numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS);
+        }
+        renderInstances(gameItems, billBoard, transformation, viewMatrix);
+
+        endRender(bindTextures);
     }
 
-    private void renderChunkInstanced(List<GameItem> gameItems, boolean billBoard, Transformation transformation, Matrix4f viewMatrix) {
+    private void renderInstances(List<GameItem> gameItems, boolean billBoard, Transformation transformation, Matrix4f viewMatrix) {
         this.instanceDataBuffer.clear();
 
-        int i = 0;
-
         Texture text = getMaterial().getTexture();
-        for (GameItem gameItem : gameItems) {
-            Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-            if (viewMatrix != null && billBoard) {
-                viewMatrix.transpose3x3(modelMatrix);
-            }
-            modelMatrix.get(InstancedMesh.INSTANCE_SIZE_FLOATS * i, instanceDataBuffer);
-            if (text != null) {
-                int col = gameItem.getTextPos() % text.getNumCols();
-                int row = gameItem.getTextPos() / text.getNumCols();
-                float textXOffset = (float) col / text.getNumCols();
-                float textYOffset = (float) row / text.getNumRows();
-                int buffPos = InstancedMesh.INSTANCE_SIZE_FLOATS * i + InstancedMesh.MATRIX_SIZE_FLOATS;
-                this.instanceDataBuffer.put(buffPos, textXOffset);
-                this.instanceDataBuffer.put(buffPos + 1, textYOffset);
-            }
-
-            // Selected data or scaling for billboard
-            int buffPos = InstancedMesh.INSTANCE_SIZE_FLOATS * i + InstancedMesh.MATRIX_SIZE_FLOATS + 2;
-            this.instanceDataBuffer.put(buffPos, billBoard ? gameItem.getScale() : gameItem.isSelected() ? 1 : 0);
-
-            i++;
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            putInstanceData(instanceDataBuffer, i, gameItems.get(i), text, billBoard, transformation, viewMatrix);
         }
 
-        glBindBuffer(GL_ARRAY_BUFFER, instanceDataVBO);
-        glBufferData(GL_ARRAY_BUFFER, instanceDataBuffer, GL_DYNAMIC_READ);
+        int offset = instanceRingBuffer.upload(instanceDataBuffer, gameItems.size() * InstancedMesh.INSTANCE_SIZE_BYTES);
+        setInstanceAttributes(offset);
 
         glDrawElementsInstanced(
                 GL_TRIANGLES, getVertexCount(), GL_UNSIGNED_INT, 0, gameItems.size());
+        instanceRingBuffer.fence();
 
         glBindBuffer(GL_ARRAY_BUFFER, 0);
     }
+
+    /**
+     * Writes the data of an instance (model matrix, texture offset and
+     * selection or scale) at the given instance position of the buffer.
+     */
+    static void putInstanceData(FloatBuffer buffer, int i, GameItem gameItem, Texture text, boolean billBoard,
+            Transformation transformation, Matrix4f viewMatrix) {
+        TransformStore transformStore = gameItem.getTransformStore();
+        if (transformStore != null && !billBoard) {
+            // The matrix is already built, copy it as it is
+            transformStore.getModelMatrix(gameItem.getTransformIndex(), buffer, InstancedMesh.INSTANCE_SIZE_FLOATS * i);
+        } else {
+            Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+            if (viewMatrix != null && billBoard) {
+                viewMatrix.transpose3x3(modelMatrix);
+            }
+            modelMatrix.get(InstancedMesh.INSTANCE_SIZE_FLOATS * i, buffer);
+        }
+        int buffPos = InstancedMesh.INSTANCE_SIZE_FLOATS * i + InstancedMesh.MATRIX_SIZE_FLOATS;
+        if (text != null) {
+            int col = gameItem.getTextPos() % text.getNumCols();
+            int row = gameItem.getTextPos() / text.getNumCols();
+            float textXOffset = (float) col / text.getNumCols();
+            float textYOffset = (float) row / text.getNumRows();
+            buffer.put(buffPos, textXOffset);
+            buffer.put(buffPos + 1, textYOffset);
+        } else {
+            buffer.put(buffPos, 0);
+            buffer.put(buffPos + 1, 0);
+        }
+
+        // Selected data or scaling for billboard
+        buffer.put(buffPos + 2, billBoard ? gameItem.getScale() : gameItem.isSelected() ? 1 : 0);
+    }
 }
@@ -0,0 +1,146 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import engine.graph.lights.LightClusterGrid;
+import engine.graph.lights.PointLight;
+
+/**
+ * Holds the point lights and the light lists of the clusters in texture
+ * buffers, so a single lighting pass can read all of them. Three buffers are
+ * used: the lights, three RGBA32F texels each (view position and radius,
+ * colour and intensity, attenuation), the offset and count of each cluster
+ * (RG32I) and the light indices of all the clusters (R32I).
+ */
+public class LightClusterBuffer {
+
+    private static final int LIGHT_SIZE_FLOATS = 12;
+
+    private final int lightsVbo;
+
+    private final int clustersVbo;
+
+    private final int indicesVbo;
+
+    private final int[] textureIds;
+
+    private FloatBuffer lightsBuffer;
+
+    private IntBuffer clustersBuffer;
+
+    private IntBuffer indicesBuffer;
+
+    public LightClusterBuffer() {
+        lightsVbo = glGenBuffers();
+        clustersVbo = glGenBuffers();
+        indicesVbo = glGenBuffers();
+        textureIds = new int[3];
+        glGenTextures(textureIds);
+
+        lightsBuffer = MemoryUtil.memAllocFloat(16 * LIGHT_SIZE_FLOATS);
+        clustersBuffer = MemoryUtil.memAllocInt(256);
+        indicesBuffer = MemoryUtil.memAllocInt(256);
+
+        attach(textureIds[0], lightsVbo, GL_RGBA32F);
+        attach(textureIds[1], clustersVbo, GL_RG32I);
+        attach(textureIds[2], indicesVbo, GL_R32I);
+    }
+
+    /**
+     * Uploads the lights and the cluster lists of a grid that has been built.
+     *
+     * @param grid The grid, with the lights added in the same order as in
+     * pointLights
+     * @param pointLights The lights, for their colour and attenuation
+     */
+    public void upload(LightClusterGrid grid, PointLight[] pointLights) {
+        int numLights = grid.getNumLights();
+        lightsBuffer = ensureCapacity(lightsBuffer, Math.max(1, numLights) * LIGHT_SIZE_FLOATS);
+        float[] lights = grid.getLights();
+        for (int i = 0; i < numLights; i++) {
+            PointLight pointLight = pointLights[i];
+            Vector3f colour = pointLight.getColor();
+            PointLight.Attenuation att = pointLight.getAttenuation();
+            lightsBuffer.put(lights, i * 4, 4);
+            lightsBuffer.put(colour.x).put(colour.y).put(colour.z).put(pointLight.getIntensity());
+            lightsBuffer.put(att.getConstant()).put(att.getLinear()).put(att.getExponent()).put(0);
+        }
+        lightsBuffer.flip();
+        glBindBuffer(GL_TEXTURE_BUFFER, lightsVbo);
+        glBufferData(GL_TEXTURE_BUFFER, lightsBuffer, GL_STREAM_DRAW);
+
+        int numClusters = grid.getNumClusters();
+        clustersBuffer = ensureCapacity(clustersBuffer, numClusters * 2);
+        for (int i = 0; i < numClusters; i++) {
+            clustersBuffer.put(grid.getClusterOffset(i)).put(grid.getClusterCount(i));
+        }
+        clustersBuffer.flip();
+        glBindBuffer(GL_TEXTURE_BUFFER, clustersVbo);
+        glBufferData(GL_TEXTURE_BUFFER, clustersBuffer, GL_STREAM_DRAW);
+
+        int numIndices = grid.getNumIndices();
+        indicesBuffer = ensureCapacity(indicesBuffer, Math.max(1, numIndices));
+        indicesBuffer.put(grid.getLightIndices(), 0, numIndices);
+        if (numIndices == 0) {
+            indicesBuffer.put(0);
+        }
+        indicesBuffer.flip();
+        glBindBuffer(GL_TEXTURE_BUFFER, indicesVbo);
+        glBufferData(GL_TEXTURE_BUFFER, indicesBuffer, GL_STREAM_DRAW);
+
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    /**
+     * Binds the lights, clusters and indices buffers to three consecutive
+     * texture units.
+     */
+    public void bindTextures(int start) {
+        for (int i = 0; i < textureIds.length; i++) {
+            glActiveTexture(start + i);
+            glBindTexture(GL_TEXTURE_BUFFER, textureIds[i]);
+        }
+    }
+
+    public void cleanup() {
+        glDeleteTextures(textureIds);
+        glDeleteBuffers(lightsVbo);
+        glDeleteBuffers(clustersVbo);
+        glDeleteBuffers(indicesVbo);
+        MemoryUtil.memFree(lightsBuffer);
+        MemoryUtil.memFree(clustersBuffer);
+        MemoryUtil.memFree(indicesBuffer);
+    }
+
+    private static void attach(int textureId, int vboId, int format) {
+        glBindBuffer(GL_TEXTURE_BUFFER, vboId);
+        glBufferData(GL_TEXTURE_BUFFER, 16, GL_STREAM_DRAW);
+        glBindTexture(GL_TEXTURE_BUFFER, textureId);
+        glTexBuffer(GL_TEXTURE_BUFFER, format, vboId);
+        glBindTexture(GL_TEXTURE_BUFFER, 0);
+        glBindBuffer(GL_TEXTURE_BUFFER, 0);
+    }
+
+    private static FloatBuffer ensureCapacity(FloatBuffer buffer, int capacity) {
+        buffer.clear();
+        if (capacity > buffer.capacity()) {
+            buffer = MemoryUtil.memRealloc(buffer, Math.max(capacity, buffer.capacity() * 2));
+        }
+        return buffer;
+    }
+
+    private static IntBuffer ensureCapacity(IntBuffer buffer, int capacity) {
+        buffer.clear();
+        if (capacity > buffer.capacity()) {
+            buffer = MemoryUtil.memRealloc(buffer, Math.max(capacity, buffer.capacity() * 2));
+        }
+        return buffer;
+    }
+}
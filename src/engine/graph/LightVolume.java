@@ -0,0 +1,259 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+import engine.graph.lights.PointLight;
+
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
+import static org.lwjgl.opengl.GL15.GL_STREAM_DRAW;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL15.glBufferData;
+import static org.lwjgl.opengl.GL15.glDeleteBuffers;
+import static org.lwjgl.opengl.GL15.glGenBuffers;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
+import static org.lwjgl.opengl.GL30.glGenVertexArrays;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+/**
+ * Draws the spheres of influence of point lights. The sphere is a unit mesh
+ * that encloses the unit sphere, scaled and moved per light in the vertex
+ * shader from instance attributes: view position and radius (1), colour and
+ * intensity (2) and attenuation (3).
+ */
+public class LightVolume {
+
+    /**
+     * Light contributions below this fraction of the light intensity are
+     * ignored when computing the radius of the lights.
+     */
+    public static final float DEFAULT_CUTOFF = 1.0f / 256.0f;
+
+    private static final int FLOAT_SIZE_BYTES = 4;
+
+    private static final int INSTANCE_SIZE_FLOATS = 12;
+
+    private static final int INSTANCE_SIZE_BYTES = INSTANCE_SIZE_FLOATS * FLOAT_SIZE_BYTES;
+
+    private final int vaoId;
+
+    private final int positionsVbo;
+
+    private final int indicesVbo;
+
+    private final int instanceVbo;
+
+    private final int vertexCount;
+
+    private final float scale;
+
+    private FloatBuffer instanceBuffer;
+
+    private int numInstances;
+
+    public LightVolume() {
+        this(8, 12);
+    }
+
+    /**
+     * @param rings Number of divisions from pole to pole
+     * @param segments Number of divisions around the vertical axis
+     */
+    public LightVolume(int rings, int segments) {
+        // Push the vertices out so that the flat faces do not cut the sphere
+        scale = 1.0f / ((float) Math.cos(Math.PI / segments) * (float) Math.cos(Math.PI / (2 * rings)));
+
+        float[] positions = new float[(rings + 1) * (segments + 1) * 3];
+        int pos = 0;
+        for (int i = 0; i <= rings; i++) {
+            double theta = Math.PI * i / rings;
+            float y = (float) Math.cos(theta) * scale;
+            float r = (float) Math.sin(theta) * scale;
+            for (int j = 0; j <= segments; j++) {
+                double phi = 2 * Math.PI * j / segments;
+                positions[pos++] = r * (float) Math.cos(phi);
+                positions[pos++] = y;
+                positions[pos++] = -r * (float) Math.sin(phi);
+            }
+        }
+
+        // Counter clockwise seen from outside
+        int[] indices = new int[rings * segments * 6];
+        pos = 0;
+        for (int i = 0; i < rings; i++) {
+            for (int j = 0; j < segments; j++) {
+                int top = i * (segments + 1) + j;
+                int bottom = top + segments + 1;
+                indices[pos++] = top;
+                indices[pos++] = bottom;
+                indices[pos++] = top + 1;
+                indices[pos++] = top + 1;
+                indices[pos++] = bottom;
+                indices[pos++] = bottom + 1;
+            }
+        }
+        vertexCount = indices.length;
+
+        FloatBuffer posBuffer = null;
+        IntBuffer indicesBuffer = null;
+        try {
+            vaoId = glGenVertexArrays();
+            glBindVertexArray(vaoId);
+
+            positionsVbo = glGenBuffers();
+            posBuffer = MemoryUtil.memAllocFloat(positions.length);
+            posBuffer.put(positions).flip();
+            glBindBuffer(GL_ARRAY_BUFFER, positionsVbo);
+            glBufferData(GL_ARRAY_BUFFER, posBuffer, GL_STATIC_DRAW);
+            glEnableVertexAttribArray(0);
+            glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+
+            indicesVbo = glGenBuffers();
+            indicesBuffer = MemoryUtil.memAllocInt(indices.length);
+            indicesBuffer.put(indices).flip();
+            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVbo);
+            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
+
+            instanceVbo = glGenBuffers();
+            glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+            setInstanceAttributes(0);
+            for (int i = 1; i <= 3; i++) {
+                glVertexAttribDivisor(i, 1);
+                glEnableVertexAttribArray(i);
+            }
+
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            glBindVertexArray(0);
+        } finally {
+            if (posBuffer != null) {
+                MemoryUtil.memFree(posBuffer);
+            }
+            if (indicesBuffer != null) {
+                MemoryUtil.memFree(indicesBuffer);
+            }
+        }
+
+        instanceBuffer = MemoryUtil.memAllocFloat(16 * INSTANCE_SIZE_FLOATS);
+    }
+
+    /**
+     * @return How much the mesh extends beyond the unit sphere, to test if
+     * the camera is inside a volume
+     */
+    public float getScale() {
+        return scale;
+    }
+
+    public int getNumInstances() {
+        return numInstances;
+    }
+
+    public void clear() {
+        numInstances = 0;
+        instanceBuffer.clear();
+    }
+
+    /**
+     * Adds a light volume.
+     *
+     * @param x View position of the light
+     * @param y View position of the light
+     * @param z View position of the light
+     * @param radius Radius of the sphere of influence
+     * @param pointLight The light, for its colour and attenuation
+     * @return The index of the instance
+     */
+    public int add(float x, float y, float z, float radius, PointLight pointLight) {
+        if (instanceBuffer.remaining() < INSTANCE_SIZE_FLOATS) {
+            int position = instanceBuffer.position();
+            instanceBuffer = MemoryUtil.memRealloc(instanceBuffer, instanceBuffer.capacity() * 2);
+            instanceBuffer.position(position);
+        }
+        Vector3f colour = pointLight.getColor();
+        PointLight.Attenuation att = pointLight.getAttenuation();
+        instanceBuffer.put(x).put(y).put(z).put(radius);
+        instanceBuffer.put(colour.x).put(colour.y).put(colour.z).put(pointLight.getIntensity());
+        instanceBuffer.put(att.getConstant()).put(att.getLinear()).put(att.getExponent()).put(0);
+        return numInstances++;
+    }
+
+    /**
+     * Uploads the volumes added since the last call to {@link #clear}.
+     */
+    public void upload() {
+        instanceBuffer.flip();
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+        glBufferData(GL_ARRAY_BUFFER, instanceBuffer, GL_STREAM_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    public void bind() {
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVbo);
+    }
+
+    /**
+     * Draws a range of the uploaded volumes. The VAO must be bound.
+     */
+    public void render(int first, int count) {
+        // There is no base instance in this GL version, move the attributes instead
+        setInstanceAttributes(first * INSTANCE_SIZE_BYTES);
+        glDrawElementsInstanced(GL_TRIANGLES, vertexCount, GL_UNSIGNED_INT, 0, count);
+    }
+
+    public void unbind() {
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    public void cleanup() {
+        glDeleteVertexArrays(vaoId);
+        glDeleteBuffers(positionsVbo);
+        glDeleteBuffers(indicesVbo);
+        glDeleteBuffers(instanceVbo);
+        MemoryUtil.memFree(instanceBuffer);
+    }
+
+    /**
+     * Calculates the distance at which the light falls below a fraction of
+     * its intensity.
+     *
+     * @param pointLight The light
+     * @param cutoff The fraction of the intensity
+     * @return The radius, or Float.POSITIVE_INFINITY if the attenuation does
+     * not depend on the distance
+     */
+    public static float getRadius(PointLight pointLight, float cutoff) {
+        PointLight.Attenuation att = pointLight.getAttenuation();
+        // Solve exponent * d^2 + linear * d + constant = 1 / cutoff
+        float c = att.getConstant() - 1.0f / cutoff;
+        float b = att.getLinear();
+        float a = att.getExponent();
+        if (c >= 0) {
+            return 0;
+        }
+        if (a > 0) {
+            return (float) ((-b + Math.sqrt(b * b - 4 * a * c)) / (2 * a));
+        }
+        if (b > 0) {
+            return -c / b;
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    private static void setInstanceAttributes(int offset) {
+        for (int i = 0; i < 3; i++) {
+            glVertexAttribPointer(1 + i, 4, GL_FLOAT, false, INSTANCE_SIZE_BYTES, offset + i * 4 * FLOAT_SIZE_BYTES);
+        }
+    }
+}
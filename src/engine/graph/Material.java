@@ -18,6 +18,8 @@ public class Material {
     
     private Texture normalMap;
 
+    private boolean cleanedUp;
+
     public Material() {
         this.diffuseColour = DEFAULT_COLOUR;
         this.specularColour = DEFAULT_COLOUR;
@@ -80,7 +82,15 @@ public class Material {
         return texture;
     }
 
+    /**
+     * Sets the texture, taking over the reference of the caller if it comes
+     * from the {@link TextureCache}. The reference to the previous texture
+     * is released.
+     */
     public void setTexture(Texture texture) {
+        if (this.texture != null && this.texture != texture) {
+            TextureCache.getInstance().release(this.texture);
+        }
         this.texture = texture;
     }
     
@@ -93,6 +103,34 @@ public class Material {
     }
 
     public void setNormalMap(Texture normalMap) {
+        if (this.normalMap != null && this.normalMap != normalMap) {
+            TextureCache.getInstance().release(this.normalMap);
+        }
         this.normalMap = normalMap;
     }
+
+    /**
+     * Releases the textures. The ones that do not come from the
+     * {@link TextureCache} belong to the material and are deleted.
+     */
+    public void cleanup() {
+        TextureCache textureCache = TextureCache.getInstance();
+        if (texture != null && !textureCache.release(texture)) {
+            texture.cleanup();
+        }
+        if (normalMap != null && !textureCache.release(normalMap)) {
+            normalMap.cleanup();
+        }
+        texture = null;
+        normalMap = null;
+        cleanedUp = true;
+    }
+
+    /**
+     * @return True once the material has been cleaned up, after which it
+     * must not take references to textures
+     */
+    public boolean isCleanedUp() {
+        return cleanedUp;
+    }
 }
\ No newline at end of file
@@ -4,14 +4,14 @@ import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
 import engine.items.GameItem;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-import static org.lwjgl.opengl.GL11.GL_FLOAT;
 import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
 import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
 import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
@@ -22,14 +22,10 @@ import static org.lwjgl.opengl.GL13.GL_TEXTURE1;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
 import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
 import static org.lwjgl.opengl.GL15.GL_ELEMENT_ARRAY_BUFFER;
-import static org.lwjgl.opengl.GL15.GL_STATIC_DRAW;
 import static org.lwjgl.opengl.GL15.glBindBuffer;
-import static org.lwjgl.opengl.GL15.glBufferData;
 import static org.lwjgl.opengl.GL15.glDeleteBuffers;
-import static org.lwjgl.opengl.GL15.glGenBuffers;
 import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
-import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
-import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
+import static org.lwjgl.opengl.GL20.glVertexAttrib4f;
 import static org.lwjgl.opengl.GL30.glBindVertexArray;
 import static org.lwjgl.opengl.GL30.glDeleteVertexArrays;
 import static org.lwjgl.opengl.GL30.glGenVertexArrays;
@@ -44,130 +40,133 @@ public class Mesh {
 
     private final int vertexCount;
 
+    private final int numVertices;
+
+    private final VertexLayout layout;
+
     private Material material;
 
+    /**
+     * The arena holding a copy of the vertices, if any.
+     */
+    private MeshArena meshArena;
+
     private float boundingRadius;
     
     private Vector3f min;
     private Vector3f max;
 
     public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices) {
-        this(positions, textCoords, normals, indices, Mesh.createEmptyIntArray(Mesh.MAX_WEIGHTS * positions.length / 3, 0), Mesh.createEmptyFloatArray(Mesh.MAX_WEIGHTS * positions.length / 3, 0));
+        this(FloatBuffer.wrap(positions), FloatBuffer.wrap(textCoords), FloatBuffer.wrap(normals), IntBuffer.wrap(indices));
     }
 
     public Mesh(float[] positions, float[] textCoords, float[] normals, int[] indices, int[] jointIndices, float[] weights) {
-        FloatBuffer posBuffer = null;
-        FloatBuffer textCoordsBuffer = null;
-        FloatBuffer vecNormalsBuffer = null;
-        FloatBuffer weightsBuffer = null;
-        IntBuffer jointIndicesBuffer = null;
-        IntBuffer indicesBuffer = null;
-        try {
-            calculateBoundingRadius(positions);
+        this(FloatBuffer.wrap(positions), FloatBuffer.wrap(textCoords), FloatBuffer.wrap(normals), IntBuffer.wrap(indices),
+                IntBuffer.wrap(jointIndices), FloatBuffer.wrap(weights));
+    }
+
+    /**
+     * Creates a static mesh. Texture coordinates and normals may be empty.
+     */
+    public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices) {
+        this(positions, textCoords, normals, indices, null, null);
+    }
 
-            vertexCount = indices.length;
+    /**
+     * Creates a mesh with the most compact {@link VertexLayout} for its data.
+     * Joint indices and weights may be null for static meshes, which then
+     * have no skinning attributes.
+     */
+    public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+            IntBuffer jointIndices, FloatBuffer weights) {
+        this(positions, textCoords, normals, indices, jointIndices, weights,
+                VertexLayout.forData(textCoords, jointIndices != null && weights != null));
+    }
+
+    /**
+     * Creates a mesh, packing the vertices in a layout and uploading them
+     * interleaved in a single buffer. Texture coordinates and normals may be
+     * empty.
+     */
+    public Mesh(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+            IntBuffer jointIndices, FloatBuffer weights, VertexLayout layout) {
+        this(layout.pack(positions, textCoords, normals, jointIndices, weights), layout, indices, true);
+    }
+
+    /**
+     * Creates a mesh from vertices already packed in a layout, for instance
+     * the slices of a mapped file. The vertices and direct indices are
+     * uploaded as they are, without copies.
+     */
+    public Mesh(ByteBuffer vertices, VertexLayout layout, IntBuffer indices) {
+        this(vertices, layout, indices, false);
+    }
+
+    /**
+     * Buffers with the same data as those of another mesh are shared
+     * through the {@link VertexBufferCache}.
+     *
+     * @param ownsVertices Whether the vertices must be freed once uploaded
+     */
+    private Mesh(ByteBuffer vertices, VertexLayout layout, IntBuffer indices, boolean ownsVertices) {
+        IntBuffer indicesCopy = null;
+        try {
+            this.layout = layout;
+            vertexCount = indices.remaining();
+            numVertices = vertices.remaining() / layout.getStride();
+            calculateBounds(vertices);
             vboIdList = new ArrayList<>();
 
             vaoId = glGenVertexArrays();
             glBindVertexArray(vaoId);
 
-            // Position VBO
-            int vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            posBuffer = MemoryUtil.memAllocFloat(positions.length);
-            posBuffer.put(positions).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, posBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(0);
-            glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-
-            // Texture coordinates VBO
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            textCoordsBuffer = MemoryUtil.memAllocFloat(textCoords.length);
-            if (textCoordsBuffer.capacity() > 0) {
-                textCoordsBuffer.put(textCoords).flip();
-            } else {
-                // Create empty structure. Two coordinates for each 3 position coordinates
-                textCoordsBuffer = MemoryUtil.memAllocFloat((positions.length * 3) / 2);
-            }
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, textCoordsBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(1);
-            glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-
-            // Vertex normals VBO
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            vecNormalsBuffer = MemoryUtil.memAllocFloat(normals.length);
-            if (vecNormalsBuffer.capacity() > 0) {
-                vecNormalsBuffer.put(normals).flip();
-            } else {
-                vecNormalsBuffer = MemoryUtil.memAllocFloat(positions.length);
+            VertexBufferCache vertexBufferCache = VertexBufferCache.getInstance();
+            vboIdList.add(vertexBufferCache.acquire(GL_ARRAY_BUFFER, vertices, vertices.remaining()));
+            layout.setupAttributes();
+
+            if (!indices.isDirect()) {
+                indicesCopy = MemoryUtil.memAllocInt(vertexCount);
+                indicesCopy.put(indices.duplicate()).flip();
+                indices = indicesCopy;
             }
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, vecNormalsBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(2);
-            glVertexAttribPointer(2, 3, GL_FLOAT, false, 0, 0);
-
-            // Weights
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            weightsBuffer = MemoryUtil.memAllocFloat(weights.length);
-            weightsBuffer.put(weights).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, weightsBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(3);
-            glVertexAttribPointer(3, 4, GL_FLOAT, false, 0, 0);
-
-            // Joint indices
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            jointIndicesBuffer = MemoryUtil.memAllocInt(jointIndices.length);
-            jointIndicesBuffer.put(jointIndices).flip();
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, jointIndicesBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(4);
-            glVertexAttribPointer(4, 4, GL_FLOAT, false, 0, 0);
-
-            // Index VBO
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            indicesBuffer = MemoryUtil.memAllocInt(indices.length);
-            indicesBuffer.put(indices).flip();
-            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
+            vboIdList.add(vertexBufferCache.acquire(GL_ELEMENT_ARRAY_BUFFER,
+                    MemoryUtil.memByteBuffer(indices), vertexCount * 4));
 
             glBindBuffer(GL_ARRAY_BUFFER, 0);
             glBindVertexArray(0);
         } finally {
-            if (posBuffer != null) {
-                MemoryUtil.memFree(posBuffer);
-            }
-            if (textCoordsBuffer != null) {
-                MemoryUtil.memFree(textCoordsBuffer);
-            }
-            if (vecNormalsBuffer != null) {
-                MemoryUtil.memFree(vecNormalsBuffer);
-            }
-            if (weightsBuffer != null) {
-                MemoryUtil.memFree(weightsBuffer);
-            }
-            if (jointIndicesBuffer != null) {
-                MemoryUtil.memFree(jointIndicesBuffer);
-            }
-            if (indicesBuffer != null) {
-                MemoryUtil.memFree(indicesBuffer);
+            if (ownsVertices) {
+                MemoryUtil.memFree(vertices);
             }
+            MemoryUtil.memFree(indicesCopy);
         }
     }
 
-    private void calculateBoundingRadius(float positions[]) {
-        int length = positions.length;
+    /**
+     * Computes the bounds from the positions, the first three floats of
+     * each packed vertex.
+     */
+    private void calculateBounds(ByteBuffer vertices) {
+        int start = vertices.position();
+        int stride = layout.getStride();
         boundingRadius = 0;
-        for (int i = 0; i < length; i++) {
-            float pos = positions[i];
-            boundingRadius = Math.max(Math.abs(pos), boundingRadius);
+        min = new Vector3f();
+        max = new Vector3f();
+        if (numVertices > 0) {
+            min.set(Float.MAX_VALUE);
+            max.set(-Float.MAX_VALUE);
+            for (int i = start; i < start + numVertices * stride; i += stride) {
+                float x = vertices.getFloat(i);
+                float y = vertices.getFloat(i + 4);
+                float z = vertices.getFloat(i + 8);
+                min.x = Math.min(min.x, x);
+                min.y = Math.min(min.y, y);
+                min.z = Math.min(min.z, z);
+                max.x = Math.max(max.x, x);
+                max.y = Math.max(max.y, y);
+                max.z = Math.max(max.z, z);
+            }
+            boundingRadius = Math.max(Math.max(-min.x, max.x), Math.max(Math.max(-min.y, max.y), Math.max(-min.z, max.z)));
         }
     }
 
@@ -203,6 +202,22 @@ public class Mesh {
         return vertexCount;
     }
 
+    /**
+     * @return Number of vertices stored in the vertex buffers. Unlike
+     * {@link #getVertexCount}, which counts indices.
+     */
+    public int getNumVertices() {
+        return numVertices;
+    }
+
+    public VertexLayout getLayout() {
+        return layout;
+    }
+
+    void setMeshArena(MeshArena meshArena) {
+        this.meshArena = meshArena;
+    }
+
     public float getBoundingRadius() {
         return boundingRadius;
     }
@@ -212,19 +227,31 @@ public class Mesh {
     }
 
     protected void initRender() {
-        Texture texture = material != null ? material.getTexture() : null;
-        if (texture != null) {
-            // Activate first texture bank
-            glActiveTexture(GL_TEXTURE0);
-            // Bind the texture
-            glBindTexture(GL_TEXTURE_2D, texture.getId());
+        initRender(true);
+    }
+
+    protected void initRender(boolean bindTextures) {
+        if (bindTextures) {
+            Texture texture = material != null ? material.getTexture() : null;
+            if (texture != null) {
+                // Activate first texture bank
+                glActiveTexture(GL_TEXTURE0);
+                // Bind the texture
+                glBindTexture(GL_TEXTURE_2D, texture.getId());
+            }
+            Texture normalMap = material != null ? material.getNormalMap() : null;
+            if (normalMap != null) {
+                // Activate second texture bank
+                glActiveTexture(GL_TEXTURE1);
+                // Bind the texture
+                glBindTexture(GL_TEXTURE_2D, normalMap.getId());
+            }
         }
-        Texture normalMap = material != null ? material.getNormalMap() : null;
-        if (normalMap != null) {
-            // Activate second texture bank
-            glActiveTexture(GL_TEXTURE1);
-            // Bind the texture
-            glBindTexture(GL_TEXTURE_2D, normalMap.getId());
+
+        // Without weights the shaders do not skin the vertices. The value of
+        // a disabled attribute is not part of the VAO, so it is set each time
+        if (!layout.isSkinned()) {
+            glVertexAttrib4f(3, 0, 0, 0, 0);
         }
 
         // Draw the mesh
@@ -232,10 +259,16 @@ public class Mesh {
     }
 
     protected void endRender() {
+        endRender(true);
+    }
+
+    protected void endRender(boolean unbindTextures) {
         // Restore state
         glBindVertexArray(0);
 
-        glBindTexture(GL_TEXTURE_2D, 0);
+        if (unbindTextures) {
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
     }
 
     public void render() {
@@ -247,10 +280,37 @@ public class Mesh {
     }
 
     public void renderList(List<GameItem> gameItems, Consumer<GameItem> consumer) {
-        initRender();
+        renderList(gameItems, consumer, true);
+    }
 
-        for (GameItem gameItem : gameItems) {
-            if (gameItem.isInsideFrustum()) {
+    /**
+     * Renders the visible items of the list.
+     *
+     * @param gameItems The items that use this mesh
+     * @param consumer Sets up the per item data before each draw call
+     * @param bindTextures If false the textures are expected to be already
+     * bound by the caller
+     */
+    public void renderList(List<GameItem> gameItems, Consumer<GameItem> consumer, boolean bindTextures) {
+        renderList(gameItems, GameItem::isInsideFrustum, consumer, bindTextures);
+    }
+
+    /**
+     * Renders the items of the list accepted by a filter.
+     *
+     * @param gameItems The items that use this mesh
+     * @param filter Selects the items to render
+     * @param consumer Sets up the per item data before each draw call
+     * @param bindTextures If false the textures are expected to be already
+     * bound by the caller
+     */
+    public void renderList(List<GameItem> gameItems, Predicate<GameItem> filter, Consumer<GameItem> consumer, boolean bindTextures) {
+        initRender(bindTextures);
+
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            GameItem gameItem = gameItems.get(i);
+            if (filter.test(gameItem)) {
                 // Set up data required by GameItem
                 consumer.accept(gameItem);
                 // Render this game item
@@ -258,22 +318,24 @@ public class Mesh {
             }
         }
 
-        endRender();
+        endRender(bindTextures);
     }
 
+    /**
+     * Releases the mesh. A mesh from the {@link MeshCache} is only deleted
+     * once it has no references.
+     */
     public void cleanUp() {
+        if (MeshCache.getInstance().release(this)) {
+            return;
+        }
         glDisableVertexAttribArray(0);
 
-        // Delete the VBOs
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        for (int vboId : vboIdList) {
-            glDeleteBuffers(vboId);
-        }
+        deleteVbos();
 
-        // Delete the texture
-        Texture texture = material.getTexture();
-        if (texture != null) {
-            texture.cleanup();
+        // Release the textures, once for all the meshes sharing the material
+        if (material != null) {
+            material.cleanup();
         }
 
         // Delete the VAO
@@ -282,27 +344,24 @@ public class Mesh {
     }
 
     public void deleteBuffers() {
-        // Delete the VBOs
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
-        for (int vboId : vboIdList) {
-            glDeleteBuffers(vboId);
-        }
+        deleteVbos();
 
         // Delete the VAO
         glBindVertexArray(0);
         glDeleteVertexArrays(vaoId);
     }
 
-    protected static float[] createEmptyFloatArray(int length, float defaultValue) {
-        float[] result = new float[length];
-        Arrays.fill(result, defaultValue);
-        return result;
-    }
-
-    protected static int[] createEmptyIntArray(int length, int defaultValue) {
-        int[] result = new int[length];
-        Arrays.fill(result, defaultValue);
-        return result;
+    private void deleteVbos() {
+        if (meshArena != null) {
+            meshArena.remove(this);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        VertexBufferCache vertexBufferCache = VertexBufferCache.getInstance();
+        for (int vboId : vboIdList) {
+            // Shared buffers are deleted by the cache when no mesh uses them
+            if (!vertexBufferCache.release(vboId)) {
+                glDeleteBuffers(vboId);
+            }
+        }
     }
-
 }
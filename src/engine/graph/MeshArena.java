@@ -0,0 +1,484 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.*;
+import static org.lwjgl.opengl.GL43.*;
+import engine.items.GameItem;
+
+/**
+ * Shares a single VAO, a vertex buffer and an index buffer among static
+ * meshes with the {@link VertexLayout#COMPACT} layout. The vertex and index
+ * data of each mesh is copied into the arena on the GPU when it is added. Per item transforms go into a per instance buffer with
+ * the same layout used by {@link InstancedMesh}, so the shaders render the
+ * arena through their instanced path.
+ *
+ * The ranges of the meshes that are removed, when they are cleaned up, are
+ * reused by the meshes added later.
+ *
+ * The meshes queued between {@link #clear} and {@link #render} are drawn
+ * with a single glMultiDrawElementsIndirect call when GL 4.3 is available,
+ * and with one instanced draw per mesh otherwise.
+ */
+public class MeshArena {
+
+    private static final int VERTICES_VBO = 0;
+
+    private static final int INDICES_VBO = 1;
+
+    private static final VertexLayout LAYOUT = VertexLayout.COMPACT;
+
+    private static final int VERTEX_SIZE_BYTES = LAYOUT.getStride();
+
+    private static final int INDEX_SIZE_BYTES = 4;
+
+    private static final int COMMAND_SIZE_INTS = 5;
+
+    private final boolean multiDrawIndirect;
+
+    private final int vaoId;
+
+    private int verticesVbo;
+
+    private int indicesVbo;
+
+    private final int indirectVbo;
+
+    private int vertexCapacity;
+
+    private int indexCapacity;
+
+    private int numVertices;
+
+    private int numIndices;
+
+    private final Map<Mesh, Allocation> allocations;
+
+    private final List<Range> freeVertices;
+
+    private final List<Range> freeIndices;
+
+    private final List<Allocation> queuedAllocations;
+
+    private final List<List<GameItem>> queuedItems;
+
+    private final List<Predicate<GameItem>> queuedFilters;
+
+    private final RingBuffer instanceRingBuffer;
+
+    private FloatBuffer instanceDataBuffer;
+
+    private IntBuffer commandBuffer;
+
+    private int drawCalls;
+
+    public MeshArena(int initialVertices, int initialIndices) {
+        GLCapabilities caps = GL.getCapabilities();
+        multiDrawIndirect = caps.OpenGL43;
+        allocations = new HashMap<>();
+        freeVertices = new ArrayList<>();
+        freeIndices = new ArrayList<>();
+        queuedAllocations = new ArrayList<>();
+        queuedItems = new ArrayList<>();
+        queuedFilters = new ArrayList<>();
+
+        vertexCapacity = Math.max(1, initialVertices);
+        indexCapacity = Math.max(1, initialIndices);
+        verticesVbo = createBuffer(GL_ARRAY_BUFFER, vertexCapacity * VERTEX_SIZE_BYTES);
+        indicesVbo = createBuffer(GL_ARRAY_BUFFER, indexCapacity * INDEX_SIZE_BYTES);
+        indirectVbo = multiDrawIndirect ? glGenBuffers() : 0;
+
+        instanceRingBuffer = new RingBuffer(64 * InstancedMesh.INSTANCE_SIZE_BYTES);
+        instanceDataBuffer = MemoryUtil.memAllocFloat(64 * InstancedMesh.INSTANCE_SIZE_FLOATS);
+        commandBuffer = MemoryUtil.memAllocInt(16 * COMMAND_SIZE_INTS);
+
+        vaoId = glGenVertexArrays();
+        setupVertexArray();
+    }
+
+    public boolean isMultiDrawIndirect() {
+        return multiDrawIndirect;
+    }
+
+    public boolean contains(Mesh mesh) {
+        return allocations.containsKey(mesh);
+    }
+
+    /**
+     * Copies the vertices and indices of a mesh into the arena. Meshes with
+     * another layout, such as the animated ones, are not added and have to
+     * be rendered on their own.
+     *
+     * @param mesh The mesh to add
+     * @return False if the mesh cannot be added
+     */
+    public boolean add(Mesh mesh) {
+        if (allocations.containsKey(mesh)) {
+            return true;
+        }
+        if (!LAYOUT.equals(mesh.getLayout())) {
+            return false;
+        }
+        int meshVertices = mesh.getNumVertices();
+        int meshIndices = mesh.getVertexCount();
+        int baseVertex = allocateRange(freeVertices, meshVertices);
+        int firstIndex = allocateRange(freeIndices, meshIndices);
+        ensureCapacity(baseVertex < 0 ? numVertices + meshVertices : numVertices,
+                firstIndex < 0 ? numIndices + meshIndices : numIndices);
+        if (baseVertex < 0) {
+            baseVertex = numVertices;
+            numVertices += meshVertices;
+        }
+        if (firstIndex < 0) {
+            firstIndex = numIndices;
+            numIndices += meshIndices;
+        }
+
+        copyBuffer(mesh.vboIdList.get(VERTICES_VBO), verticesVbo, baseVertex * VERTEX_SIZE_BYTES, meshVertices * VERTEX_SIZE_BYTES);
+        copyBuffer(mesh.vboIdList.get(INDICES_VBO), indicesVbo, firstIndex * INDEX_SIZE_BYTES, meshIndices * INDEX_SIZE_BYTES);
+
+        allocations.put(mesh, new Allocation(mesh, baseVertex, meshVertices, firstIndex, meshIndices));
+        mesh.setMeshArena(this);
+        return true;
+    }
+
+    /**
+     * Releases the vertices and indices of a mesh, so the space can be used
+     * by other meshes. Called when the mesh is cleaned up.
+     *
+     * @param mesh The mesh to remove
+     */
+    public void remove(Mesh mesh) {
+        Allocation allocation = allocations.remove(mesh);
+        if (allocation == null) {
+            return;
+        }
+        mesh.setMeshArena(null);
+        numVertices = releaseRange(freeVertices, allocation.baseVertex, allocation.vertexCount, numVertices);
+        numIndices = releaseRange(freeIndices, allocation.firstIndex, allocation.indexCount, numIndices);
+    }
+
+    public void clear() {
+        queuedAllocations.clear();
+        queuedItems.clear();
+        queuedFilters.clear();
+    }
+
+    public boolean isEmpty() {
+        return queuedAllocations.isEmpty();
+    }
+
+    /**
+     * Queues the visible items of a mesh that has been added to the arena.
+     */
+    public void queue(Mesh mesh, List<GameItem> gameItems) {
+        queue(mesh, gameItems, GameItem::isInsideFrustum);
+    }
+
+    /**
+     * Queues the items of a mesh that has been added to the arena and are
+     * accepted by a filter.
+     */
+    public void queue(Mesh mesh, List<GameItem> gameItems, Predicate<GameItem> filter) {
+        Allocation allocation = allocations.get(mesh);
+        if (allocation != null) {
+            queuedAllocations.add(allocation);
+            queuedItems.add(gameItems);
+            queuedFilters.add(filter);
+        }
+    }
+
+    /**
+     * Draws the queued meshes and clears the queue. The instanced shader
+     * variant and the material of the meshes must already be set up.
+     *
+     * @return Number of draw calls issued
+     */
+    public int render(Transformation transformation) {
+        int numCommands = 0;
+        int numInstances = 0;
+        int numQueued = queuedAllocations.size();
+        for (int i = 0; i < numQueued; i++) {
+            int visible = countVisible(queuedItems.get(i), queuedFilters.get(i));
+            if (visible > 0) {
+                numCommands++;
+                numInstances += visible;
+            }
+        }
+        drawCalls = 0;
+        if (numCommands == 0) {
+            clear();
+            return 0;
+        }
+        ensureBatchCapacity(numCommands, numInstances);
+
+        // Fill the instance data and one draw command per mesh
+        commandBuffer.clear();
+        int instance = 0;
+        for (int i = 0; i < numQueued; i++) {
+            Allocation allocation = queuedAllocations.get(i);
+            Material material = allocation.mesh.getMaterial();
+            Texture text = material != null ? material.getTexture() : null;
+            int baseInstance = instance;
+            Predicate<GameItem> filter = queuedFilters.get(i);
+            List<GameItem> gameItems = queuedItems.get(i);
+            int numItems = gameItems.size();
+            for (int j = 0; j < numItems; j++) {
+                GameItem gameItem = gameItems.get(j);
+                if (filter.test(gameItem)) {
+                    InstancedMesh.putInstanceData(instanceDataBuffer, instance, gameItem, text, false, transformation, null);
+                    instance++;
+                }
+            }
+            if (instance > baseInstance) {
+                commandBuffer.put(allocation.indexCount);
+                commandBuffer.put(instance - baseInstance);
+                commandBuffer.put(allocation.firstIndex);
+                commandBuffer.put(allocation.baseVertex);
+                commandBuffer.put(baseInstance);
+            }
+        }
+        commandBuffer.flip();
+
+        glBindVertexArray(vaoId);
+        int offset = instanceRingBuffer.upload(instanceDataBuffer, numInstances * InstancedMesh.INSTANCE_SIZE_BYTES);
+        if (multiDrawIndirect) {
+            InstancedMesh.setInstanceAttributes(offset);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, indirectVbo);
+            glBufferData(GL_DRAW_INDIRECT_BUFFER, commandBuffer, GL_STREAM_DRAW);
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, numCommands, 0);
+            glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+            drawCalls = 1;
+        } else {
+            // Without base instance support the attributes are moved to the first instance of each mesh
+            for (int i = 0; i < numCommands; i++) {
+                int pos = i * COMMAND_SIZE_INTS;
+                int baseInstance = commandBuffer.get(pos + 4);
+                InstancedMesh.setInstanceAttributes(offset + baseInstance * InstancedMesh.INSTANCE_SIZE_BYTES);
+                glDrawElementsInstancedBaseVertex(GL_TRIANGLES, commandBuffer.get(pos), GL_UNSIGNED_INT,
+                        (long) commandBuffer.get(pos + 2) * INDEX_SIZE_BYTES, commandBuffer.get(pos + 1), commandBuffer.get(pos + 3));
+            }
+            drawCalls = numCommands;
+        }
+        instanceRingBuffer.fence();
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+
+        clear();
+        return drawCalls;
+    }
+
+    /**
+     * @return Number of draw calls issued by the last render
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+
+    public void cleanup() {
+        glBindVertexArray(0);
+        glDeleteVertexArrays(vaoId);
+        glDeleteBuffers(verticesVbo);
+        glDeleteBuffers(indicesVbo);
+        if (indirectVbo != 0) {
+            glDeleteBuffers(indirectVbo);
+        }
+        instanceRingBuffer.cleanup();
+        MemoryUtil.memFree(instanceDataBuffer);
+        MemoryUtil.memFree(commandBuffer);
+        for (Mesh mesh : allocations.keySet()) {
+            mesh.setMeshArena(null);
+        }
+        allocations.clear();
+        freeVertices.clear();
+        freeIndices.clear();
+    }
+
+    /**
+     * Takes space from the first free range that is large enough.
+     *
+     * @return Start of the space, or -1 if no free range is large enough
+     */
+    private static int allocateRange(List<Range> freeRanges, int count) {
+        int numRanges = freeRanges.size();
+        for (int i = 0; i < numRanges; i++) {
+            Range range = freeRanges.get(i);
+            if (range.count >= count) {
+                int start = range.start;
+                range.start += count;
+                range.count -= count;
+                if (range.count == 0) {
+                    freeRanges.remove(i);
+                }
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds a range to the free ranges, which are kept sorted and merged with
+     * their neighbours. A free range at the end of the used space is given
+     * back to it.
+     *
+     * @return The new size of the used space
+     */
+    private static int releaseRange(List<Range> freeRanges, int start, int count, int used) {
+        int pos = 0;
+        while (pos < freeRanges.size() && freeRanges.get(pos).start < start) {
+            pos++;
+        }
+        Range range = new Range(start, count);
+        freeRanges.add(pos, range);
+        if (pos + 1 < freeRanges.size() && range.start + range.count == freeRanges.get(pos + 1).start) {
+            range.count += freeRanges.remove(pos + 1).count;
+        }
+        if (pos > 0) {
+            Range previous = freeRanges.get(pos - 1);
+            if (previous.start + previous.count == range.start) {
+                previous.count += range.count;
+                freeRanges.remove(pos);
+                range = previous;
+                pos--;
+            }
+        }
+        if (range.start + range.count == used) {
+            freeRanges.remove(pos);
+            return range.start;
+        }
+        return used;
+    }
+
+    private static int countVisible(List<GameItem> gameItems, Predicate<GameItem> filter) {
+        int count = 0;
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            if (filter.test(gameItems.get(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void setupVertexArray() {
+        glBindVertexArray(vaoId);
+
+        glBindBuffer(GL_ARRAY_BUFFER, verticesVbo);
+        LAYOUT.setupAttributes();
+
+        // Joint weights and indices are not used by the instanced path, attributes 3 and 4 stay disabled
+        glBindBuffer(GL_ARRAY_BUFFER, instanceRingBuffer.getVboId());
+        InstancedMesh.setInstanceAttributes(0);
+        for (int i = 5; i <= 10; i++) {
+            glVertexAttribDivisor(i, 1);
+            glEnableVertexAttribArray(i);
+        }
+
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVbo);
+
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    private void ensureCapacity(int vertices, int indices) {
+        boolean resized = false;
+        if (vertices > vertexCapacity) {
+            int newCapacity = Math.max(vertices, vertexCapacity * 2);
+            verticesVbo = resizeBuffer(verticesVbo, numVertices * VERTEX_SIZE_BYTES, newCapacity * VERTEX_SIZE_BYTES);
+            vertexCapacity = newCapacity;
+            resized = true;
+        }
+        if (indices > indexCapacity) {
+            int newCapacity = Math.max(indices, indexCapacity * 2);
+            indicesVbo = resizeBuffer(indicesVbo, numIndices * INDEX_SIZE_BYTES, newCapacity * INDEX_SIZE_BYTES);
+            indexCapacity = newCapacity;
+            resized = true;
+        }
+        if (resized) {
+            setupVertexArray();
+        }
+    }
+
+    private void ensureBatchCapacity(int numCommands, int numInstances) {
+        if (instanceDataBuffer.capacity() < numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS) {
+            instanceDataBuffer = MemoryUtil.memRealloc(instanceDataBuffer, numInstances * InstancedMesh.INSTANCE_SIZE_FLOATS);
+        }
+        if (commandBuffer.capacity() < numCommands * COMMAND_SIZE_INTS) {
+            commandBuffer = MemoryUtil.memRealloc(commandBuffer, numCommands * COMMAND_SIZE_INTS);
+        }
+        instanceDataBuffer.clear();
+    }
+
+    private static int createBuffer(int target, int sizeBytes) {
+        int vboId = glGenBuffers();
+        glBindBuffer(target, vboId);
+        glBufferData(target, sizeBytes, GL_STATIC_DRAW);
+        glBindBuffer(target, 0);
+        return vboId;
+    }
+
+    private static int resizeBuffer(int vboId, int usedBytes, int newSizeBytes) {
+        int newVboId = createBuffer(GL_COPY_WRITE_BUFFER, newSizeBytes);
+        if (usedBytes > 0) {
+            copyBuffer(vboId, newVboId, 0, usedBytes);
+        }
+        glDeleteBuffers(vboId);
+        return newVboId;
+    }
+
+    private static void copyBuffer(int srcVboId, int dstVboId, int dstOffset, int sizeBytes) {
+        glBindBuffer(GL_COPY_READ_BUFFER, srcVboId);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, dstVboId);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, dstOffset, sizeBytes);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+
+    private static class Allocation {
+
+        private final Mesh mesh;
+
+        private final int baseVertex;
+
+        private final int vertexCount;
+
+        private final int firstIndex;
+
+        private final int indexCount;
+
+        Allocation(Mesh mesh, int baseVertex, int vertexCount, int firstIndex, int indexCount) {
+            this.mesh = mesh;
+            this.baseVertex = baseVertex;
+            this.vertexCount = vertexCount;
+            this.firstIndex = firstIndex;
+            this.indexCount = indexCount;
+        }
+    }
+
+    private static class Range {
+
+        private int start;
+
+        private int count;
+
+        Range(int start, int count) {
+            this.start = start;
+            this.count = count;
+        }
+    }
+}
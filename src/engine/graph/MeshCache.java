@@ -0,0 +1,193 @@
+package engine.graph;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Meshes of the models loaded from files, shared by everything that loads
+ * the same file with the same import flags. The meshes of a model come with
+ * their materials, so loading it again returns the same materials too.
+ *
+ * Each mesh counts its references: {@link #acquireIfPresent} and
+ * {@link #retain} add one to every mesh of the model, and {@link #release},
+ * called from {@link Mesh#cleanUp}, removes one from a mesh. The model is
+ * deleted when none of its meshes has references left.
+ *
+ * The cache deletes GL objects, so it must only be used on the GL thread.
+ */
+public class MeshCache {
+
+    private static MeshCache INSTANCE;
+
+    private final Map<String, Entry> entries;
+
+    private final Map<Mesh, Entry> entriesByMesh;
+
+    private long hits;
+
+    private long misses;
+
+    private MeshCache() {
+        entries = new HashMap<>();
+        entriesByMesh = new IdentityHashMap<>();
+    }
+
+    public static synchronized MeshCache getInstance() {
+        if ( INSTANCE == null ) {
+            INSTANCE = new MeshCache();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return A reference to the meshes of a cached model, or null if it is
+     * not cached
+     */
+    public Mesh[] acquireIfPresent(String path, int flags) {
+        Entry entry = entries.get(getKey(path, flags));
+        if (entry == null) {
+            return null;
+        }
+        hits++;
+        entry.retain();
+        return entry.meshes;
+    }
+
+    /**
+     * Adds a model loaded elsewhere, with no references. If the model is
+     * already cached the new meshes are deleted and the cached ones returned.
+     */
+    public Mesh[] add(String path, int flags, Mesh[] meshes) {
+        String key = getKey(path, flags);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+            for (Mesh mesh : meshes) {
+                mesh.cleanUp();
+            }
+            return entry.meshes;
+        }
+        misses++;
+        entry = new Entry(key, meshes);
+        entries.put(key, entry);
+        for (Mesh mesh : meshes) {
+            entriesByMesh.put(mesh, entry);
+        }
+        return meshes;
+    }
+
+    /**
+     * Adds a reference to each mesh of a model.
+     *
+     * @return False if the model is not cached
+     */
+    public boolean retain(Mesh[] meshes) {
+        Entry entry = meshes.length > 0 ? entriesByMesh.get(meshes[0]) : null;
+        if (entry == null) {
+            return false;
+        }
+        entry.retain();
+        return true;
+    }
+
+    /**
+     * Removes a reference to a mesh. The model is deleted once none of its
+     * meshes is referenced.
+     *
+     * @return False if the mesh is not cached
+     */
+    public boolean release(Mesh mesh) {
+        Entry entry = entriesByMesh.get(mesh);
+        if (entry == null) {
+            return false;
+        }
+        int index = entry.indexOf(mesh);
+        if (entry.refCounts[index] > 0) {
+            entry.refCounts[index]--;
+        }
+        if (!entry.isReferenced()) {
+            delete(entry);
+        }
+        return true;
+    }
+
+    public boolean contains(Mesh mesh) {
+        return entriesByMesh.containsKey(mesh);
+    }
+
+    public int getNumModels() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Deletes every model, including the ones in use.
+     */
+    public void cleanup() {
+        for (Entry entry : entries.values().toArray(new Entry[0])) {
+            delete(entry);
+        }
+    }
+
+    private void delete(Entry entry) {
+        entries.remove(entry.key);
+        for (Mesh mesh : entry.meshes) {
+            entriesByMesh.remove(mesh);
+        }
+        // No longer cached, so the meshes delete themselves
+        for (Mesh mesh : entry.meshes) {
+            mesh.cleanUp();
+        }
+    }
+
+    private static String getKey(String path, int flags) {
+        return path + "#" + Integer.toHexString(flags);
+    }
+
+    private static class Entry {
+
+        private final String key;
+
+        private final Mesh[] meshes;
+
+        private final int[] refCounts;
+
+        Entry(String key, Mesh[] meshes) {
+            this.key = key;
+            this.meshes = meshes;
+            this.refCounts = new int[meshes.length];
+        }
+
+        void retain() {
+            for (int i = 0; i < refCounts.length; i++) {
+                refCounts[i]++;
+            }
+        }
+
+        int indexOf(Mesh mesh) {
+            for (int i = 0; i < meshes.length; i++) {
+                if (meshes[i] == mesh) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean isReferenced() {
+            for (int refCount : refCounts) {
+                if (refCount > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package engine.graph;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Vertex data of a mesh that has been read but not uploaded yet. It can be
+ * built on any thread, only {@link #createMesh} needs the GL context. The
+ * buffers stay valid until the data is closed.
+ *
+ * The vertices are either separate float streams or already packed in a
+ * {@link VertexLayout}, which are uploaded as they are.
+ */
+public class MeshData implements AutoCloseable {
+
+    private final FloatBuffer positions;
+
+    private final FloatBuffer textCoords;
+
+    private final FloatBuffer normals;
+
+    private final IntBuffer indices;
+
+    private final IntBuffer jointIndices;
+
+    private final FloatBuffer weights;
+
+    private final ByteBuffer vertices;
+
+    private final VertexLayout layout;
+
+    private Runnable release;
+
+    /**
+     * @param release Frees the memory of the buffers, or null if they are
+     * not owned by the data
+     */
+    public MeshData(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+            Runnable release) {
+        this(positions, textCoords, normals, indices, null, null, release);
+    }
+
+    public MeshData(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals, IntBuffer indices,
+            IntBuffer jointIndices, FloatBuffer weights, Runnable release) {
+        this.positions = positions;
+        this.textCoords = textCoords;
+        this.normals = normals;
+        this.indices = indices;
+        this.jointIndices = jointIndices;
+        this.weights = weights;
+        this.release = release;
+        vertices = null;
+        layout = null;
+    }
+
+    /**
+     * @param vertices Static vertices packed in a layout
+     * @param release Frees the memory of the buffers, or null if they are
+     * not owned by the data
+     */
+    public MeshData(ByteBuffer vertices, VertexLayout layout, IntBuffer indices, Runnable release) {
+        this.vertices = vertices;
+        this.layout = layout;
+        this.indices = indices;
+        this.release = release;
+        positions = null;
+        textCoords = null;
+        normals = null;
+        jointIndices = null;
+        weights = null;
+    }
+
+    /**
+     * @return True if the vertices are packed, and the float streams null
+     */
+    public boolean isPacked() {
+        return vertices != null;
+    }
+
+    public ByteBuffer getVertices() {
+        return vertices;
+    }
+
+    public VertexLayout getLayout() {
+        return layout;
+    }
+
+    public FloatBuffer getPositions() {
+        return positions;
+    }
+
+    public FloatBuffer getTextCoords() {
+        return textCoords;
+    }
+
+    public FloatBuffer getNormals() {
+        return normals;
+    }
+
+    public IntBuffer getIndices() {
+        return indices;
+    }
+
+    public IntBuffer getJointIndices() {
+        return jointIndices;
+    }
+
+    public FloatBuffer getWeights() {
+        return weights;
+    }
+
+    public Mesh createMesh() {
+        return createMesh(1);
+    }
+
+    /**
+     * Uploads the data to a new mesh, instanced if there is more than one
+     * instance. The instanced meshes do not support skinning.
+     */
+    public Mesh createMesh(int instances) {
+        if (vertices != null) {
+            return instances > 1 ? new InstancedMesh(vertices, layout, indices, instances) : new Mesh(vertices, layout, indices);
+        }
+        if (instances > 1) {
+            return new InstancedMesh(positions, textCoords, normals, indices, instances);
+        }
+        return new Mesh(positions, textCoords, normals, indices, jointIndices, weights);
+    }
+
+    @Override
+    public void close() {
+        if (release != null) {
+            release.run();
+            release = null;
+        }
+    }
+}
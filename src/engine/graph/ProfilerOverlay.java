@@ -0,0 +1,127 @@
+package engine.graph;
+
+import java.awt.Font;
+import java.util.Locale;
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+
+import engine.FrameProfiler;
+import engine.Utils;
+import engine.Window;
+import engine.items.TextItem;
+
+/**
+ * Shows the percentiles of the frame profiler as text on top of the frame,
+ * one line per section, and the state changes of the render queue. The text
+ * is rebuilt only a few times per second.
+ */
+public class ProfilerOverlay {
+
+    private static final Font FONT = new Font("Monospaced", Font.PLAIN, 14);
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    private static final long REFRESH_INTERVAL_NS = 500_000_000L;
+
+    private static final float MARGIN = 10.0f;
+
+    private final Transformation transformation;
+
+    private final Vector4f colour;
+
+    private ShaderProgram hudShaderProgram;
+
+    private FontTexture fontTexture;
+
+    private TextItem[] lines;
+
+    private long lastRefresh;
+
+    public ProfilerOverlay() {
+        transformation = new Transformation();
+        colour = new Vector4f(1, 1, 0, 1);
+    }
+
+    public void init() throws Exception {
+        hudShaderProgram = new ShaderProgram();
+        hudShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/hud_vertex.vs"));
+        hudShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/hud_fragment.fs"));
+        hudShaderProgram.link();
+
+        hudShaderProgram.createUniform("projModelMatrix");
+        hudShaderProgram.createUniform("colour");
+        hudShaderProgram.createUniform("texture_sampler");
+
+        fontTexture = new FontTexture(FONT, CHARSET);
+        lines = new TextItem[2 + FrameProfiler.NUM_CPU_SECTIONS + FrameProfiler.NUM_GPU_SECTIONS];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = new TextItem(" ", fontTexture);
+            lines[i].setPosition(MARGIN, MARGIN + i * fontTexture.getHeight(), 0);
+        }
+        lines[0].setText(String.format(Locale.ROOT, "%-18s %7s %7s %7s", "ms", "p50", "p95", "p99"));
+    }
+
+    public void render(Window window, FrameProfiler profiler, RenderQueue renderQueue) {
+        long now = System.nanoTime();
+        if (now - lastRefresh > REFRESH_INTERVAL_NS) {
+            lastRefresh = now;
+            refresh(profiler, renderQueue);
+        }
+
+        hudShaderProgram.bind();
+        hudShaderProgram.setUniform("texture_sampler", 0);
+        hudShaderProgram.setUniform("colour", colour);
+
+        glDisable(GL_DEPTH_TEST);
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        glActiveTexture(GL_TEXTURE0);
+
+        Matrix4f ortho = transformation.getOrtho2DProjectionMatrix(0, window.getWidth(), window.getHeight(), 0);
+        for (TextItem line : lines) {
+            hudShaderProgram.setUniform("projModelMatrix", transformation.buildOrthoProjModelMatrix(line, ortho));
+            line.getMesh().render();
+        }
+
+        glDisable(GL_BLEND);
+        glEnable(GL_DEPTH_TEST);
+        hudShaderProgram.unbind();
+    }
+
+    public void cleanup() {
+        if (hudShaderProgram != null) {
+            hudShaderProgram.cleanup();
+        }
+        if (lines != null) {
+            for (TextItem line : lines) {
+                line.getMesh().deleteBuffers();
+            }
+        }
+        if (fontTexture != null) {
+            fontTexture.getTexture().cleanup();
+        }
+    }
+
+    private void refresh(FrameProfiler profiler, RenderQueue renderQueue) {
+        int line = 1;
+        for (int i = 0; i < FrameProfiler.NUM_CPU_SECTIONS; i++) {
+            lines[line++].setText(format("cpu " + FrameProfiler.getCpuSectionName(i),
+                    profiler.getCpuPercentile(i, 50), profiler.getCpuPercentile(i, 95), profiler.getCpuPercentile(i, 99)));
+        }
+        for (int i = 0; i < FrameProfiler.NUM_GPU_SECTIONS; i++) {
+            lines[line++].setText(format(FrameProfiler.getGpuSectionName(i),
+                    profiler.getGpuPercentile(i, 50), profiler.getGpuPercentile(i, 95), profiler.getGpuPercentile(i, 99)));
+        }
+        lines[line].setText(String.format(Locale.ROOT, "%-18s %7d saved %d", "state changes",
+                renderQueue.getStateChanges(), renderQueue.getStateChangesSaved()));
+    }
+
+    private static String format(String name, float p50, float p95, float p99) {
+        if (Float.isNaN(p50)) {
+            return String.format(Locale.ROOT, "%-18s %7s %7s %7s", name, "-", "-", "-");
+        }
+        return String.format(Locale.ROOT, "%-18s %7.3f %7.3f %7.3f", name, p50, p95, p99);
+    }
+}
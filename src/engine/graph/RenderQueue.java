@@ -0,0 +1,361 @@
+package engine.graph;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import org.joml.Matrix4f;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.*;
+import engine.Window;
+import engine.items.GameItem;
+
+/**
+ * Collects the meshes to be drawn in a pass and sorts them by a 64 bit key
+ * so meshes sharing shader variant, textures and material are drawn
+ * together. The key layout, from the most significant bits, is:
+ * shader variant (4), texture (16), normal map (12), material (16) and
+ * depth (16).
+ * <p>
+ * Materials keep their id while they stay in the scene. The ids are only
+ * given again when a new material shows up and the queue knows twice as
+ * many materials as were queued in the last frame, so swapping a few meshes
+ * does not change the order of the others.
+ */
+public class RenderQueue {
+
+    private static final int SHADER_SHIFT = 60;
+
+    private static final int TEXTURE_SHIFT = 44;
+
+    private static final int NORMAL_MAP_SHIFT = 32;
+
+    private static final int MATERIAL_SHIFT = 16;
+
+    private static final long TEXTURE_MASK = 0xFFFFL;
+
+    private static final long NORMAL_MAP_MASK = 0xFFFL;
+
+    private static final long MATERIAL_MASK = 0xFFFFL;
+
+    private static final long DEPTH_MASK = 0xFFFFL;
+
+    private static final int MIN_MATERIAL_IDS = 64;
+
+    private static final int RADIX_BITS = 8;
+
+    private static final int RADIX_SIZE = 1 << RADIX_BITS;
+
+    private final List<Mesh> meshes;
+
+    private final List<List<GameItem>> gameItemLists;
+
+    private final Map<Material, MaterialId> materialIds;
+
+    private final int[] histogram;
+
+    private final BiConsumer<Mesh, List<GameItem>> meshAdder;
+
+    /**
+     * View matrix of the meshes being added from a map.
+     */
+    private Matrix4f addViewMatrix;
+
+    private long[] keys;
+
+    private long[] tmpKeys;
+
+    private int[] order;
+
+    private int[] tmpOrder;
+
+    private int shaderVariant;
+
+    private Material currentMaterial;
+
+    private int currentTextureId;
+
+    private int currentNormalMapId;
+
+    private int stateChanges;
+
+    private int stateChangesSaved;
+
+    /**
+     * Incremented on every clear, tells which materials have been queued
+     * in the current frame.
+     */
+    private int frame;
+
+    private int numMaterials;
+
+    private int lastNumMaterials;
+
+    public RenderQueue() {
+        meshes = new ArrayList<>();
+        gameItemLists = new ArrayList<>();
+        materialIds = new HashMap<>();
+        histogram = new int[RADIX_SIZE];
+        meshAdder = (mesh, gameItems) -> add(mesh, gameItems, addViewMatrix);
+        keys = new long[64];
+        tmpKeys = new long[64];
+        order = new int[64];
+        tmpOrder = new int[64];
+        resetState();
+    }
+
+    public void clear() {
+        meshes.clear();
+        gameItemLists.clear();
+        stateChanges = 0;
+        stateChangesSaved = 0;
+        frame++;
+        lastNumMaterials = numMaterials;
+        numMaterials = 0;
+        resetState();
+    }
+
+    public void add(Map<? extends Mesh, List<GameItem>> mapMeshes, Matrix4f viewMatrix) {
+        addViewMatrix = viewMatrix;
+        mapMeshes.forEach(meshAdder);
+    }
+
+    public void add(Mesh mesh, List<GameItem> gameItems, Matrix4f viewMatrix) {
+        // Culled meshes also keep their material id, so it does not change when they come back into view
+        int materialId = getMaterialId(mesh.getMaterial());
+
+        // Use the closest visible item so buckets are drawn roughly front to back
+        float minDepth = Float.MAX_VALUE;
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            GameItem gameItem = gameItems.get(i);
+            if (gameItem.isInsideFrustum()) {
+                float x = gameItem.getPosition().x;
+                float y = gameItem.getPosition().y;
+                float z = gameItem.getPosition().z;
+                float depth = -(viewMatrix.m02() * x + viewMatrix.m12() * y + viewMatrix.m22() * z + viewMatrix.m32());
+                minDepth = Math.min(minDepth, depth);
+            }
+        }
+        if (minDepth == Float.MAX_VALUE) {
+            // Nothing to draw, do not spend any state change on it
+            return;
+        }
+
+        int pos = meshes.size();
+        ensureCapacity(pos + 1);
+        meshes.add(mesh);
+        gameItemLists.add(gameItems);
+        keys[pos] = buildKey(mesh, materialId, minDepth);
+        order[pos] = pos;
+    }
+
+    public int size() {
+        return meshes.size();
+    }
+
+    public Mesh getMesh(int i) {
+        return meshes.get(order[i]);
+    }
+
+    public List<GameItem> getGameItems(int i) {
+        return gameItemLists.get(order[i]);
+    }
+
+    /**
+     * Sorts the queued meshes with a LSD radix sort over the keys. Passes
+     * where all the keys share the same byte are skipped.
+     */
+    public void sort() {
+        int length = meshes.size();
+        for (int shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+            for (int i = 0; i < RADIX_SIZE; i++) {
+                histogram[i] = 0;
+            }
+            for (int i = 0; i < length; i++) {
+                histogram[(int) (keys[i] >>> shift) & (RADIX_SIZE - 1)]++;
+            }
+            if (length == 0 || histogram[(int) (keys[0] >>> shift) & (RADIX_SIZE - 1)] == length) {
+                continue;
+            }
+            int sum = 0;
+            for (int i = 0; i < RADIX_SIZE; i++) {
+                int count = histogram[i];
+                histogram[i] = sum;
+                sum += count;
+            }
+            for (int i = 0; i < length; i++) {
+                int bucket = (int) (keys[i] >>> shift) & (RADIX_SIZE - 1);
+                int dest = histogram[bucket]++;
+                tmpKeys[dest] = keys[i];
+                tmpOrder[dest] = order[i];
+            }
+            long[] auxKeys = keys;
+            keys = tmpKeys;
+            tmpKeys = auxKeys;
+            int[] auxOrder = order;
+            order = tmpOrder;
+            tmpOrder = auxOrder;
+        }
+    }
+
+    /**
+     * @param variant The shader variant to be used next
+     * @return true if the variant differs from the current one and the
+     * associated uniforms must be uploaded
+     */
+    public boolean changeShaderVariant(int variant) {
+        if (variant == shaderVariant) {
+            stateChangesSaved++;
+            return false;
+        }
+        shaderVariant = variant;
+        stateChanges++;
+        return true;
+    }
+
+    /**
+     * @param material The material to be used next
+     * @return true if the material differs from the current one and its
+     * uniforms must be uploaded
+     */
+    public boolean changeMaterial(Material material) {
+        if (material == currentMaterial) {
+            stateChangesSaved++;
+            return false;
+        }
+        currentMaterial = material;
+        stateChanges++;
+        return true;
+    }
+
+    /**
+     * Binds the texture and normal map of a material, skipping the binds
+     * for the units that already hold them.
+     *
+     * @param material The material whose textures will be bound
+     */
+    public void bindTextures(Material material) {
+        Texture texture = material != null ? material.getTexture() : null;
+        if (texture != null) {
+            if (texture.getId() != currentTextureId) {
+                glActiveTexture(GL_TEXTURE0);
+                glBindTexture(GL_TEXTURE_2D, texture.getId());
+                currentTextureId = texture.getId();
+                stateChanges++;
+            } else {
+                stateChangesSaved++;
+            }
+        }
+        Texture normalMap = material != null ? material.getNormalMap() : null;
+        if (normalMap != null) {
+            if (normalMap.getId() != currentNormalMapId) {
+                glActiveTexture(GL_TEXTURE1);
+                glBindTexture(GL_TEXTURE_2D, normalMap.getId());
+                currentNormalMapId = normalMap.getId();
+                stateChanges++;
+            } else {
+                stateChangesSaved++;
+            }
+        }
+    }
+
+    /**
+     * Restores the texture units used by the queue once the pass has
+     * finished.
+     */
+    public void unbindTextures() {
+        if (currentNormalMapId != 0) {
+            glActiveTexture(GL_TEXTURE1);
+            glBindTexture(GL_TEXTURE_2D, 0);
+        }
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        resetState();
+    }
+
+    /**
+     * @return Number of state changes issued since the last clear
+     */
+    public int getStateChanges() {
+        return stateChanges;
+    }
+
+    /**
+     * @return Number of redundant state changes skipped since the last clear
+     */
+    public int getStateChangesSaved() {
+        return stateChangesSaved;
+    }
+
+    private void resetState() {
+        shaderVariant = -1;
+        currentMaterial = null;
+        currentTextureId = 0;
+        currentNormalMapId = 0;
+    }
+
+    private long buildKey(Mesh mesh, int id, float depth) {
+        Material material = mesh.getMaterial();
+        Texture texture = material != null ? material.getTexture() : null;
+        Texture normalMap = material != null ? material.getNormalMap() : null;
+
+        long shader = mesh instanceof InstancedMesh ? 1 : 0;
+        long textureId = texture != null ? texture.getId() & TEXTURE_MASK : 0;
+        long normalMapId = normalMap != null ? normalMap.getId() & NORMAL_MAP_MASK : 0;
+        long materialId = id & MATERIAL_MASK;
+        float normDepth = Math.max(0.0f, Math.min(1.0f, depth / Window.Z_FAR));
+        long depthBits = (long) (normDepth * DEPTH_MASK) & DEPTH_MASK;
+
+        return (shader << SHADER_SHIFT) | (textureId << TEXTURE_SHIFT) | (normalMapId << NORMAL_MAP_SHIFT)
+                | (materialId << MATERIAL_SHIFT) | depthBits;
+    }
+
+    private int getMaterialId(Material material) {
+        if (material == null) {
+            return 0;
+        }
+        MaterialId materialId = materialIds.get(material);
+        if (materialId == null) {
+            if (materialIds.size() >= Math.max(2 * lastNumMaterials, MIN_MATERIAL_IDS)
+                    || materialIds.size() >= MATERIAL_MASK) {
+                // Most of the known materials are no longer in the scene, give the ids again
+                materialIds.clear();
+            }
+            materialId = new MaterialId(materialIds.size() + 1);
+            materialIds.put(material, materialId);
+        }
+        if (materialId.frame != frame) {
+            materialId.frame = frame;
+            numMaterials++;
+        }
+        return materialId.id;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > keys.length) {
+            int newSize = Math.max(size, keys.length * 2);
+            long[] newKeys = new long[newSize];
+            System.arraycopy(keys, 0, newKeys, 0, keys.length);
+            keys = newKeys;
+            tmpKeys = new long[newSize];
+            int[] newOrder = new int[newSize];
+            System.arraycopy(order, 0, newOrder, 0, order.length);
+            order = newOrder;
+            tmpOrder = new int[newSize];
+        }
+    }
+
+    private static class MaterialId {
+
+        private final int id;
+
+        private int frame;
+
+        private MaterialId(int id) {
+            this.id = id;
+            this.frame = -1;
+        }
+    }
+}
@@ -2,28 +2,32 @@ package engine.graph;
 
 import java.util.ArrayList;
 
+import engine.graph.lights.LightClusterGrid;
 import engine.graph.lights.PointLight;
-import engine.graph.lights.DirectionalLight;
 import java.util.List;
-import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL14.*;
+import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 
 import engine.items.GameItem;
+import engine.FrameProfiler;
 import engine.Scene;
+import engine.SceneSpatialIndex;
 import engine.SceneLight;
 import engine.items.SkyBox;
+import engine.items.TransformStore;
 import engine.Utils;
 import engine.Window;
 import engine.graph.anim.AnimGameItem;
 import engine.graph.anim.AnimatedFrame;
 import engine.graph.particles.IParticleEmitter;
-import engine.graph.shadow.ShadowCascade;
 import engine.graph.shadow.ShadowRenderer;
 import engine.loaders.assimp.StaticMeshesLoader;
 
@@ -39,47 +43,113 @@ public class Renderer {
 
     private ShaderProgram gBufferShaderProgram;
 
+    private UniformHandle isInstancedUniform;
+
+    private UniformHandle modelNonInstancedMatrixUniform;
+
+    private UniformHandle selectedNonInstancedUniform;
+
+    private UniformHandle jointsMatrixUniform;
+
+    private UniformHandle numColsUniform;
+
+    private UniformHandle numRowsUniform;
+
+    private UniformHandle[] shadowMapUniforms;
+
     private ShaderProgram dirLightShaderProgram;
 
     private ShaderProgram pointLightShaderProgram;
 
     private ShaderProgram fogShaderProgram;
 
+    private ShaderProgram lightVolumeShaderProgram;
+
+    private ShaderProgram lightStencilShaderProgram;
+
+    private LightVolume lightVolume;
+
+    private ShaderProgram clusterLightShaderProgram;
+
+    private UniformHandle clusterSizeUniform;
+
+    private UniformHandle clusterZNearUniform;
+
+    private UniformHandle clusterLogDepthRatioUniform;
+
+    private LightClusterGrid lightClusterGrid;
+
+    private LightClusterBuffer lightClusterBuffer;
+
+    private final PointLight viewPointLight;
+
     private final float specularPower;
 
     private final FrustumCullingFilter frustumFilter;
 
     private final List<GameItem> filteredItems;
 
+    private final RenderQueue renderQueue;
+
+    private FrameUniforms frameUniforms;
+
+    private MeshArena meshArena;
+
     private GBuffer gBuffer;
 
     private SceneBuffer sceneBuffer;
 
     private Mesh bufferPassMesh;
 
+    private ProfilerOverlay profilerOverlay;
+
     private Matrix4f bufferPassModelMatrix;
 
     private Vector4f tmpVec;
 
+    private final Consumer<GameItem> nonInstancedItemRenderer;
+
+    private final BiConsumer<Mesh, List<GameItem>> staticMeshAdder;
+
     public Renderer() {
         transformation = new Transformation();
         specularPower = 10f;
         shadowRenderer = new ShadowRenderer();
         frustumFilter = new FrustumCullingFilter();
         filteredItems = new ArrayList<>();
+        renderQueue = new RenderQueue();
         tmpVec = new Vector4f();
+        viewPointLight = new PointLight(new Vector3f(), new Vector3f(), 0);
+        nonInstancedItemRenderer = this::renderNonInstancedItem;
+        staticMeshAdder = this::addStaticMesh;
     }
 
     public void init(Window window) throws Exception {
         shadowRenderer.init(window);
-        gBuffer = new GBuffer(window);
+        gBuffer = new GBuffer(window, window.getOptions().compactGBuffer);
         sceneBuffer = new SceneBuffer(window);
+        frameUniforms = new FrameUniforms();
+        if (window.getOptions().batchStaticMeshes) {
+            meshArena = new MeshArena(1 << 16, 1 << 17);
+        }
         setupSkyBoxShader();
         setupParticlesShader();
         setupGeometryShader();
         setupDirLightShader();
         setupPointLightShader();
+        setupLightVolumeShaders();
         setupFogShader();
+        lightVolume = new LightVolume();
+        if (window.getOptions().clusteredLighting) {
+            lightClusterGrid = new LightClusterGrid(16, 9, 24);
+            lightClusterBuffer = new LightClusterBuffer();
+            setupClusterLightShader();
+        }
+
+        if (window.getOptions().profileFrames) {
+            profilerOverlay = new ProfilerOverlay();
+            profilerOverlay.init();
+        }
 
         bufferPassModelMatrix =  new Matrix4f();
         bufferPassMesh = StaticMeshesLoader.load("models/buffer_pass_mess.obj", "models")[0];
@@ -88,32 +158,73 @@ public class Renderer {
     public void render(Window window, Camera camera, Scene scene, boolean sceneChanged) {
         clear();
 
+        // Update projection matrix once per render cycle
+        window.updateProjectionMatrix();
+
+        // Rebuild the cached model matrices of the items that have moved,
+        // the index then only checks those items. The shadow cascades cull
+        // their casters with the index too
+        TransformStore transformStore = scene.getTransformStore();
+        SceneSpatialIndex spatialIndex = scene.getSpatialIndex();
+        if (transformStore != null) {
+            transformStore.update();
+            spatialIndex.update(transformStore);
+        } else {
+            spatialIndex.update();
+        }
+
         if (window.getOptions().frustumCulling) {
             frustumFilter.updateFrustum(window.getProjectionMatrix(), camera.getViewMatrix());
-            frustumFilter.filter(scene.getGameMeshes());
-            frustumFilter.filter(scene.getGameInstancedMeshes());
+            frustumFilter.setExact(window.getOptions().exactFrustumCulling);
+            frustumFilter.filter(spatialIndex);
         }
 
+        boolean renderShadows = scene.isRenderShadows() && (sceneChanged || shadowRenderer.hasPendingUpdates());
+        if (renderShadows) {
+            shadowRenderer.update(window, camera.getViewMatrix(), scene, sceneChanged);
+        }
+
+        // Upload the data shared by all the passes once per frame
+        frameUniforms.update(window, camera, scene, shadowRenderer.getShadowCascades());
+
         // Render depth map before view ports has been set up
-        if (scene.isRenderShadows() && sceneChanged) {
+        if (renderShadows) {
             shadowRenderer.render(window, scene, camera, transformation, this);
         }
 
         glViewport(0, 0, window.getWidth(), window.getHeight());
 
-        // Update projection matrix once per render cycle
-        window.updateProjectionMatrix();
-
+        FrameProfiler profiler = window.getProfiler();
+        profiler.beginGpu(FrameProfiler.GEOMETRY);
         renderGeometry(window, camera, scene);
+        profiler.endGpu();
 
         initLightRendering();
-        renderPointLights(window, camera, scene);
+        profiler.beginGpu(FrameProfiler.POINT_LIGHTS);
+        if (lightClusterGrid != null) {
+            renderClusteredPointLights(window, camera, scene);
+        } else {
+            renderPointLights(window, camera, scene);
+        }
+        profiler.endGpu();
+        profiler.beginGpu(FrameProfiler.DIRECTIONAL_LIGHT);
         renderDirectionalLight(window, camera, scene);
+        profiler.endGpu();
         endLightRendering();
 
+        profiler.beginGpu(FrameProfiler.FOG);
         renderFog(window, camera, scene);
+        profiler.endGpu();
+        profiler.beginGpu(FrameProfiler.SKYBOX);
         renderSkyBox(window, camera, scene);
+        profiler.endGpu();
+        profiler.beginGpu(FrameProfiler.PARTICLES);
         renderParticles(window, camera, scene);
+        profiler.endGpu();
+
+        if (profilerOverlay != null) {
+            profilerOverlay.render(window, profiler, renderQueue);
+        }
     }
 
     private void setupParticlesShader() throws Exception {
@@ -122,8 +233,7 @@ public class Renderer {
         particlesShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/particles_fragment.fs"));
         particlesShaderProgram.link();
 
-        particlesShaderProgram.createUniform("viewMatrix");
-        particlesShaderProgram.createUniform("projectionMatrix");
+        particlesShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         particlesShaderProgram.createUniform("texture_sampler");
 
         particlesShaderProgram.createUniform("numCols");
@@ -136,11 +246,10 @@ public class Renderer {
         skyBoxShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/sb_fragment.fs"));
         skyBoxShaderProgram.link();
 
-        // Create uniforms for projection matrix
-        skyBoxShaderProgram.createUniform("projectionMatrix");
+        skyBoxShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         skyBoxShaderProgram.createUniform("modelViewMatrix");
         skyBoxShaderProgram.createUniform("texture_sampler");
-        skyBoxShaderProgram.createUniform("ambientLight");
+        skyBoxShaderProgram.createUniform("skyBoxLight");
         skyBoxShaderProgram.createUniform("colour");
         skyBoxShaderProgram.createUniform("hasTexture");
 
@@ -151,91 +260,166 @@ public class Renderer {
     private void setupGeometryShader() throws Exception {
         gBufferShaderProgram = new ShaderProgram();
         gBufferShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/gbuffer_vertex.vs"));
-        gBufferShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/gbuffer_fragment.fs"));
+        gBufferShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/gbuffer_fragment.fs"), getGBufferDefines());
         gBufferShaderProgram.link();
 
-        gBufferShaderProgram.createUniform("projectionMatrix");
-        gBufferShaderProgram.createUniform("viewMatrix");
+        gBufferShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         gBufferShaderProgram.createUniform("texture_sampler");
         gBufferShaderProgram.createUniform("normalMap");
         gBufferShaderProgram.createMaterialUniform("material");
-        gBufferShaderProgram.createUniform("isInstanced");
-        gBufferShaderProgram.createUniform("modelNonInstancedMatrix");
-        gBufferShaderProgram.createUniform("selectedNonInstanced");
-        gBufferShaderProgram.createUniform("jointsMatrix");
-        gBufferShaderProgram.createUniform("numCols");
-        gBufferShaderProgram.createUniform("numRows");
+        isInstancedUniform = gBufferShaderProgram.createUniform("isInstanced");
+        modelNonInstancedMatrixUniform = gBufferShaderProgram.createUniform("modelNonInstancedMatrix");
+        selectedNonInstancedUniform = gBufferShaderProgram.createUniform("selectedNonInstanced");
+        jointsMatrixUniform = gBufferShaderProgram.createUniform("jointsMatrix");
+        numColsUniform = gBufferShaderProgram.createUniform("numCols");
+        numRowsUniform = gBufferShaderProgram.createUniform("numRows");
 
         // Create uniforms for shadow mapping
+        shadowMapUniforms = new UniformHandle[ShadowRenderer.NUM_CASCADES];
         for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            gBufferShaderProgram.createUniform("shadowMap_" + i);
+            shadowMapUniforms[i] = gBufferShaderProgram.createUniform("shadowMap_" + i);
         }
-        gBufferShaderProgram.createUniform("orthoProjectionMatrix", ShadowRenderer.NUM_CASCADES);
-        gBufferShaderProgram.createUniform("lightViewMatrix", ShadowRenderer.NUM_CASCADES);
-        gBufferShaderProgram.createUniform("cascadeFarPlanes", ShadowRenderer.NUM_CASCADES);
         gBufferShaderProgram.createUniform("renderShadow");
     }
 
     private void setupDirLightShader() throws Exception {
         dirLightShaderProgram = new ShaderProgram();
         dirLightShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_vertex.vs"));
-        dirLightShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/dir_light_fragment.fs"));
+        dirLightShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/dir_light_fragment.fs"), getGBufferDefines());
         dirLightShaderProgram.link();
 
+        dirLightShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         dirLightShaderProgram.createUniform("modelMatrix");
-        dirLightShaderProgram.createUniform("projectionMatrix");
 
         dirLightShaderProgram.createUniform("screenSize");
-        dirLightShaderProgram.createUniform("positionsText");
-        dirLightShaderProgram.createUniform("diffuseText");
-        dirLightShaderProgram.createUniform("specularText");
-        dirLightShaderProgram.createUniform("normalsText");
-        dirLightShaderProgram.createUniform("shadowText");
+        createGBufferUniforms(dirLightShaderProgram);
 
         dirLightShaderProgram.createUniform("specularPower");
-        dirLightShaderProgram.createUniform("ambientLight");
-        dirLightShaderProgram.createDirectionalLightUniform("directionalLight");
     }
 
     private void setupPointLightShader() throws Exception {
         pointLightShaderProgram = new ShaderProgram();
         pointLightShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_vertex.vs"));
-        pointLightShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/point_light_fragment.fs"));
+        pointLightShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/point_light_fragment.fs"), getGBufferDefines());
         pointLightShaderProgram.link();
 
+        pointLightShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         pointLightShaderProgram.createUniform("modelMatrix");
-        pointLightShaderProgram.createUniform("projectionMatrix");
 
         pointLightShaderProgram.createUniform("screenSize");
-        pointLightShaderProgram.createUniform("positionsText");
-        pointLightShaderProgram.createUniform("diffuseText");
-        pointLightShaderProgram.createUniform("specularText");
-        pointLightShaderProgram.createUniform("normalsText");
-        pointLightShaderProgram.createUniform("shadowText");
+        createGBufferUniforms(pointLightShaderProgram);
 
         pointLightShaderProgram.createUniform("specularPower");
         pointLightShaderProgram.createPointLightUniform("pointLight");
     }
 
+    private void setupLightVolumeShaders() throws Exception {
+        String[] gBufferDefines = getGBufferDefines();
+        String[] defines = new String[gBufferDefines.length + 1];
+        System.arraycopy(gBufferDefines, 0, defines, 0, gBufferDefines.length);
+        defines[gBufferDefines.length] = "LIGHT_VOLUME";
+
+        lightVolumeShaderProgram = new ShaderProgram();
+        lightVolumeShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_volume_vertex.vs"));
+        lightVolumeShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/point_light_fragment.fs"), defines);
+        lightVolumeShaderProgram.link();
+
+        lightVolumeShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
+        lightVolumeShaderProgram.createUniform("screenSize");
+        createGBufferUniforms(lightVolumeShaderProgram);
+        lightVolumeShaderProgram.createUniform("specularPower");
+
+        lightStencilShaderProgram = new ShaderProgram();
+        lightStencilShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_volume_vertex.vs"));
+        lightStencilShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/light_stencil_fragment.fs"));
+        lightStencilShaderProgram.link();
+
+        lightStencilShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
+    }
+
+    private void setupClusterLightShader() throws Exception {
+        clusterLightShaderProgram = new ShaderProgram();
+        clusterLightShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_vertex.vs"));
+        clusterLightShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/cluster_light_fragment.fs"), getGBufferDefines());
+        clusterLightShaderProgram.link();
+
+        clusterLightShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
+        clusterLightShaderProgram.createUniform("modelMatrix");
+
+        clusterLightShaderProgram.createUniform("screenSize");
+        createGBufferUniforms(clusterLightShaderProgram);
+
+        clusterLightShaderProgram.createUniform("specularPower");
+        clusterLightShaderProgram.createUniform("lightsData");
+        clusterLightShaderProgram.createUniform("clustersData");
+        clusterLightShaderProgram.createUniform("lightIndices");
+        clusterSizeUniform = clusterLightShaderProgram.createUniform("clusterSize");
+        clusterZNearUniform = clusterLightShaderProgram.createUniform("clusterZNear");
+        clusterLogDepthRatioUniform = clusterLightShaderProgram.createUniform("clusterLogDepthRatio");
+    }
+
     private void setupFogShader() throws Exception {
         fogShaderProgram = new ShaderProgram();
         fogShaderProgram.createVertexShader(Utils.loadResource("/resources/shaders/light_vertex.vs"));
-        fogShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/fog_fragment.fs"));
+        fogShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/fog_fragment.fs"), getGBufferDefines());
         fogShaderProgram.link();
 
+        fogShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
         fogShaderProgram.createUniform("modelMatrix");
-        fogShaderProgram.createUniform("viewMatrix");
-        fogShaderProgram.createUniform("projectionMatrix");
 
         fogShaderProgram.createUniform("screenSize");
-        fogShaderProgram.createUniform("positionsText");
+        if (!gBuffer.isCompact()) {
+            fogShaderProgram.createUniform("positionsText");
+        }
         fogShaderProgram.createUniform("depthText");
         fogShaderProgram.createUniform("sceneText");
 
         fogShaderProgram.createFogUniform("fog");
-        fogShaderProgram.createUniform("ambientLight");
-        fogShaderProgram.createUniform("lightColour");
-        fogShaderProgram.createUniform("lightIntensity");
+    }
+
+    /**
+     * @return The defines that select the G-Buffer layout in the shaders that
+     * write or read it
+     */
+    private String[] getGBufferDefines() {
+        return gBuffer.isCompact() ? new String[]{GBuffer.COMPACT_DEFINE} : new String[0];
+    }
+
+    private void createGBufferUniforms(ShaderProgram shaderProgram) throws Exception {
+        if (gBuffer.isCompact()) {
+            shaderProgram.createUniform("normalsText");
+            shaderProgram.createUniform("diffuseText");
+            shaderProgram.createUniform("specularText");
+            shaderProgram.createUniform("depthText");
+        } else {
+            shaderProgram.createUniform("positionsText");
+            shaderProgram.createUniform("diffuseText");
+            shaderProgram.createUniform("specularText");
+            shaderProgram.createUniform("normalsText");
+            shaderProgram.createUniform("shadowText");
+        }
+    }
+
+    private void bindGBufferTextures(ShaderProgram shaderProgram) {
+        int[] textureIds = this.gBuffer.getTextureIds();
+        int numTextures = textureIds != null ? textureIds.length : 0;
+        for (int i=0; i<numTextures; i++) {
+            glActiveTexture(GL_TEXTURE0 + i);
+            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
+        }
+
+        if (gBuffer.isCompact()) {
+            shaderProgram.setUniform("normalsText", 0);
+            shaderProgram.setUniform("diffuseText", 1);
+            shaderProgram.setUniform("specularText", 2);
+            shaderProgram.setUniform("depthText", 3);
+        } else {
+            shaderProgram.setUniform("positionsText", 0);
+            shaderProgram.setUniform("diffuseText", 1);
+            shaderProgram.setUniform("specularText", 2);
+            shaderProgram.setUniform("normalsText", 3);
+            shaderProgram.setUniform("shadowText", 4);
+        }
     }
 
     public void clear() {
@@ -253,30 +437,26 @@ public class Renderer {
         gBufferShaderProgram.bind();
 
         Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
-        gBufferShaderProgram.setUniform("viewMatrix", viewMatrix);
-        gBufferShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         gBufferShaderProgram.setUniform("texture_sampler", 0);
         gBufferShaderProgram.setUniform("normalMap", 1);
 
-        List<ShadowCascade> shadowCascades = shadowRenderer.getShadowCascades();
-        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            ShadowCascade shadowCascade = shadowCascades.get(i);
-            gBufferShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix(), i);
-            gBufferShaderProgram.setUniform("cascadeFarPlanes", ShadowRenderer.CASCADE_SPLITS[i], i);
-            gBufferShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix(), i);
-        }
         shadowRenderer.bindTextures(GL_TEXTURE2);
         int start = 2;
         for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
-            gBufferShaderProgram.setUniform("shadowMap_" + i, start + i);
+            shadowMapUniforms[i].set(start + i);
         }
         gBufferShaderProgram.setUniform("renderShadow", scene.isRenderShadows() ? 1 : 0);
 
-        renderNonInstancedMeshes(scene);
+        if (meshArena != null) {
+            addStaticMeshes(scene);
+        }
 
-        renderInstancedMeshes(scene, viewMatrix);
+        renderQueue.clear();
+        renderQueue.add(scene.getGameMeshes(), viewMatrix);
+        renderQueue.add(scene.getGameInstancedMeshes(), viewMatrix);
+        renderQueue.sort();
+        renderQueuedMeshes(viewMatrix);
 
         gBufferShaderProgram.unbind();
 
@@ -308,92 +488,229 @@ public class Renderer {
         glDisable(GL_BLEND);
     }
 
+    /**
+     * Shades each point light only inside its sphere of influence. Lights
+     * whose attenuation does not reach the cutoff within the view distance
+     * are still drawn with a full screen pass.
+     */
     private void renderPointLights(Window window, Camera camera, Scene scene) {
-        pointLightShaderProgram.bind();
+        SceneLight sceneLight = scene.getSceneLight();
+        PointLight[] pointLights = sceneLight.getPointLightList();
+        int numPointLights = pointLights != null ? pointLights.length : 0;
+        if (numPointLights == 0) {
+            return;
+        }
 
         Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
+        float aspectRatio = (float) window.getWidth() / (float) window.getHeight();
+        float tanHalfFov = (float) Math.tan(Window.FOV * 0.5f);
+        // Distance from the camera to the corners of the near plane
+        float nearDistance = Window.Z_NEAR * (float) Math.sqrt(1 + tanHalfFov * tanHalfFov * (1 + aspectRatio * aspectRatio));
+
+        // The volumes that do not touch the near plane go first, the stencil test only works for them
+        lightVolume.clear();
+        int numOutside = 0;
+        boolean fullScreenLights = false;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < numPointLights; i++) {
+                PointLight pointLight = pointLights[i];
+                float radius = LightVolume.getRadius(pointLight, LightVolume.DEFAULT_CUTOFF);
+                if (radius <= 0) {
+                    continue;
+                }
+                if (radius >= Window.Z_FAR) {
+                    fullScreenLights = true;
+                    continue;
+                }
+                tmpVec.set(pointLight.getPosition(), 1);
+                tmpVec.mul(viewMatrix);
+                float outerRadius = radius * lightVolume.getScale() + nearDistance;
+                boolean inside = tmpVec.x * tmpVec.x + tmpVec.y * tmpVec.y + tmpVec.z * tmpVec.z < outerRadius * outerRadius;
+                if (inside == (pass == 1)) {
+                    lightVolume.add(tmpVec.x, tmpVec.y, tmpVec.z, radius, pointLight);
+                }
+            }
+            if (pass == 0) {
+                numOutside = lightVolume.getNumInstances();
+            }
+        }
+
+        if (fullScreenLights) {
+            renderFullScreenPointLights(viewMatrix, pointLights);
+        }
+        if (lightVolume.getNumInstances() > 0) {
+            renderLightVolumes(window, numOutside);
+        }
+    }
+
+    private void renderFullScreenPointLights(Matrix4f viewMatrix, PointLight[] pointLights) {
+        pointLightShaderProgram.bind();
+
         pointLightShaderProgram.setUniform("modelMatrix", bufferPassModelMatrix);
-        pointLightShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         // Specular factor
         pointLightShaderProgram.setUniform("specularPower", specularPower);
 
         // Bind the G-Buffer textures
-        int[] textureIds = this.gBuffer.getTextureIds();
-        int numTextures = textureIds != null ? textureIds.length : 0;
-        for (int i=0; i<numTextures; i++) {
-            glActiveTexture(GL_TEXTURE0 + i);
-            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
+        bindGBufferTextures(pointLightShaderProgram);
+
+        pointLightShaderProgram.setUniform("screenSize", (float) gBuffer.getWidth(), (float)gBuffer.getHeight());
+
+        for (int i = 0; i < pointLights.length; i++) {
+            PointLight pointLight = pointLights[i];
+            if (LightVolume.getRadius(pointLight, LightVolume.DEFAULT_CUTOFF) < Window.Z_FAR) {
+                continue;
+            }
+            // Copy the point light into a reused one with its position in view coordinates
+            tmpVec.set(pointLight.getPosition(), 1);
+            tmpVec.mul(viewMatrix);
+            viewPointLight.getPosition().set(tmpVec.x, tmpVec.y, tmpVec.z);
+            viewPointLight.getColor().set(pointLight.getColor());
+            viewPointLight.setIntensity(pointLight.getIntensity());
+            viewPointLight.setAttenuation(pointLight.getAttenuation());
+            pointLightShaderProgram.setUniform("pointLight", viewPointLight);
+
+            bufferPassMesh.render();
         }
 
-        pointLightShaderProgram.setUniform("positionsText", 0);
-        pointLightShaderProgram.setUniform("diffuseText", 1);
-        pointLightShaderProgram.setUniform("specularText", 2);
-        pointLightShaderProgram.setUniform("normalsText", 3);
-        pointLightShaderProgram.setUniform("shadowText", 4);
+        pointLightShaderProgram.unbind();
+    }
 
-        pointLightShaderProgram.setUniform("screenSize", (float) gBuffer.getWidth(), (float)gBuffer.getHeight());
+    /**
+     * Draws the light volumes with the stencil test. For each light the
+     * stencil pass counts the back faces behind the scene minus the front
+     * faces behind the scene, which leaves a non zero value only where the
+     * scene is inside the volume, and the lighting pass shades those pixels
+     * and resets them. The volumes that contain the camera are drawn in a
+     * single instanced call, shading the pixels in front of their back
+     * faces.
+     */
+    private void renderLightVolumes(Window window, int numOutside) {
+        lightVolume.upload();
+
+        // The G-Buffer is bound for reading, copy its depth to test the volumes against the scene
+        int width = gBuffer.getWidth();
+        int height = gBuffer.getHeight();
+        glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_DEPTH_BUFFER_BIT, GL_NEAREST);
+
+        lightVolumeShaderProgram.bind();
+        lightVolumeShaderProgram.setUniform("specularPower", specularPower);
+        bindGBufferTextures(lightVolumeShaderProgram);
+        lightVolumeShaderProgram.setUniform("screenSize", (float) width, (float) height);
+
+        glDepthMask(false);
+        glEnable(GL_CULL_FACE);
+        lightVolume.bind();
+
+        for (int i = 0; i < numOutside; i++) {
+            lightStencilShaderProgram.bind();
+            glDrawBuffer(GL_NONE);
+            glEnable(GL_DEPTH_TEST);
+            glDisable(GL_CULL_FACE);
+            glStencilFunc(GL_ALWAYS, 0, 0);
+            glStencilOpSeparate(GL_BACK, GL_KEEP, GL_INCR_WRAP, GL_KEEP);
+            glStencilOpSeparate(GL_FRONT, GL_KEEP, GL_DECR_WRAP, GL_KEEP);
+            lightVolume.render(i, 1);
+
+            lightVolumeShaderProgram.bind();
+            glDrawBuffer(GL_COLOR_ATTACHMENT0);
+            glDisable(GL_DEPTH_TEST);
+            glEnable(GL_CULL_FACE);
+            glCullFace(GL_FRONT);
+            glStencilFunc(GL_NOTEQUAL, 0, 0xFF);
+            glStencilOp(GL_KEEP, GL_KEEP, GL_ZERO);
+            lightVolume.render(i, 1);
+        }
+
+        int numInside = lightVolume.getNumInstances() - numOutside;
+        if (numInside > 0) {
+            glDrawBuffer(GL_COLOR_ATTACHMENT0);
+            glEnable(GL_DEPTH_TEST);
+            glDepthFunc(GL_GEQUAL);
+            glCullFace(GL_FRONT);
+            glStencilFunc(GL_ALWAYS, 0, 0xFF);
+            glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
+            lightVolume.render(numOutside, numInside);
+            glDepthFunc(GL_LESS);
+        }
 
+        lightVolume.unbind();
+        lightVolumeShaderProgram.unbind();
+
+        // Back to the state of the other light passes
+        glStencilFunc(GL_ALWAYS, 0, 0xFF);
+        glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
+        glCullFace(GL_BACK);
+        if (!window.getOptions().cullFace) {
+            glDisable(GL_CULL_FACE);
+        }
+        glDisable(GL_DEPTH_TEST);
+        glDepthMask(true);
+    }
+
+    /**
+     * Bins the point lights into the view clusters and shades all of them in
+     * a single pass, each fragment evaluating only the lights of its cluster.
+     */
+    private void renderClusteredPointLights(Window window, Camera camera, Scene scene) {
         SceneLight sceneLight = scene.getSceneLight();
         PointLight[] pointLights = sceneLight.getPointLightList();
         int numPointLights = pointLights != null ? pointLights.length : 0;
-        for(int i=0; i<numPointLights; i++) {
-            // Get a copy of the point light object and transform its position to view coordinates
-            PointLight currPointLight = new PointLight(pointLights[i]);
-            Vector3f lightPos = currPointLight.getPosition();
-            tmpVec.set(lightPos, 1);
-            tmpVec.mul(viewMatrix);
-            lightPos.x = tmpVec.x;
-            lightPos.y = tmpVec.y;
-            lightPos.z = tmpVec.z;
-            pointLightShaderProgram.setUniform("pointLight", currPointLight);
+        if (numPointLights == 0) {
+            return;
+        }
 
-            bufferPassMesh.render();
+        Matrix4f viewMatrix = camera.getViewMatrix();
+        float aspectRatio = (float) window.getWidth() / (float) window.getHeight();
+        lightClusterGrid.setProjection(Window.FOV, aspectRatio, Window.Z_NEAR, Window.Z_FAR);
+        lightClusterGrid.clear();
+        for (int i = 0; i < numPointLights; i++) {
+            PointLight pointLight = pointLights[i];
+            tmpVec.set(pointLight.getPosition(), 1);
+            tmpVec.mul(viewMatrix);
+            float radius = Math.min(LightVolume.getRadius(pointLight, LightVolume.DEFAULT_CUTOFF), Window.Z_FAR);
+            lightClusterGrid.addLight(tmpVec.x, tmpVec.y, tmpVec.z, radius);
         }
+        lightClusterGrid.build();
+        lightClusterBuffer.upload(lightClusterGrid, pointLights);
 
-        pointLightShaderProgram.unbind();
+        clusterLightShaderProgram.bind();
+
+        clusterLightShaderProgram.setUniform("modelMatrix", bufferPassModelMatrix);
+        clusterLightShaderProgram.setUniform("specularPower", specularPower);
+
+        bindGBufferTextures(clusterLightShaderProgram);
+        int start = gBuffer.getTextureIds().length;
+        lightClusterBuffer.bindTextures(GL_TEXTURE0 + start);
+        clusterLightShaderProgram.setUniform("lightsData", start);
+        clusterLightShaderProgram.setUniform("clustersData", start + 1);
+        clusterLightShaderProgram.setUniform("lightIndices", start + 2);
+
+        clusterSizeUniform.set(lightClusterGrid.getTilesX(), lightClusterGrid.getTilesY(), lightClusterGrid.getSlices());
+        clusterZNearUniform.set(lightClusterGrid.getZNear());
+        clusterLogDepthRatioUniform.set(lightClusterGrid.getLogDepthRatio());
+
+        clusterLightShaderProgram.setUniform("screenSize", (float) gBuffer.getWidth(), (float)gBuffer.getHeight());
+
+        bufferPassMesh.render();
+
+        clusterLightShaderProgram.unbind();
     }
 
     private void renderDirectionalLight(Window window, Camera camera, Scene scene) {
         dirLightShaderProgram.bind();
 
-        Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
         dirLightShaderProgram.setUniform("modelMatrix", bufferPassModelMatrix);
-        dirLightShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         // Specular factor
         dirLightShaderProgram.setUniform("specularPower", specularPower);
 
         // Bind the G-Buffer textures
-        int[] textureIds = this.gBuffer.getTextureIds();
-        int numTextures = textureIds != null ? textureIds.length : 0;
-        for (int i=0; i<numTextures; i++) {
-            glActiveTexture(GL_TEXTURE0 + i);
-            glBindTexture(GL_TEXTURE_2D, textureIds[i]);
-        }
-
-        dirLightShaderProgram.setUniform("positionsText", 0);
-        dirLightShaderProgram.setUniform("diffuseText", 1);
-        dirLightShaderProgram.setUniform("specularText", 2);
-        dirLightShaderProgram.setUniform("normalsText", 3);
-        dirLightShaderProgram.setUniform("shadowText", 4);
+        bindGBufferTextures(dirLightShaderProgram);
 
         dirLightShaderProgram.setUniform("screenSize", (float) gBuffer.getWidth(), (float)gBuffer.getHeight());
 
-        // Ambient light
-        SceneLight sceneLight = scene.getSceneLight();
-        dirLightShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
-
-        // Directional light
-        // Get a copy of the directional light object and transform its position to view coordinates
-        DirectionalLight currDirLight = new DirectionalLight(sceneLight.getDirectionalLight());
-        tmpVec.set(currDirLight.getDirection(), 0);
-        tmpVec.mul(viewMatrix);
-        currDirLight.setDirection(new Vector3f(tmpVec.x, tmpVec.y, tmpVec.z));
-        dirLightShaderProgram.setUniform("directionalLight", currDirLight);
-
+        // Ambient and directional light, already in view coordinates, come from the frame uniforms
         bufferPassMesh.render();
 
         dirLightShaderProgram.unbind();
@@ -402,32 +719,25 @@ public class Renderer {
     private void renderFog(Window window, Camera camera, Scene scene) {
         fogShaderProgram.bind();
 
-        Matrix4f viewMatrix = camera.getViewMatrix();
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
         fogShaderProgram.setUniform("modelMatrix", bufferPassModelMatrix);
-        fogShaderProgram.setUniform("viewMatrix", viewMatrix);
-        fogShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         // Bind the scene buffer texture and the the depth texture of the G-Buffer
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, gBuffer.getPositionTexture());
+        if (!gBuffer.isCompact()) {
+            glActiveTexture(GL_TEXTURE0);
+            glBindTexture(GL_TEXTURE_2D, gBuffer.getPositionTexture());
+            fogShaderProgram.setUniform("positionsText", 0);
+        }
         glActiveTexture(GL_TEXTURE1);
         glBindTexture(GL_TEXTURE_2D, gBuffer.getDepthTexture());
         glActiveTexture(GL_TEXTURE2);
         glBindTexture(GL_TEXTURE_2D, sceneBuffer.getTextureId());
 
-        fogShaderProgram.setUniform("positionsText", 0);
         fogShaderProgram.setUniform("depthText", 1);
         fogShaderProgram.setUniform("sceneText", 2);
 
         fogShaderProgram.setUniform("screenSize", (float) gBuffer.getWidth(), (float)gBuffer.getHeight());
 
         fogShaderProgram.setUniform("fog", scene.getFog());
-        SceneLight sceneLight = scene.getSceneLight();
-        fogShaderProgram.setUniform("ambientLight", sceneLight.getAmbientLight());
-        DirectionalLight dirLight = sceneLight.getDirectionalLight();
-        fogShaderProgram.setUniform("lightColour", dirLight.getColor());
-        fogShaderProgram.setUniform("lightIntensity", dirLight.getIntensity());
 
         bufferPassMesh.render();
 
@@ -442,10 +752,7 @@ public class Renderer {
         particlesShaderProgram.bind();
 
         Matrix4f viewMatrix = camera.getViewMatrix();
-        particlesShaderProgram.setUniform("viewMatrix", viewMatrix);
         particlesShaderProgram.setUniform("texture_sampler", 0);
-        Matrix4f projectionMatrix = window.getProjectionMatrix();
-        particlesShaderProgram.setUniform("projectionMatrix", projectionMatrix);
 
         IParticleEmitter[] emitters = scene.getParticleEmitters();
         int numEmitters = emitters != null ? emitters.length : 0;
@@ -477,8 +784,6 @@ public class Renderer {
 
             skyBoxShaderProgram.setUniform("texture_sampler", 0);
 
-            Matrix4f projectionMatrix = window.getProjectionMatrix();
-            skyBoxShaderProgram.setUniform("projectionMatrix", projectionMatrix);
             Matrix4f viewMatrix = camera.getViewMatrix();
             float m30 = viewMatrix.m30();
             viewMatrix.m30(0);
@@ -490,7 +795,7 @@ public class Renderer {
             Mesh mesh = skyBox.getMesh();
             Matrix4f modelViewMatrix = transformation.buildModelViewMatrix(skyBox, viewMatrix);
             skyBoxShaderProgram.setUniform("modelViewMatrix", modelViewMatrix);
-            skyBoxShaderProgram.setUniform("ambientLight", scene.getSceneLight().getSkyBoxLight());
+            skyBoxShaderProgram.setUniform("skyBoxLight", scene.getSceneLight().getSkyBoxLight());
             skyBoxShaderProgram.setUniform("colour", mesh.getMaterial().getDiffuseColour());
             skyBoxShaderProgram.setUniform("hasTexture", mesh.getMaterial().isTextured() ? 1 : 0);
 
@@ -508,57 +813,106 @@ public class Renderer {
         }
     }
 
-    private void renderNonInstancedMeshes(Scene scene) {
-        gBufferShaderProgram.setUniform("isInstanced", 0);
+    /**
+     * Adds to the mesh arena the meshes of the scene that are not animated.
+     * Their vertex data is copied only the first time they are seen.
+     */
+    private void addStaticMeshes(Scene scene) {
+        scene.getGameMeshes().forEach(staticMeshAdder);
+    }
 
-        // Render each mesh with the associated game Items
-        Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
-        for (Mesh mesh : mapMeshes.keySet()) {
-            gBufferShaderProgram.setUniform("material", mesh.getMaterial());
+    private void addStaticMesh(Mesh mesh, List<GameItem> gameItems) {
+        if (!meshArena.contains(mesh) && !gameItems.isEmpty() && !(gameItems.get(0) instanceof AnimGameItem)) {
+            meshArena.add(mesh);
+        }
+    }
 
-            Texture text = mesh.getMaterial().getTexture();
-            if (text != null) {
-                gBufferShaderProgram.setUniform("numCols", text.getNumCols());
-                gBufferShaderProgram.setUniform("numRows", text.getNumRows());
+    private void renderQueuedMeshes(Matrix4f viewMatrix) {
+        Material batchMaterial = null;
+        int numMeshes = renderQueue.size();
+        for (int i = 0; i < numMeshes; i++) {
+            Mesh mesh = renderQueue.getMesh(i);
+            Material material = mesh.getMaterial();
+            boolean batched = meshArena != null && meshArena.contains(mesh);
+
+            // Meshes in the arena are drawn together until the material changes
+            if (meshArena != null && !meshArena.isEmpty() && (!batched || material != batchMaterial)) {
+                meshArena.render(transformation);
             }
 
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-                gBufferShaderProgram.setUniform("selectedNonInstanced", gameItem.isSelected() ? 1.0f : 0.0f);
-                Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                gBufferShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
-                if (gameItem instanceof AnimGameItem) {
-                    AnimGameItem animGameItem = (AnimGameItem) gameItem;
-                    AnimatedFrame frame = animGameItem.getCurrentAnimation().getCurrentFrame();
-                    gBufferShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
+            boolean instanced = batched || mesh instanceof InstancedMesh;
+            if (renderQueue.changeShaderVariant(instanced ? 1 : 0)) {
+                isInstancedUniform.set(instanced ? 1 : 0);
+            }
+
+            if (renderQueue.changeMaterial(material)) {
+                gBufferShaderProgram.setUniform("material", material);
+
+                Texture text = material.getTexture();
+                if (text != null) {
+                    numColsUniform.set(text.getNumCols());
+                    numRowsUniform.set(text.getNumRows());
                 }
             }
-            );
+            renderQueue.bindTextures(material);
+
+            if (batched) {
+                meshArena.queue(mesh, renderQueue.getGameItems(i));
+                batchMaterial = material;
+            } else if (instanced) {
+                renderInstancedMesh((InstancedMesh) mesh, renderQueue.getGameItems(i), viewMatrix);
+            } else {
+                renderNonInstancedMesh(mesh, renderQueue.getGameItems(i));
+            }
+        }
+        if (meshArena != null && !meshArena.isEmpty()) {
+            meshArena.render(transformation);
         }
+        renderQueue.unbindTextures();
     }
 
-    private void renderInstancedMeshes(Scene scene, Matrix4f viewMatrix) {
-        gBufferShaderProgram.setUniform("isInstanced", 1);
+    private void renderNonInstancedMesh(Mesh mesh, List<GameItem> gameItems) {
+        mesh.renderList(gameItems, nonInstancedItemRenderer, false);
+    }
 
-        // Render each mesh with the associated game Items
-        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
-        for (InstancedMesh mesh : mapMeshes.keySet()) {
-            Texture text = mesh.getMaterial().getTexture();
-            if (text != null) {
-                gBufferShaderProgram.setUniform("numCols", text.getNumCols());
-                gBufferShaderProgram.setUniform("numRows", text.getNumRows());
+    private void renderNonInstancedItem(GameItem gameItem) {
+        selectedNonInstancedUniform.set(gameItem.isSelected() ? 1.0f : 0.0f);
+        Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
+        modelNonInstancedMatrixUniform.set(modelMatrix);
+        if (gameItem instanceof AnimGameItem) {
+            AnimGameItem animGameItem = (AnimGameItem) gameItem;
+            AnimatedFrame frame = animGameItem.getCurrentAnimation().getCurrentFrame();
+            jointsMatrixUniform.set(frame.getJointMatrices());
+        }
+    }
+
+    private void renderInstancedMesh(InstancedMesh mesh, List<GameItem> gameItems, Matrix4f viewMatrix) {
+        filteredItems.clear();
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            GameItem gameItem = gameItems.get(i);
+            if (gameItem.isInsideFrustum()) {
+                filteredItems.add(gameItem);
             }
+        }
 
-            gBufferShaderProgram.setUniform("material", mesh.getMaterial());
+        mesh.renderListInstanced(filteredItems, false, transformation, viewMatrix, false);
+    }
 
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
-                }
-            }
+    public RenderQueue getRenderQueue() {
+        return renderQueue;
+    }
 
-            mesh.renderListInstanced(filteredItems, transformation, viewMatrix);
-        }
+    /**
+     * @return The arena shared by the static meshes, or null when static
+     * meshes are not batched
+     */
+    public MeshArena getMeshArena() {
+        return meshArena;
+    }
+
+    public FrustumCullingFilter getFrustumFilter() {
+        return frustumFilter;
     }
 
     public void cleanup() {
@@ -580,11 +934,35 @@ public class Renderer {
         if (pointLightShaderProgram != null) {
             pointLightShaderProgram.cleanup();
         }
+        if (lightVolumeShaderProgram != null) {
+            lightVolumeShaderProgram.cleanup();
+        }
+        if (lightStencilShaderProgram != null) {
+            lightStencilShaderProgram.cleanup();
+        }
+        if (lightVolume != null) {
+            lightVolume.cleanup();
+        }
+        if (clusterLightShaderProgram != null) {
+            clusterLightShaderProgram.cleanup();
+        }
+        if (lightClusterBuffer != null) {
+            lightClusterBuffer.cleanup();
+        }
         if (gBuffer != null) {
             gBuffer.cleanUp();
         }
+        if (frameUniforms != null) {
+            frameUniforms.cleanup();
+        }
+        if (meshArena != null) {
+            meshArena.cleanup();
+        }
         if (bufferPassMesh != null) {
             bufferPassMesh.cleanUp();
         }
+        if (profilerOverlay != null) {
+            profilerOverlay.cleanup();
+        }
     }
 }
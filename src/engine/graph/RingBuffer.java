@@ -0,0 +1,184 @@
+package engine.graph;
+
+import java.nio.FloatBuffer;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A vertex buffer used as a ring for data that changes every draw. Each
+ * upload is written to the next free region through an unsynchronized
+ * mapping, so the driver neither reallocates the storage nor waits for the
+ * previous draws. A fence is placed after each draw and a region is only
+ * reused once the fences of the draws that read from it have signaled.
+ *
+ * The buffer is sized to hold {@link #NUM_REGIONS} uploads of the largest
+ * size requested, and grows when a bigger upload arrives.
+ */
+public class RingBuffer {
+
+    public static final int NUM_REGIONS = 3;
+
+    private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+
+    private final int vboId;
+
+    private int size;
+
+    /**
+     * Offsets grow without wrapping, the position in the buffer is the
+     * offset modulo the size.
+     */
+    private long head;
+
+    private long lastOffset;
+
+    /**
+     * Where the data covered by the next fence starts.
+     */
+    private long fenceStart;
+
+    private long[] fences;
+
+    private long[] fenceStarts;
+
+    private long[] fenceEnds;
+
+    private int firstFence;
+
+    private int numFences;
+
+    public RingBuffer(int initialUploadSize) {
+        vboId = glGenBuffers();
+        fences = new long[NUM_REGIONS * 4];
+        fenceStarts = new long[NUM_REGIONS * 4];
+        fenceEnds = new long[NUM_REGIONS * 4];
+        allocate(Math.max(1, initialUploadSize) * NUM_REGIONS);
+    }
+
+    public int getVboId() {
+        return vboId;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Copies data, from position zero up to sizeBytes, into the next free
+     * region. The buffer is left bound to GL_ARRAY_BUFFER.
+     *
+     * @param data The data to upload
+     * @param sizeBytes Number of bytes to upload
+     * @return Offset in bytes of the region that holds the data
+     */
+    public int upload(FloatBuffer data, int sizeBytes) {
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        if (sizeBytes * NUM_REGIONS > size) {
+            allocate(Math.max(sizeBytes * NUM_REGIONS, size * 2));
+        }
+
+        long start = head;
+        if (start % size + sizeBytes > size) {
+            // Do not split the data, skip to the beginning of the buffer
+            start += size - start % size;
+        }
+        long end = start + sizeBytes;
+        // The previous lap used [start - size, end - size)
+        waitForFences(start - size, end - size);
+        head = end;
+
+        int offset = (int) (start % size);
+        long address = nglMapBufferRange(GL_ARRAY_BUFFER, offset, sizeBytes,
+                GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT);
+        if (address != MemoryUtil.NULL) {
+            MemoryUtil.memCopy(MemoryUtil.memAddress(data), address, sizeBytes);
+            glUnmapBuffer(GL_ARRAY_BUFFER);
+        } else {
+            // Mapping is not available, let the driver copy the data
+            data.limit(sizeBytes / 4);
+            glBufferSubData(GL_ARRAY_BUFFER, offset, data);
+            data.limit(data.capacity());
+        }
+        lastOffset = end;
+        return offset;
+    }
+
+    /**
+     * Must be called once the draws that read the last uploaded region have
+     * been issued.
+     */
+    public void fence() {
+        if (numFences == fences.length) {
+            growFences();
+        }
+        int pos = (firstFence + numFences) % fences.length;
+        fences[pos] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        fenceStarts[pos] = fenceStart;
+        fenceEnds[pos] = lastOffset;
+        fenceStart = lastOffset;
+        numFences++;
+    }
+
+    public void cleanup() {
+        deleteFences();
+        glDeleteBuffers(vboId);
+    }
+
+    private void allocate(int newSize) {
+        // New storage, nothing pending can touch it
+        deleteFences();
+        size = newSize;
+        head = 0;
+        lastOffset = 0;
+        fenceStart = 0;
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, size, GL_STREAM_DRAW);
+    }
+
+    /**
+     * Waits for the fences of the regions that overlap [start, end), the
+     * data about to be overwritten. Fences of older regions are dropped
+     * without waiting, as fences signal in order, and the ones of newer
+     * regions are left pending.
+     */
+    private void waitForFences(long start, long end) {
+        while (numFences > 0 && fenceStarts[firstFence] < end) {
+            long fence = fences[firstFence];
+            if (fenceEnds[firstFence] > start) {
+                int result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+                while (result == GL_TIMEOUT_EXPIRED) {
+                    result = glClientWaitSync(fence, 0, FENCE_TIMEOUT_NANOS);
+                }
+            }
+            glDeleteSync(fence);
+            firstFence = (firstFence + 1) % fences.length;
+            numFences--;
+        }
+    }
+
+    private void deleteFences() {
+        for (int i = 0; i < numFences; i++) {
+            glDeleteSync(fences[(firstFence + i) % fences.length]);
+        }
+        firstFence = 0;
+        numFences = 0;
+    }
+
+    private void growFences() {
+        long[] newFences = new long[fences.length * 2];
+        long[] newFenceStarts = new long[fences.length * 2];
+        long[] newFenceEnds = new long[fences.length * 2];
+        for (int i = 0; i < numFences; i++) {
+            int pos = (firstFence + i) % fences.length;
+            newFences[i] = fences[pos];
+            newFenceStarts[i] = fenceStarts[pos];
+            newFenceEnds[i] = fenceEnds[pos];
+        }
+        fences = newFences;
+        fenceStarts = newFenceStarts;
+        fenceEnds = newFenceEnds;
+        firstFence = 0;
+    }
+}
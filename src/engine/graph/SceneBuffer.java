@@ -13,6 +13,8 @@ public class SceneBuffer {
 
     private int textureId;
 
+    private int depthStencilBufferId;
+
     public SceneBuffer(Window window) throws Exception {
         // Create the buffer
         bufferId = glGenFramebuffers();
@@ -32,6 +34,13 @@ public class SceneBuffer {
         // Attach the the texture to the G-Buffer
         glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, textureId, 0);
 
+        // Depth and stencil of the light volumes. Same format as the G-Buffer depth, which is copied into it
+        depthStencilBufferId = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, depthStencilBufferId);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH32F_STENCIL8, window.getWidth(), window.getHeight());
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, depthStencilBufferId);
+
         // Unbind
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
@@ -48,5 +57,6 @@ public class SceneBuffer {
         glDeleteFramebuffers(bufferId);
 
         glDeleteTextures(textureId);
+        glDeleteRenderbuffers(depthStencilBufferId);
     }
 }
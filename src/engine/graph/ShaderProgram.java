@@ -4,14 +4,13 @@ import org.joml.Vector2f;
 import engine.graph.lights.SpotLight;
 import engine.graph.lights.PointLight;
 import engine.graph.lights.DirectionalLight;
-import java.nio.FloatBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 import static org.lwjgl.opengl.GL20.*;
-import org.lwjgl.system.MemoryStack;
+import static org.lwjgl.opengl.GL31.*;
 import engine.graph.weather.Fog;
 
 public class ShaderProgram {
@@ -24,7 +23,9 @@ public class ShaderProgram {
 
     private int geometryShaderId;
 
-    private final Map<String, Integer> uniforms;
+    private final Map<String, UniformHandle> uniforms;
+
+    private final Map<String, UniformHandle[]> structUniforms;
 
     public ShaderProgram() throws Exception {
         programId = glCreateProgram();
@@ -32,20 +33,37 @@ public class ShaderProgram {
             throw new Exception("Could not create Shader");
         }
         uniforms = new HashMap<>();
+        structUniforms = new HashMap<>();
     }
 
-    public void createUniform(String uniformName) throws Exception {
+    public UniformHandle createUniform(String uniformName) throws Exception {
         int uniformLocation = glGetUniformLocation(programId, uniformName);
         if (uniformLocation < 0) {
             throw new Exception("Could not find uniform:" + uniformName);
         }
-        uniforms.put(uniformName, uniformLocation);
+        UniformHandle uniform = new UniformHandle(uniformLocation);
+        uniforms.put(uniformName, uniform);
+        return uniform;
     }
 
-    public void createUniform(String uniformName, int size) throws Exception {
+    public UniformHandle[] createUniform(String uniformName, int size) throws Exception {
+        UniformHandle[] result = new UniformHandle[size];
         for (int i=0; i<size; i++) {
-            createUniform(uniformName + "[" + i + "]");
+            result[i] = createUniform(uniformName + "[" + i + "]");
+        }
+        return result;
+    }
+
+    public void bindUniformBlock(String blockName, int bindingPoint) throws Exception {
+        int blockIndex = glGetUniformBlockIndex(programId, blockName);
+        if (blockIndex == GL_INVALID_INDEX) {
+            throw new Exception("Could not find uniform block:" + blockName);
         }
+        glUniformBlockBinding(programId, blockIndex, bindingPoint);
+    }
+
+    public UniformHandle getUniform(String uniformName) {
+        return uniforms.get(uniformName);
     }
 
     public void createPointLightListUniform(String uniformName, int size) throws Exception {
@@ -55,12 +73,14 @@ public class ShaderProgram {
     }
 
     public void createPointLightUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".position");
-        createUniform(uniformName + ".intensity");
-        createUniform(uniformName + ".att.constant");
-        createUniform(uniformName + ".att.linear");
-        createUniform(uniformName + ".att.exponent");
+        structUniforms.put(uniformName, new UniformHandle[]{
+            createUniform(uniformName + ".colour"),
+            createUniform(uniformName + ".position"),
+            createUniform(uniformName + ".intensity"),
+            createUniform(uniformName + ".att.constant"),
+            createUniform(uniformName + ".att.linear"),
+            createUniform(uniformName + ".att.exponent")
+        });
     }
 
     public void createSpotLightListUniform(String uniformName, int size) throws Exception {
@@ -76,31 +96,33 @@ public class ShaderProgram {
     }
 
     public void createDirectionalLightUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".direction");
-        createUniform(uniformName + ".intensity");
+        structUniforms.put(uniformName, new UniformHandle[]{
+            createUniform(uniformName + ".colour"),
+            createUniform(uniformName + ".direction"),
+            createUniform(uniformName + ".intensity")
+        });
     }
 
     public void createMaterialUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".diffuse");
-        createUniform(uniformName + ".specular");
-        createUniform(uniformName + ".hasTexture");
-        createUniform(uniformName + ".hasNormalMap");
-        createUniform(uniformName + ".reflectance");
+        structUniforms.put(uniformName, new UniformHandle[]{
+            createUniform(uniformName + ".diffuse"),
+            createUniform(uniformName + ".specular"),
+            createUniform(uniformName + ".hasTexture"),
+            createUniform(uniformName + ".hasNormalMap"),
+            createUniform(uniformName + ".reflectance")
+        });
     }
 
     public void createFogUniform(String uniformName) throws Exception {
-        createUniform(uniformName + ".activeFog");
-        createUniform(uniformName + ".colour");
-        createUniform(uniformName + ".density");
+        structUniforms.put(uniformName, new UniformHandle[]{
+            createUniform(uniformName + ".activeFog"),
+            createUniform(uniformName + ".colour"),
+            createUniform(uniformName + ".density")
+        });
     }
 
     public void setUniform(String uniformName, Matrix4f value) {
-        // Dump the matrix into a float buffer
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            glUniformMatrix4fv(uniforms.get(uniformName), false,
-                               value.get(stack.mallocFloat(16)));
-        }
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, Matrix4f value, int index) {
@@ -108,22 +130,15 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, Matrix4f[] matrices) {
-        try (MemoryStack stack = MemoryStack.stackPush()) {
-            int length = matrices != null ? matrices.length : 0;
-            FloatBuffer fb = stack.mallocFloat(16 * length);
-            for (int i = 0; i < length; i++) {
-                matrices[i].get(16 * i, fb);
-            }
-            glUniformMatrix4fv(uniforms.get(uniformName), false, fb);
-        }
+        uniforms.get(uniformName).set(matrices);
     }
 
     public void setUniform(String uniformName, int value) {
-        glUniform1i(uniforms.get(uniformName), value);
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, float value) {
-        glUniform1f(uniforms.get(uniformName), value);
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, float value, int index) {
@@ -131,19 +146,19 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, float x, float y) {
-        glUniform2f(uniforms.get(uniformName), x, y);
+        uniforms.get(uniformName).set(x, y);
     }
 
     public void setUniform(String uniformName, Vector2f value) {
-        glUniform2f(uniforms.get(uniformName), value.x, value.y);
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, Vector3f value) {
-        glUniform3f(uniforms.get(uniformName), value.x, value.y, value.z);
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, Vector4f value) {
-        glUniform4f(uniforms.get(uniformName), value.x, value.y, value.z, value.w);
+        uniforms.get(uniformName).set(value);
     }
 
     public void setUniform(String uniformName, PointLight[] pointLights) {
@@ -158,13 +173,14 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, PointLight pointLight) {
-        setUniform(uniformName + ".colour", pointLight.getColor());
-        setUniform(uniformName + ".position", pointLight.getPosition());
-        setUniform(uniformName + ".intensity", pointLight.getIntensity());
+        UniformHandle[] fields = structUniforms.get(uniformName);
+        fields[0].set(pointLight.getColor());
+        fields[1].set(pointLight.getPosition());
+        fields[2].set(pointLight.getIntensity());
         PointLight.Attenuation att = pointLight.getAttenuation();
-        setUniform(uniformName + ".att.constant", att.getConstant());
-        setUniform(uniformName + ".att.linear", att.getLinear());
-        setUniform(uniformName + ".att.exponent", att.getExponent());
+        fields[3].set(att.getConstant());
+        fields[4].set(att.getLinear());
+        fields[5].set(att.getExponent());
     }
 
     public void setUniform(String uniformName, SpotLight[] spotLights) {
@@ -185,31 +201,56 @@ public class ShaderProgram {
     }
 
     public void setUniform(String uniformName, DirectionalLight dirLight) {
-        setUniform(uniformName + ".colour", dirLight.getColor());
-        setUniform(uniformName + ".direction", dirLight.getDirection());
-        setUniform(uniformName + ".intensity", dirLight.getIntensity());
+        UniformHandle[] fields = structUniforms.get(uniformName);
+        fields[0].set(dirLight.getColor());
+        fields[1].set(dirLight.getDirection());
+        fields[2].set(dirLight.getIntensity());
     }
 
     public void setUniform(String uniformName, Material material) {
-        setUniform(uniformName + ".diffuse", material.getDiffuseColour());
-        setUniform(uniformName + ".specular", material.getSpecularColour());
-        setUniform(uniformName + ".hasTexture", material.isTextured() ? 1 : 0);
-        setUniform(uniformName + ".hasNormalMap", material.hasNormalMap() ? 1 : 0);
-        setUniform(uniformName + ".reflectance", material.getReflectance());
+        UniformHandle[] fields = structUniforms.get(uniformName);
+        fields[0].set(material.getDiffuseColour());
+        fields[1].set(material.getSpecularColour());
+        fields[2].set(material.isTextured() ? 1 : 0);
+        fields[3].set(material.hasNormalMap() ? 1 : 0);
+        fields[4].set(material.getReflectance());
     }
 
     public void setUniform(String uniformName, Fog fog) {
-        setUniform(uniformName + ".activeFog", fog.isActive() ? 1 : 0);
-        setUniform(uniformName + ".colour", fog.getColour());
-        setUniform(uniformName + ".density", fog.getDensity());
+        UniformHandle[] fields = structUniforms.get(uniformName);
+        fields[0].set(fog.isActive() ? 1 : 0);
+        fields[1].set(fog.getColour());
+        fields[2].set(fog.getDensity());
+    }
+
+    public void createVertexShader(String shaderCode, String... defines) throws Exception {
+        vertexShaderId = createShader(addDefines(shaderCode, defines), GL_VERTEX_SHADER);
     }
 
-    public void createVertexShader(String shaderCode) throws Exception {
-        vertexShaderId = createShader(shaderCode, GL_VERTEX_SHADER);
+    public void createFragmentShader(String shaderCode, String... defines) throws Exception {
+        fragmentShaderId = createShader(addDefines(shaderCode, defines), GL_FRAGMENT_SHADER);
     }
 
-    public void createFragmentShader(String shaderCode) throws Exception {
-        fragmentShaderId = createShader(shaderCode, GL_FRAGMENT_SHADER);
+    /**
+     * Inserts a #define line for each name after the #version directive, which
+     * must stay the first statement of the shader.
+     */
+    private static String addDefines(String shaderCode, String... defines) {
+        if (defines.length == 0) {
+            return shaderCode;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String define : defines) {
+            sb.append("#define ").append(define).append('\n');
+        }
+        int pos = 0;
+        if (shaderCode.startsWith("#version")) {
+            pos = shaderCode.indexOf('\n') + 1;
+            if (pos == 0) {
+                return shaderCode + '\n' + sb;
+            }
+        }
+        return shaderCode.substring(0, pos) + sb + shaderCode.substring(pos);
     }
 
     protected int createShader(String shaderCode, int shaderType) throws Exception {
@@ -1,15 +1,12 @@
 package engine.graph;
 
-import java.nio.IntBuffer;
-
 import java.nio.ByteBuffer;
+import org.lwjgl.opengl.GL;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.*;
-import org.lwjgl.system.MemoryStack;
-import static org.lwjgl.system.MemoryStack.*;
-import engine.Utils;
+import engine.loaders.texture.TextureLoader;
 
 public class Texture {
 
@@ -23,6 +20,8 @@ public class Texture {
 
     private int numCols = 1;
 
+    private long sizeInBytes;
+
     /**
      * Creates an empty texture.
      *
@@ -35,6 +34,7 @@ public class Texture {
         this.id = glGenTextures();
         this.width = width;
         this.height = height;
+        this.sizeInBytes = (long) width * height * 4;
         glBindTexture(GL_TEXTURE_2D, this.id);
         glTexImage2D(GL_TEXTURE_2D, 0, GL_DEPTH_COMPONENT, this.width, this.height, 0, pixelFormat, GL_FLOAT, (ByteBuffer) null);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
@@ -49,21 +49,39 @@ public class Texture {
         this.numRows = numRows;
     }
 
+    /**
+     * Loads an image file through {@link TextureLoader}, which keeps a copy
+     * with the mipmaps ready to upload next to it.
+     */
     public Texture(String fileName) throws Exception {
-        this(Utils.ioResourceToByteBuffer(fileName, 1024));
+        this(TextureLoader.loadTextureData(fileName), true);
     }
 
-    public Texture(ByteBuffer imageData) {
-        try (MemoryStack stack = stackPush()) {
-            IntBuffer w = stack.mallocInt(1);
-            IntBuffer h = stack.mallocInt(1);
-            IntBuffer avChannels = stack.mallocInt(1);
+    public Texture(ByteBuffer imageData) throws Exception {
+        this(TextureData.decode(imageData), true);
+    }
 
-            // Decode texture image into a byte buffer
-            ByteBuffer decodedImage = stbi_load_from_memory(imageData, w, h, avChannels, 4);
+    public Texture(TextureData data) {
+        this(data, false);
+    }
 
-            this.width = w.get();
-            this.height = h.get();
+    public Texture(TextureData data, int numCols, int numRows) {
+        this(data, false);
+        this.numCols = numCols;
+        this.numRows = numRows;
+    }
+
+    /**
+     * Creates a texture from RGBA pixels, one byte per component.
+     */
+    public Texture(ByteBuffer pixels, int width, int height) {
+        this(new TextureData(width, height, GL_RGBA8, new ByteBuffer[] {pixels}, null), false);
+    }
+
+    private Texture(TextureData data, boolean release) {
+        try {
+            this.width = data.getWidth();
+            this.height = data.getHeight();
 
             // Create a new OpenGL texture 
             this.id = glGenTextures();
@@ -75,12 +93,37 @@ public class Texture {
 
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
             glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-            // Upload the texture data
-            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, this.width, this.height, 0, GL_RGBA, GL_UNSIGNED_BYTE, decodedImage);
-            // Generate Mip Map
+            upload(data);
+        } finally {
+            if (release) {
+                data.close();
+            }
+        }
+    }
+
+    private void upload(TextureData data) {
+        int numLevels = data.getNumLevels();
+        if (data.isCompressed() && !GL.getCapabilities().GL_EXT_texture_compression_s3tc) {
+            throw new UnsupportedOperationException("S3TC compressed textures are not supported");
+        }
+        for (int level = 0; level < numLevels; level++) {
+            sizeInBytes += data.getLevel(level).remaining();
+            int levelWidth = Math.max(1, width >> level);
+            int levelHeight = Math.max(1, height >> level);
+            if (data.isCompressed()) {
+                glCompressedTexImage2D(GL_TEXTURE_2D, level, data.getInternalFormat(), levelWidth, levelHeight, 0,
+                        data.getLevel(level));
+            } else {
+                glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA, levelWidth, levelHeight, 0, GL_RGBA, GL_UNSIGNED_BYTE,
+                        data.getLevel(level));
+            }
+        }
+        if (numLevels > 1) {
+            glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, numLevels - 1);
+        } else if (!data.isCompressed()) {
+            // Generate Mip Map, a third of the base level
             glGenerateMipmap(GL_TEXTURE_2D);
-            
-            stbi_image_free(decodedImage);
+            sizeInBytes += sizeInBytes / 3;
         }
     }
 
@@ -100,6 +143,13 @@ public class Texture {
         return this.height;
     }
 
+    /**
+     * @return The memory used by the texture and its mipmaps
+     */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
     public void bind() {
         glBindTexture(GL_TEXTURE_2D, id);
     }
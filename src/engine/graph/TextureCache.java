@@ -0,0 +1,223 @@
+package engine.graph;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Textures loaded from files, shared by everything that uses the same file.
+ *
+ * Each texture counts its references: {@link #acquire} and {@link #retain}
+ * add one and {@link #release} removes one. A {@link Material} owns one
+ * reference to its texture. A texture with no references stays in the cache,
+ * so loading it again is free, until the textures use more memory than the
+ * budget. Then the least recently used of them are deleted.
+ *
+ * The cache deletes GL objects, so it must only be used on the GL thread.
+ */
+public class TextureCache {
+
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    private static TextureCache INSTANCE;
+
+    /**
+     * Entries by key, from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final Map<Texture, Entry> entriesByTexture;
+
+    private long budget;
+
+    private long usedBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private TextureCache() {
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        entriesByTexture = new IdentityHashMap<>();
+        budget = DEFAULT_BUDGET;
+    }
+
+    public static synchronized TextureCache getInstance() {
+        if ( INSTANCE == null ) {
+            INSTANCE = new TextureCache();
+        }
+        return INSTANCE;
+    }
+
+    public Texture acquire(String path) throws Exception {
+        return acquire(path, 1, 1);
+    }
+
+    /**
+     * Returns a reference to the texture of a file, loading it if it is not
+     * cached.
+     */
+    public Texture acquire(String path, int numCols, int numRows) throws Exception {
+        Texture texture = acquireIfPresent(path, numCols, numRows);
+        if (texture == null) {
+            misses++;
+            texture = new Texture(path, numCols, numRows);
+            addEntry(getKey(path, numCols, numRows), texture).refCount = 1;
+            evict();
+        }
+        return texture;
+    }
+
+    /**
+     * @return A reference to a cached texture, or null if it is not cached
+     */
+    public Texture acquireIfPresent(String path, int numCols, int numRows) {
+        Entry entry = entries.get(getKey(path, numCols, numRows));
+        if (entry == null) {
+            return null;
+        }
+        hits++;
+        entry.refCount++;
+        return entry.texture;
+    }
+
+    /**
+     * Adds a texture loaded elsewhere, with no references. If the file is
+     * already cached the new texture is deleted and the cached one returned.
+     */
+    public Texture add(String path, int numCols, int numRows, Texture texture) {
+        String key = getKey(path, numCols, numRows);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+            texture.cleanup();
+            return entry.texture;
+        }
+        misses++;
+        addEntry(key, texture);
+        return texture;
+    }
+
+    /**
+     * Adds a reference to a texture.
+     *
+     * @return False if the texture is not cached
+     */
+    public boolean retain(Texture texture) {
+        Entry entry = entriesByTexture.get(texture);
+        if (entry == null) {
+            return false;
+        }
+        entry.refCount++;
+        return true;
+    }
+
+    /**
+     * Removes a reference to a texture. Textures without references may be
+     * deleted to stay within the budget.
+     *
+     * @return False if the texture is not cached
+     */
+    public boolean release(Texture texture) {
+        Entry entry = entriesByTexture.get(texture);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.refCount > 0) {
+            entry.refCount--;
+        }
+        if (entry.refCount == 0) {
+            evict();
+        }
+        return true;
+    }
+
+    public boolean contains(Texture texture) {
+        return entriesByTexture.containsKey(texture);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Sets the memory allowed for the textures. Textures in use are never
+     * deleted, so the cache can use more than this if they need it.
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public int getNumTextures() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Deletes every texture, including the ones in use.
+     */
+    public void cleanup() {
+        for (Entry entry : entries.values()) {
+            entry.texture.cleanup();
+        }
+        entries.clear();
+        entriesByTexture.clear();
+        usedBytes = 0;
+    }
+
+    private Entry addEntry(String key, Texture texture) {
+        Entry entry = new Entry(texture);
+        entries.put(key, entry);
+        entriesByTexture.put(texture, entry);
+        usedBytes += texture.getSizeInBytes();
+        return entry;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (usedBytes > budget && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.refCount == 0) {
+                it.remove();
+                entriesByTexture.remove(entry.texture);
+                usedBytes -= entry.texture.getSizeInBytes();
+                entry.texture.cleanup();
+                evictions++;
+            }
+        }
+    }
+
+    private static String getKey(String path, int numCols, int numRows) {
+        return numCols == 1 && numRows == 1 ? path : path + "#" + numCols + "x" + numRows;
+    }
+
+    private static class Entry {
+
+        private final Texture texture;
+
+        private int refCount;
+
+        Entry(Texture texture) {
+            this.texture = texture;
+        }
+    }
+}
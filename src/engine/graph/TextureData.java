@@ -0,0 +1,107 @@
+package engine.graph;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.stb.STBImage.*;
+import org.lwjgl.system.MemoryStack;
+
+/**
+ * Pixels of a texture that have been read but not uploaded yet. Reading
+ * does not need a GL context, so it can be done on a loader thread and the
+ * result passed to {@link Texture#Texture(TextureData)} on the GL thread.
+ *
+ * The data has one or more mipmap levels, halving the size each time, in
+ * RGBA8 or in one of the S3TC formats. With a single RGBA8 level the mipmaps
+ * are generated when the texture is uploaded.
+ */
+public class TextureData implements AutoCloseable {
+
+    private final int width;
+
+    private final int height;
+
+    private final int internalFormat;
+
+    private final ByteBuffer[] levels;
+
+    private Runnable release;
+
+    /**
+     * @param internalFormat GL_RGBA8, GL_COMPRESSED_RGB_S3TC_DXT1_EXT or
+     * GL_COMPRESSED_RGBA_S3TC_DXT5_EXT
+     * @param levels Data of each mipmap level, starting with the largest
+     * @param release Frees the memory of the levels, or null if they are not
+     * owned by the data
+     */
+    public TextureData(int width, int height, int internalFormat, ByteBuffer[] levels, Runnable release) {
+        this.width = width;
+        this.height = height;
+        this.internalFormat = internalFormat;
+        this.levels = levels;
+        this.release = release;
+    }
+
+    /**
+     * Decodes an image file held in memory, such as a PNG or a JPG.
+     */
+    public static TextureData decode(ByteBuffer imageData) throws Exception {
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer avChannels = stack.mallocInt(1);
+
+            // Decode texture image into a byte buffer
+            ByteBuffer decodedImage = stbi_load_from_memory(imageData, w, h, avChannels, 4);
+            if (decodedImage == null) {
+                throw new Exception(stbi_failure_reason());
+            }
+            return new TextureData(w.get(), h.get(), GL_RGBA8, new ByteBuffer[] {decodedImage},
+                    () -> stbi_image_free(decodedImage));
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    public boolean isCompressed() {
+        return internalFormat == GL_COMPRESSED_RGB_S3TC_DXT1_EXT || internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+    }
+
+    public int getNumLevels() {
+        return levels.length;
+    }
+
+    /**
+     * @return The data of a mipmap level. For RGBA8 four bytes per pixel,
+     * row by row, and for S3TC the blocks of 4x4 pixels.
+     */
+    public ByteBuffer getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * @return The pixels of the largest level
+     */
+    public ByteBuffer getPixels() {
+        return levels[0];
+    }
+
+    @Override
+    public void close() {
+        if (release != null) {
+            release.run();
+            release = null;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package engine.graph;
 
 import org.joml.Matrix4f;
-import org.joml.Quaternionf;
 import org.joml.Vector3f;
 import engine.items.GameItem;
 
@@ -52,11 +51,7 @@ public class Transformation {
     }
     
     public Matrix4f buildModelMatrix(GameItem gameItem) {
-        Quaternionf rotation = gameItem.getRotation();
-        return modelMatrix.translationRotateScale(
-                gameItem.getPosition().x, gameItem.getPosition().y, gameItem.getPosition().z,
-                rotation.x, rotation.y, rotation.z, rotation.w,
-                gameItem.getScale(), gameItem.getScale(), gameItem.getScale());
+        return gameItem.getModelMatrix(modelMatrix);
     }
 
     public Matrix4f buildModelViewMatrix(GameItem gameItem, Matrix4f viewMatrix) {
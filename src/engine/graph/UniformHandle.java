@@ -0,0 +1,181 @@
+package engine.graph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import static org.lwjgl.opengl.GL20.*;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * A uniform whose location has been resolved once. It keeps the last value
+ * uploaded so setting the same value again does not reach the driver. Values
+ * are stored per shader program, so the cache stays valid while other
+ * programs are bound.
+ */
+public class UniformHandle {
+
+    private static final int MATRIX_SIZE_FLOATS = 16;
+
+    private final int location;
+
+    private final float[] cachedValue;
+
+    private final float[] tmpValue;
+
+    private int cachedInt;
+
+    private boolean valid;
+
+    public UniformHandle(int location) {
+        this.location = location;
+        cachedValue = new float[MATRIX_SIZE_FLOATS];
+        tmpValue = new float[MATRIX_SIZE_FLOATS];
+        valid = false;
+    }
+
+    public int getLocation() {
+        return location;
+    }
+
+    /**
+     * Forces the next set call to upload its value.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    public boolean update(int value) {
+        if (valid && cachedInt == value) {
+            return false;
+        }
+        cachedInt = value;
+        valid = true;
+        return true;
+    }
+
+    public boolean update(float x) {
+        if (valid && cachedValue[0] == x) {
+            return false;
+        }
+        cachedValue[0] = x;
+        valid = true;
+        return true;
+    }
+
+    public boolean update(float x, float y) {
+        if (valid && cachedValue[0] == x && cachedValue[1] == y) {
+            return false;
+        }
+        cachedValue[0] = x;
+        cachedValue[1] = y;
+        valid = true;
+        return true;
+    }
+
+    public boolean update(float x, float y, float z) {
+        if (valid && cachedValue[0] == x && cachedValue[1] == y && cachedValue[2] == z) {
+            return false;
+        }
+        cachedValue[0] = x;
+        cachedValue[1] = y;
+        cachedValue[2] = z;
+        valid = true;
+        return true;
+    }
+
+    public boolean update(float x, float y, float z, float w) {
+        if (valid && cachedValue[0] == x && cachedValue[1] == y && cachedValue[2] == z && cachedValue[3] == w) {
+            return false;
+        }
+        cachedValue[0] = x;
+        cachedValue[1] = y;
+        cachedValue[2] = z;
+        cachedValue[3] = w;
+        valid = true;
+        return true;
+    }
+
+    public boolean update(Matrix4f value) {
+        value.get(tmpValue);
+        boolean changed = !valid;
+        for (int i = 0; i < MATRIX_SIZE_FLOATS && !changed; i++) {
+            changed = cachedValue[i] != tmpValue[i];
+        }
+        if (changed) {
+            System.arraycopy(tmpValue, 0, cachedValue, 0, MATRIX_SIZE_FLOATS);
+            valid = true;
+        }
+        return changed;
+    }
+
+    public void set(int value) {
+        if (update(value)) {
+            glUniform1i(location, value);
+        }
+    }
+
+    public void set(float value) {
+        if (update(value)) {
+            glUniform1f(location, value);
+        }
+    }
+
+    public void set(float x, float y) {
+        if (update(x, y)) {
+            glUniform2f(location, x, y);
+        }
+    }
+
+    public void set(Vector2f value) {
+        set(value.x, value.y);
+    }
+
+    public void set(float x, float y, float z) {
+        if (update(x, y, z)) {
+            glUniform3f(location, x, y, z);
+        }
+    }
+
+    public void set(Vector3f value) {
+        set(value.x, value.y, value.z);
+    }
+
+    public void set(Vector4f value) {
+        if (update(value.x, value.y, value.z, value.w)) {
+            glUniform4f(location, value.x, value.y, value.z, value.w);
+        }
+    }
+
+    public void set(Matrix4f value) {
+        if (update(value)) {
+            // Through an address, a buffer would be allocated on the heap
+            try (MemoryStack stack = MemoryStack.stackPush()) {
+                long address = stack.nmalloc(4, MATRIX_SIZE_FLOATS * 4);
+                for (int i = 0; i < MATRIX_SIZE_FLOATS; i++) {
+                    MemoryUtil.memPutFloat(address + i * 4, cachedValue[i]);
+                }
+                nglUniformMatrix4fv(location, 1, false, address);
+            }
+        }
+    }
+
+    /**
+     * Uploads an array of matrices. Arrays are not cached, comparing them
+     * would cost as much as uploading them.
+     *
+     * @param matrices The matrices to upload
+     */
+    public void set(Matrix4f[] matrices) {
+        valid = false;
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            int length = matrices != null ? matrices.length : 0;
+            long address = stack.nmalloc(4, MATRIX_SIZE_FLOATS * 4 * length);
+            for (int i = 0; i < length; i++) {
+                matrices[i].getToAddress(address + MATRIX_SIZE_FLOATS * 4 * i);
+            }
+            nglUniformMatrix4fv(location, length, false, address);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package engine.graph;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.lwjgl.opengl.GL15.*;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Static vertex and index buffers shared by the meshes whose data is the
+ * same, byte for byte. Models that are variations of each other, such as the
+ * poses of a character, often have the same indices, and copies of a model
+ * loaded from different files have the same vertices too.
+ *
+ * Buffers are found by a 64 bit hash of their contents, and a match is
+ * confirmed by comparing the data byte for byte against a copy kept in
+ * native memory. The copy costs as much memory as the buffer, but without
+ * it a hash collision would render the geometry of another mesh. Each mesh
+ * holds a reference to its buffers, and a buffer and its copy are deleted
+ * when its last mesh releases it. Must only be used on the GL thread.
+ */
+public class VertexBufferCache {
+
+    private static final long HASH_SEED = 0x9E3779B97F4A7C15L;
+
+    private static VertexBufferCache INSTANCE;
+
+    private final Map<Long, List<Entry>> entriesByHash;
+
+    private final Map<Integer, Entry> entriesById;
+
+    private long usedBytes;
+
+    private long sharedBytes;
+
+    private VertexBufferCache() {
+        entriesByHash = new HashMap<>();
+        entriesById = new HashMap<>();
+    }
+
+    public static synchronized VertexBufferCache getInstance() {
+        if ( INSTANCE == null ) {
+            INSTANCE = new VertexBufferCache();
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a reference to a buffer holding some data, creating it if
+     * there is none. The buffer is left bound to the target.
+     *
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER
+     * @param data The data, from its position
+     * @param bytes Size of the data in bytes
+     * @return The id of the buffer
+     */
+    public int acquire(int target, ByteBuffer data, int bytes) {
+        long address = MemoryUtil.memAddress(data);
+        long hash = hash(address, bytes, HASH_SEED);
+        List<Entry> candidates = entriesByHash.get(hash);
+        if (candidates != null) {
+            for (Entry entry : candidates) {
+                if (entry.size == bytes && equals(entry.copy, address, bytes)) {
+                    entry.refCount++;
+                    sharedBytes += bytes;
+                    glBindBuffer(target, entry.id);
+                    return entry.id;
+                }
+            }
+        } else {
+            candidates = new ArrayList<>(1);
+            entriesByHash.put(hash, candidates);
+        }
+
+        long copy = MemoryUtil.nmemAlloc(Math.max(1, bytes));
+        MemoryUtil.memCopy(address, copy, bytes);
+        Entry entry = new Entry(glGenBuffers(), hash, copy, bytes);
+        glBindBuffer(target, entry.id);
+        nglBufferData(target, bytes, address, GL_STATIC_DRAW);
+        entry.refCount = 1;
+        candidates.add(entry);
+        entriesById.put(entry.id, entry);
+        usedBytes += bytes;
+        return entry.id;
+    }
+
+    /**
+     * Removes a reference to a buffer, deleting it if it was the last one.
+     *
+     * @return False if the buffer does not come from the cache
+     */
+    public boolean release(int id) {
+        Entry entry = entriesById.get(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.refCount--;
+        if (entry.refCount > 0) {
+            sharedBytes -= entry.size;
+        } else {
+            entriesById.remove(id);
+            List<Entry> candidates = entriesByHash.get(entry.hash);
+            candidates.remove(entry);
+            if (candidates.isEmpty()) {
+                entriesByHash.remove(entry.hash);
+            }
+            usedBytes -= entry.size;
+            MemoryUtil.nmemFree(entry.copy);
+            glDeleteBuffers(id);
+        }
+        return true;
+    }
+
+    public int getNumBuffers() {
+        return entriesById.size();
+    }
+
+    /**
+     * @return The memory used by the buffers
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return The memory that the buffers would use if they were not shared
+     * minus the memory they use
+     */
+    public long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /**
+     * Deletes every buffer, including the ones in use.
+     */
+    public void cleanup() {
+        for (Entry entry : entriesById.values()) {
+            MemoryUtil.nmemFree(entry.copy);
+            glDeleteBuffers(entry.id);
+        }
+        entriesById.clear();
+        entriesByHash.clear();
+        usedBytes = 0;
+        sharedBytes = 0;
+    }
+
+    /**
+     * 64 bit hash of some memory, eight bytes at a time.
+     */
+    private static long hash(long address, int bytes, long seed) {
+        long hash = seed ^ bytes;
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) {
+            hash = mix(hash ^ MemoryUtil.memGetLong(address + i), seed);
+        }
+        for (; i < bytes; i++) {
+            hash = mix(hash ^ MemoryUtil.memGetByte(address + i), seed);
+        }
+        return hash;
+    }
+
+    private static boolean equals(long address, long otherAddress, int bytes) {
+        int i = 0;
+        for (; i + 8 <= bytes; i += 8) {
+            if (MemoryUtil.memGetLong(address + i) != MemoryUtil.memGetLong(otherAddress + i)) {
+                return false;
+            }
+        }
+        for (; i < bytes; i++) {
+            if (MemoryUtil.memGetByte(address + i) != MemoryUtil.memGetByte(otherAddress + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long value, long seed) {
+        value = (value ^ (value >>> 31)) * (seed | 1);
+        return value ^ (value >>> 29);
+    }
+
+    private static class Entry {
+
+        private final int id;
+
+        private final long hash;
+
+        /**
+         * Address of the copy of the data.
+         */
+        private final long copy;
+
+        private final int size;
+
+        private int refCount;
+
+        Entry(int id, long hash, long copy, int size) {
+            this.id = id;
+            this.hash = hash;
+            this.copy = copy;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package engine.graph;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.GL_INT_2_10_10_10_REV;
+import org.lwjgl.system.MemoryUtil;
+
+/**
+ * Format of the vertices of a mesh, stored interleaved in a single buffer:
+ *
+ * <ul>
+ * <li>Position (attribute 0): three floats.</li>
+ * <li>Texture coordinates (1): two half floats, or two floats when they go
+ * beyond the range where half floats are precise enough.</li>
+ * <li>Normal (2): packed in GL_INT_2_10_10_10_REV.</li>
+ * <li>Joint weights (3): four normalized unsigned shorts, only for skinned
+ * meshes.</li>
+ * <li>Joint indices (4): four unsigned bytes read as integers, only for
+ * skinned meshes.</li>
+ * </ul>
+ *
+ * A static vertex takes 20 bytes and a skinned one 32, where separate float
+ * buffers with all the attributes took 64.
+ */
+public class VertexLayout {
+
+    /**
+     * Static vertices with half float texture coordinates.
+     */
+    public static final VertexLayout COMPACT = new VertexLayout(true, false);
+
+    /**
+     * Static vertices with float texture coordinates, for textures that are
+     * repeated many times or need exact texel positions such as fonts.
+     */
+    public static final VertexLayout FLOAT_TEXT_COORDS = new VertexLayout(false, false);
+
+    /**
+     * Largest texture coordinate stored as a half float, which keeps a
+     * precision of 1/1024 or better.
+     */
+    public static final float MAX_HALF_TEXT_COORD = 2.0f;
+
+    /**
+     * Largest joint index that fits in a skinned vertex.
+     */
+    public static final int MAX_JOINT_INDEX = 255;
+
+    private static final int POSITION_SIZE_BYTES = 3 * 4;
+
+    private static final int NORMAL_SIZE_BYTES = 4;
+
+    private static final int WEIGHTS_SIZE_BYTES = Mesh.MAX_WEIGHTS * 2;
+
+    private static final int JOINT_INDICES_SIZE_BYTES = Mesh.MAX_WEIGHTS;
+
+    private final boolean halfTextCoords;
+
+    private final boolean skinned;
+
+    private final int textCoordsOffset;
+
+    private final int normalOffset;
+
+    private final int weightsOffset;
+
+    private final int jointIndicesOffset;
+
+    private final int stride;
+
+    public VertexLayout(boolean halfTextCoords, boolean skinned) {
+        this.halfTextCoords = halfTextCoords;
+        this.skinned = skinned;
+        textCoordsOffset = POSITION_SIZE_BYTES;
+        normalOffset = textCoordsOffset + (halfTextCoords ? 2 * 2 : 2 * 4);
+        weightsOffset = normalOffset + NORMAL_SIZE_BYTES;
+        jointIndicesOffset = weightsOffset + WEIGHTS_SIZE_BYTES;
+        stride = skinned ? jointIndicesOffset + JOINT_INDICES_SIZE_BYTES : weightsOffset;
+    }
+
+    /**
+     * Chooses the most compact layout for some vertex data.
+     *
+     * @param textCoords The texture coordinates, may be empty
+     * @param skinned Whether the vertices have joint weights and indices
+     */
+    public static VertexLayout forData(FloatBuffer textCoords, boolean skinned) {
+        boolean halfTextCoords = true;
+        int start = textCoords.position();
+        int end = textCoords.limit();
+        for (int i = start; i < end; i++) {
+            if (Math.abs(textCoords.get(i)) > MAX_HALF_TEXT_COORD) {
+                halfTextCoords = false;
+                break;
+            }
+        }
+        return new VertexLayout(halfTextCoords, skinned);
+    }
+
+    public boolean isHalfTextCoords() {
+        return halfTextCoords;
+    }
+
+    public boolean isSkinned() {
+        return skinned;
+    }
+
+    /**
+     * @return Size of a vertex in bytes
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Enables the attributes of the bound VAO and points them to the bound
+     * array buffer. The joint attributes of static layouts stay disabled.
+     */
+    public void setupAttributes() {
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, stride, 0);
+        glEnableVertexAttribArray(1);
+        glVertexAttribPointer(1, 2, halfTextCoords ? GL_HALF_FLOAT : GL_FLOAT, false, stride, textCoordsOffset);
+        glEnableVertexAttribArray(2);
+        glVertexAttribPointer(2, 4, GL_INT_2_10_10_10_REV, true, stride, normalOffset);
+        if (skinned) {
+            glEnableVertexAttribArray(3);
+            glVertexAttribPointer(3, 4, GL_UNSIGNED_SHORT, true, stride, weightsOffset);
+            glEnableVertexAttribArray(4);
+            glVertexAttribIPointer(4, 4, GL_UNSIGNED_BYTE, stride, jointIndicesOffset);
+        }
+    }
+
+    /**
+     * Interleaves and packs the vertices into a new native buffer, which must
+     * be released with MemoryUtil.memFree. The buffers are read from their
+     * positions and do not need to be direct.
+     *
+     * @param textCoords Texture coordinates, or empty for zeros
+     * @param normals Normals, or empty for zeros
+     * @param jointIndices Joint indices, ignored unless the layout is skinned
+     * @param weights Joint weights, ignored unless the layout is skinned
+     */
+    public ByteBuffer pack(FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+            IntBuffer jointIndices, FloatBuffer weights) {
+        ByteBuffer dest = MemoryUtil.memCalloc(positions.remaining() / 3 * stride);
+        pack(dest, positions, textCoords, normals, jointIndices, weights);
+        return dest;
+    }
+
+    /**
+     * Interleaves and packs the vertices into a buffer, from its index zero.
+     * The buffer must be zero filled and large enough for the vertices.
+     */
+    public void pack(ByteBuffer dest, FloatBuffer positions, FloatBuffer textCoords, FloatBuffer normals,
+            IntBuffer jointIndices, FloatBuffer weights) {
+        int numVertices = positions.remaining() / 3;
+        boolean hasTextCoords = textCoords.hasRemaining();
+        boolean hasNormals = normals.hasRemaining();
+        dest.order(ByteOrder.nativeOrder());
+        int pos = positions.position();
+        int textPos = textCoords.position();
+        int normalPos = normals.position();
+        for (int i = 0; i < numVertices; i++) {
+            int base = i * stride;
+            dest.putFloat(base, positions.get(pos + i * 3));
+            dest.putFloat(base + 4, positions.get(pos + i * 3 + 1));
+            dest.putFloat(base + 8, positions.get(pos + i * 3 + 2));
+
+            if (hasTextCoords) {
+                float u = textCoords.get(textPos + i * 2);
+                float v = textCoords.get(textPos + i * 2 + 1);
+                if (halfTextCoords) {
+                    dest.putShort(base + textCoordsOffset, toHalf(u));
+                    dest.putShort(base + textCoordsOffset + 2, toHalf(v));
+                } else {
+                    dest.putFloat(base + textCoordsOffset, u);
+                    dest.putFloat(base + textCoordsOffset + 4, v);
+                }
+            }
+
+            if (hasNormals) {
+                dest.putInt(base + normalOffset, packNormal(normals.get(normalPos + i * 3),
+                        normals.get(normalPos + i * 3 + 1), normals.get(normalPos + i * 3 + 2)));
+            }
+        }
+        if (skinned) {
+            packSkinning(dest, numVertices, jointIndices, weights);
+        }
+    }
+
+    private void packSkinning(ByteBuffer dest, int numVertices, IntBuffer jointIndices, FloatBuffer weights) {
+        int jointPos = jointIndices.position();
+        int weightPos = weights.position();
+        for (int i = 0; i < numVertices; i++) {
+            int base = i * stride;
+            for (int j = 0; j < Mesh.MAX_WEIGHTS; j++) {
+                float weight = Math.max(0, Math.min(1, weights.get(weightPos + i * Mesh.MAX_WEIGHTS + j)));
+                dest.putShort(base + weightsOffset + j * 2, (short) Math.round(weight * 0xFFFF));
+                int jointIndex = jointIndices.get(jointPos + i * Mesh.MAX_WEIGHTS + j);
+                if (jointIndex < 0 || jointIndex > MAX_JOINT_INDEX) {
+                    throw new IllegalArgumentException("Joint index out of range: " + jointIndex);
+                }
+                dest.put(base + jointIndicesOffset + j, (byte) jointIndex);
+            }
+        }
+    }
+
+    /**
+     * Packs a unit vector as signed normalized 10 bit components, with x in
+     * the lowest bits.
+     */
+    static int packNormal(float x, float y, float z) {
+        return packSnorm10(x) | packSnorm10(y) << 10 | packSnorm10(z) << 20;
+    }
+
+    private static int packSnorm10(float value) {
+        return Math.round(Math.max(-1, Math.min(1, value)) * 511) & 0x3FF;
+    }
+
+    /**
+     * Converts a float to a half float, rounding to the nearest.
+     */
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent >= 0x1F) {
+            // Overflow, infinity and NaN
+            boolean nan = ((bits >>> 23) & 0xFF) == 0xFF && mantissa != 0;
+            return (short) (sign | 0x7C00 | (nan ? 0x200 : 0));
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal, with the implicit bit made explicit
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (rest > midpoint || (rest == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = exponent << 10 | mantissa >> 13;
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // Carries into the exponent when the mantissa is full
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof VertexLayout)) {
+            return false;
+        }
+        VertexLayout other = (VertexLayout) obj;
+        return halfTextCoords == other.halfTextCoords && skinned == other.skinned;
+    }
+
+    @Override
+    public int hashCode() {
+        return (halfTextCoords ? 1 : 0) | (skinned ? 2 : 0);
+    }
+}
@@ -0,0 +1,284 @@
+package engine.graph.lights;
+
+/**
+ * Bins point lights into the clusters of the view frustum. The screen is
+ * split in tiles and the depth range in slices of exponential size, so the
+ * clusters keep a similar shape at every distance. Each light is added to
+ * all the clusters touched by the box around its sphere of influence.
+ *
+ * The result is a list of light indices per cluster, stored one after the
+ * other in a single array, and the offset and count of each cluster in that
+ * array. It only depends on the projection and the lights, it does not
+ * use OpenGL.
+ */
+public class LightClusterGrid {
+
+    private static final int LIGHT_SIZE = 4;
+
+    private static final int RANGE_SIZE = 6;
+
+    private final int tilesX;
+
+    private final int tilesY;
+
+    private final int slices;
+
+    private float zNear;
+
+    private float zFar;
+
+    private float logDepthRatio;
+
+    private float projScaleX;
+
+    private float projScaleY;
+
+    private float[] lights;
+
+    private int[] lightRanges;
+
+    private int numLights;
+
+    private final int[] clusterOffsets;
+
+    private final int[] clusterCounts;
+
+    private int[] lightIndices;
+
+    private int numIndices;
+
+    public LightClusterGrid(int tilesX, int tilesY, int slices) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.slices = slices;
+        int numClusters = tilesX * tilesY * slices;
+        clusterOffsets = new int[numClusters];
+        clusterCounts = new int[numClusters];
+        lights = new float[16 * LIGHT_SIZE];
+        lightRanges = new int[16 * RANGE_SIZE];
+        lightIndices = new int[256];
+    }
+
+    /**
+     * Sets up the perspective projection of the view.
+     *
+     * @param fov Vertical field of view in radians
+     * @param aspectRatio Width divided by height
+     * @param zNear Distance to the near plane
+     * @param zFar Distance to the far plane
+     */
+    public void setProjection(float fov, float aspectRatio, float zNear, float zFar) {
+        this.zNear = zNear;
+        this.zFar = zFar;
+        logDepthRatio = (float) Math.log(zFar / zNear);
+        projScaleY = 1.0f / (float) Math.tan(fov * 0.5f);
+        projScaleX = projScaleY / aspectRatio;
+    }
+
+    public void clear() {
+        numLights = 0;
+        numIndices = 0;
+    }
+
+    /**
+     * Adds a light in view coordinates.
+     *
+     * @return The index of the light, used in the cluster lists
+     */
+    public int addLight(float x, float y, float z, float radius) {
+        if ((numLights + 1) * LIGHT_SIZE > lights.length) {
+            float[] newLights = new float[lights.length * 2];
+            System.arraycopy(lights, 0, newLights, 0, lights.length);
+            lights = newLights;
+            int[] newRanges = new int[lightRanges.length * 2];
+            System.arraycopy(lightRanges, 0, newRanges, 0, lightRanges.length);
+            lightRanges = newRanges;
+        }
+        int pos = numLights * LIGHT_SIZE;
+        lights[pos] = x;
+        lights[pos + 1] = y;
+        lights[pos + 2] = z;
+        lights[pos + 3] = radius;
+        return numLights++;
+    }
+
+    /**
+     * Fills the light lists of the clusters with the lights added since the
+     * last call to {@link #clear}.
+     */
+    public void build() {
+        int numClusters = clusterCounts.length;
+        for (int i = 0; i < numClusters; i++) {
+            clusterCounts[i] = 0;
+        }
+
+        // Count the lights of each cluster
+        int total = 0;
+        for (int i = 0; i < numLights; i++) {
+            if (!computeRange(i)) {
+                continue;
+            }
+            int r = i * RANGE_SIZE;
+            for (int z = lightRanges[r + 4]; z <= lightRanges[r + 5]; z++) {
+                for (int y = lightRanges[r + 2]; y <= lightRanges[r + 3]; y++) {
+                    for (int x = lightRanges[r]; x <= lightRanges[r + 1]; x++) {
+                        clusterCounts[getClusterIndex(x, y, z)]++;
+                        total++;
+                    }
+                }
+            }
+        }
+
+        int offset = 0;
+        for (int i = 0; i < numClusters; i++) {
+            clusterOffsets[i] = offset;
+            offset += clusterCounts[i];
+            // Used as the insertion point of the cluster in the second pass
+            clusterCounts[i] = 0;
+        }
+        if (total > lightIndices.length) {
+            lightIndices = new int[Math.max(total, lightIndices.length * 2)];
+        }
+        numIndices = total;
+
+        for (int i = 0; i < numLights; i++) {
+            int r = i * RANGE_SIZE;
+            if (lightRanges[r] < 0) {
+                continue;
+            }
+            for (int z = lightRanges[r + 4]; z <= lightRanges[r + 5]; z++) {
+                for (int y = lightRanges[r + 2]; y <= lightRanges[r + 3]; y++) {
+                    for (int x = lightRanges[r]; x <= lightRanges[r + 1]; x++) {
+                        int cluster = getClusterIndex(x, y, z);
+                        lightIndices[clusterOffsets[cluster] + clusterCounts[cluster]] = i;
+                        clusterCounts[cluster]++;
+                    }
+                }
+            }
+        }
+    }
+
+    public int getClusterIndex(int tileX, int tileY, int slice) {
+        return (slice * tilesY + tileY) * tilesX + tileX;
+    }
+
+    /**
+     * @param depth Distance to the camera along the view direction
+     * @return The slice that contains the depth
+     */
+    public int getSlice(float depth) {
+        if (depth <= zNear) {
+            return 0;
+        }
+        int slice = (int) (Math.log(depth / zNear) / logDepthRatio * slices);
+        return Math.min(slice, slices - 1);
+    }
+
+    public int getClusterOffset(int cluster) {
+        return clusterOffsets[cluster];
+    }
+
+    public int getClusterCount(int cluster) {
+        return clusterCounts[cluster];
+    }
+
+    public int[] getLightIndices() {
+        return lightIndices;
+    }
+
+    public int getNumIndices() {
+        return numIndices;
+    }
+
+    public int getNumClusters() {
+        return clusterCounts.length;
+    }
+
+    public int getNumLights() {
+        return numLights;
+    }
+
+    /**
+     * @return The view position and the radius of a light, starting at
+     * index * 4
+     */
+    public float[] getLights() {
+        return lights;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public float getZNear() {
+        return zNear;
+    }
+
+    public float getLogDepthRatio() {
+        return logDepthRatio;
+    }
+
+    /**
+     * Computes the clusters touched by a light, or stores -1 if the light is
+     * out of the view.
+     *
+     * @return true if the light touches some cluster
+     */
+    private boolean computeRange(int light) {
+        int pos = light * LIGHT_SIZE;
+        float x = lights[pos];
+        float y = lights[pos + 1];
+        float z = lights[pos + 2];
+        float radius = lights[pos + 3];
+        int r = light * RANGE_SIZE;
+        lightRanges[r] = -1;
+
+        // View coordinates look towards -z
+        float minDepth = Math.max(zNear, -z - radius);
+        float maxDepth = Math.min(zFar, -z + radius);
+        if (minDepth > maxDepth) {
+            return false;
+        }
+
+        // The projection of the box around the sphere is bounded by its corners
+        float minX = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            float depth = i == 0 ? minDepth : maxDepth;
+            for (int j = -1; j <= 1; j += 2) {
+                float ndcX = projScaleX * (x + j * radius) / depth;
+                float ndcY = projScaleY * (y + j * radius) / depth;
+                minX = Math.min(minX, ndcX);
+                maxX = Math.max(maxX, ndcX);
+                minY = Math.min(minY, ndcY);
+                maxY = Math.max(maxY, ndcY);
+            }
+        }
+        if (minX > 1 || maxX < -1 || minY > 1 || maxY < -1) {
+            return false;
+        }
+
+        lightRanges[r] = toTile(minX, tilesX);
+        lightRanges[r + 1] = toTile(maxX, tilesX);
+        lightRanges[r + 2] = toTile(minY, tilesY);
+        lightRanges[r + 3] = toTile(maxY, tilesY);
+        lightRanges[r + 4] = getSlice(minDepth);
+        lightRanges[r + 5] = getSlice(maxDepth);
+        return true;
+    }
+
+    private static int toTile(float ndc, int numTiles) {
+        int tile = (int) ((ndc * 0.5f + 0.5f) * numTiles);
+        return Math.max(0, Math.min(numTiles - 1, tile));
+    }
+}
@@ -1,14 +1,17 @@
 package engine.graph.particles;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.function.IntConsumer;
 import org.joml.Vector3f;
+import engine.JobSystem;
 import engine.items.GameItem;
 import java.util.Random;
 
 public class FlowParticleEmitter implements IParticleEmitter {
 
+    private static final int PARTICLES_PER_JOB = 64;
+
     private int maxParticles;
 
     private boolean active;
@@ -19,8 +22,6 @@ public class FlowParticleEmitter implements IParticleEmitter {
 
     private long creationPeriodMillis;
 
-    private long lastCreationTime;
-
     private float speedRndRange;
 
     private float positionRndRange;
@@ -35,14 +36,21 @@ public class FlowParticleEmitter implements IParticleEmitter {
 
 	private boolean initParticles = false;
 
+    private final IntConsumer particleUpdater;
+
+    /**
+     * Elapsed time of the update in progress, read by the particle updater.
+     */
+    private long updateElapsedTime;
+
     public FlowParticleEmitter(Particle baseParticle, int maxParticles, long creationPeriodMillis) {
         particles = new ArrayList<>();
         this.baseParticle = baseParticle;
         this.maxParticles = maxParticles;
         this.active = false;
-        this.lastCreationTime = 0;
         this.creationPeriodMillis = creationPeriodMillis;
         rn = new Random();
+        particleUpdater = this::updateParticle;
     }
 
     @Override
@@ -106,20 +114,33 @@ public class FlowParticleEmitter implements IParticleEmitter {
     public void setSpeedRndRange(float speedRndRange) {
         this.speedRndRange = speedRndRange;
     }
+
+    /**
+     * Seeds the random values of the new particles, to create the same
+     * particles on every run.
+     */
+    public void setSeed(long seed) {
+        rn.setSeed(seed);
+    }
     
     public void setInitParticles() {
 		initParticles = false;
 	}
 
     public void update(long elapsedTime) {
-        long now = System.currentTimeMillis();
-        if (lastCreationTime == 0) {
-            lastCreationTime = now;
-        }
-        Iterator<? extends GameItem> it = particles.iterator();
-        while (it.hasNext()) {
-            Particle particle = (Particle) it.next();
-			updatePosition(particle, elapsedTime);
+        update(elapsedTime, null);
+    }
+
+    public void update(long elapsedTime, JobSystem jobSystem) {
+        updateElapsedTime = elapsedTime;
+        if (jobSystem != null) {
+            // Particles do not depend on each other, so they can be moved in parallel
+            jobSystem.parallelFor(particles.size(), PARTICLES_PER_JOB, particleUpdater);
+        } else {
+            int numParticles = particles.size();
+            for (int i = 0; i < numParticles; i++) {
+                updateParticle(i);
+            }
         }
 
         if(initParticles==false) {
@@ -141,6 +162,10 @@ public class FlowParticleEmitter implements IParticleEmitter {
 		particles.add(particle);
     }
 
+    private void updateParticle(int i) {
+        updatePosition((Particle) particles.get(i), updateElapsedTime);
+    }
+
     /**
      * Updates a particle position
      * @param particle The particle to update
@@ -1,16 +1,30 @@
 package engine.graph.shadow;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
+import engine.SceneSpatialIndex;
 import engine.Window;
 import engine.graph.Transformation;
 import engine.graph.lights.DirectionalLight;
+import engine.items.GameItem;
 
 public class ShadowCascade {
 
     private static final int FRUSTUM_CORNERS = 8;
 
+    /**
+     * The radius of the cascade is rounded up to this step, so the size of
+     * the projection does not change with rounding errors.
+     */
+    private static final float RADIUS_STEP = 1.0f / 16.0f;
+
     private final Matrix4f projViewMatrix;
 
     private final Matrix4f orthoProjMatrix;
@@ -29,7 +43,23 @@ public class ShadowCascade {
     private final float zFar;
 
     private final Vector4f tmpVec;
-    
+
+    private final Vector3f lightPosition;
+
+    private final Vector3f lightAngles;
+
+    private final Matrix4f lightProjViewMatrix;
+
+    private final FrustumIntersection frustumInt;
+
+    private final Set<GameItem> casters;
+
+    private final List<GameItem> partialCasters;
+
+    private final float[] casterBounds;
+
+    private float radius;
+
     public ShadowCascade(float zNear, float zFar) {
         this.zNear = zNear;
         this.zFar = zFar;
@@ -42,6 +72,13 @@ public class ShadowCascade {
             frustumCorners[i] = new Vector3f();
         }
         tmpVec = new Vector4f();
+        lightPosition = new Vector3f();
+        lightAngles = new Vector3f();
+        lightProjViewMatrix = new Matrix4f();
+        frustumInt = new FrustumIntersection();
+        casters = Collections.newSetFromMap(new IdentityHashMap<>());
+        partialCasters = new ArrayList<>();
+        casterBounds = new float[6];
     }
 
     public Matrix4f getLightViewMatrix() {
@@ -52,6 +89,36 @@ public class ShadowCascade {
         return orthoProjMatrix;
     }
 
+    /**
+     * @return true if the item may cast shadows into this cascade, as found
+     * by the last call to {@link #updateCasters}
+     */
+    public boolean isCaster(GameItem gameItem) {
+        return casters.contains(gameItem);
+    }
+
+    /**
+     * Collects the items whose boxes intersect the light volume of the
+     * cascade. The cascade must have been updated first.
+     */
+    public void updateCasters(SceneSpatialIndex spatialIndex) {
+        casters.clear();
+        partialCasters.clear();
+        spatialIndex.queryFrustum(frustumInt, partialCasters, partialCasters);
+        int numPartialCasters = partialCasters.size();
+        for (int i = 0; i < numPartialCasters; i++) {
+            GameItem gameItem = partialCasters.get(i);
+            spatialIndex.computeBounds(gameItem, casterBounds);
+            if (frustumInt.testAab(casterBounds[0], casterBounds[1], casterBounds[2], casterBounds[3], casterBounds[4], casterBounds[5])) {
+                casters.add(gameItem);
+            }
+        }
+    }
+
+    public int getNumCasters() {
+        return casters.size();
+    }
+
     public void update(Window window, Matrix4f viewMatrix, DirectionalLight light) {
         // Build projection view matrix for this cascade
         float aspectRatio = (float) window.getWidth() / (float) window.getHeight();
@@ -59,61 +126,79 @@ public class ShadowCascade {
         projViewMatrix.mul(viewMatrix);
 
         // Calculate frustum corners in world space
-        float maxZ = Float.MIN_VALUE;
+        float maxZ = -Float.MAX_VALUE;
         float minZ = Float.MAX_VALUE;
+        centroid.zero();
         for (int i = 0; i < FRUSTUM_CORNERS; i++) {
             Vector3f corner = frustumCorners[i];
             corner.set(0, 0, 0);
             projViewMatrix.frustumCorner(i, corner);
             centroid.add(corner);
-            centroid.div(8.0f);
             minZ = Math.min(minZ, corner.z);
             maxZ = Math.max(maxZ, corner.z);
         }
+        centroid.div(FRUSTUM_CORNERS);
 
-        // Go back from the centroid up to max.z - min.z in the direction of light
+        // The sphere around the corners does not change when the camera rotates
+        radius = 0;
+        for (int i = 0; i < FRUSTUM_CORNERS; i++) {
+            radius = Math.max(radius, frustumCorners[i].distance(centroid));
+        }
+        radius = (float) Math.ceil(radius / RADIUS_STEP) * RADIUS_STEP;
+
+        // Go back from the centroid up to max.z - min.z in the direction of light,
+        // and at least far enough to keep the whole sphere in front of it
         Vector3f lightDirection = light.getDirection();
-        Vector3f lightPosInc = new Vector3f().set(lightDirection);
-        float distance = maxZ - minZ;
-        lightPosInc.mul(distance);
-        Vector3f lightPosition = new Vector3f();
-        lightPosition.set(centroid);
-        lightPosition.add(lightPosInc);
+        float distance = Math.max(maxZ - minZ, 2.0f * radius);
+        lightDirection.mulAdd(distance, centroid, lightPosition);
 
-        updateLightViewMatrix(lightDirection, lightPosition);
+        updateLightViewMatrix(lightDirection);
 
         updateLightProjectionMatrix();
     }
 
-    private void updateLightViewMatrix(Vector3f lightDirection, Vector3f lightPosition) {
+    private void updateLightViewMatrix(Vector3f lightDirection) {
         float lightAngleX = (float) Math.toDegrees(Math.acos(lightDirection.z));
         float lightAngleY = (float) Math.toDegrees(Math.asin(lightDirection.x));
         float lightAngleZ = 0;
-        Transformation.updateGenericViewMatrix(lightPosition, new Vector3f(lightAngleX, lightAngleY, lightAngleZ), lightViewMatrix);
+        lightAngles.set(lightAngleX, lightAngleY, lightAngleZ);
+        Transformation.updateGenericViewMatrix(lightPosition, lightAngles, lightViewMatrix);
     }
 
+    /**
+     * Builds a projection of constant size around the bounding sphere of the
+     * cascade and moves it in whole texels, so the shadow edges do not
+     * shimmer when the camera moves or rotates.
+     */
     private void updateLightProjectionMatrix() {
-        // Now calculate frustum dimensions in light space
-        float minX =  Float.MAX_VALUE;
-        float maxX = -Float.MIN_VALUE;
-        float minY =  Float.MAX_VALUE;
-        float maxY = -Float.MIN_VALUE;
-        float minZ =  Float.MAX_VALUE;
-        float maxZ = -Float.MIN_VALUE;
+        // Now calculate frustum depth in light space
+        float minZ = Float.MAX_VALUE;
         for (int i = 0; i < FRUSTUM_CORNERS; i++) {
             Vector3f corner = frustumCorners[i];
             tmpVec.set(corner, 1);
             tmpVec.mul(lightViewMatrix);
-            minX = Math.min(tmpVec.x, minX);
-            maxX = Math.max(tmpVec.x, maxX);
-            minY = Math.min(tmpVec.y, minY);
-            maxY = Math.max(tmpVec.y, maxY);
             minZ = Math.min(tmpVec.z, minZ);
-            maxZ = Math.max(tmpVec.z, maxZ);
         }
-        float distz = maxZ - minZ;
-
-        orthoProjMatrix.setOrtho(minX, maxX, minY, maxY, 0, distz);
+        tmpVec.set(centroid, 1);
+        tmpVec.mul(lightViewMatrix);
+        float centerX = tmpVec.x;
+        float centerY = tmpVec.y;
+
+        // Everything from the light position to the farthest corner
+        orthoProjMatrix.setOrtho(centerX - radius, centerX + radius, centerY - radius, centerY + radius, 0, -minZ);
+
+        // Snap the projected world origin to a texel
+        orthoProjMatrix.mul(lightViewMatrix, lightProjViewMatrix);
+        tmpVec.set(0, 0, 0, 1);
+        tmpVec.mul(lightProjViewMatrix);
+        float halfWidth = ShadowBuffer.SHADOW_MAP_WIDTH / 2.0f;
+        float halfHeight = ShadowBuffer.SHADOW_MAP_HEIGHT / 2.0f;
+        float texelX = tmpVec.x * halfWidth;
+        float texelY = tmpVec.y * halfHeight;
+        orthoProjMatrix.translateLocal((Math.round(texelX) - texelX) / halfWidth, (Math.round(texelY) - texelY) / halfHeight, 0);
+
+        orthoProjMatrix.mul(lightViewMatrix, lightProjViewMatrix);
+        frustumInt.set(lightProjViewMatrix);
     }
 
 }
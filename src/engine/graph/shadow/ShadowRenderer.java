@@ -3,23 +3,29 @@ package engine.graph.shadow;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.joml.Matrix4f;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL13.GL_TEXTURE2;
 import static org.lwjgl.opengl.GL30.*;
+import engine.FrameProfiler;
 import engine.Scene;
 import engine.SceneLight;
 import engine.Utils;
 import engine.Window;
 import engine.graph.Camera;
+import engine.graph.FrameUniforms;
 import engine.graph.InstancedMesh;
 import engine.graph.Mesh;
+import engine.graph.MeshArena;
 import engine.graph.Renderer;
 import engine.graph.ShaderProgram;
 import engine.graph.Transformation;
+import engine.graph.UniformHandle;
 import engine.graph.anim.AnimGameItem;
 import engine.graph.anim.AnimatedFrame;
 import engine.graph.lights.DirectionalLight;
@@ -31,16 +37,72 @@ public class ShadowRenderer {
 
     public static final float[] CASCADE_SPLITS = new float[]{Window.Z_FAR / 20.0f, Window.Z_FAR / 10.0f, Window.Z_FAR};
 
+    /**
+     * Number of frames between the refreshes of each cascade. The far
+     * cascades cover more space with the same texels, so their changes are
+     * less noticeable.
+     */
+    public static final int[] CASCADE_UPDATE_INTERVALS = new int[]{1, 2, 4};
+
     private ShaderProgram depthShaderProgram;
 
+    private UniformHandle isInstancedUniform;
+
+    private UniformHandle modelNonInstancedMatrixUniform;
+
+    private UniformHandle jointsMatrixUniform;
+
+    private UniformHandle cascadeIndexUniform;
+
     private List<ShadowCascade> shadowCascades;
 
     private ShadowBuffer shadowBuffer;
 
     private final List<GameItem> filteredItems;
 
+    private final List<Predicate<GameItem>> casterFilters;
+
+    /**
+     * Cascades refreshed by the last update, which are the ones to render.
+     */
+    private final boolean[] updatedCascades;
+
+    /**
+     * Cascades that have been skipped since the scene last changed.
+     */
+    private final boolean[] pendingCascades;
+
+    private final Consumer<GameItem> nonInstancedItemRenderer;
+
+    private final BiConsumer<Mesh, List<GameItem>> nonInstancedMeshRenderer;
+
+    private final BiConsumer<InstancedMesh, List<GameItem>> instancedMeshRenderer;
+
+    /**
+     * Transformation used by the non instanced items of the pass being rendered.
+     */
+    private Transformation itemTransformation;
+
+    /**
+     * Arena, caster filter and cascade of the pass being rendered, read by
+     * the mesh renderers.
+     */
+    private MeshArena passMeshArena;
+
+    private Predicate<GameItem> passCasterFilter;
+
+    private ShadowCascade passCascade;
+
+    private int frameCount;
+
     public ShadowRenderer() {
         filteredItems = new ArrayList<>();
+        casterFilters = new ArrayList<>();
+        updatedCascades = new boolean[NUM_CASCADES];
+        pendingCascades = new boolean[NUM_CASCADES];
+        nonInstancedItemRenderer = this::renderNonInstancedItem;
+        nonInstancedMeshRenderer = this::renderNonInstancedMesh;
+        instancedMeshRenderer = this::renderInstancedMesh;
     }
 
     public void init(Window window) throws Exception {
@@ -53,6 +115,8 @@ public class ShadowRenderer {
         for (int i = 0; i < NUM_CASCADES; i++) {
             ShadowCascade shadowCascade = new ShadowCascade(zNear, CASCADE_SPLITS[i]);
             shadowCascades.add(shadowCascade);
+            casterFilters.add(shadowCascade::isCaster);
+            pendingCascades[i] = true;
             zNear = CASCADE_SPLITS[i];
         }
     }
@@ -71,45 +135,76 @@ public class ShadowRenderer {
         depthShaderProgram.createFragmentShader(Utils.loadResource("/resources/shaders/depth_fragment.fs"));
         depthShaderProgram.link();
 
-        depthShaderProgram.createUniform("isInstanced");
-        depthShaderProgram.createUniform("modelNonInstancedMatrix");
-        depthShaderProgram.createUniform("lightViewMatrix");
-        depthShaderProgram.createUniform("jointsMatrix");
-        depthShaderProgram.createUniform("orthoProjectionMatrix");
+        depthShaderProgram.bindUniformBlock(FrameUniforms.BLOCK_NAME, FrameUniforms.BINDING_POINT);
+        isInstancedUniform = depthShaderProgram.createUniform("isInstanced");
+        modelNonInstancedMatrixUniform = depthShaderProgram.createUniform("modelNonInstancedMatrix");
+        jointsMatrixUniform = depthShaderProgram.createUniform("jointsMatrix");
+        cascadeIndexUniform = depthShaderProgram.createUniform("cascadeIndex");
     }
 
-    private void update(Window window, Matrix4f viewMatrix, Scene scene) {
+    /**
+     * Updates the cascades that are due this frame, following
+     * {@link #CASCADE_UPDATE_INTERVALS}, and collects their shadow casters.
+     * The other cascades keep their matrices and depth maps. It must be called
+     * before the frame uniforms are uploaded, since they hold the cascade
+     * matrices used by {@link #render}.
+     *
+     * @param sceneChanged false if the update is only needed to refresh the
+     * cascades left pending by the previous ones
+     */
+    public void update(Window window, Matrix4f viewMatrix, Scene scene, boolean sceneChanged) {
         SceneLight sceneLight = scene.getSceneLight();
         DirectionalLight directionalLight = sceneLight != null ? sceneLight.getDirectionalLight() : null;
         for (int i = 0; i < NUM_CASCADES; i++) {
-            ShadowCascade shadowCascade = shadowCascades.get(i);
-            shadowCascade.update(window, viewMatrix, directionalLight);
+            boolean due = frameCount == 0 || (frameCount + i) % CASCADE_UPDATE_INTERVALS[i] == 0;
+            boolean needed = sceneChanged || pendingCascades[i];
+            updatedCascades[i] = due && needed;
+            if (updatedCascades[i]) {
+                ShadowCascade shadowCascade = shadowCascades.get(i);
+                shadowCascade.update(window, viewMatrix, directionalLight);
+                shadowCascade.updateCasters(scene.getSpatialIndex());
+            }
+            pendingCascades[i] = needed && !due;
         }
+        frameCount++;
     }
 
-    public void render(Window window, Scene scene, Camera camera, Transformation transformation, Renderer renderer) {
-        update(window, camera.getViewMatrix(), scene);
+    /**
+     * @return true if some cascade was skipped by the last update and must
+     * be refreshed even if the scene does not change
+     */
+    public boolean hasPendingUpdates() {
+        for (int i = 0; i < NUM_CASCADES; i++) {
+            if (pendingCascades[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    public void render(Window window, Scene scene, Camera camera, Transformation transformation, Renderer renderer) {
         // Setup view port to match the texture size
         glBindFramebuffer(GL_FRAMEBUFFER, shadowBuffer.getDepthMapFBO());
         glViewport(0, 0, ShadowBuffer.SHADOW_MAP_WIDTH, ShadowBuffer.SHADOW_MAP_HEIGHT);
-        glClear(GL_DEPTH_BUFFER_BIT);
 
         depthShaderProgram.bind();
 
-        // Render scene for each cascade map
+        FrameProfiler profiler = window.getProfiler();
+        // Render scene for each cascade map refreshed by the last update
         for (int i = 0; i < NUM_CASCADES; i++) {
-            ShadowCascade shadowCascade = shadowCascades.get(i);
-
-            depthShaderProgram.setUniform("orthoProjectionMatrix", shadowCascade.getOrthoProjMatrix());
-            depthShaderProgram.setUniform("lightViewMatrix", shadowCascade.getLightViewMatrix());
+            if (!updatedCascades[i]) {
+                continue;
+            }
+            profiler.beginGpu(FrameProfiler.SHADOW_CASCADE_0 + i);
+            cascadeIndexUniform.set(i);
 
             glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_TEXTURE_2D, shadowBuffer.getDepthMapTexture().getIds()[i], 0);
             glClear(GL_DEPTH_BUFFER_BIT);
 
-            renderNonInstancedMeshes(scene, transformation);
+            renderNonInstancedMeshes(scene, transformation, renderer.getMeshArena(), casterFilters.get(i));
 
-            renderInstancedMeshes(scene, transformation);
+            renderInstancedMeshes(scene, transformation, shadowCascades.get(i));
+            profiler.endGpu();
         }
 
         // Unbind
@@ -117,41 +212,60 @@ public class ShadowRenderer {
         glBindFramebuffer(GL_FRAMEBUFFER, 0);
     }
 
-    private void renderNonInstancedMeshes(Scene scene, Transformation transformation) {
-        depthShaderProgram.setUniform("isInstanced", 0);
+    private void renderNonInstancedMeshes(Scene scene, Transformation transformation, MeshArena meshArena, Predicate<GameItem> casterFilter) {
+        isInstancedUniform.set(0);
 
         // Render each mesh with the associated game Items
-        Map<Mesh, List<GameItem>> mapMeshes = scene.getGameMeshes();
-        for (Mesh mesh : mapMeshes.keySet()) {
-            mesh.renderList(mapMeshes.get(mesh), (GameItem gameItem) -> {
-                Matrix4f modelMatrix = transformation.buildModelMatrix(gameItem);
-                depthShaderProgram.setUniform("modelNonInstancedMatrix", modelMatrix);
-                if (gameItem instanceof AnimGameItem) {
-                    AnimGameItem animGameItem = (AnimGameItem) gameItem;
-                    AnimatedFrame frame = animGameItem.getCurrentAnimation().getCurrentFrame();
-                    depthShaderProgram.setUniform("jointsMatrix", frame.getJointMatrices());
-                }
-            }
-            );
+        itemTransformation = transformation;
+        passMeshArena = meshArena;
+        passCasterFilter = casterFilter;
+        scene.getGameMeshes().forEach(nonInstancedMeshRenderer);
+        if (meshArena != null && !meshArena.isEmpty()) {
+            isInstancedUniform.set(1);
+            meshArena.render(transformation);
+        }
+    }
+
+    private void renderNonInstancedMesh(Mesh mesh, List<GameItem> gameItems) {
+        if (passMeshArena != null && passMeshArena.contains(mesh)) {
+            // No materials in the depth pass, all the arena meshes go in a single batch
+            passMeshArena.queue(mesh, gameItems, passCasterFilter);
+            return;
+        }
+        mesh.renderList(gameItems, passCasterFilter, nonInstancedItemRenderer, true);
+    }
+
+    private void renderNonInstancedItem(GameItem gameItem) {
+        Matrix4f modelMatrix = itemTransformation.buildModelMatrix(gameItem);
+        modelNonInstancedMatrixUniform.set(modelMatrix);
+        if (gameItem instanceof AnimGameItem) {
+            AnimGameItem animGameItem = (AnimGameItem) gameItem;
+            AnimatedFrame frame = animGameItem.getCurrentAnimation().getCurrentFrame();
+            jointsMatrixUniform.set(frame.getJointMatrices());
         }
     }
 
-    private void renderInstancedMeshes(Scene scene, Transformation transformation) {
-        depthShaderProgram.setUniform("isInstanced", 1);
+    private void renderInstancedMeshes(Scene scene, Transformation transformation, ShadowCascade shadowCascade) {
+        isInstancedUniform.set(1);
 
         // Render each mesh with the associated game Items
-        Map<InstancedMesh, List<GameItem>> mapMeshes = scene.getGameInstancedMeshes();
-        for (InstancedMesh mesh : mapMeshes.keySet()) {
-            filteredItems.clear();
-            for (GameItem gameItem : mapMeshes.get(mesh)) {
-                if (gameItem.isInsideFrustum()) {
-                    filteredItems.add(gameItem);
-                }
-            }
-            bindTextures(GL_TEXTURE2);
+        itemTransformation = transformation;
+        passCascade = shadowCascade;
+        scene.getGameInstancedMeshes().forEach(instancedMeshRenderer);
+    }
 
-            mesh.renderListInstanced(filteredItems, transformation, null);
+    private void renderInstancedMesh(InstancedMesh mesh, List<GameItem> gameItems) {
+        filteredItems.clear();
+        int numItems = gameItems.size();
+        for (int i = 0; i < numItems; i++) {
+            GameItem gameItem = gameItems.get(i);
+            if (passCascade.isCaster(gameItem)) {
+                filteredItems.add(gameItem);
+            }
         }
+        bindTextures(GL_TEXTURE2);
+
+        mesh.renderListInstanced(filteredItems, itemTransformation, null);
     }
 
     public void cleanup() {
@@ -1,5 +1,6 @@
 package engine.items;
 
+import org.joml.Matrix4f;
 import org.joml.Quaternionf;
 import org.joml.Vector3f;
 import engine.graph.Mesh;
@@ -22,6 +23,10 @@ public class GameItem {
 
     private boolean insideFrustum;
 
+    private TransformStore transformStore;
+
+    private int transformIndex;
+
     public GameItem() {
         selected = false;
         position = new Vector3f();
@@ -30,6 +35,7 @@ public class GameItem {
         textPos = 0;
         insideFrustum = true;
         disableFrustumCulling = false;
+        transformIndex = -1;
     }
 
     public GameItem(Mesh mesh) {
@@ -58,6 +64,11 @@ public class GameItem {
         this.position.x = x;
         this.position.y = y;
         this.position.z = z;
+        transformChanged();
+    }
+
+    public final void setPosition(Vector3f position) {
+        setPosition(position.x, position.y, position.z);
     }
 
     public float getScale() {
@@ -66,6 +77,7 @@ public class GameItem {
 
     public final void setScale(float scale) {
         this.scale = scale;
+        transformChanged();
     }
 
     public Quaternionf getRotation() {
@@ -74,6 +86,7 @@ public class GameItem {
 
     public final void setRotation(Quaternionf q) {
         this.rotation.set(q);
+        transformChanged();
     }
 
     public Mesh getMesh() {
@@ -86,10 +99,12 @@ public class GameItem {
 
     public void setMeshes(Mesh[] meshes) {
         this.meshes = meshes;
+        transformChanged();
     }
 
     public void setMesh(Mesh mesh) {
         this.meshes = new Mesh[]{mesh};
+        transformChanged();
     }
 
     public void cleanup() {
@@ -99,6 +114,39 @@ public class GameItem {
         }
     }
 
+    /**
+     * Builds the model matrix, or copies it from the transform store when the
+     * item is attached to one.
+     */
+    public Matrix4f getModelMatrix(Matrix4f dest) {
+        if (transformStore != null) {
+            return transformStore.getModelMatrix(transformIndex, dest);
+        }
+        return dest.translationRotateScale(position.x, position.y, position.z,
+                rotation.x, rotation.y, rotation.z, rotation.w, scale, scale, scale);
+    }
+
+    /**
+     * Gets the box, in model coordinates, that encloses all the meshes.
+     *
+     * @param min Destination for the minimum corner
+     * @param max Destination for the maximum corner
+     */
+    public void getLocalBounds(Vector3f min, Vector3f max) {
+        int numMeshes = meshes != null ? meshes.length : 0;
+        if (numMeshes == 0) {
+            min.zero();
+            max.zero();
+            return;
+        }
+        min.set(meshes[0].getMin());
+        max.set(meshes[0].getMax());
+        for (int i = 1; i < numMeshes; i++) {
+            min.min(meshes[i].getMin());
+            max.max(meshes[i].getMax());
+        }
+    }
+
     public void setSelected(boolean selected) {
         this.selected = selected;
     }
@@ -122,4 +170,28 @@ public class GameItem {
     public void setDisableFrustumCulling(boolean disableFrustumCulling) {
         this.disableFrustumCulling = disableFrustumCulling;
     }    
+
+    public TransformStore getTransformStore() {
+        return transformStore;
+    }
+
+    public int getTransformIndex() {
+        return transformIndex;
+    }
+
+    void setTransformStore(TransformStore transformStore, int transformIndex) {
+        this.transformStore = transformStore;
+        this.transformIndex = transformIndex;
+    }
+
+    /**
+     * Tells the transform store that the model matrix and the bounds of the
+     * item must be rebuilt. The setters call it, code that changes the
+     * vectors returned by getPosition or getRotation must call it too.
+     */
+    public void transformChanged() {
+        if (transformStore != null) {
+            transformStore.markDirty(transformIndex);
+        }
+    }
 }
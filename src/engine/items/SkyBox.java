@@ -7,6 +7,7 @@ import static org.lwjgl.assimp.Assimp.aiProcess_ValidateDataStructure;
 import engine.graph.Material;
 import engine.graph.Mesh;
 import engine.graph.Texture;
+import engine.graph.TextureCache;
 import engine.loaders.assimp.StaticMeshesLoader;
 
 public class SkyBox extends GameItem {
@@ -14,12 +15,19 @@ public class SkyBox extends GameItem {
     public SkyBox(String objModel, String textureFile) throws Exception {
         super();
         Mesh skyBoxMesh = StaticMeshesLoader.load(objModel, "")[0];
-        Texture skyBoxtexture = new Texture(textureFile);
+        Texture skyBoxtexture = TextureCache.getInstance().acquire(textureFile);
         skyBoxMesh.setMaterial(new Material(skyBoxtexture, 0.0f));
         setMesh(skyBoxMesh);
         setPosition(0, 0, 0);
     }
 
+    public SkyBox(Mesh skyBoxMesh, Material material) {
+        super();
+        skyBoxMesh.setMaterial(material);
+        setMesh(skyBoxMesh);
+        setPosition(0, 0, 0);
+    }
+
     public SkyBox(String objModel, Vector4f colour) throws Exception {
         super();
         Mesh skyBoxMesh = StaticMeshesLoader.load(objModel, "", 0)[0];
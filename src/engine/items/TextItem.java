@@ -1,11 +1,11 @@
 package engine.items;
 
-import java.util.ArrayList;
-import java.util.List;
-import engine.Utils;
+import engine.collections.NativeFloatArrayBuilder;
+import engine.collections.NativeIntArrayBuilder;
 import engine.graph.FontTexture;
 import engine.graph.Material;
 import engine.graph.Mesh;
+import engine.graph.VertexLayout;
 
 public class TextItem extends GameItem {
 
@@ -25,12 +25,25 @@ public class TextItem extends GameItem {
     }
     
     private Mesh buildMesh() {
-        List<Float> positions = new ArrayList<>();
-        List<Float> textCoords = new ArrayList<>();
-        float[] normals   = new float[0];
-        List<Integer> indices   = new ArrayList<>();
         char[] characters = text.toCharArray();
         int numChars = characters.length;
+        Mesh mesh;
+        try (NativeFloatArrayBuilder positions = new NativeFloatArrayBuilder(numChars * VERTICES_PER_QUAD * 3);
+                NativeFloatArrayBuilder textCoords = new NativeFloatArrayBuilder(numChars * VERTICES_PER_QUAD * 2);
+                NativeFloatArrayBuilder normals = new NativeFloatArrayBuilder(1);
+                NativeIntArrayBuilder indices = new NativeIntArrayBuilder(numChars * 6)) {
+            buildQuads(characters, positions, textCoords, indices);
+            // Glyph edges must fall on exact texels of the font atlas
+            mesh = new Mesh(positions.getBuffer(), textCoords.getBuffer(), normals.getBuffer(), indices.getBuffer(),
+                    null, null, VertexLayout.FLOAT_TEXT_COORDS);
+        }
+        mesh.setMaterial(new Material(fontTexture.getTexture()));
+        return mesh;
+    }
+
+    private void buildQuads(char[] characters, NativeFloatArrayBuilder positions, NativeFloatArrayBuilder textCoords,
+            NativeIntArrayBuilder indices) {
+        int numChars = characters.length;
 
         float startx = 0;
         for(int i=0; i<numChars; i++) {
@@ -39,35 +52,23 @@ public class TextItem extends GameItem {
             // Build a character tile composed by two triangles
             
             // Left Top vertex
-            positions.add(startx); // x
-            positions.add(0.0f); //y
-            positions.add(ZPOS); //z
-            textCoords.add( (float)charInfo.getStartX() / (float)fontTexture.getWidth());
-            textCoords.add(0.0f);
+            positions.add(startx, 0.0f, ZPOS);
+            textCoords.add((float)charInfo.getStartX() / (float)fontTexture.getWidth(), 0.0f);
             indices.add(i*VERTICES_PER_QUAD);
                         
             // Left Bottom vertex
-            positions.add(startx); // x
-            positions.add((float)fontTexture.getHeight()); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)charInfo.getStartX() / (float)fontTexture.getWidth());
-            textCoords.add(1.0f);
+            positions.add(startx, (float)fontTexture.getHeight(), ZPOS);
+            textCoords.add((float)charInfo.getStartX() / (float)fontTexture.getWidth(), 1.0f);
             indices.add(i*VERTICES_PER_QUAD + 1);
 
             // Right Bottom vertex
-            positions.add(startx + charInfo.getWidth()); // x
-            positions.add((float)fontTexture.getHeight()); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth());
-            textCoords.add(1.0f);
+            positions.add(startx + charInfo.getWidth(), (float)fontTexture.getHeight(), ZPOS);
+            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth(), 1.0f);
             indices.add(i*VERTICES_PER_QUAD + 2);
 
             // Right Top vertex
-            positions.add(startx + charInfo.getWidth()); // x
-            positions.add(0.0f); //y
-            positions.add(ZPOS); //z
-            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth());
-            textCoords.add(0.0f);
+            positions.add(startx + charInfo.getWidth(), 0.0f, ZPOS);
+            textCoords.add((float)(charInfo.getStartX() + charInfo.getWidth() )/ (float)fontTexture.getWidth(), 0.0f);
             indices.add(i*VERTICES_PER_QUAD + 3);
             
             // Add indices por left top and bottom right vertices
@@ -76,13 +77,6 @@ public class TextItem extends GameItem {
             
             startx += charInfo.getWidth();
         }
-
-        float[] posArr = Utils.listToArray(positions);
-        float[] textCoordsArr = Utils.listToArray(textCoords);
-        int[] indicesArr = indices.stream().mapToInt(i->i).toArray();
-        Mesh mesh = new Mesh(posArr, textCoordsArr, normals, indicesArr);
-        mesh.setMaterial(new Material(fontTexture.getTexture()));
-        return mesh;
     }
 
     public String getText() {
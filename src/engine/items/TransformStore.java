@@ -0,0 +1,260 @@
+package engine.items;
+
+import java.nio.FloatBuffer;
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+/**
+ * Keeps the transforms of the attached game items in contiguous arrays
+ * (positions, rotations, scales and model matrices). The setters of an
+ * attached item mark its row as dirty, and once per frame {@link #update}
+ * rebuilds only the model matrices of those rows, so the shadow and geometry
+ * passes can read the cached matrices instead of building them for every draw.
+ *
+ * Items keep their own position, rotation and scale, which remain the values
+ * the game logic writes to through the setters. Items that are not attached
+ * are transformed as usual.
+ */
+public class TransformStore {
+
+    public static final int MATRIX_SIZE_FLOATS = 16;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private GameItem[] items;
+
+    private float[] positions;
+
+    private float[] rotations;
+
+    private float[] scales;
+
+    private float[] matrices;
+
+    private int[] dirtyIndices;
+
+    private int[] pendingIndices;
+
+    private boolean[] pending;
+
+    private int[] freeIndices;
+
+    private int numFree;
+
+    private int size;
+
+    private int numDirty;
+
+    private int numPending;
+
+    public TransformStore() {
+        items = new GameItem[INITIAL_CAPACITY];
+        positions = new float[INITIAL_CAPACITY * 3];
+        rotations = new float[INITIAL_CAPACITY * 4];
+        scales = new float[INITIAL_CAPACITY];
+        matrices = new float[INITIAL_CAPACITY * MATRIX_SIZE_FLOATS];
+        dirtyIndices = new int[INITIAL_CAPACITY];
+        pendingIndices = new int[INITIAL_CAPACITY];
+        pending = new boolean[INITIAL_CAPACITY];
+        freeIndices = new int[INITIAL_CAPACITY];
+    }
+
+    public void attach(GameItem gameItem) {
+        if (gameItem.getTransformStore() == this) {
+            return;
+        }
+        if (gameItem.getTransformStore() != null) {
+            gameItem.getTransformStore().detach(gameItem);
+        }
+        int index;
+        if (numFree > 0) {
+            index = freeIndices[--numFree];
+        } else {
+            ensureCapacity(size + 1);
+            index = size++;
+        }
+        items[index] = gameItem;
+        gameItem.setTransformStore(this, index);
+        copyTransform(index, gameItem);
+        computeMatrix(index);
+    }
+
+    public void detach(GameItem gameItem) {
+        if (gameItem.getTransformStore() != this) {
+            return;
+        }
+        int index = gameItem.getTransformIndex();
+        items[index] = null;
+        freeIndices[numFree++] = index;
+        gameItem.setTransformStore(null, -1);
+    }
+
+    /**
+     * Marks a row whose item has changed its transform. The row is rebuilt
+     * by the next update.
+     *
+     * @param index The index of the item in the store
+     */
+    public void markDirty(int index) {
+        if (!pending[index]) {
+            pending[index] = true;
+            pendingIndices[numPending++] = index;
+        }
+    }
+
+    /**
+     * Copies the transforms of the items marked as dirty since the last call
+     * and rebuilds their model matrices. The rebuilt rows can be read with
+     * {@link #getDirtyItem} until the next call.
+     *
+     * @return Number of model matrices rebuilt
+     */
+    public int update() {
+        int[] aux = dirtyIndices;
+        dirtyIndices = pendingIndices;
+        pendingIndices = aux;
+        numDirty = numPending;
+        numPending = 0;
+        for (int i = 0; i < numDirty; i++) {
+            int index = dirtyIndices[i];
+            pending[index] = false;
+            GameItem gameItem = items[index];
+            if (gameItem != null) {
+                copyTransform(index, gameItem);
+                computeMatrix(index);
+            }
+        }
+        return numDirty;
+    }
+
+    public int size() {
+        return size - numFree;
+    }
+
+    public int getNumDirty() {
+        return numDirty;
+    }
+
+    /**
+     * @param i The position in the rows rebuilt by the last update, from 0
+     * to getNumDirty() - 1
+     * @return The item of the row, or null if it has been detached since
+     */
+    public GameItem getDirtyItem(int i) {
+        return items[dirtyIndices[i]];
+    }
+
+    public Matrix4f getModelMatrix(int index, Matrix4f dest) {
+        return dest.set(matrices, index * MATRIX_SIZE_FLOATS);
+    }
+
+    /**
+     * Copies the model matrix of an item into a buffer, without changing the
+     * buffer position.
+     *
+     * @param index The index of the item in the store
+     * @param dest The destination buffer
+     * @param offset The position in dest where the matrix will be written
+     */
+    public void getModelMatrix(int index, FloatBuffer dest, int offset) {
+        int start = index * MATRIX_SIZE_FLOATS;
+        for (int i = 0; i < MATRIX_SIZE_FLOATS; i++) {
+            dest.put(offset + i, matrices[start + i]);
+        }
+    }
+
+    private void copyTransform(int index, GameItem gameItem) {
+        Vector3f position = gameItem.getPosition();
+        Quaternionf rotation = gameItem.getRotation();
+        int p = index * 3;
+        positions[p] = position.x;
+        positions[p + 1] = position.y;
+        positions[p + 2] = position.z;
+        int r = index * 4;
+        rotations[r] = rotation.x;
+        rotations[r + 1] = rotation.y;
+        rotations[r + 2] = rotation.z;
+        rotations[r + 3] = rotation.w;
+        scales[index] = gameItem.getScale();
+    }
+
+    /**
+     * Same result as Matrix4f.translationRotateScale with a uniform scale,
+     * written straight into the matrices array.
+     */
+    private void computeMatrix(int index) {
+        int p = index * 3;
+        int r = index * 4;
+        float qx = rotations[r];
+        float qy = rotations[r + 1];
+        float qz = rotations[r + 2];
+        float qw = rotations[r + 3];
+        float s = scales[index];
+
+        float dqx = qx + qx;
+        float dqy = qy + qy;
+        float dqz = qz + qz;
+        float q00 = dqx * qx;
+        float q11 = dqy * qy;
+        float q22 = dqz * qz;
+        float q01 = dqx * qy;
+        float q02 = dqx * qz;
+        float q03 = dqx * qw;
+        float q12 = dqy * qz;
+        float q13 = dqy * qw;
+        float q23 = dqz * qw;
+
+        int m = index * MATRIX_SIZE_FLOATS;
+        matrices[m] = s - (q11 + q22) * s;
+        matrices[m + 1] = (q01 + q23) * s;
+        matrices[m + 2] = (q02 - q13) * s;
+        matrices[m + 3] = 0.0f;
+        matrices[m + 4] = (q01 - q23) * s;
+        matrices[m + 5] = s - (q22 + q00) * s;
+        matrices[m + 6] = (q12 + q03) * s;
+        matrices[m + 7] = 0.0f;
+        matrices[m + 8] = (q02 + q13) * s;
+        matrices[m + 9] = (q12 - q03) * s;
+        matrices[m + 10] = s - (q11 + q00) * s;
+        matrices[m + 11] = 0.0f;
+        matrices[m + 12] = positions[p];
+        matrices[m + 13] = positions[p + 1];
+        matrices[m + 14] = positions[p + 2];
+        matrices[m + 15] = 1.0f;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= items.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, items.length * 2);
+        GameItem[] newItems = new GameItem[newCapacity];
+        System.arraycopy(items, 0, newItems, 0, size);
+        items = newItems;
+        positions = grow(positions, newCapacity * 3);
+        rotations = grow(rotations, newCapacity * 4);
+        scales = grow(scales, newCapacity);
+        matrices = grow(matrices, newCapacity * MATRIX_SIZE_FLOATS);
+        dirtyIndices = grow(dirtyIndices, newCapacity);
+        pendingIndices = grow(pendingIndices, newCapacity);
+        boolean[] newPending = new boolean[newCapacity];
+        System.arraycopy(pending, 0, newPending, 0, pending.length);
+        pending = newPending;
+        int[] newFreeIndices = new int[newCapacity];
+        System.arraycopy(freeIndices, 0, newFreeIndices, 0, numFree);
+        freeIndices = newFreeIndices;
+    }
+
+    private static float[] grow(float[] array, int length) {
+        float[] result = new float[length];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    private static int[] grow(int[] array, int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
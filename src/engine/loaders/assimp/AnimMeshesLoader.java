@@ -28,9 +28,11 @@ import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.assimp.AIVectorKey;
 import org.lwjgl.assimp.AIVertexWeight;
-import engine.Utils;
+import engine.collections.NativeFloatArrayBuilder;
+import engine.collections.NativeIntArrayBuilder;
 import engine.graph.Material;
 import engine.graph.Mesh;
+import engine.graph.MeshOptimizer;
 import engine.graph.anim.AnimGameItem;
 import engine.graph.anim.AnimatedFrame;
 import engine.graph.anim.Animation;
@@ -155,8 +157,8 @@ public class AnimMeshesLoader extends StaticMeshesLoader {
         return animations;
     }
 
-    private static void processBones(AIMesh aiMesh, List<Bone> boneList, List<Integer> boneIds,
-            List<Float> weights) {
+    private static void processBones(AIMesh aiMesh, List<Bone> boneList, NativeIntArrayBuilder boneIds,
+            NativeFloatArrayBuilder weights) {
         Map<Integer, List<VertexWeight>> weightSet = new HashMap<>();
         int numBones = aiMesh.mNumBones();
         PointerBuffer aiBones = aiMesh.mBones();
@@ -198,22 +200,25 @@ public class AnimMeshesLoader extends StaticMeshesLoader {
     }
 
     private static Mesh processMesh(AIMesh aiMesh, List<Material> materials, List<Bone> boneList) {
-        List<Float> vertices = new ArrayList<>();
-        List<Float> textures = new ArrayList<>();
-        List<Float> normals = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-        List<Integer> boneIds = new ArrayList<>();
-        List<Float> weights = new ArrayList<>();
-
-        processVertices(aiMesh, vertices);
-        processNormals(aiMesh, normals);
-        processTextCoords(aiMesh, textures);
-        processIndices(aiMesh, indices);
-        processBones(aiMesh, boneList, boneIds, weights);
-
-        Mesh mesh = new Mesh(Utils.listToArray(vertices), Utils.listToArray(textures),
-                Utils.listToArray(normals), Utils.listIntToArray(indices),
-                Utils.listIntToArray(boneIds), Utils.listToArray(weights));
+        int numVertices = aiMesh.mNumVertices();
+        Mesh mesh;
+        try (NativeFloatArrayBuilder vertices = new NativeFloatArrayBuilder(numVertices * 3);
+                NativeFloatArrayBuilder textures = new NativeFloatArrayBuilder(numVertices * 2);
+                NativeFloatArrayBuilder normals = new NativeFloatArrayBuilder(numVertices * 3);
+                NativeIntArrayBuilder indices = new NativeIntArrayBuilder();
+                NativeIntArrayBuilder boneIds = new NativeIntArrayBuilder(numVertices * Mesh.MAX_WEIGHTS);
+                NativeFloatArrayBuilder weights = new NativeFloatArrayBuilder(numVertices * Mesh.MAX_WEIGHTS)) {
+            processVertices(aiMesh, vertices);
+            processNormals(aiMesh, normals);
+            processTextCoords(aiMesh, textures);
+            processIndices(aiMesh, indices);
+            processBones(aiMesh, boneList, boneIds, weights);
+            MeshOptimizer.optimize(vertices.getBuffer(), textures.getBuffer(), normals.getBuffer(), indices.getBuffer(),
+                    boneIds.getBuffer(), weights.getBuffer());
+
+            mesh = new Mesh(vertices.getBuffer(), textures.getBuffer(), normals.getBuffer(), indices.getBuffer(),
+                    boneIds.getBuffer(), weights.getBuffer());
+        }
         Material material;
         int materialIdx = aiMesh.mMaterialIndex();
         if (materialIdx >= 0 && materialIdx < materials.size()) {
@@ -0,0 +1,64 @@
+package engine.loaders.assimp;
+
+import java.util.List;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshData;
+
+/**
+ * Meshes and materials of an imported model, before anything is uploaded.
+ * The materials have no textures yet, the files they use are kept apart so
+ * the caller decides how to load them.
+ */
+public class ModelData implements AutoCloseable {
+
+    private final List<MeshData> meshes;
+
+    private final List<Material> meshMaterials;
+
+    private final List<Material> materials;
+
+    private final List<String> textureFiles;
+
+    public ModelData(List<MeshData> meshes, List<Material> meshMaterials, List<Material> materials,
+            List<String> textureFiles) {
+        this.meshes = meshes;
+        this.meshMaterials = meshMaterials;
+        this.materials = materials;
+        this.textureFiles = textureFiles;
+    }
+
+    public List<MeshData> getMeshes() {
+        return meshes;
+    }
+
+    public List<Material> getMaterials() {
+        return materials;
+    }
+
+    /**
+     * @return The diffuse texture file of a material, or null if it has none
+     */
+    public String getTextureFile(int materialIndex) {
+        return textureFiles.get(materialIndex);
+    }
+
+    /**
+     * Uploads the meshes. Must be called on the GL thread.
+     */
+    public Mesh[] createMeshes() {
+        Mesh[] result = new Mesh[meshes.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = meshes.get(i).createMesh();
+            result[i].setMaterial(meshMaterials.get(i));
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (MeshData mesh : meshes) {
+            mesh.close();
+        }
+    }
+}
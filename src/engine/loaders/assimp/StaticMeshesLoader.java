@@ -8,6 +8,7 @@ import static org.lwjgl.assimp.Assimp.aiProcess_FixInfacingNormals;
 import static org.lwjgl.assimp.Assimp.aiProcess_GenSmoothNormals;
 import static org.lwjgl.assimp.Assimp.aiProcess_JoinIdenticalVertices;
 import static org.lwjgl.assimp.Assimp.aiProcess_Triangulate;
+import static org.lwjgl.assimp.Assimp.aiReleaseImport;
 import static org.lwjgl.assimp.Assimp.aiTextureType_DIFFUSE;
 import static org.lwjgl.assimp.Assimp.aiTextureType_NONE;
 
@@ -26,48 +27,96 @@ import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.AIString;
 import org.lwjgl.assimp.AIVector3D;
 import org.lwjgl.assimp.Assimp;
-import engine.Utils;
+import engine.collections.NativeFloatArrayBuilder;
+import engine.collections.NativeIntArrayBuilder;
 import engine.graph.Material;
 import engine.graph.Mesh;
-import engine.graph.Texture;
+import engine.graph.MeshCache;
+import engine.graph.MeshData;
+import engine.graph.MeshOptimizer;
+import engine.graph.TextureCache;
 
 public class StaticMeshesLoader {
 
+    public static final int DEFAULT_FLAGS = aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices
+            | aiProcess_Triangulate | aiProcess_FixInfacingNormals;
+
     public static Mesh[] load(String resourcePath, String texturesDir) throws Exception {
-        return load(resourcePath, texturesDir,
-                aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices | aiProcess_Triangulate
-                        | aiProcess_FixInfacingNormals);
+        return load(resourcePath, texturesDir, DEFAULT_FLAGS);
     }
 
+    /**
+     * Loads a model, or gets it from the {@link MeshCache}. The meshes are
+     * shared with the other loads of the file with the same flags, and hold
+     * a reference that {@link Mesh#cleanUp} releases.
+     */
     public static Mesh[] load(String resourcePath, String texturesDir, int flags) throws Exception {
+        MeshCache meshCache = MeshCache.getInstance();
+        Mesh[] meshes = meshCache.acquireIfPresent(resourcePath, flags);
+        if (meshes != null) {
+            return meshes;
+        }
+        try (ModelData model = importModel(resourcePath, texturesDir, flags)) {
+            List<Material> materials = model.getMaterials();
+            TextureCache textCache = TextureCache.getInstance();
+            for (int i = 0; i < materials.size(); i++) {
+                String textureFile = model.getTextureFile(i);
+                if (textureFile != null) {
+                    materials.get(i).setTexture(textCache.acquire(textureFile));
+                }
+            }
+            meshes = meshCache.add(resourcePath, flags, model.createMeshes());
+            meshCache.retain(meshes);
+            return meshes;
+        }
+    }
+
+    /**
+     * Reads a model into native buffers without uploading anything, so it can
+     * be called from any thread. The result must be closed once the meshes
+     * are created.
+     */
+    public static ModelData importModel(String resourcePath, String texturesDir, int flags) throws Exception {
         AIScene aiScene = aiImportFile(resourcePath, flags);
         if (aiScene == null) {
             throw new Exception("Error loading model [resourcePath: "  + resourcePath + ", texturesDir:" + texturesDir + "]");
         }
+        try {
+            int numMaterials = aiScene.mNumMaterials();
+            PointerBuffer aiMaterials = aiScene.mMaterials();
+            List<Material> materials = new ArrayList<>();
+            List<String> textureFiles = new ArrayList<>();
+            for (int i = 0; i < numMaterials; i++) {
+                AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
+                materials.add(readMaterial(aiMaterial));
+                textureFiles.add(getTextureFile(aiMaterial, texturesDir));
+            }
 
-        int numMaterials = aiScene.mNumMaterials();
-        PointerBuffer aiMaterials = aiScene.mMaterials();
-        List<Material> materials = new ArrayList<>();
-        for (int i = 0; i < numMaterials; i++) {
-            AIMaterial aiMaterial = AIMaterial.create(aiMaterials.get(i));
-            processMaterial(aiMaterial, materials, texturesDir);
-        }
-
-        int numMeshes = aiScene.mNumMeshes();
-        PointerBuffer aiMeshes = aiScene.mMeshes();
-        Mesh[] meshes = new Mesh[numMeshes];
-        for (int i = 0; i < numMeshes; i++) {
-            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            Mesh mesh = processMesh(aiMesh, materials);
-            meshes[i] = mesh;
+            int numMeshes = aiScene.mNumMeshes();
+            PointerBuffer aiMeshes = aiScene.mMeshes();
+            List<MeshData> meshes = new ArrayList<>();
+            List<Material> meshMaterials = new ArrayList<>();
+            for (int i = 0; i < numMeshes; i++) {
+                AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+                meshes.add(readMesh(aiMesh));
+                int materialIdx = aiMesh.mMaterialIndex();
+                if (materialIdx >= 0 && materialIdx < materials.size()) {
+                    meshMaterials.add(materials.get(materialIdx));
+                } else {
+                    meshMaterials.add(new Material());
+                }
+            }
+            return new ModelData(meshes, meshMaterials, materials, textureFiles);
+        } finally {
+            aiReleaseImport(aiScene);
         }
-
-        return meshes;
     }
 
-    protected static void processIndices(AIMesh aiMesh, List<Integer> indices) {
+    protected static void processIndices(AIMesh aiMesh, NativeIntArrayBuilder indices) {
         int numFaces = aiMesh.mNumFaces();
         AIFace.Buffer aiFaces = aiMesh.mFaces();
+        // Triangulated by the import flags
+        indices.ensureCapacity(numFaces * 3);
         for (int i = 0; i < numFaces; i++) {
             AIFace aiFace = aiFaces.get(i);
             IntBuffer buffer = aiFace.mIndices();
@@ -79,23 +128,43 @@ public class StaticMeshesLoader {
 
     protected static void processMaterial(AIMaterial aiMaterial, List<Material> materials,
             String texturesDir) throws Exception {
-        AIColor4D colour = AIColor4D.create();
+        Material material = readMaterial(aiMaterial);
+        String textureFile = getTextureFile(aiMaterial, texturesDir);
+        if (textureFile != null) {
+            material.setTexture(TextureCache.getInstance().acquire(textureFile));
+        }
+        materials.add(material);
+    }
 
+    /**
+     * @return The path of the diffuse texture of a material, or null if it
+     * has none
+     */
+    protected static String getTextureFile(AIMaterial aiMaterial, String texturesDir) {
         AIString path = AIString.calloc();
-        Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null,
-                null, null, null, null, null);
-        String textPath = path.dataString();
-        Texture texture = null;
-        if (textPath != null && textPath.length() > 0) {
-            TextureCache textCache = TextureCache.getInstance();
+        try {
+            Assimp.aiGetMaterialTexture(aiMaterial, aiTextureType_DIFFUSE, 0, path, (IntBuffer) null,
+                    null, null, null, null, null);
+            String textPath = path.dataString();
+            if (textPath == null || textPath.length() == 0) {
+                return null;
+            }
             String textureFile = "";
 			if ( texturesDir != null && texturesDir.length() > 0 ) {
 				textureFile += texturesDir + "/";
 			}
 			textureFile += textPath;
-            textureFile = textureFile.replace("//", "/");
-            texture = textCache.getTexture(textureFile);
+            return textureFile.replace("//", "/");
+        } finally {
+            path.free();
         }
+    }
+
+    /**
+     * Reads the colours of a material. The texture is left unset.
+     */
+    protected static Material readMaterial(AIMaterial aiMaterial) {
+        AIColor4D colour = AIColor4D.create();
 
         Vector4f diffuse = Material.DEFAULT_COLOUR;
         int result = aiGetMaterialColor(aiMaterial, AI_MATKEY_COLOR_DIFFUSE, aiTextureType_NONE, 0,
@@ -111,70 +180,62 @@ public class StaticMeshesLoader {
             specular = new Vector4f(colour.r(), colour.g(), colour.b(), colour.a());
         }
 
-        Material material = new Material(diffuse, specular, 1.0f);
-        material.setTexture(texture);
-        materials.add(material);
+        return new Material(diffuse, specular, 1.0f);
     }
 
-    private static Mesh processMesh(AIMesh aiMesh, List<Material> materials) {
-        List<Float> vertices = new ArrayList<>();
-        List<Float> textures = new ArrayList<>();
-        List<Float> normals = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
-
+    /**
+     * Copies the vertices of a mesh to native builders, which are freed when
+     * the returned data is closed.
+     */
+    private static MeshData readMesh(AIMesh aiMesh) {
+        int numVertices = aiMesh.mNumVertices();
+        NativeFloatArrayBuilder vertices = new NativeFloatArrayBuilder(numVertices * 3);
+        NativeFloatArrayBuilder textures = new NativeFloatArrayBuilder(numVertices * 2);
+        NativeFloatArrayBuilder normals = new NativeFloatArrayBuilder(numVertices * 3);
+        NativeIntArrayBuilder indices = new NativeIntArrayBuilder();
         processVertices(aiMesh, vertices);
         processNormals(aiMesh, normals);
         processTextCoords(aiMesh, textures);
         processIndices(aiMesh, indices);
 
-        Mesh mesh = new Mesh(Utils.listToArray(vertices), Utils.listToArray(textures),
-                Utils.listToArray(normals), Utils.listIntToArray(indices));
-        Material material;
-        int materialIdx = aiMesh.mMaterialIndex();
-        if (materialIdx >= 0 && materialIdx < materials.size()) {
-            material = materials.get(materialIdx);
-        } else {
-            material = new Material();
-        }
-        mesh.setMaterial(material);
-
-		setMinAndMax(aiMesh, mesh);
-        return mesh;
+        MeshData data = new MeshData(vertices.getBuffer(), textures.getBuffer(), normals.getBuffer(), indices.getBuffer(), () -> {
+            vertices.close();
+            textures.close();
+            normals.close();
+            indices.close();
+        });
+        MeshOptimizer.optimize(data);
+        return data;
     }
 
-    protected static void processNormals(AIMesh aiMesh, List<Float> normals) {
+    protected static void processNormals(AIMesh aiMesh, NativeFloatArrayBuilder normals) {
         AIVector3D.Buffer aiNormals = aiMesh.mNormals();
         while (aiNormals != null && aiNormals.remaining() > 0) {
             AIVector3D aiNormal = aiNormals.get();
-            normals.add(aiNormal.x());
-            normals.add(aiNormal.y());
-            normals.add(aiNormal.z());
+            normals.add(aiNormal.x(), aiNormal.y(), aiNormal.z());
         }
     }
 
-    protected static void processTextCoords(AIMesh aiMesh, List<Float> textures) {
+    protected static void processTextCoords(AIMesh aiMesh, NativeFloatArrayBuilder textures) {
         AIVector3D.Buffer textCoords = aiMesh.mTextureCoords(0);
         int numTextCoords = textCoords != null ? textCoords.remaining() : 0;
         for (int i = 0; i < numTextCoords; i++) {
             AIVector3D textCoord = textCoords.get();
-            textures.add(textCoord.x());
-            textures.add(1 - textCoord.y());
+            textures.add(textCoord.x(), 1 - textCoord.y());
         }
     }
 
-    protected static void processVertices(AIMesh aiMesh, List<Float> vertices) {
+    protected static void processVertices(AIMesh aiMesh, NativeFloatArrayBuilder vertices) {
         AIVector3D.Buffer aiVertices = aiMesh.mVertices();
         while (aiVertices.remaining() > 0) {
             AIVector3D aiVertex = aiVertices.get();
-            vertices.add(aiVertex.x());
-            vertices.add(aiVertex.y());
-            vertices.add(aiVertex.z());
+            vertices.add(aiVertex.x(), aiVertex.y(), aiVertex.z());
         }
     }
 
     protected static void setMinAndMax(AIMesh aiMesh, Mesh mesh) {
     	Vector3f max = new Vector3f();
-    	max.set(Float.MIN_VALUE);
+    	max.set(-Float.MAX_VALUE);
     	Vector3f min = new Vector3f();
     	min.set(Float.MAX_VALUE);
 
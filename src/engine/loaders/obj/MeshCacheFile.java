@@ -0,0 +1,142 @@
+package engine.loaders.obj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.lwjgl.system.MemoryUtil;
+import engine.Utils;
+import engine.graph.Mesh;
+import engine.graph.MeshData;
+import engine.graph.VertexLayout;
+
+/**
+ * Binary copy of a parsed mesh, stored next to its source file. The vertices
+ * are packed in their {@link VertexLayout} and the data is in the native
+ * byte order, so a mapped file can be handed to the {@link Mesh}
+ * constructor and uploaded without copies.
+ *
+ * Layout: a header with a magic number, the version, the size and
+ * modification time of the source file, the vertex and index counts and
+ * the layout, followed by the packed vertices and the indices. A file whose
+ * header does not match the source is ignored. Since version 2 the
+ * triangles and vertices are stored in their optimized order, and since
+ * version 3 the vertices are packed.
+ */
+public class MeshCacheFile {
+
+    public static final String EXTENSION = ".mcache";
+
+    private static final int MAGIC = 0x4D434831;
+
+    private static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 40;
+
+    private static final int SOURCE_SIZE_OFFSET = 8;
+
+    private static final int SOURCE_TIME_OFFSET = 16;
+
+    private static final int NUM_VERTICES_OFFSET = 24;
+
+    private static final int NUM_INDICES_OFFSET = 28;
+
+    private static final int LAYOUT_OFFSET = 32;
+
+    private static final int HALF_TEXT_COORDS = 1;
+
+    private MeshCacheFile() {
+    }
+
+    /**
+     * Maps a cache file if it is valid for a source file.
+     *
+     * @param sourceSize Size in bytes of the source file
+     * @param sourceTime Modification time of the source file in milliseconds
+     * @return The mapped file, or null if it does not exist or is out of date
+     */
+    public static ByteBuffer map(Path cacheFile, long sourceSize, long sourceTime) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.nativeOrder());
+        } catch (NoSuchFileException excp) {
+            return null;
+        }
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION
+                || data.getLong(SOURCE_SIZE_OFFSET) != sourceSize || data.getLong(SOURCE_TIME_OFFSET) != sourceTime) {
+            return null;
+        }
+        long expectedSize = getSize(data.getInt(NUM_VERTICES_OFFSET), data.getInt(NUM_INDICES_OFFSET), getLayout(data));
+        return data.capacity() == expectedSize ? data : null;
+    }
+
+    /**
+     * Packs the result of a parser in a new native buffer, which must be
+     * released with MemoryUtil.memFree. The vertices are packed in the most
+     * compact layout for their texture coordinates.
+     */
+    public static ByteBuffer encode(OBJParser parser, long sourceSize, long sourceTime) {
+        int numVertices = parser.getNumVertices();
+        int numIndices = parser.getNumIndices();
+        FloatBuffer textCoords = FloatBuffer.wrap(parser.getTextCoords(), 0, numVertices * 2);
+        VertexLayout layout = VertexLayout.forData(textCoords, false);
+        ByteBuffer data = MemoryUtil.memCalloc((int) getSize(numVertices, numIndices, layout));
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(SOURCE_SIZE_OFFSET, sourceSize);
+        data.putLong(SOURCE_TIME_OFFSET, sourceTime);
+        data.putInt(NUM_VERTICES_OFFSET, numVertices);
+        data.putInt(NUM_INDICES_OFFSET, numIndices);
+        data.putInt(LAYOUT_OFFSET, layout.isHalfTextCoords() ? HALF_TEXT_COORDS : 0);
+
+        int verticesSize = numVertices * layout.getStride();
+        layout.pack(slice(data, HEADER_SIZE, verticesSize), FloatBuffer.wrap(parser.getPositions(), 0, numVertices * 3),
+                textCoords, FloatBuffer.wrap(parser.getNormals(), 0, numVertices * 3), null, null);
+        slice(data, HEADER_SIZE + verticesSize, numIndices * 4).asIntBuffer().put(parser.getIndices(), 0, numIndices);
+        return data;
+    }
+
+    public static void save(Path cacheFile, ByteBuffer data) throws IOException {
+        Utils.writeAtomically(cacheFile, data);
+    }
+
+    /**
+     * Wraps cached data without copying it, so the vertex buffers are
+     * uploaded directly from it.
+     *
+     * @param release Frees the data when the mesh data is closed, or null
+     */
+    public static MeshData decode(ByteBuffer data, Runnable release) {
+        int numVertices = data.getInt(NUM_VERTICES_OFFSET);
+        int numIndices = data.getInt(NUM_INDICES_OFFSET);
+        VertexLayout layout = getLayout(data);
+        int verticesSize = numVertices * layout.getStride();
+        ByteBuffer vertices = slice(data, HEADER_SIZE, verticesSize);
+        IntBuffer indices = slice(data, HEADER_SIZE + verticesSize, numIndices * 4).asIntBuffer();
+        return new MeshData(vertices, layout, indices, release);
+    }
+
+    private static VertexLayout getLayout(ByteBuffer data) {
+        return (data.getInt(LAYOUT_OFFSET) & HALF_TEXT_COORDS) != 0 ? VertexLayout.COMPACT : VertexLayout.FLOAT_TEXT_COORDS;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static long getSize(int numVertices, int numIndices, VertexLayout layout) {
+        return HEADER_SIZE + (long) numVertices * layout.getStride() + (long) numIndices * 4;
+    }
+}
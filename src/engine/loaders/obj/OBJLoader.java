@@ -1,173 +1,86 @@
 package engine.loaders.obj;
 
-import java.util.ArrayList;
-import java.util.List;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
-import engine.Utils;
-import engine.graph.InstancedMesh;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import org.lwjgl.system.MemoryUtil;
 import engine.graph.Mesh;
-
+import engine.graph.MeshData;
+import engine.graph.MeshOptimizer;
+
+/**
+ * Loads the geometry of OBJ files. The first load of a file parses it,
+ * reorders it with the {@link MeshOptimizer}, packs the vertices and writes
+ * a {@link MeshCacheFile} next to it, and the next loads map that file
+ * instead of parsing again, until the OBJ file changes.
+ */
 public class OBJLoader {
 
-    public static Mesh loadMesh(String fileName) throws Exception {
-        return loadMesh(fileName, 1);
-    }
+    private static boolean cacheEnabled = true;
 
-    public static Mesh loadMesh(String fileName, int instances) throws Exception {
-        List<String> lines = Utils.readAllLines(fileName);
-
-        List<Vector3f> vertices = new ArrayList<>();
-        List<Vector2f> textures = new ArrayList<>();
-        List<Vector3f> normals = new ArrayList<>();
-        List<Face> faces = new ArrayList<>();
-
-        for (String line : lines) {
-            String[] tokens = line.split("\\s+");
-            switch (tokens[0]) {
-                case "v":
-                    // Geometric vertex
-                    Vector3f vec3f = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    vertices.add(vec3f);
-                    break;
-                case "vt":
-                    // Texture coordinate
-                    Vector2f vec2f = new Vector2f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]));
-                    textures.add(vec2f);
-                    break;
-                case "vn":
-                    // Vertex normal
-                    Vector3f vec3fNorm = new Vector3f(
-                            Float.parseFloat(tokens[1]),
-                            Float.parseFloat(tokens[2]),
-                            Float.parseFloat(tokens[3]));
-                    normals.add(vec3fNorm);
-                    break;
-                case "f":
-                    Face face = new Face(tokens[1], tokens[2], tokens[3]);
-                    faces.add(face);
-                    break;
-                default:
-                    // Ignore other lines
-                    break;
-            }
-        }
-        return reorderLists(vertices, textures, normals, faces, instances);
+    public static boolean isCacheEnabled() {
+        return cacheEnabled;
     }
 
-    private static Mesh reorderLists(List<Vector3f> posList, List<Vector2f> textCoordList,
-            List<Vector3f> normList, List<Face> facesList, int instances) {
-
-        List<Integer> indices = new ArrayList<>();
-        // Create position array in the order it has been declared
-        float[] posArr = new float[posList.size() * 3];
-        int i = 0;
-        for (Vector3f pos : posList) {
-            posArr[i * 3] = pos.x;
-            posArr[i * 3 + 1] = pos.y;
-            posArr[i * 3 + 2] = pos.z;
-            i++;
-        }
-        float[] textCoordArr = new float[posList.size() * 2];
-        float[] normArr = new float[posList.size() * 3];
-
-        for (Face face : facesList) {
-            IdxGroup[] faceVertexIndices = face.getFaceVertexIndices();
-            for (IdxGroup indValue : faceVertexIndices) {
-                processFaceVertex(indValue, textCoordList, normList,
-                        indices, textCoordArr, normArr);
-            }
-        }
-        int[] indicesArr = Utils.listIntToArray(indices);
-        Mesh mesh;
-        if (instances > 1) {
-            mesh = new InstancedMesh(posArr, textCoordArr, normArr, indicesArr, instances);
-        } else {
-            mesh = new Mesh(posArr, textCoordArr, normArr, indicesArr);
-        }
-        return mesh;
+    /**
+     * Enables or disables the reading and writing of the binary cache files.
+     */
+    public static void setCacheEnabled(boolean cacheEnabled) {
+        OBJLoader.cacheEnabled = cacheEnabled;
     }
 
-    private static void processFaceVertex(IdxGroup indices, List<Vector2f> textCoordList,
-            List<Vector3f> normList, List<Integer> indicesList,
-            float[] texCoordArr, float[] normArr) {
-
-        // Set index for vertex coordinates
-        int posIndex = indices.idxPos;
-        indicesList.add(posIndex);
-
-        // Reorder texture coordinates
-        if (indices.idxTextCoord >= 0) {
-            Vector2f textCoord = textCoordList.get(indices.idxTextCoord);
-            texCoordArr[posIndex * 2] = textCoord.x;
-            texCoordArr[posIndex * 2 + 1] = 1 - textCoord.y;
-        }
-        if (indices.idxVecNormal >= 0) {
-            // Reorder vectornormals
-            Vector3f vecNorm = normList.get(indices.idxVecNormal);
-            normArr[posIndex * 3] = vecNorm.x;
-            normArr[posIndex * 3 + 1] = vecNorm.y;
-            normArr[posIndex * 3 + 2] = vecNorm.z;
-        }
+    public static Mesh loadMesh(String fileName) throws Exception {
+        return loadMesh(fileName, 1);
     }
 
-    protected static class Face {
-
-        /**
-         * List of idxGroup groups for a face triangle (3 vertices per face).
-         */
-        private IdxGroup[] idxGroups = new IdxGroup[3];
-
-        public Face(String v1, String v2, String v3) {
-            idxGroups = new IdxGroup[3];
-            // Parse the lines
-            idxGroups[0] = parseLine(v1);
-            idxGroups[1] = parseLine(v2);
-            idxGroups[2] = parseLine(v3);
+    public static Mesh loadMesh(String fileName, int instances) throws Exception {
+        try (MeshData data = loadMeshData(fileName)) {
+            return data.createMesh(instances);
         }
+    }
 
-        private IdxGroup parseLine(String line) {
-            IdxGroup idxGroup = new IdxGroup();
-
-            String[] lineTokens = line.split("/");
-            int length = lineTokens.length;
-            idxGroup.idxPos = Integer.parseInt(lineTokens[0]) - 1;
-            if (length > 1) {
-                // It can be empty if the obj does not define text coords
-                String textCoord = lineTokens[1];
-                idxGroup.idxTextCoord = textCoord.length() > 0 ? Integer.parseInt(textCoord) - 1 : IdxGroup.NO_VALUE;
-                if (length > 2) {
-                    idxGroup.idxVecNormal = Integer.parseInt(lineTokens[2]) - 1;
-                }
+    /**
+     * Reads the geometry of a file without uploading it, so it can be called
+     * from any thread. The result must be closed once the mesh is created.
+     */
+    public static MeshData loadMeshData(String fileName) throws Exception {
+        Path source = Paths.get(fileName);
+        long sourceSize = Files.size(source);
+        long sourceTime = Files.getLastModifiedTime(source).toMillis();
+        Path cacheFile = Paths.get(fileName + MeshCacheFile.EXTENSION);
+
+        if (cacheEnabled) {
+            ByteBuffer cached = MeshCacheFile.map(cacheFile, sourceSize, sourceTime);
+            if (cached != null) {
+                return MeshCacheFile.decode(cached, null);
             }
-
-            return idxGroup;
         }
 
-        public IdxGroup[] getFaceVertexIndices() {
-            return idxGroups;
+        OBJParser parser = new OBJParser();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            parser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, sourceSize));
         }
-    }
-
-    protected static class IdxGroup {
-
-        public static final int NO_VALUE = -1;
-
-        public int idxPos;
-
-        public int idxTextCoord;
-
-        public int idxVecNormal;
-
-        public IdxGroup() {
-            idxPos = NO_VALUE;
-            idxTextCoord = NO_VALUE;
-            idxVecNormal = NO_VALUE;
+        int numVertices = parser.getNumVertices();
+        MeshOptimizer.optimize(FloatBuffer.wrap(parser.getPositions(), 0, numVertices * 3),
+                FloatBuffer.wrap(parser.getTextCoords(), 0, numVertices * 2),
+                FloatBuffer.wrap(parser.getNormals(), 0, numVertices * 3),
+                IntBuffer.wrap(parser.getIndices(), 0, parser.getNumIndices()), null, null);
+        ByteBuffer data = MeshCacheFile.encode(parser, sourceSize, sourceTime);
+        MeshData meshData = MeshCacheFile.decode(data, () -> MemoryUtil.memFree(data));
+        if (cacheEnabled) {
+            try {
+                MeshCacheFile.save(cacheFile, data);
+            } catch (IOException excp) {
+                // Without the cache the next load parses the file again
+                System.err.println("Could not write mesh cache " + cacheFile + ": " + excp);
+            }
         }
+        return meshData;
     }
 }
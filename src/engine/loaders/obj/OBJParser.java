@@ -0,0 +1,367 @@
+package engine.loaders.obj;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import engine.collections.FloatArrayBuilder;
+import engine.collections.IntArrayBuilder;
+
+/**
+ * Parses the geometry of an OBJ file straight from its bytes. Vertices,
+ * texture coordinates, normals and face corners are stored in primitive
+ * array builders, so the number of objects created does not depend on the
+ * size of the file.
+ *
+ * Only the v, vt, vn and f statements are read. Faces with more than three
+ * vertices are split in a fan of triangles, and negative (relative) indices
+ * are supported.
+ */
+public class OBJParser {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int MAX_MANTISSA_DIGITS = 18;
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int NO_VALUE = -1;
+
+    private ByteBuffer data;
+
+    private int pos;
+
+    private int end;
+
+    private final FloatArrayBuilder positions;
+
+    private final FloatArrayBuilder textCoords;
+
+    private final FloatArrayBuilder normals;
+
+    /**
+     * Position, texture coordinate and normal indices of each triangle
+     * corner, in file order.
+     */
+    private final IntArrayBuilder corners;
+
+    /**
+     * Corners of the face being parsed, before triangulation.
+     */
+    private final IntArrayBuilder faceCorners;
+
+    private float[] vertexTextCoords;
+
+    private float[] vertexNormals;
+
+    private int[] indices;
+
+    public OBJParser() {
+        positions = new FloatArrayBuilder(INITIAL_CAPACITY * 3);
+        textCoords = new FloatArrayBuilder(INITIAL_CAPACITY * 2);
+        normals = new FloatArrayBuilder(INITIAL_CAPACITY * 3);
+        corners = new IntArrayBuilder(INITIAL_CAPACITY * 3);
+        faceCorners = new IntArrayBuilder(4 * 3);
+    }
+
+    /**
+     * Parses the bytes between the position and the limit of a buffer.
+     * The buffer is not modified.
+     */
+    public void parse(ByteBuffer data) {
+        this.data = data;
+        pos = data.position();
+        end = data.limit();
+        positions.clear();
+        textCoords.clear();
+        normals.clear();
+        corners.clear();
+
+        while (pos < end) {
+            skipSpaces();
+            if (pos >= end) {
+                break;
+            }
+            byte c = data.get(pos);
+            if (c == 'v' && isSpace(pos + 1)) {
+                pos++;
+                float x = parseFloat();
+                float y = parseFloat();
+                positions.add(x, y, parseFloat());
+            } else if (c == 'v' && peek(pos + 1) == 't' && isSpace(pos + 2)) {
+                pos += 2;
+                float u = parseFloat();
+                textCoords.add(u, parseFloat());
+            } else if (c == 'v' && peek(pos + 1) == 'n' && isSpace(pos + 2)) {
+                pos += 2;
+                float x = parseFloat();
+                float y = parseFloat();
+                normals.add(x, y, parseFloat());
+            } else if (c == 'f' && isSpace(pos + 1)) {
+                pos++;
+                parseFace();
+            }
+            skipLine();
+        }
+        this.data = null;
+        buildVertices();
+    }
+
+    public int getNumVertices() {
+        return positions.size() / 3;
+    }
+
+    public int getNumIndices() {
+        return corners.size() / 3;
+    }
+
+    /**
+     * @return The positions, three per vertex. The array may be longer than
+     * the data.
+     */
+    public float[] getPositions() {
+        return positions.getData();
+    }
+
+    /**
+     * @return The texture coordinates, two per vertex, with the vertical
+     * axis flipped. Zero for the vertices without them.
+     */
+    public float[] getTextCoords() {
+        return vertexTextCoords;
+    }
+
+    /**
+     * @return The normals, three per vertex. Zero for the vertices without
+     * them.
+     */
+    public float[] getNormals() {
+        return vertexNormals;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Vertices are the positions in the order they have been declared, and
+     * each takes the texture coordinates and normal of the last face corner
+     * that references it.
+     */
+    private void buildVertices() {
+        int numPositions = getNumVertices();
+        int numTextCoords = textCoords.size() / 2;
+        int numNormals = normals.size() / 3;
+        int numCorners = getNumIndices();
+        float[] textCoords = this.textCoords.getData();
+        float[] normals = this.normals.getData();
+        int[] corners = this.corners.getData();
+        vertexTextCoords = new float[numPositions * 2];
+        vertexNormals = new float[numPositions * 3];
+        indices = new int[numCorners];
+        for (int i = 0; i < numCorners; i++) {
+            int posIndex = corners[i * 3];
+            int textCoordIndex = corners[i * 3 + 1];
+            int normalIndex = corners[i * 3 + 2];
+            if (posIndex < 0 || posIndex >= numPositions || textCoordIndex >= numTextCoords || normalIndex >= numNormals
+                    || textCoordIndex < NO_VALUE || normalIndex < NO_VALUE) {
+                throw new IllegalArgumentException("Invalid index in face corner " + i);
+            }
+            indices[i] = posIndex;
+            if (textCoordIndex != NO_VALUE) {
+                vertexTextCoords[posIndex * 2] = textCoords[textCoordIndex * 2];
+                vertexTextCoords[posIndex * 2 + 1] = 1 - textCoords[textCoordIndex * 2 + 1];
+            }
+            if (normalIndex != NO_VALUE) {
+                vertexNormals[posIndex * 3] = normals[normalIndex * 3];
+                vertexNormals[posIndex * 3 + 1] = normals[normalIndex * 3 + 1];
+                vertexNormals[posIndex * 3 + 2] = normals[normalIndex * 3 + 2];
+            }
+        }
+    }
+
+    private void parseFace() {
+        faceCorners.clear();
+        skipSpaces();
+        while (pos < end && !isLineEnd(data.get(pos))) {
+            int index = parseInt();
+            if (index == Integer.MIN_VALUE) {
+                throw new IllegalArgumentException("Missing vertex index in face at offset " + (pos - data.position()));
+            }
+            int posIndex = resolveIndex(index, positions.size() / 3);
+            int textCoordIndex = NO_VALUE;
+            int normalIndex = NO_VALUE;
+            if (peek(pos) == '/') {
+                pos++;
+                if (peek(pos) != '/') {
+                    // It can be empty if the obj does not define text coords
+                    textCoordIndex = resolveIndex(parseInt(), textCoords.size() / 2);
+                }
+                if (peek(pos) == '/') {
+                    pos++;
+                    normalIndex = resolveIndex(parseInt(), normals.size() / 3);
+                }
+            }
+            faceCorners.add(posIndex, textCoordIndex, normalIndex);
+            skipSpaces();
+        }
+
+        // Split in a fan of triangles around the first corner
+        int numFaceCorners = faceCorners.size() / 3;
+        for (int i = 1; i < numFaceCorners - 1; i++) {
+            addCorner(0);
+            addCorner(i);
+            addCorner(i + 1);
+        }
+    }
+
+    private void addCorner(int faceCorner) {
+        int[] data = faceCorners.getData();
+        corners.add(data[faceCorner * 3], data[faceCorner * 3 + 1], data[faceCorner * 3 + 2]);
+    }
+
+    private static int resolveIndex(int index, int count) {
+        if (index == Integer.MIN_VALUE) {
+            return NO_VALUE;
+        }
+        return index < 0 ? count + index : index - 1;
+    }
+
+    /**
+     * @return The integer at the current position, or Integer.MIN_VALUE if
+     * there are no digits
+     */
+    private int parseInt() {
+        boolean negative = false;
+        byte c = peek(pos);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+        if (!isDigit(peek(pos))) {
+            return Integer.MIN_VALUE;
+        }
+        int value = 0;
+        while (isDigit(peek(pos))) {
+            value = value * 10 + (data.get(pos) - '0');
+            pos++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number with an optional exponent. The digits are
+     * accumulated in a long and scaled once by an exact power of ten, which
+     * is accurate for the precision of a float. Other forms, such as nan or
+     * inf, go through Float.parseFloat.
+     */
+    private float parseFloat() {
+        skipSpaces();
+        int start = pos;
+        boolean negative = false;
+        byte c = peek(pos);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        while (isDigit(peek(pos))) {
+            int digit = data.get(pos) - '0';
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + digit;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            anyDigit = true;
+            pos++;
+        }
+        if (peek(pos) == '.') {
+            pos++;
+            while (isDigit(peek(pos))) {
+                int digit = data.get(pos) - '0';
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + digit;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                anyDigit = true;
+                pos++;
+            }
+        }
+        c = peek(pos);
+        if (anyDigit && (c == 'e' || c == 'E')) {
+            pos++;
+            int exponentValue = parseInt();
+            if (exponentValue == Integer.MIN_VALUE) {
+                return parseFloatFallback(start);
+            }
+            exponent += exponentValue;
+        }
+        if (!anyDigit || !isSeparator(peek(pos))) {
+            return parseFloatFallback(start);
+        }
+
+        double value = mantissa;
+        if (exponent < 0) {
+            value = -exponent < POWERS_OF_TEN.length ? value / POWERS_OF_TEN[-exponent] : value / Math.pow(10, -exponent);
+        } else if (exponent > 0) {
+            value = exponent < POWERS_OF_TEN.length ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10, exponent);
+        }
+        return (float) (negative ? -value : value);
+    }
+
+    private float parseFloatFallback(int start) {
+        pos = start;
+        while (pos < end && !isSeparator(data.get(pos))) {
+            pos++;
+        }
+        byte[] token = new byte[pos - start];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = data.get(start + i);
+        }
+        return Float.parseFloat(new String(token, StandardCharsets.US_ASCII));
+    }
+
+    private void skipSpaces() {
+        while (pos < end && isSpace(pos)) {
+            pos++;
+        }
+    }
+
+    private void skipLine() {
+        while (pos < end && data.get(pos) != '\n') {
+            pos++;
+        }
+        pos++;
+    }
+
+    private byte peek(int index) {
+        return index < end ? data.get(index) : (byte) '\n';
+    }
+
+    private boolean isSpace(int index) {
+        byte c = peek(index);
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLineEnd(byte c) {
+        return c == '\n' || c == '#';
+    }
+
+    private static boolean isSeparator(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '/' || c == '#';
+    }
+}
@@ -0,0 +1,252 @@
+package engine.loaders.texture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL11.*;
+import org.lwjgl.system.MemoryUtil;
+import engine.Utils;
+import engine.graph.TextureData;
+
+/**
+ * Texture in the KTX 1 format, stored next to its source image. It holds
+ * the whole mipmap chain as the GL expects it, so a mapped file can be
+ * uploaded without decoding or copying it.
+ *
+ * The size and modification time of the source image are stored in a
+ * key/value pair, and a file whose values do not match the source, or
+ * whose format is not the one requested, is ignored. Only 2D textures in
+ * RGBA8, DXT1 and DXT5 written in the native byte order are read.
+ */
+public class KTXFile {
+
+    public static final String EXTENSION = ".ktx";
+
+    private static final byte[] IDENTIFIER = {
+        (byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB, '\r', '\n', 0x1A, '\n'
+    };
+
+    private static final int ENDIANNESS = 0x04030201;
+
+    private static final String SOURCE_KEY = "engine.source";
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int GL_TYPE_OFFSET = 16;
+
+    private static final int GL_FORMAT_OFFSET = 24;
+
+    private static final int GL_INTERNAL_FORMAT_OFFSET = 28;
+
+    private static final int WIDTH_OFFSET = 36;
+
+    private static final int HEIGHT_OFFSET = 40;
+
+    private static final int NUM_LEVELS_OFFSET = 56;
+
+    private static final int KEY_VALUE_SIZE_OFFSET = 60;
+
+    /**
+     * Size of the only key/value pair: its length, the key with its null
+     * terminator, the size and time of the source, and the padding.
+     */
+    private static final int KEY_VALUE_SIZE = align(4 + SOURCE_KEY.length() + 1 + 16);
+
+    private KTXFile() {
+    }
+
+    /**
+     * Maps a file if it is valid for a source image.
+     *
+     * @param sourceSize Size in bytes of the source image
+     * @param sourceTime Modification time of the source image in milliseconds
+     * @param compressed Whether the texture must be compressed
+     * @return The mapped file, or null if it does not exist, is out of date
+     * or has another format
+     */
+    public static ByteBuffer map(Path file, long sourceSize, long sourceTime, boolean compressed) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + KEY_VALUE_SIZE || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.nativeOrder());
+        } catch (NoSuchFileException excp) {
+            return null;
+        }
+        for (int i = 0; i < IDENTIFIER.length; i++) {
+            if (data.get(i) != IDENTIFIER[i]) {
+                return null;
+            }
+        }
+        if (data.getInt(IDENTIFIER.length) != ENDIANNESS || data.getInt(KEY_VALUE_SIZE_OFFSET) != KEY_VALUE_SIZE
+                || !hasSource(data, sourceSize, sourceTime)) {
+            return null;
+        }
+        int internalFormat = data.getInt(GL_INTERNAL_FORMAT_OFFSET);
+        if (compressed ? !isCompressed(internalFormat) : internalFormat != GL_RGBA8) {
+            return null;
+        }
+        int width = data.getInt(WIDTH_OFFSET);
+        int height = data.getInt(HEIGHT_OFFSET);
+        int numLevels = data.getInt(NUM_LEVELS_OFFSET);
+        if (width <= 0 || height <= 0 || numLevels <= 0 || numLevels > TextureConverter.getNumLevels(width, height)) {
+            return null;
+        }
+        long expectedSize = getSize(width, height, internalFormat, numLevels);
+        return data.capacity() == expectedSize ? data : null;
+    }
+
+    /**
+     * Converts an RGBA8 image, building its mipmaps and compressing them if
+     * requested, and stores it in a new native buffer, which must be
+     * released with MemoryUtil.memFree.
+     */
+    public static ByteBuffer encode(TextureData image, boolean compress, long sourceSize, long sourceTime) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer pixels = image.getPixels();
+        int internalFormat = GL_RGBA8;
+        if (compress) {
+            internalFormat = TextureConverter.hasAlpha(pixels, width * height)
+                    ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+        }
+        int numLevels = TextureConverter.getNumLevels(width, height);
+        ByteBuffer data = MemoryUtil.memAlloc((int) getSize(width, height, internalFormat, numLevels))
+                .order(ByteOrder.nativeOrder());
+        data.put(IDENTIFIER);
+        data.putInt(ENDIANNESS);
+        data.putInt(compress ? 0 : GL_UNSIGNED_BYTE);
+        data.putInt(1);
+        data.putInt(compress ? 0 : GL_RGBA);
+        data.putInt(internalFormat);
+        data.putInt(internalFormat == GL_COMPRESSED_RGB_S3TC_DXT1_EXT ? GL_RGB : GL_RGBA);
+        data.putInt(width);
+        data.putInt(height);
+        // Depth, array elements and faces
+        data.putInt(0);
+        data.putInt(0);
+        data.putInt(1);
+        data.putInt(numLevels);
+        data.putInt(KEY_VALUE_SIZE);
+
+        int keyValueStart = data.position();
+        data.putInt(SOURCE_KEY.length() + 1 + 16);
+        data.put(SOURCE_KEY.getBytes(StandardCharsets.US_ASCII));
+        data.put((byte) 0);
+        data.putLong(sourceSize);
+        data.putLong(sourceTime);
+        while (data.position() < keyValueStart + KEY_VALUE_SIZE) {
+            data.put((byte) 0);
+        }
+
+        // Each level is built from the previous one
+        ByteBuffer level = pixels;
+        ByteBuffer scratch = null;
+        try {
+            for (int i = 0; i < numLevels; i++) {
+                int levelWidth = Math.max(1, width >> i);
+                int levelHeight = Math.max(1, height >> i);
+                if (i > 0) {
+                    ByteBuffer next = MemoryUtil.memAlloc(levelWidth * levelHeight * 4);
+                    TextureConverter.downsample(level, Math.max(1, width >> (i - 1)), Math.max(1, height >> (i - 1)),
+                            next, levelWidth, levelHeight);
+                    MemoryUtil.memFree(scratch);
+                    scratch = next;
+                    level = next;
+                }
+                int levelSize = getLevelSize(levelWidth, levelHeight, internalFormat);
+                data.putInt(levelSize);
+                ByteBuffer dest = slice(data, data.position(), levelSize);
+                if (compress) {
+                    TextureConverter.compress(level, levelWidth, levelHeight,
+                            internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5_EXT, dest);
+                } else {
+                    MemoryUtil.memCopy(MemoryUtil.memAddress(level), MemoryUtil.memAddress(dest), levelSize);
+                }
+                data.position(data.position() + align(levelSize));
+            }
+        } finally {
+            MemoryUtil.memFree(scratch);
+        }
+        data.position(0);
+        return data;
+    }
+
+    /**
+     * Wraps the levels of a file without copying them.
+     *
+     * @param release Frees the data when the texture data is closed, or null
+     */
+    public static TextureData decode(ByteBuffer data, Runnable release) {
+        int width = data.getInt(WIDTH_OFFSET);
+        int height = data.getInt(HEIGHT_OFFSET);
+        int internalFormat = data.getInt(GL_INTERNAL_FORMAT_OFFSET);
+        ByteBuffer[] levels = new ByteBuffer[data.getInt(NUM_LEVELS_OFFSET)];
+        int offset = HEADER_SIZE + KEY_VALUE_SIZE;
+        for (int i = 0; i < levels.length; i++) {
+            int levelSize = data.getInt(offset);
+            levels[i] = slice(data, offset + 4, levelSize);
+            offset += 4 + align(levelSize);
+        }
+        return new TextureData(width, height, internalFormat, levels, release);
+    }
+
+    public static void save(Path file, ByteBuffer data) throws IOException {
+        Utils.writeAtomically(file, data);
+    }
+
+    private static boolean hasSource(ByteBuffer data, long sourceSize, long sourceTime) {
+        int offset = HEADER_SIZE;
+        if (data.getInt(offset) != SOURCE_KEY.length() + 1 + 16) {
+            return false;
+        }
+        offset += 4;
+        byte[] key = SOURCE_KEY.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < key.length; i++) {
+            if (data.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        offset += key.length + 1;
+        return data.getLong(offset) == sourceSize && data.getLong(offset + 8) == sourceTime;
+    }
+
+    private static boolean isCompressed(int internalFormat) {
+        return internalFormat == GL_COMPRESSED_RGB_S3TC_DXT1_EXT || internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+    }
+
+    private static int getLevelSize(int width, int height, int internalFormat) {
+        if (!isCompressed(internalFormat)) {
+            return width * height * 4;
+        }
+        int blockSize = internalFormat == GL_COMPRESSED_RGBA_S3TC_DXT5_EXT ? 16 : 8;
+        return ((width + 3) / 4) * ((height + 3) / 4) * blockSize;
+    }
+
+    private static long getSize(int width, int height, int internalFormat, int numLevels) {
+        long size = HEADER_SIZE + KEY_VALUE_SIZE;
+        for (int i = 0; i < numLevels; i++) {
+            size += 4 + align(getLevelSize(Math.max(1, width >> i), Math.max(1, height >> i), internalFormat));
+        }
+        return size;
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice().order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,107 @@
+package engine.loaders.texture;
+
+import java.nio.ByteBuffer;
+import static org.lwjgl.stb.STBDXT.*;
+import static org.lwjgl.stb.STBImageResize.*;
+import org.lwjgl.system.MemoryUtil;
+import engine.graph.TextureData;
+
+/**
+ * Builds mipmaps and S3TC blocks from RGBA8 images on the CPU, so they can
+ * be stored in a {@link KTXFile} instead of being generated at load time.
+ *
+ * It can also be run to convert images ahead of time:
+ * TextureConverter [--compressed] image...
+ */
+public class TextureConverter {
+
+    private static final int BLOCK_PIXELS = 4;
+
+    private TextureConverter() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        TextureLoader.setCacheEnabled(true);
+        for (String arg : args) {
+            if (arg.equals("--compressed")) {
+                TextureLoader.setCompressionEnabled(true);
+                continue;
+            }
+            try (TextureData data = TextureLoader.loadTextureData(arg)) {
+                System.out.println(arg + KTXFile.EXTENSION + ": " + data.getWidth() + "x" + data.getHeight() + ", "
+                        + data.getNumLevels() + " levels" + (data.isCompressed() ? ", compressed" : ""));
+            }
+        }
+    }
+
+    /**
+     * @return The number of levels of a full mipmap chain, down to 1x1
+     */
+    public static int getNumLevels(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+    }
+
+    /**
+     * @return True if any of the pixels is not fully opaque
+     */
+    public static boolean hasAlpha(ByteBuffer rgba, int numPixels) {
+        long address = MemoryUtil.memAddress(rgba);
+        for (int i = 0; i < numPixels; i++) {
+            if (MemoryUtil.memGetByte(address + i * 4 + 3) != (byte) 0xFF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resizes an RGBA8 image to the size of the next mipmap level.
+     */
+    public static void downsample(ByteBuffer src, int width, int height, ByteBuffer dest, int destWidth, int destHeight) {
+        if (!stbir_resize_uint8(src, width, height, 0, dest, destWidth, destHeight, 0, 4)) {
+            throw new IllegalStateException("Could not resize image to " + destWidth + "x" + destHeight);
+        }
+    }
+
+    /**
+     * Compresses an RGBA8 image in blocks of 4x4 pixels, DXT5 if it has
+     * alpha and DXT1 if not. The pixels past the right and bottom edges
+     * repeat the last column and row.
+     */
+    public static void compress(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer dest) {
+        int blockSize = alpha ? 16 : 8;
+        int blocksX = (width + BLOCK_PIXELS - 1) / BLOCK_PIXELS;
+        int blocksY = (height + BLOCK_PIXELS - 1) / BLOCK_PIXELS;
+        long src = MemoryUtil.memAddress(rgba);
+        long out = MemoryUtil.memAddress(dest);
+        ByteBuffer block = MemoryUtil.memAlloc(BLOCK_PIXELS * BLOCK_PIXELS * 4);
+        try {
+            long blockAddress = MemoryUtil.memAddress(block);
+            for (int by = 0; by < blocksY; by++) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int x0 = bx * BLOCK_PIXELS;
+                    int y0 = by * BLOCK_PIXELS;
+                    if (x0 + BLOCK_PIXELS <= width && y0 + BLOCK_PIXELS <= height) {
+                        for (int row = 0; row < BLOCK_PIXELS; row++) {
+                            MemoryUtil.memCopy(src + ((long) (y0 + row) * width + x0) * 4,
+                                    blockAddress + row * BLOCK_PIXELS * 4, BLOCK_PIXELS * 4);
+                        }
+                    } else {
+                        for (int row = 0; row < BLOCK_PIXELS; row++) {
+                            int y = Math.min(y0 + row, height - 1);
+                            for (int col = 0; col < BLOCK_PIXELS; col++) {
+                                int x = Math.min(x0 + col, width - 1);
+                                MemoryUtil.memPutInt(blockAddress + (row * BLOCK_PIXELS + col) * 4,
+                                        MemoryUtil.memGetInt(src + ((long) y * width + x) * 4));
+                            }
+                        }
+                    }
+                    nstb_compress_dxt_block(out, blockAddress, alpha ? 1 : 0, STB_DXT_HIGHQUAL);
+                    out += blockSize;
+                }
+            }
+        } finally {
+            MemoryUtil.memFree(block);
+        }
+    }
+}
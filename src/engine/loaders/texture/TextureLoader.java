@@ -0,0 +1,96 @@
+package engine.loaders.texture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.lwjgl.system.MemoryUtil;
+import engine.Utils;
+import engine.graph.TextureData;
+
+/**
+ * Loads image files as textures with their mipmaps. The first load of a
+ * file decodes it, builds the mipmaps, compresses them if enabled and
+ * writes a {@link KTXFile} next to it. The next loads map that file
+ * instead, until the image changes.
+ *
+ * Images that are not files, such as classpath resources, are converted
+ * every time.
+ */
+public class TextureLoader {
+
+    private static boolean cacheEnabled = true;
+
+    private static boolean compressionEnabled = false;
+
+    public static boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * Enables or disables the reading and writing of the KTX files.
+     */
+    public static void setCacheEnabled(boolean cacheEnabled) {
+        TextureLoader.cacheEnabled = cacheEnabled;
+    }
+
+    public static boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Enables or disables the S3TC compression of the textures, which is
+     * lossy and disabled by default. It must stay disabled if the GL does
+     * not support EXT_texture_compression_s3tc.
+     */
+    public static void setCompressionEnabled(boolean compressionEnabled) {
+        TextureLoader.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Reads a texture without uploading it, so it can be called from any
+     * thread. The result must be closed once the texture is created.
+     */
+    public static TextureData loadTextureData(String fileName) throws Exception {
+        boolean compress = compressionEnabled;
+        Path source = Paths.get(fileName);
+        boolean isFile = Files.isReadable(source);
+        long sourceSize = isFile ? Files.size(source) : 0;
+        long sourceTime = isFile ? Files.getLastModifiedTime(source).toMillis() : 0;
+        Path cacheFile = Paths.get(fileName + KTXFile.EXTENSION);
+        boolean useCache = cacheEnabled && isFile;
+
+        if (useCache) {
+            ByteBuffer cached = KTXFile.map(cacheFile, sourceSize, sourceTime, compress);
+            if (cached != null) {
+                return KTXFile.decode(cached, null);
+            }
+        }
+
+        ByteBuffer data;
+        try (TextureData image = decodeImage(fileName)) {
+            data = KTXFile.encode(image, compress, sourceSize, sourceTime);
+        }
+        if (useCache) {
+            try {
+                KTXFile.save(cacheFile, data);
+            } catch (IOException excp) {
+                // Without the cache the next load converts the image again
+                System.err.println("Could not write texture cache " + cacheFile + ": " + excp);
+            }
+        }
+        return KTXFile.decode(data, () -> MemoryUtil.memFree(data));
+    }
+
+    private static TextureData decodeImage(String fileName) throws Exception {
+        ByteBuffer imageData = Utils.ioResourceToByteBuffer(fileName, 1024);
+        try {
+            return TextureData.decode(imageData);
+        } catch (Exception excp) {
+            throw new Exception("Image file [" + fileName + "] not loaded: " + excp.getMessage());
+        } finally {
+            MemoryUtil.memFree(imageData);
+        }
+    }
+}
@@ -5,6 +5,8 @@ import static org.lwjgl.openal.AL10.*;
 
 public class SoundListener {
 
+    private final float[] orientation = new float[6];
+
     public SoundListener() {
         this(new Vector3f());
     }
@@ -23,13 +25,12 @@ public class SoundListener {
     }
     
     public void setOrientation(Vector3f at, Vector3f up) {
-        float[] data = new float[6];
-        data[0] = at.x;
-        data[1] = at.y;
-        data[2] = at.z;
-        data[3] = up.x;
-        data[4] = up.y;
-        data[5] = up.z;
-        alListenerfv(AL_ORIENTATION, data);
+        orientation[0] = at.x;
+        orientation[1] = at.y;
+        orientation[2] = at.z;
+        orientation[3] = up.x;
+        orientation[4] = up.y;
+        orientation[5] = up.z;
+        alListenerfv(AL_ORIENTATION, orientation);
     }
 }
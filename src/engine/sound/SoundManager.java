@@ -31,10 +31,16 @@ public class SoundManager {
 
     private final Matrix4f cameraMatrix;
 
+    private final Vector3f listenerAt;
+
+    private final Vector3f listenerUp;
+
     public SoundManager() {
         soundBufferList = new ArrayList<>();
         soundSourceMap = new HashMap<>();
         cameraMatrix = new Matrix4f();
+        listenerAt = new Vector3f();
+        listenerUp = new Vector3f();
     }
 
     public void init() throws Exception {
@@ -87,11 +93,9 @@ public class SoundManager {
         Transformation.updateGenericViewMatrix(camera.getPosition(), camera.getRotation(), cameraMatrix);
         
         listener.setPosition(camera.getPosition());
-        Vector3f at = new Vector3f();
-        cameraMatrix.positiveZ(at).negate();
-        Vector3f up = new Vector3f();
-        cameraMatrix.positiveY(up);
-        listener.setOrientation(at, up);
+        cameraMatrix.positiveZ(listenerAt).negate();
+        cameraMatrix.positiveY(listenerUp);
+        listener.setOrientation(listenerAt, listenerUp);
     }
 
     public void setAttenuationModel(int model) {
@@ -9,7 +9,10 @@ import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import engine.AssetManager;
 import engine.IGameLogic;
+import engine.JobSystem;
 import engine.MouseInput;
 import engine.Scene;
 import engine.SceneLight;
@@ -22,12 +25,10 @@ import engine.graph.lights.PointLight;
 import engine.graph.weather.Fog;
 import engine.items.GameItem;
 import engine.items.SkyBox;
-import engine.loaders.assimp.StaticMeshesLoader;
+import engine.items.TransformStore;
 import engine.graph.Material;
-import engine.graph.Texture;
 import engine.graph.particles.FlowParticleEmitter;
 import engine.graph.particles.Particle;
-import engine.loaders.obj.OBJLoader;
 
 public class Alpha_3_0 implements IGameLogic 
 {
@@ -37,6 +38,8 @@ public class Alpha_3_0 implements IGameLogic
 
     private Scene scene;
 
+    private AssetManager assetManager;
+
     /**
      * Game state variables
      */
@@ -85,6 +88,14 @@ public class Alpha_3_0 implements IGameLogic
 	private int topCannonBallTrajectoryIndex = 0;
     private int swapLeg = STEP_BUFFER;
 
+    /*
+     * Scratch objects reused every frame
+     */
+    private final GameItem[] humanItems = new GameItem[1];
+    private final Vector3f leftEdgeDirection = new Vector3f(0, 0, EDGE_TOLERANCE);
+    private final Vector3f rightEdgeDirection = new Vector3f(0, 0, -EDGE_TOLERANCE);
+    private final Vector3f zeroVector = new Vector3f();
+
     private float jumpDistance; 
 
     private final static float EDGE_TOLERANCE = .45f;				// Error tolerance for determining if on edge of platform
@@ -96,6 +107,7 @@ public class Alpha_3_0 implements IGameLogic
     private final static float HUMAN_PLATFORM_HEIGHT_OFFSET = 1.85f;// Y offset need to place human feet on top of platform
     private final static float HUMAN_HIT_BOX_ERROR_TOLERANCE = .75f;// 1 is normal hit box size, a value greater than 1 increases the hitbox side, and a value less than 1 decreases it
     private final static int STEP_BUFFER = 12;
+    private final static int MAX_PARTICLES = 200;
     
     private FlowParticleEmitter particleEmitter;
 
@@ -111,9 +123,10 @@ public class Alpha_3_0 implements IGameLogic
         
         //Create cannons
         cannons = new LinkedList<GameItem>();
-		bottomCannonBallTrajectory = new LinkedList<>();
-		midCannonBallTrajectory = new LinkedList<>();
-		topCannonBallTrajectory = new LinkedList<>();
+		// Indexed every frame
+		bottomCannonBallTrajectory = new ArrayList<>();
+		midCannonBallTrajectory = new ArrayList<>();
+		topCannonBallTrajectory = new ArrayList<>();
         
         //Create cannon ball trajectories
 		calculateBottomCannonBallBezierPoints();
@@ -134,11 +147,33 @@ public class Alpha_3_0 implements IGameLogic
     @Override
     public void init(Window window) throws Exception 
     {
+        // Without an engine to run the uploads, load everything before starting
+        AssetManager assetManager = new AssetManager(0);
+        try
+        {
+            init(window, assetManager);
+            assetManager.waitForAll();
+        }
+        finally
+        {
+            assetManager.cleanup();
+        }
+    }
+
+    @Override
+    public void init(Window window, AssetManager assetManager) throws Exception 
+    {
+        this.assetManager = assetManager;
     	glfwSetInputMode(window.getWindowHandle(), GLFW_CURSOR, GLFW_CURSOR_HIDDEN);
+        // The loader threads read the models while the renderer compiles its shaders
+        LevelAssets assets = new LevelAssets();
+        CompletableFuture<Mesh[]> skyBoxMesh = assetManager.loadMeshes("models/skybox.obj", "");
         renderer.init(window);
         scene = new Scene();
+        // Most of the level does not move, cache the model matrices of the items
+        scene.setTransformStore(new TransformStore());
         
-        createLevel();
+        createLevel(assets);
         
         // Shadows
         scene.setRenderShadows(true);
@@ -149,7 +184,9 @@ public class Alpha_3_0 implements IGameLogic
 
         // Setup  SkyBox
         float skyBoxScale = 100.0f;
-        SkyBox skyBox = new SkyBox("models/skybox.obj", "textures/sky2.jpg");
+        Material skyBoxMaterial = new Material();
+        assetManager.loadTexture("textures/sky2.jpg", skyBoxMaterial);
+        SkyBox skyBox = new SkyBox(assetManager.waitFor(skyBoxMesh)[0], skyBoxMaterial);
         skyBox.setScale(skyBoxScale);
         scene.setSkyBox(skyBox);
 
@@ -196,7 +233,7 @@ public class Alpha_3_0 implements IGameLogic
 			{
 				sceneChanged = true;
 				moving = true;
-				human.getPosition().z += -MOVEMENT_SPEED;
+				human.setPosition(human.getPosition().x, human.getPosition().y, human.getPosition().z - MOVEMENT_SPEED);
 				facingLeft = true;
 			} 
 
@@ -205,7 +242,7 @@ public class Alpha_3_0 implements IGameLogic
 				facingLeft = false;
 				sceneChanged = true;
 				moving = true;
-				human.getPosition().z += MOVEMENT_SPEED;
+				human.setPosition(human.getPosition().x, human.getPosition().y, human.getPosition().z + MOVEMENT_SPEED);
 			}
 
 			//  Jump
@@ -232,6 +269,12 @@ public class Alpha_3_0 implements IGameLogic
 
     @Override
     public void update(float interval, MouseInput mouseInput, Window window) 
+    {
+        update(interval, mouseInput, window, null);
+    }
+
+    @Override
+    public void update(float interval, MouseInput mouseInput, Window window, JobSystem jobSystem) 
     {
         if (!falling && !jumping)
         {
@@ -251,7 +294,7 @@ public class Alpha_3_0 implements IGameLogic
 		if (victoryAchieved)
 		{
 			displayVictory();
-			particleEmitter.update((long) (interval * 1000));
+			particleEmitter.update((long) (interval * 1000), jobSystem);
 		}
 
         // Update view matrix
@@ -271,13 +314,13 @@ public class Alpha_3_0 implements IGameLogic
         {
         	renderMovement();
         }
-    	bottomCannonBall.getPosition().set(bottomCannonBallTrajectory.get(bottomCannonBallTrajectoryIndex));
+    	bottomCannonBall.setPosition(bottomCannonBallTrajectory.get(bottomCannonBallTrajectoryIndex));
 		bottomCannonBallTrajectoryIndex = ++bottomCannonBallTrajectoryIndex % bottomCannonBallTrajectory.size(); 
 
-    	midCannonBall.getPosition().set(midCannonBallTrajectory.get(midCannonBallTrajectoryIndex));
+    	midCannonBall.setPosition(midCannonBallTrajectory.get(midCannonBallTrajectoryIndex));
 		midCannonBallTrajectoryIndex = ++midCannonBallTrajectoryIndex % midCannonBallTrajectory.size(); 
 
-    	topCannonBall.getPosition().set(topCannonBallTrajectory.get(topCannonBallTrajectoryIndex));
+    	topCannonBall.setPosition(topCannonBallTrajectory.get(topCannonBallTrajectoryIndex));
 		topCannonBallTrajectoryIndex = ++topCannonBallTrajectoryIndex % topCannonBallTrajectory.size(); 
         renderer.render(window, camera, scene, sceneChanged);
     }
@@ -293,41 +336,59 @@ public class Alpha_3_0 implements IGameLogic
     
     private boolean standingOnPlatform(GameItem platform, GameItem human)
     {
-        Vector3f direction = new Vector3f(0,0, EDGE_TOLERANCE);
-        boolean pastOrOnLeftEdge = Intersectionf.testRaySphere(human.getPosition(), direction, platform.getPosition(), 
+        boolean pastOrOnLeftEdge = Intersectionf.testRaySphere(human.getPosition(), leftEdgeDirection, platform.getPosition(), 
         	   (float) Math.pow(platform.getScale()*platform.getMesh().getBoundingRadius()*BOUNDING_RADIUS_TOLERANCE, 2));
 
-        direction = new Vector3f(0,0, -EDGE_TOLERANCE);
-        boolean beforeOrOnRightEdge = Intersectionf.testRaySphere(human.getPosition(), direction, platform.getPosition(), 
+        boolean beforeOrOnRightEdge = Intersectionf.testRaySphere(human.getPosition(), rightEdgeDirection, platform.getPosition(), 
         	   (float) Math.pow(platform.getScale()*platform.getMesh().getBoundingRadius()*BOUNDING_RADIUS_TOLERANCE, 2));
         
         return pastOrOnLeftEdge || beforeOrOnRightEdge;
     }
     
-    private void createLevel() throws Exception
-    {
-    	createPlatforms();
-    	createCannons();
-    	createcannonBalls();
-    	createHuman();
-    	createGameOverText();
-    	createVictoryText();
-		setupParticleSystem();
+    /**
+     * Models of the level. They are all requested together, so they are
+     * read in parallel, and each creation step only waits for its own.
+     */
+    private class LevelAssets
+    {
+        final CompletableFuture<Mesh[]> platformMesh = assetManager.loadMeshes("models/platform/PP_steel_podium_platinum.obj", "models/platform");
+        final CompletableFuture<Mesh> cannonMeshRight = assetManager.loadMesh("models/cannon/CannonRight.obj");
+        final CompletableFuture<Mesh> cannonMeshLeft = assetManager.loadMesh("models/cannon/CannonLeft.obj");
+        final CompletableFuture<Mesh> cannonBallMesh = assetManager.loadMesh("models/ball/ball.obj");
+        final CompletableFuture<Mesh[]> humanRight = assetManager.loadMeshes("models/human/basic-humanRight.obj", null);
+        final CompletableFuture<Mesh[]> humanLeft = assetManager.loadMeshes("models/human/basic-humanLeft.obj", null);
+        final CompletableFuture<Mesh[]> humanLLFLeft = assetManager.loadMeshes("models/human/basic-humanLLF_Left.obj", null);
+        final CompletableFuture<Mesh[]> humanRLFLeft = assetManager.loadMeshes("models/human/basic-humanRLF_Left.obj", null);
+        final CompletableFuture<Mesh[]> humanRLFRight = assetManager.loadMeshes("models/human/basic-humanRLF_Right.obj", null);
+        final CompletableFuture<Mesh[]> humanLLFRight = assetManager.loadMeshes("models/human/basic-humanLLF_Right.obj", null);
+        final CompletableFuture<Mesh[]> gameOverMesh = assetManager.loadMeshes("models/game-over/game-over1.obj", "models/game-over");
+        final CompletableFuture<Mesh[]> victoryTextMesh = assetManager.loadMeshes("models/victory-text/victory-text1.obj", "models/victory-text");
+        final CompletableFuture<Mesh> particleMesh = assetManager.loadMesh("models/particle.obj", MAX_PARTICLES);
+    }
+
+    private void createLevel(LevelAssets assets) throws Exception
+    {
+    	createPlatforms(assetManager.waitFor(assets.platformMesh));
+    	createCannons(assetManager.waitFor(assets.cannonMeshRight), assetManager.waitFor(assets.cannonMeshLeft));
+    	createcannonBalls(assetManager.waitFor(assets.cannonBallMesh));
+    	createHuman(assets);
+    	createGameOverText(assetManager.waitFor(assets.gameOverMesh));
+    	createVictoryText(assetManager.waitFor(assets.victoryTextMesh));
+		setupParticleSystem(assetManager.waitFor(assets.particleMesh));
     }
     
-    private void createCannons() throws Exception
+    private void createCannons(Mesh cannonMeshRight, Mesh cannonMeshLeft) throws Exception
     {
     	// Cannon Model
 		GameItem cannon;
 
 		// Mesh for cannon facing right
-		Mesh cannonMeshRight = OBJLoader.loadMesh("models/cannon/CannonRight.obj");
 		cannonMeshRight.setBoundingRadius(.5f);
-		Texture texture = new Texture("textures/iron.jpg", 2,1);
-		Material material = new Material(texture, 1f);
+		Material material = new Material();
+		material.setReflectance(1f);
+		assetManager.loadTexture("textures/iron.jpg", 2, 1, material);
 		cannonMeshRight.setMaterial(material);
 		// Mesh for cannon facing left
-		Mesh cannonMeshLeft = OBJLoader.loadMesh("models/cannon/CannonLeft.obj");
 		cannonMeshLeft.setBoundingRadius(.5f);
 		cannonMeshLeft.setMaterial(material);
 		
@@ -457,11 +518,11 @@ public class Alpha_3_0 implements IGameLogic
     }
     
     
-	private void createcannonBalls() throws Exception 
+	private void createcannonBalls(Mesh cannonBallMesh) throws Exception 
 	{
-		Mesh cannonBallMesh = OBJLoader.loadMesh("models/ball/ball.obj");
-		Texture texture = new Texture("textures/black.jpg", 2,1);
-		Material material = new Material(texture, 1f);
+		Material material = new Material();
+		material.setReflectance(1f);
+		assetManager.loadTexture("textures/black.jpg", 2, 1, material);
 		cannonBallMesh.setMaterial(material);
 
 		bottomCannonBall = new GameItem(cannonBallMesh);
@@ -515,10 +576,9 @@ public class Alpha_3_0 implements IGameLogic
 		}
 	}    
 
-    private List<GameItem> createCannonPlatforms() throws Exception
+    private List<GameItem> createCannonPlatforms(Mesh[] platformMesh) throws Exception
     {
 		GameItem platform;
-		Mesh[] platformMesh = StaticMeshesLoader.load("models/platform/PP_steel_podium_platinum.obj", "models/platform");
 		List<GameItem> platforms = new LinkedList<GameItem>();
 		
 		float y = 60;
@@ -544,12 +604,11 @@ public class Alpha_3_0 implements IGameLogic
 		return platforms;
     }    
     
-    private void createPlatforms() throws Exception
+    private void createPlatforms(Mesh[] platformMesh) throws Exception
     {
         float y =  0;
         GameItem last = new GameItem();
 		GameItem platform;
-		Mesh[] platformMesh = StaticMeshesLoader.load("models/platform/PP_steel_podium_platinum.obj", "models/platform");
 		for(int numberOfPlatforms = 0; numberOfPlatforms < 5; ++numberOfPlatforms)
 		{
 			platform = new GameItem(platformMesh);
@@ -612,50 +671,49 @@ public class Alpha_3_0 implements IGameLogic
 		victoryPlatform = platform;
 		platforms.add(platform);
 
-		platforms.addAll(createCannonPlatforms());
+		platforms.addAll(createCannonPlatforms(platformMesh));
 
 		GameItem[] platformsArray = platforms.toArray(new GameItem[0]);
         scene.setGameItems(platformsArray);
     }    
 
-    private void createHuman() throws Exception
+    private void createHuman(LevelAssets assets) throws Exception
     {
-		Mesh[] humanMesh = StaticMeshesLoader.load("models/human/basic-humanRight.obj", null);
+		Mesh[] humanMesh = assetManager.waitFor(assets.humanRight);
 		human = new GameItem(humanMesh);
 		human.setPosition(0, HUMAN_PLATFORM_HEIGHT_OFFSET, 0);	
         scene.setGameItems(new GameItem[]{human});
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanLLF_Left.obj", null);
+		humanMesh = assetManager.waitFor(assets.humanLLFLeft);
 		humanWalkingLeftAndFacingLeft = new GameItem(humanMesh);
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanRLF_Left.obj", null);
+		humanMesh = assetManager.waitFor(assets.humanRLFLeft);
 		humanWalkingRightAndFacingLeft = new GameItem(humanMesh);
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanRLF_Right.obj", null);
+		humanMesh = assetManager.waitFor(assets.humanRLFRight);
 		humanWalkingLeftAndFacingRight = new GameItem(humanMesh);
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanLLF_Right.obj", null);
+		humanMesh = assetManager.waitFor(assets.humanLLFRight);
 		humanWalkingRightAndFacingRight = new GameItem(humanMesh);
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanLeft.obj", null);
+		humanMesh = assetManager.waitFor(assets.humanLeft);
 		humanStandingAndFacingLeft = new GameItem(humanMesh);
 
-		humanMesh = StaticMeshesLoader.load("models/human/basic-humanRight.obj", null);
+		// Same model as the initial pose
+		humanMesh = assetManager.waitFor(assets.humanRight);
 		humanStandingAndFacingRight = new GameItem(humanMesh);
     }
 
-    private void createGameOverText() throws Exception
+    private void createGameOverText(Mesh[] gameOverMesh) throws Exception
     {
-		Mesh[] gameOverMesh = StaticMeshesLoader.load("models/game-over/game-over1.obj", "models/game-over");
 		gameOverText = new GameItem(gameOverMesh);
 
 		gameOverText.setPosition(-15, 70, 65);
 		gameOverText.setScale(7);
     }
     
-    private void createVictoryText() throws Exception
+    private void createVictoryText(Mesh[] victoryTextMesh) throws Exception
     {
-		Mesh[] victoryTextMesh = StaticMeshesLoader.load("models/victory-text/victory-text1.obj", "models/victory-text");
 		victoryText = new GameItem(victoryTextMesh);
 		
 		victoryText.setPosition(0, victoryPlatform.getPosition().y+25, 65);
@@ -669,7 +727,7 @@ public class Alpha_3_0 implements IGameLogic
 		{
 			if (!falling)
 			{
-				human.getPosition().y += JUMP_SPEED;
+				human.setPosition(human.getPosition().x, human.getPosition().y + JUMP_SPEED, human.getPosition().z);
 				sceneChanged = true;
 			}
 			if (human.getPosition().y > jumpDistance)
@@ -685,7 +743,7 @@ public class Alpha_3_0 implements IGameLogic
 		if (falling)
 		{
 			sceneChanged = true;
-			human.getPosition().y -= FALL_SPEED;
+			human.setPosition(human.getPosition().x, human.getPosition().y - FALL_SPEED, human.getPosition().z);
 			checkLanding();
 			if (falling && human.getPosition().y < 0)
 			{
@@ -703,7 +761,7 @@ public class Alpha_3_0 implements IGameLogic
 				falling = false;
 				jumping = false;
 				landed = true;
-				scene.getGameMeshes().remove(gameOverText.getMesh());
+				scene.removeMesh(gameOverText.getMesh());
 				human.setPosition(human.getPosition().x, platform.getPosition().y+HUMAN_PLATFORM_HEIGHT_OFFSET, human.getPosition().z);
 				if (platform == victoryPlatform)
 				{
@@ -726,7 +784,7 @@ public class Alpha_3_0 implements IGameLogic
 		particleEmitter.getParticles().clear();
 		particleEmitter.setInitParticles();
 
-		scene.getGameMeshes().clear();
+		scene.clearGameMeshes();
 		GameItem[] cannonsArray = cannons.toArray(new GameItem[0]);
         scene.setGameItems(cannonsArray);
         
@@ -769,18 +827,18 @@ public class Alpha_3_0 implements IGameLogic
     
     private void displayGameOver()
     {
-		scene.getGameMeshes().remove(human.getMesh());
+		scene.removeMesh(human.getMesh());
 		
 		if (!scene.getGameMeshes().containsKey(gameOverText.getMesh()))
 		{
-			gameOverText.getPosition().y += camera.getPosition().y - 50f;
+			gameOverText.setPosition(gameOverText.getPosition().x, gameOverText.getPosition().y + camera.getPosition().y - 50f, gameOverText.getPosition().z);
 			scene.setGameItems(new GameItem[]{gameOverText});
 		}
     }
     
     private void displayVictory()
     {
-		scene.getGameMeshes().remove(human.getMesh());
+		scene.removeMesh(human.getMesh());
 		
 		if (!scene.getGameMeshes().containsKey(victoryText.getMesh()))
 		{
@@ -791,8 +849,6 @@ public class Alpha_3_0 implements IGameLogic
     private boolean hitByCannonBall()
     {
     	float humanBoundingSphereRadiusSquared = (float) Math.pow(human.getMesh().getBoundingRadius()*human.getScale(), 2);
-    	Vector3f zeroVector = new Vector3f();
-    	zeroVector.set(0);
     	if (Intersectionf.testRaySphere(bottomCannonBall.getPosition(), zeroVector, human.getPosition(), 
     			humanBoundingSphereRadiusSquared*HUMAN_HIT_BOX_ERROR_TOLERANCE))
     	{
@@ -817,91 +873,83 @@ public class Alpha_3_0 implements IGameLogic
     {
 		if (moving && facingLeft)
 		{
-			Vector3f position = new Vector3f();
-			position.set(human.getPosition());
-			
 			if (leftFootStepping && swapLeg > STEP_BUFFER)
 			{
-				scene.getGameMeshes().remove(human.getMesh());
 				swapLeg = 0;
 				leftFootStepping = !leftFootStepping;
-				human = humanWalkingLeftAndFacingLeft;
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
+				showHuman(humanWalkingLeftAndFacingLeft);
 			}
 			else if (swapLeg > STEP_BUFFER)
 			{
-				scene.getGameMeshes().remove(human.getMesh());
 				swapLeg = 0;
 				leftFootStepping = !leftFootStepping;
-				human = humanWalkingRightAndFacingLeft;
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
+				showHuman(humanWalkingRightAndFacingLeft);
 			}
 			
 			++swapLeg;
 		}
 		else if (moving)
 		{
-			Vector3f position = new Vector3f();
-			position.set(human.getPosition());
 			if (leftFootStepping && swapLeg > STEP_BUFFER)
 			{
-				scene.getGameMeshes().remove(human.getMesh());
 				swapLeg = 0;
 				leftFootStepping = !leftFootStepping;
-				human = new GameItem(humanWalkingLeftAndFacingRight.getMeshes());
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
+				showHuman(humanWalkingLeftAndFacingRight);
 			}
 			else if (swapLeg > STEP_BUFFER)
 			{
-				scene.getGameMeshes().remove(human.getMesh());
 				swapLeg = 0;
 				leftFootStepping = !leftFootStepping;
-				human = new GameItem(humanWalkingRightAndFacingRight.getMeshes());
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
+				showHuman(humanWalkingRightAndFacingRight);
 			}
 			++swapLeg;
 		}
+		else if (facingLeft)
+		{
+			showHuman(humanStandingAndFacingLeft);
+		}
 		else
 		{
-			scene.getGameMeshes().remove(human.getMesh());
-			Vector3f position = new Vector3f();
-			position.set(human.getPosition());
+			showHuman(humanStandingAndFacingRight);
+		}
+    }
 
-			if (facingLeft)
-			{
-				human = new GameItem(humanStandingAndFacingLeft.getMeshes());
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
-			}
-			else
-			{
-				human = new GameItem(humanStandingAndFacingRight.getMeshes());
-				human.getPosition().set(position);
-				scene.setGameItems(new GameItem[] {human});
-			}
+    /**
+     * Replaces the human in the scene by one of its poses, at the same
+     * position. Nothing changes if the pose is already shown.
+     */
+    private void showHuman(GameItem pose)
+    {
+		if (pose == human)
+		{
+			return;
+		}
+		for (Mesh mesh : human.getMeshes())
+		{
+			scene.removeMesh(mesh);
 		}
+		pose.setPosition(human.getPosition());
+		human = pose;
+		humanItems[0] = human;
+		scene.setGameItems(humanItems);
     }
     
-    private void setupParticleSystem() throws Exception
+    private void setupParticleSystem(Mesh partMesh) throws Exception
     {
         float reflectance = 1f;       
-        int maxParticles = 200;
+        int maxParticles = MAX_PARTICLES;
         Vector3f particleSpeed = new Vector3f(0, 1, 0);
         particleSpeed.mul(2.5f);
         long ttl = 4000;
         long creationPeriodMillis = 100;
         float range = 12f;
         float scale = .5f;
-        Mesh partMesh = OBJLoader.loadMesh("models/particle.obj", maxParticles);
-        Texture particleTexture = new Texture("textures/particle_tmp.png");
-        Material partMaterial = new Material(particleTexture, reflectance);
+        Material partMaterial = new Material();
+        partMaterial.setReflectance(reflectance);
+        assetManager.loadTexture("textures/particle_tmp.png", partMaterial);
         partMesh.setMaterial(partMaterial);
         Particle particle = new Particle(partMesh, particleSpeed, ttl, 100);
-		particle.getPosition().set(victoryPlatform.getPosition());
+		particle.setPosition(victoryPlatform.getPosition());
         particle.setScale(scale);
         particleEmitter = new FlowParticleEmitter(particle, maxParticles, creationPeriodMillis);
         particleEmitter.setPositionRndRange(range);
@@ -0,0 +1,700 @@
+package game;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import static org.lwjgl.opengl.GL11.*;
+
+import engine.FrameProfiler;
+import engine.IGameLogic;
+import engine.JobSystem;
+import engine.MouseInput;
+import engine.Scene;
+import engine.SceneLight;
+import engine.Window;
+import engine.graph.Camera;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.Renderer;
+import engine.graph.Texture;
+import engine.graph.TextureCache;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.lights.PointLight;
+import engine.graph.particles.FlowParticleEmitter;
+import engine.graph.particles.IParticleEmitter;
+import engine.graph.particles.Particle;
+import engine.items.GameItem;
+import engine.items.SkyBox;
+import engine.items.TransformStore;
+import engine.loaders.assimp.StaticMeshesLoader;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Renders a generated scene along a fixed camera path, with a fixed time
+ * step, and reports the frame times and the allocations as JSON. The window
+ * is never shown, so it can run in CI on a software renderer, for instance
+ * under xvfb-run with Mesa llvmpipe.
+ *
+ * Arguments, all optional:
+ * <pre>
+ * --frames N       Measured frames (600)
+ * --warmup N       Frames rendered before measuring (120)
+ * --width W        Framebuffer width (1280)
+ * --height H       Framebuffer height (720)
+ * --platforms N    Platforms in the scene (100)
+ * --cannons N      Cannons on the platforms (20)
+ * --particles N    Particles, in emitters of up to 200 (400)
+ * --lights N       Point lights (16)
+ * --seed S         Seed of the generated scene (1)
+ * --option NAME    Enables a boolean field of the window options, may repeat
+ * --out FILE       Writes the JSON to FILE instead of the standard output
+ * --max-frame-alloc B
+ *                  Exits with an error when the measured frames allocate more
+ *                  than B bytes per frame on the main thread
+ * </pre>
+ */
+public class Benchmark implements IGameLogic {
+
+    private static final float FIXED_INTERVAL = 1.0f / 60.0f;
+
+    private static final float PLATFORM_SPACING = 40.0f;
+
+    private static final int PARTICLES_PER_EMITTER = 200;
+
+    /**
+     * Seconds needed by the camera to go around the scene
+     */
+    private static final float ORBIT_PERIOD = 20.0f;
+
+    private final Config config;
+
+    private final Renderer renderer;
+
+    private final Camera camera;
+
+    private Scene scene;
+
+    private FlowParticleEmitter[] particleEmitters;
+
+    private float sceneExtent;
+
+    private float time;
+
+    private double bytesPerFrame;
+
+    public static class Config {
+
+        public int frames = 600;
+
+        public int warmup = 120;
+
+        public int width = 1280;
+
+        public int height = 720;
+
+        public int platforms = 100;
+
+        public int cannons = 20;
+
+        public int particles = 400;
+
+        public int lights = 16;
+
+        public long seed = 1;
+
+        public String out;
+
+        /**
+         * Bytes per frame allowed on the main thread, or -1 for no limit
+         */
+        public long maxFrameAlloc = -1;
+
+        public final List<String> options = new ArrayList<>();
+
+        public static Config parse(String[] args) {
+            Config config = new Config();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--frames":
+                        config.frames = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        config.warmup = Integer.parseInt(value);
+                        break;
+                    case "--width":
+                        config.width = Integer.parseInt(value);
+                        break;
+                    case "--height":
+                        config.height = Integer.parseInt(value);
+                        break;
+                    case "--platforms":
+                        config.platforms = Integer.parseInt(value);
+                        break;
+                    case "--cannons":
+                        config.cannons = Integer.parseInt(value);
+                        break;
+                    case "--particles":
+                        config.particles = Integer.parseInt(value);
+                        break;
+                    case "--lights":
+                        config.lights = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        config.seed = Long.parseLong(value);
+                        break;
+                    case "--option":
+                        config.options.add(value);
+                        break;
+                    case "--out":
+                        config.out = value;
+                        break;
+                    case "--max-frame-alloc":
+                        config.maxFrameAlloc = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + arg);
+                }
+            }
+            return config;
+        }
+    }
+
+    public Benchmark(Config config) {
+        this.config = config;
+        renderer = new Renderer();
+        camera = new Camera();
+    }
+
+    public static void main(String[] args) {
+        try {
+            Config config = Config.parse(args);
+            Window.WindowOptions opts = new Window.WindowOptions();
+            opts.compatibleProfile = true;
+            opts.headless = true;
+            for (String option : config.options) {
+                Window.WindowOptions.class.getField(option).setBoolean(opts, true);
+            }
+            Benchmark benchmark = new Benchmark(config);
+            String json = benchmark.run(opts);
+            if (config.out != null) {
+                try (PrintStream out = new PrintStream(config.out, "UTF-8")) {
+                    out.println(json);
+                }
+            } else {
+                System.out.println(json);
+            }
+            if (!benchmark.isWithinAllocationLimit()) {
+                System.err.println("Steady state frames allocated " + benchmark.getBytesPerFrame()
+                        + " bytes per frame, the limit is " + config.maxFrameAlloc);
+                System.exit(1);
+            }
+        } catch (Exception excp) {
+            excp.printStackTrace();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Renders the warm up and the measured frames.
+     *
+     * @return The results as JSON
+     */
+    public String run(Window.WindowOptions opts) throws Exception {
+        Window window = new Window("Benchmark", config.width, config.height, false, opts);
+        window.init();
+        MouseInput mouseInput = new MouseInput();
+        int numThreads = opts.parallelUpdate ? Runtime.getRuntime().availableProcessors() - 1 : 1;
+        JobSystem jobSystem = new JobSystem(numThreads);
+        try {
+            init(window);
+
+            FrameProfiler profiler = window.getProfiler();
+            float[] frameTimes = new float[config.frames];
+            float[] updateTimes = new float[config.frames];
+            AllocationCounter allocations = new AllocationCounter();
+            long gcCount = 0;
+            long gcTime = 0;
+            long stateChanges = 0;
+            long stateChangesSaved = 0;
+            for (int i = 0; i < config.warmup + config.frames; i++) {
+                int frame = i - config.warmup;
+                if (frame == 0) {
+                    allocations.start();
+                    gcCount = -getGcCount();
+                    gcTime = -getGcTime();
+                }
+                profiler.beginFrame();
+                long start = System.nanoTime();
+
+                profiler.beginCpu(FrameProfiler.UPDATE);
+                update(FIXED_INTERVAL, mouseInput, window, jobSystem);
+                profiler.endCpu(FrameProfiler.UPDATE);
+                long updateEnd = System.nanoTime();
+
+                profiler.beginCpu(FrameProfiler.RENDER);
+                render(window);
+                // Wait for the GPU so the frame time includes its work
+                glFinish();
+                profiler.endCpu(FrameProfiler.RENDER);
+                window.update();
+
+                long end = System.nanoTime();
+                profiler.endFrame();
+                if (frame >= 0) {
+                    frameTimes[frame] = (end - start) / 1_000_000.0f;
+                    updateTimes[frame] = (updateEnd - start) / 1_000_000.0f;
+                    stateChanges += renderer.getRenderQueue().getStateChanges();
+                    stateChangesSaved += renderer.getRenderQueue().getStateChangesSaved();
+                }
+            }
+            long allocatedBytes = allocations.stop();
+            bytesPerFrame = allocatedBytes >= 0 ? (double) allocatedBytes / config.frames : -1;
+            gcCount += getGcCount();
+            gcTime += getGcTime();
+
+            float totalSeconds = 0;
+            for (float frameTime : frameTimes) {
+                totalSeconds += frameTime / 1000.0f;
+            }
+
+            Json json = new Json();
+            json.beginObject();
+            json.name("config").beginObject();
+            json.name("frames").value(config.frames);
+            json.name("warmup").value(config.warmup);
+            json.name("width").value(config.width);
+            json.name("height").value(config.height);
+            json.name("platforms").value(config.platforms);
+            json.name("cannons").value(config.cannons);
+            json.name("particles").value(config.particles);
+            json.name("lights").value(config.lights);
+            json.name("seed").value(config.seed);
+            json.name("fixedInterval").value(FIXED_INTERVAL);
+            json.name("options").beginArray();
+            for (String option : config.options) {
+                json.value(option);
+            }
+            json.endArray();
+            json.name("glRenderer").value(glGetString(GL_RENDERER));
+            json.name("glVersion").value(glGetString(GL_VERSION));
+            json.endObject();
+
+            json.name("frameTimeMs");
+            writeDistribution(json, frameTimes);
+            json.name("updateTimeMs");
+            writeDistribution(json, updateTimes);
+            json.name("fps").value(totalSeconds > 0 ? config.frames / totalSeconds : 0);
+
+            json.name("allocation").beginObject();
+            json.name("scope").value("main thread");
+            if (allocatedBytes >= 0) {
+                json.name("bytes").value(allocatedBytes);
+                json.name("bytesPerFrame").value(bytesPerFrame);
+                json.name("megabytesPerSecond").value(totalSeconds > 0 ? allocatedBytes / (1024.0 * 1024.0) / totalSeconds : 0);
+            } else {
+                json.name("bytes").nullValue();
+            }
+            if (config.maxFrameAlloc >= 0) {
+                json.name("maxBytesPerFrame").value(config.maxFrameAlloc);
+                json.name("withinLimit").value(isWithinAllocationLimit());
+            }
+            json.name("gcCount").value(gcCount);
+            json.name("gcTimeMs").value(gcTime);
+            json.endObject();
+
+            json.name("renderQueue").beginObject();
+            json.name("stateChangesPerFrame").value((double) stateChanges / config.frames);
+            json.name("stateChangesSavedPerFrame").value((double) stateChangesSaved / config.frames);
+            json.endObject();
+
+            if (profiler.isEnabled()) {
+                json.name("passesMs").beginObject();
+                for (int i = 0; i < FrameProfiler.NUM_GPU_SECTIONS; i++) {
+                    json.name(FrameProfiler.getGpuSectionName(i)).beginObject();
+                    json.name("p50").value(profiler.getGpuPercentile(i, 50));
+                    json.name("p95").value(profiler.getGpuPercentile(i, 95));
+                    json.name("p99").value(profiler.getGpuPercentile(i, 99));
+                    json.endObject();
+                }
+                json.endObject();
+            }
+            json.endObject();
+            return json.toString();
+        } finally {
+            cleanup();
+            jobSystem.cleanup();
+        }
+    }
+
+    /**
+     * @return The bytes allocated by the main thread per measured frame, or
+     * -1 if the JVM can not count them
+     */
+    public double getBytesPerFrame() {
+        return bytesPerFrame;
+    }
+
+    /**
+     * Tells if the measured frames stayed under the allocation limit. Without
+     * a limit this is always true, and with one it is false when the
+     * allocations could not be counted.
+     */
+    public boolean isWithinAllocationLimit() {
+        return config.maxFrameAlloc < 0 || (bytesPerFrame >= 0 && bytesPerFrame <= config.maxFrameAlloc);
+    }
+
+    @Override
+    public void init(Window window) throws Exception {
+        renderer.init(window);
+        scene = new Scene();
+        scene.setTransformStore(new TransformStore());
+
+        Random random = new Random(config.seed);
+        List<GameItem> platforms = createPlatforms(random);
+        createCannons(random, platforms);
+        createParticles(random, platforms);
+        setupLights(random);
+
+        scene.setRenderShadows(true);
+
+        SkyBox skyBox = new SkyBox("models/skybox.obj", "textures/sky2.jpg");
+        skyBox.setScale(100.0f);
+        scene.setSkyBox(skyBox);
+
+        updateCamera();
+    }
+
+    private List<GameItem> createPlatforms(Random random) throws Exception {
+        Mesh[] platformMesh = StaticMeshesLoader.load("models/platform/PP_steel_podium_platinum.obj", "models/platform");
+        int side = (int) Math.ceil(Math.sqrt(config.platforms));
+        sceneExtent = side * PLATFORM_SPACING * 0.5f;
+        List<GameItem> platforms = new ArrayList<>();
+        for (int i = 0; i < config.platforms; i++) {
+            GameItem platform = new GameItem(platformMesh);
+            platform.setScale(.125f);
+            platform.setPosition((i % side) * PLATFORM_SPACING - sceneExtent, random.nextFloat() * 60.0f,
+                    (i / side) * PLATFORM_SPACING - sceneExtent);
+            platforms.add(platform);
+        }
+        scene.setGameItems(platforms.toArray(new GameItem[0]));
+        return platforms;
+    }
+
+    private void createCannons(Random random, List<GameItem> platforms) throws Exception {
+        Texture texture = TextureCache.getInstance().acquire("textures/iron.jpg", 2, 1);
+        Material material = new Material(texture, 1f);
+        Mesh cannonMeshRight = OBJLoader.loadMesh("models/cannon/CannonRight.obj");
+        cannonMeshRight.setMaterial(material);
+        Mesh cannonMeshLeft = OBJLoader.loadMesh("models/cannon/CannonLeft.obj");
+        cannonMeshLeft.setMaterial(material);
+
+        GameItem[] cannons = new GameItem[config.cannons];
+        Quaternionf rotation = new Quaternionf();
+        for (int i = 0; i < config.cannons; i++) {
+            GameItem cannon = new GameItem(i % 2 == 0 ? cannonMeshRight : cannonMeshLeft);
+            cannon.setScale(.5f);
+            Vector3f pos = platforms.get(random.nextInt(platforms.size())).getPosition();
+            cannon.setPosition(pos.x, pos.y + 5.0f, pos.z);
+            cannon.setRotation(rotation.rotationY(random.nextFloat() * (float) Math.PI * 2));
+            cannons[i] = cannon;
+        }
+        scene.setGameItems(cannons);
+    }
+
+    private void createParticles(Random random, List<GameItem> platforms) throws Exception {
+        int numEmitters = (config.particles + PARTICLES_PER_EMITTER - 1) / PARTICLES_PER_EMITTER;
+        particleEmitters = new FlowParticleEmitter[numEmitters];
+        Texture particleTexture = TextureCache.getInstance().acquire("textures/particle_tmp.png");
+        Material partMaterial = new Material(particleTexture, 1f);
+        for (int i = 0; i < numEmitters; i++) {
+            int maxParticles = Math.min(PARTICLES_PER_EMITTER, config.particles - i * PARTICLES_PER_EMITTER);
+            Mesh partMesh = OBJLoader.loadMesh("models/particle.obj", maxParticles);
+            partMesh.setMaterial(partMaterial);
+            Particle particle = new Particle(partMesh, new Vector3f(0, 2.5f, 0), 4000, 100);
+            particle.setPosition(platforms.get(random.nextInt(platforms.size())).getPosition());
+            particle.setScale(.5f);
+            FlowParticleEmitter emitter = new FlowParticleEmitter(particle, maxParticles, 100);
+            emitter.setSeed(random.nextLong());
+            emitter.setPositionRndRange(12f);
+            emitter.setSpeedRndRange(12f);
+            emitter.setAnimRange(10);
+            particleEmitters[i] = emitter;
+        }
+        IParticleEmitter[] emitters = new IParticleEmitter[numEmitters];
+        System.arraycopy(particleEmitters, 0, emitters, 0, numEmitters);
+        scene.setParticleEmitters(emitters);
+    }
+
+    private void setupLights(Random random) {
+        SceneLight sceneLight = new SceneLight();
+        scene.setSceneLight(sceneLight);
+        sceneLight.setAmbientLight(new Vector3f(0.3f, 0.3f, 0.3f));
+        sceneLight.setSkyBoxLight(new Vector3f(1.0f, 1.0f, 1.0f));
+        sceneLight.setDirectionalLight(new DirectionalLight(new Vector3f(1, 1, 1), new Vector3f(0, 1, 1).normalize(), 1.0f));
+
+        PointLight[] pointLights = new PointLight[config.lights];
+        for (int i = 0; i < config.lights; i++) {
+            Vector3f colour = new Vector3f(random.nextFloat(), random.nextFloat(), random.nextFloat());
+            Vector3f position = new Vector3f((random.nextFloat() * 2 - 1) * sceneExtent, 20.0f + random.nextFloat() * 60.0f,
+                    (random.nextFloat() * 2 - 1) * sceneExtent);
+            PointLight.Attenuation attenuation = new PointLight.Attenuation(1, 0.1f, 0.05f);
+            pointLights[i] = new PointLight(colour, position, 1.0f, attenuation);
+        }
+        sceneLight.setPointLightList(pointLights);
+    }
+
+    @Override
+    public void input(Window window, MouseInput mouseInput) {
+        // The camera follows a fixed path
+    }
+
+    @Override
+    public void update(float interval, MouseInput mouseInput, Window window) {
+        update(interval, mouseInput, window, null);
+    }
+
+    @Override
+    public void update(float interval, MouseInput mouseInput, Window window, JobSystem jobSystem) {
+        time += interval;
+        for (FlowParticleEmitter emitter : particleEmitters) {
+            emitter.update((long) (interval * 1000), jobSystem);
+        }
+        updateCamera();
+    }
+
+    /**
+     * Moves the camera around the scene, looking at its centre.
+     */
+    private void updateCamera() {
+        float angle = (float) (2 * Math.PI * time / ORBIT_PERIOD);
+        float radius = sceneExtent * 1.5f + 50.0f;
+        float height = 80.0f;
+        camera.setPosition(radius * (float) Math.sin(angle), height, radius * (float) Math.cos(angle));
+        camera.setRotation((float) Math.toDegrees(Math.atan2(height, radius)), (float) Math.toDegrees(-angle), 0);
+        camera.updateViewMatrix();
+    }
+
+    @Override
+    public void render(Window window) {
+        // The camera moves every frame
+        renderer.render(window, camera, scene, true);
+    }
+
+    @Override
+    public void cleanup() {
+        renderer.cleanup();
+        if (scene != null) {
+            scene.cleanup();
+        }
+    }
+
+    private static void writeDistribution(Json json, float[] values) {
+        float[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (float value : sorted) {
+            sum += value;
+        }
+        double mean = sorted.length > 0 ? sum / sorted.length : 0;
+        double variance = 0;
+        for (float value : sorted) {
+            variance += (value - mean) * (value - mean);
+        }
+        json.beginObject();
+        json.name("mean").value(mean);
+        json.name("stddev").value(sorted.length > 0 ? Math.sqrt(variance / sorted.length) : 0);
+        json.name("min").value(sorted.length > 0 ? sorted[0] : 0);
+        json.name("p50").value(percentile(sorted, 50));
+        json.name("p90").value(percentile(sorted, 90));
+        json.name("p95").value(percentile(sorted, 95));
+        json.name("p99").value(percentile(sorted, 99));
+        json.name("max").value(sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+        json.endObject();
+    }
+
+    private static float percentile(float[] sorted, float percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0f * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Counts the bytes allocated by the current thread, where the JVM
+     * supports it.
+     */
+    private static class AllocationCounter {
+
+        private final com.sun.management.ThreadMXBean threadBean;
+
+        private long startBytes;
+
+        AllocationCounter() {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+                threadBean = (com.sun.management.ThreadMXBean) bean;
+                threadBean.setThreadAllocatedMemoryEnabled(true);
+            } else {
+                threadBean = null;
+            }
+        }
+
+        void start() {
+            startBytes = threadBean != null ? threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+        }
+
+        /**
+         * @return The bytes allocated since start, or -1 if not supported
+         */
+        long stop() {
+            if (threadBean == null) {
+                return -1;
+            }
+            return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+        }
+    }
+
+    /**
+     * Minimal JSON writer, enough for the numbers and strings of the report.
+     */
+    private static class Json {
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private boolean needComma;
+
+        Json beginObject() {
+            separate();
+            sb.append('{');
+            needComma = false;
+            return this;
+        }
+
+        Json endObject() {
+            sb.append('}');
+            needComma = true;
+            return this;
+        }
+
+        Json beginArray() {
+            separate();
+            sb.append('[');
+            needComma = false;
+            return this;
+        }
+
+        Json endArray() {
+            sb.append(']');
+            needComma = true;
+            return this;
+        }
+
+        Json name(String name) {
+            separate();
+            quote(name);
+            sb.append(':');
+            needComma = false;
+            return this;
+        }
+
+        Json value(String value) {
+            separate();
+            if (value == null) {
+                sb.append("null");
+            } else {
+                quote(value);
+            }
+            needComma = true;
+            return this;
+        }
+
+        Json value(long value) {
+            separate();
+            sb.append(value);
+            needComma = true;
+            return this;
+        }
+
+        Json value(double value) {
+            separate();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                sb.append("null");
+            } else {
+                sb.append(String.format(Locale.ROOT, "%.4f", value));
+            }
+            needComma = true;
+            return this;
+        }
+
+        Json value(boolean value) {
+            separate();
+            sb.append(value);
+            needComma = true;
+            return this;
+        }
+
+        Json nullValue() {
+            separate();
+            sb.append("null");
+            needComma = true;
+            return this;
+        }
+
+        private void separate() {
+            if (needComma) {
+                sb.append(',');
+            }
+        }
+
+        private void quote(String value) {
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
@@ -16,6 +16,13 @@ public class Main {
             opts.compatibleProfile = true;
             opts.antialiasing = true;
             opts.frustumCulling = false;
+            opts.exactFrustumCulling = false;
+            opts.compactGBuffer = false;
+            opts.clusteredLighting = false;
+            opts.parallelUpdate = false;
+            opts.batchStaticMeshes = false;
+            opts.profileFrames = false;
+            opts.compressTextures = false;
             GameEngine gameEng = new GameEngine("GAME", vSync, opts, gameLogic);
             gameEng.run();
         } catch (Exception excp) {
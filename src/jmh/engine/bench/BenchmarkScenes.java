@@ -0,0 +1,44 @@
+package engine.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import engine.graph.Mesh;
+import engine.items.GameItem;
+
+/**
+ * Builds the scenes shared by the benchmarks. The items are spread with a
+ * fixed seed so every run measures the same scene.
+ */
+public class BenchmarkScenes {
+
+    public static final long SEED = 1;
+
+    private BenchmarkScenes() {
+    }
+
+    /**
+     * Creates items spread in a box centered on the origin, with random
+     * rotations and scales between 0.5 and 2.
+     *
+     * @param mesh Mesh of the items
+     * @param numItems Number of items
+     * @param extent Side of the box
+     * @return The items
+     */
+    public static List<GameItem> createItems(Mesh mesh, int numItems, float extent) {
+        Random random = new Random(SEED);
+        List<GameItem> gameItems = new ArrayList<>(numItems);
+        for (int i = 0; i < numItems; i++) {
+            GameItem gameItem = new GameItem(mesh);
+            gameItem.setPosition((random.nextFloat() - 0.5f) * extent, (random.nextFloat() - 0.5f) * extent,
+                    (random.nextFloat() - 0.5f) * extent);
+            gameItem.getRotation().rotateXYZ(random.nextFloat() * 6.28f, random.nextFloat() * 6.28f,
+                    random.nextFloat() * 6.28f);
+            gameItem.setScale(0.5f + random.nextFloat() * 1.5f);
+            gameItem.setTextPos(random.nextInt(4));
+            gameItems.add(gameItem);
+        }
+        return gameItems;
+    }
+}
@@ -0,0 +1,95 @@
+package engine.bench;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.SceneSpatialIndex;
+import engine.Window;
+import engine.graph.FrustumCullingFilter;
+import engine.graph.Mesh;
+import engine.items.GameItem;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Culls a scene against a camera that turns a little on every call, testing
+ * every item of the mesh map or querying the spatial index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrustumCullingBenchmark {
+
+    private static final float ANGLE_STEP = 0.01f;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int numItems;
+
+    @Param({"false", "true"})
+    private boolean exact;
+
+    private Map<Mesh, List<GameItem>> mapMeshes;
+
+    private SceneSpatialIndex spatialIndex;
+
+    private FrustumCullingFilter filter;
+
+    private Matrix4f projectionMatrix;
+
+    private Matrix4f viewMatrix;
+
+    private float angle;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        Mesh mesh = OBJLoader.loadMesh("models/cube.obj");
+        // Keep the density of the scene when it grows
+        float extent = 100.0f * (float) Math.cbrt(numItems / 1000.0);
+        List<GameItem> gameItems = BenchmarkScenes.createItems(mesh, numItems, extent);
+        mapMeshes = Collections.singletonMap(mesh, gameItems);
+        spatialIndex = new SceneSpatialIndex();
+        for (GameItem gameItem : gameItems) {
+            spatialIndex.add(gameItem);
+        }
+        filter = new FrustumCullingFilter();
+        filter.setExact(exact);
+        projectionMatrix = Window.updateProjectionMatrix(new Matrix4f(), 1280, 720);
+        viewMatrix = new Matrix4f();
+    }
+
+    @Benchmark
+    public int filterMap() {
+        updateFrustum();
+        filter.filter(mapMeshes);
+        return filter.getNumVisible();
+    }
+
+    @Benchmark
+    public int filterSpatialIndex() {
+        updateFrustum();
+        filter.filter(spatialIndex);
+        return filter.getNumVisible();
+    }
+
+    private void updateFrustum() {
+        angle += ANGLE_STEP;
+        viewMatrix.rotationY(angle);
+        filter.updateFrustum(projectionMatrix, viewMatrix);
+    }
+}
@@ -0,0 +1,190 @@
+package engine.bench;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.Callback;
+import org.lwjgl.system.CallbackI;
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil;
+import org.lwjgl.system.dyncall.DynCallback;
+import engine.loaders.texture.TextureLoader;
+
+import static org.lwjgl.opengl.GL30.GL_FRAMEBUFFER_COMPLETE;
+import static org.lwjgl.opengl.GL30.GL_MAJOR_VERSION;
+import static org.lwjgl.opengl.GL30.GL_MINOR_VERSION;
+
+/**
+ * Loads OpenGL functions that do nothing, so the engine classes that create
+ * GL objects can be used without a window or a driver.
+ *
+ * Every function returns zero, except glGetIntegerv and glGetString which
+ * report a 3.3 context without extensions and glFenceSync which returns a
+ * dummy sync object. Shaders and programs are created with a dummy id and
+ * always compile and link, and framebuffers are always complete, so the
+ * renderer can be initialised. Other objects are created with id zero and
+ * buffer mappings fail, so the code takes its fallback paths. The functions
+ * ignore their arguments, which is only safe with the 64 bit calling
+ * conventions where the caller cleans the stack.
+ */
+public class HeadlessGL {
+
+    private static final int GL_VERSION = 0x1F02;
+
+    private static final int VERSION_MAJOR = 3;
+
+    private static final int VERSION_MINOR = 3;
+
+    private static final long SYNC_OBJECT = 1;
+
+    private static final long OBJECT_ID = 1;
+
+    private static Constant noOp;
+
+    private static Constant fenceSync;
+
+    private static Constant objectId;
+
+    private static Constant framebufferComplete;
+
+    private static GetIntegerv getIntegerv;
+
+    private static GetStatus getStatus;
+
+    private static GetString getString;
+
+    private static long versionString;
+
+    private HeadlessGL() {
+    }
+
+    /**
+     * Makes the stub functions current in the calling thread.
+     */
+    public static synchronized void makeCurrent() {
+        if (noOp == null) {
+            // Do not let LWJGL look for the system library
+            Configuration.OPENGL_EXPLICIT_INIT.set(true);
+            noOp = new Constant(MemoryUtil.NULL);
+            fenceSync = new Constant(SYNC_OBJECT);
+            objectId = new Constant(OBJECT_ID);
+            framebufferComplete = new Constant(GL_FRAMEBUFFER_COMPLETE);
+            getIntegerv = new GetIntegerv();
+            getStatus = new GetStatus();
+            getString = new GetString();
+            versionString = MemoryUtil.memAddress(MemoryUtil.memUTF8(VERSION_MAJOR + "." + VERSION_MINOR));
+            GL.create(functionName -> {
+                String name = MemoryUtil.memASCII(functionName, functionName.remaining() - 1);
+                switch (name) {
+                    case "glGetIntegerv":
+                        return getIntegerv.address();
+                    case "glGetString":
+                        return getString.address();
+                    case "glFenceSync":
+                        return fenceSync.address();
+                    case "glCreateShader":
+                    case "glCreateProgram":
+                        return objectId.address();
+                    case "glGetShaderiv":
+                    case "glGetProgramiv":
+                        return getStatus.address();
+                    case "glCheckFramebufferStatus":
+                        return framebufferComplete.address();
+                    default:
+                        return noOp.address();
+                }
+            });
+        }
+        GL.createCapabilities();
+        // There are no extensions, as Window does without S3TC
+        TextureLoader.setCompressionEnabled(false);
+    }
+
+    private static class Constant extends Callback implements CallbackI.P {
+
+        private final long value;
+
+        Constant(long value) {
+            super("(v)p");
+            this.value = value;
+        }
+
+        @Override
+        public String getSignature() {
+            return "(v)p";
+        }
+
+        @Override
+        public long callback(long args) {
+            return value;
+        }
+    }
+
+    private static class GetIntegerv extends Callback implements CallbackI.V {
+
+        GetIntegerv() {
+            super("(ip)v");
+        }
+
+        @Override
+        public String getSignature() {
+            return "(ip)v";
+        }
+
+        @Override
+        public void callback(long args) {
+            int pname = DynCallback.dcbArgInt(args);
+            long params = DynCallback.dcbArgPointer(args);
+            int value;
+            switch (pname) {
+                case GL_MAJOR_VERSION:
+                    value = VERSION_MAJOR;
+                    break;
+                case GL_MINOR_VERSION:
+                    value = VERSION_MINOR;
+                    break;
+                default:
+                    value = 0;
+            }
+            MemoryUtil.memPutInt(params, value);
+        }
+    }
+
+    /**
+     * Reports every shader and program query as GL_TRUE, which is the
+     * success value of the status queries.
+     */
+    private static class GetStatus extends Callback implements CallbackI.V {
+
+        GetStatus() {
+            super("(iip)v");
+        }
+
+        @Override
+        public String getSignature() {
+            return "(iip)v";
+        }
+
+        @Override
+        public void callback(long args) {
+            DynCallback.dcbArgInt(args);
+            DynCallback.dcbArgInt(args);
+            MemoryUtil.memPutInt(DynCallback.dcbArgPointer(args), 1);
+        }
+    }
+
+    private static class GetString extends Callback implements CallbackI.P {
+
+        GetString() {
+            super("(i)p");
+        }
+
+        @Override
+        public String getSignature() {
+            return "(i)p";
+        }
+
+        @Override
+        public long callback(long args) {
+            return DynCallback.dcbArgInt(args) == GL_VERSION ? versionString : MemoryUtil.NULL;
+        }
+    }
+}
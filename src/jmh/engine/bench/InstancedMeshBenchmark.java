@@ -0,0 +1,72 @@
+package engine.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.InstancedMesh;
+import engine.graph.Material;
+import engine.graph.Texture;
+import engine.graph.Transformation;
+import engine.items.GameItem;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Renders an instanced mesh with the GL calls stubbed, which leaves the
+ * filling of the instance buffer and its copy into the ring buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstancedMeshBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int numInstances;
+
+    @Param({"false", "true"})
+    private boolean billBoard;
+
+    private InstancedMesh mesh;
+
+    private List<GameItem> gameItems;
+
+    private Transformation transformation;
+
+    private Matrix4f viewMatrix;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        mesh = (InstancedMesh) OBJLoader.loadMesh("models/particle.obj", numInstances);
+        mesh.setMaterial(new Material(new Texture("textures/particle_anim.png", 4, 4), 0));
+        gameItems = BenchmarkScenes.createItems(mesh, numInstances, 100);
+        transformation = new Transformation();
+        viewMatrix = new Matrix4f().lookAt(0, 50, 300, 0, 0, 0, 0, 1, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mesh.cleanUp();
+    }
+
+    @Benchmark
+    public InstancedMesh renderListInstanced() {
+        mesh.renderListInstanced(gameItems, billBoard, transformation, viewMatrix);
+        return mesh;
+    }
+}
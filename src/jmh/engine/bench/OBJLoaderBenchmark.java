@@ -0,0 +1,51 @@
+package engine.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.Mesh;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Loads OBJ models of growing size, from reading the file to creating the
+ * mesh. The files stay in the page cache after the first load. With the
+ * binary cache enabled, the first load writes the cache file and the
+ * measured ones map it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OBJLoaderBenchmark {
+
+    @Param({"models/cube.obj", "models/ball/ball.obj", "models/cannon/CannonRight.obj"})
+    private String fileName;
+
+    @Param({"false", "true"})
+    private boolean cache;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        OBJLoader.setCacheEnabled(cache);
+        OBJLoader.loadMesh(fileName).deleteBuffers();
+    }
+
+    @Benchmark
+    public Mesh loadMesh() throws Exception {
+        Mesh mesh = OBJLoader.loadMesh(fileName);
+        mesh.deleteBuffers();
+        return mesh;
+    }
+}
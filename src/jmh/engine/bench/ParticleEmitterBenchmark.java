@@ -0,0 +1,58 @@
+package engine.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.Texture;
+import engine.graph.particles.FlowParticleEmitter;
+import engine.graph.particles.Particle;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Moves the particles of an emitter by one frame of the game loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticleEmitterBenchmark {
+
+    private static final long FRAME_MILLIS = 16;
+
+    @Param({"100", "1000", "10000"})
+    private int maxParticles;
+
+    private FlowParticleEmitter emitter;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        Mesh mesh = OBJLoader.loadMesh("models/particle.obj", maxParticles);
+        mesh.setMaterial(new Material(new Texture("textures/particle_anim.png", 4, 4), 0));
+        Particle particle = new Particle(mesh, new Vector3f(0, 2.5f, 0), 4000, 100);
+        emitter = new FlowParticleEmitter(particle, maxParticles, 100);
+        emitter.setSeed(BenchmarkScenes.SEED);
+        // The first update creates the particles
+        emitter.update(FRAME_MILLIS);
+    }
+
+    @Benchmark
+    public FlowParticleEmitter update() {
+        emitter.update(FRAME_MILLIS);
+        return emitter;
+    }
+}
@@ -0,0 +1,105 @@
+package engine.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.SceneSpatialIndex;
+import engine.Window;
+import engine.graph.Mesh;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.shadow.ShadowCascade;
+import engine.graph.shadow.ShadowRenderer;
+import engine.items.GameItem;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Fits the shadow cascades to a moving camera and collects their casters,
+ * the CPU work done for the shadows every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadowCascadeBenchmark {
+
+    private static final float ANGLE_STEP = 0.01f;
+
+    @Param({"1000", "10000", "100000"})
+    private int numItems;
+
+    private ShadowCascade[] shadowCascades;
+
+    private SceneSpatialIndex spatialIndex;
+
+    private Window window;
+
+    private DirectionalLight light;
+
+    private Matrix4f viewMatrix;
+
+    private float angle;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        shadowCascades = new ShadowCascade[ShadowRenderer.NUM_CASCADES];
+        float zNear = Window.Z_NEAR;
+        for (int i = 0; i < ShadowRenderer.NUM_CASCADES; i++) {
+            shadowCascades[i] = new ShadowCascade(zNear, ShadowRenderer.CASCADE_SPLITS[i]);
+            zNear = ShadowRenderer.CASCADE_SPLITS[i];
+        }
+
+        Mesh mesh = OBJLoader.loadMesh("models/cube.obj");
+        float extent = 100.0f * (float) Math.cbrt(numItems / 1000.0);
+        List<GameItem> gameItems = BenchmarkScenes.createItems(mesh, numItems, extent);
+        spatialIndex = new SceneSpatialIndex();
+        for (GameItem gameItem : gameItems) {
+            spatialIndex.add(gameItem);
+        }
+
+        // The window is not initialised, only its size is used
+        window = new Window("benchmark", 1280, 720, false, new Window.WindowOptions());
+        light = new DirectionalLight(new Vector3f(1, 1, 1), new Vector3f(0.3f, 0.8f, 0.5f).normalize(), 1.0f);
+        viewMatrix = new Matrix4f();
+    }
+
+    @Benchmark
+    public Matrix4f update() {
+        updateView();
+        for (ShadowCascade shadowCascade : shadowCascades) {
+            shadowCascade.update(window, viewMatrix, light);
+        }
+        return shadowCascades[0].getOrthoProjMatrix();
+    }
+
+    @Benchmark
+    public int updateCasters() {
+        updateView();
+        int numCasters = 0;
+        for (ShadowCascade shadowCascade : shadowCascades) {
+            shadowCascade.update(window, viewMatrix, light);
+            shadowCascade.updateCasters(spatialIndex);
+            numCasters += shadowCascade.getNumCasters();
+        }
+        return numCasters;
+    }
+
+    private void updateView() {
+        angle += ANGLE_STEP;
+        viewMatrix.rotationY(angle).translate(0, -10, 0);
+    }
+}
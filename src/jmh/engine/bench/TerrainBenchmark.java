@@ -0,0 +1,115 @@
+package engine.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.joml.Vector3f;
+import org.lwjgl.system.MemoryUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.HeightMapMesh;
+import engine.items.Terrain;
+
+/**
+ * Samples the height of the terrain under many positions, and builds the
+ * mesh of a height map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TerrainBenchmark {
+
+    /**
+     * Smallest texture of the tree, the height map mesh loads it every time
+     * it is built.
+     */
+    private static final String TEXTURE_FILE = "textures/particle_tmp2.png";
+
+    private static final float SCALE = 40;
+
+    @State(Scope.Thread)
+    public static class HeightQueries {
+
+        @Param({"1", "3", "9"})
+        private int terrainSize;
+
+        @Param({"1024"})
+        private int numQueries;
+
+        private Terrain terrain;
+
+        private Vector3f[] positions;
+
+        @Setup
+        public void setup() throws Exception {
+            HeadlessGL.makeCurrent();
+            terrain = new Terrain(terrainSize, SCALE, -0.1f, 0.1f, "textures/heightmap.png", TEXTURE_FILE, 40);
+            // Positions over the whole terrain, a few of them outside it
+            float extent = terrainSize * SCALE * HeightMapMesh.getXLength() * 1.05f;
+            Random random = new Random(BenchmarkScenes.SEED);
+            positions = new Vector3f[numQueries];
+            for (int i = 0; i < numQueries; i++) {
+                positions[i] = new Vector3f((random.nextFloat() - 0.5f) * extent, 0, (random.nextFloat() - 0.5f) * extent);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HeightMap {
+
+        @Param({"64", "128", "256"})
+        private int size;
+
+        private ByteBuffer image;
+
+        @Setup
+        public void setup() {
+            HeadlessGL.makeCurrent();
+            // A smooth RGBA height map
+            image = MemoryUtil.memAlloc(size * size * 4);
+            for (int z = 0; z < size; z++) {
+                for (int x = 0; x < size; x++) {
+                    float height = 0.5f + 0.25f * (float) (Math.sin(x * 0.1) + Math.cos(z * 0.07));
+                    byte value = (byte) (height * 255);
+                    image.put(value).put(value).put(value).put((byte) 255);
+                }
+            }
+            image.flip();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            MemoryUtil.memFree(image);
+        }
+    }
+
+    @Benchmark
+    public float getHeight(HeightQueries queries) {
+        float sum = 0;
+        for (Vector3f position : queries.positions) {
+            sum += queries.terrain.getHeight(position);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public HeightMapMesh buildHeightMapMesh(HeightMap heightMap) throws Exception {
+        HeightMapMesh heightMapMesh = new HeightMapMesh(-0.1f, 0.1f, heightMap.image, heightMap.size, heightMap.size,
+                TEXTURE_FILE, 40);
+        heightMapMesh.getMesh().cleanUp();
+        return heightMapMesh;
+    }
+}
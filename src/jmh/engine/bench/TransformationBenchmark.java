@@ -0,0 +1,65 @@
+package engine.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.Transformation;
+import engine.items.GameItem;
+
+/**
+ * Builds the model matrices of a scene, as the renderer does for every item
+ * drawn without instancing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int numItems;
+
+    private List<GameItem> gameItems;
+
+    private Transformation transformation;
+
+    private Matrix4f viewMatrix;
+
+    @Setup
+    public void setup() {
+        gameItems = BenchmarkScenes.createItems(null, numItems, 500);
+        transformation = new Transformation();
+        viewMatrix = new Matrix4f().lookAt(0, 50, 300, 0, 0, 0, 0, 1, 0);
+    }
+
+    @Benchmark
+    public float buildModelMatrix() {
+        float sum = 0;
+        for (GameItem gameItem : gameItems) {
+            sum += transformation.buildModelMatrix(gameItem).m30();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float buildModelViewMatrix() {
+        float sum = 0;
+        for (GameItem gameItem : gameItems) {
+            sum += transformation.buildModelViewMatrix(gameItem, viewMatrix).m32();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,84 @@
+package engine.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import engine.graph.ShaderProgram;
+import engine.graph.UniformHandle;
+
+/**
+ * Sets the uniforms of a draw through the handles kept by the renderer and
+ * through their names, with the headless GL functions. The unchanged
+ * variants set the same values again, which the handles do not upload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniformBenchmark {
+
+    private ShaderProgram shaderProgram;
+
+    private UniformHandle modelMatrix;
+
+    private UniformHandle reflectance;
+
+    private Matrix4f[] matrices;
+
+    private int frame;
+
+    @Setup
+    public void setup() throws Exception {
+        HeadlessGL.makeCurrent();
+        shaderProgram = new ShaderProgram();
+        modelMatrix = shaderProgram.createUniform("modelMatrix");
+        reflectance = shaderProgram.createUniform("material.reflectance");
+        matrices = new Matrix4f[2];
+        for (int i = 0; i < matrices.length; i++) {
+            matrices[i] = new Matrix4f().translate(i, 0, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        shaderProgram.cleanup();
+    }
+
+    @Benchmark
+    public void handleChanged() {
+        int i = frame++ & 1;
+        modelMatrix.set(matrices[i]);
+        reflectance.set((float) i);
+    }
+
+    @Benchmark
+    public void nameChanged() {
+        int i = frame++ & 1;
+        shaderProgram.setUniform("modelMatrix", matrices[i]);
+        shaderProgram.setUniform("material.reflectance", (float) i);
+    }
+
+    @Benchmark
+    public void handleUnchanged() {
+        modelMatrix.set(matrices[0]);
+        reflectance.set(0.0f);
+    }
+
+    @Benchmark
+    public void nameUnchanged() {
+        shaderProgram.setUniform("modelMatrix", matrices[0]);
+        shaderProgram.setUniform("material.reflectance", 0.0f);
+    }
+}
@@ -1,5 +1,7 @@
 #version 330
 
+const int NUM_CASCADES = 3;
+
 out vec4 fragColor;
 
 struct Fog
@@ -9,23 +11,44 @@ struct Fog
     float density;
 };
 
+#ifndef COMPACT_GBUFFER
 uniform sampler2D positionsText;
+#endif
 uniform sampler2D depthText;
 uniform sampler2D sceneText;
 
 uniform vec2 screenSize;
 
-uniform mat4 viewMatrix;
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform Fog fog;
-uniform vec3 ambientLight;
-uniform vec3 lightColour;
-uniform float lightIntensity;
 
 vec2 getTextCoord()
 {
     return gl_FragCoord.xy / screenSize;
 }
 
+#ifdef COMPACT_GBUFFER
+// View coordinates from the depth buffer and the perspective projection
+vec3 getPosition(vec2 textCoord)
+{
+    float ndcZ = texture(depthText, textCoord).r * 2.0 - 1.0;
+    float viewZ = -projectionMatrix[3][2] / (ndcZ + projectionMatrix[2][2]);
+    vec2 ndcXY = textCoord * 2.0 - 1.0;
+    return vec3(ndcXY * -viewZ / vec2(projectionMatrix[0][0], projectionMatrix[1][1]), viewZ);
+}
+#endif
+
 vec4 calcFog(vec3 pos, vec4 colour, Fog fog, vec3 ambientLight, vec3 lightColour, float lightIntensity)
 {
     vec3 fogColor = fog.colour * (ambientLight + lightColour * lightIntensity);
@@ -40,7 +63,11 @@ vec4 calcFog(vec3 pos, vec4 colour, Fog fog, vec3 ambientLight, vec3 lightColour
 void main()
 {
     vec2 textCoord = getTextCoord();
+#ifdef COMPACT_GBUFFER
+    vec3 worldPos = getPosition(textCoord);
+#else
     vec3 worldPos = texture(positionsText, textCoord).xyz;
+#endif
     vec4 colour = vec4(texture(sceneText, textCoord).xyz, 1);
     vec4 mvVertexPos = viewMatrix * vec4(worldPos, 1);
     float depth = texture(depthText, textCoord).r;
@@ -49,7 +76,7 @@ void main()
     }
     if ( fog.activeFog == 1 )
     {
-    	fragColor = calcFog(mvVertexPos.xyz, colour, fog, ambientLight, lightColour, lightIntensity);
+    	fragColor = calcFog(mvVertexPos.xyz, colour, fog, ambientLight.rgb, dirLightColour.rgb, dirLightColour.w);
     }
     else {
 	    fragColor = colour;
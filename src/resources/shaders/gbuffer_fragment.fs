@@ -9,13 +9,30 @@ in vec4  vs_mlightviewVertexPos[NUM_CASCADES];
 in mat4  vs_modelMatrix;
 in float vs_selected;
 
+#ifdef COMPACT_GBUFFER
+// Position is rebuilt from depth, the shadow factor and the reflectance go in the alpha channels
+layout (location = 0) out vec2 fs_normal;
+layout (location = 1) out vec4 fs_diffuse;
+layout (location = 2) out vec4 fs_specular;
+#else
 layout (location = 0) out vec3 fs_worldpos;
 layout (location = 1) out vec3 fs_diffuse;
 layout (location = 2) out vec3 fs_specular;
 layout (location = 3) out vec3 fs_normal;
 layout (location = 4) out vec2 fs_shadow;
+#endif
 
-uniform mat4 viewMatrix;
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
 
 struct Material
 {
@@ -33,8 +50,6 @@ uniform Material  material;
 uniform sampler2D shadowMap_0;
 uniform sampler2D shadowMap_1;
 uniform sampler2D shadowMap_2;
-uniform float cascadeFarPlanes[NUM_CASCADES];
-uniform mat4 orthoProjectionMatrix[NUM_CASCADES];
 uniform int renderShadow;
 
 vec4 diffuseC;
@@ -66,6 +81,18 @@ vec3 calcNormal(Material material, vec3 normal, vec2 text_coord, mat4 modelMatri
     return newNormal;
 }
 
+vec2 signNotZero(vec2 v)
+{
+    return vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+}
+
+// Octahedral encoding of a unit vector
+vec2 encodeNormal(vec3 n)
+{
+    n /= abs(n.x) + abs(n.y) + abs(n.z);
+    return n.z >= 0.0 ? n.xy : (1.0 - abs(n.yx)) * signNotZero(n.xy);
+}
+
 float calcShadow(vec4 position, int idx)
 {
     if ( renderShadow == 0 )
@@ -126,10 +153,8 @@ void main()
 {
     getColour(material, vs_textcoord);
 
-    fs_worldpos   = vs_mvVertexPos.xyz;
-    fs_diffuse    = diffuseC.xyz;
-    fs_specular   = speculrC.xyz;
-    fs_normal     = normalize(calcNormal(material, vs_normal, vs_textcoord, vs_modelMatrix));
+    vec3 diffuse  = diffuseC.xyz;
+    vec3 normal   = normalize(calcNormal(material, vs_normal, vs_textcoord, vs_modelMatrix));
 
     int idx;
     for (int i=0; i<NUM_CASCADES; i++)
@@ -140,9 +165,21 @@ void main()
             break;
         }
     }
-	fs_shadow  = vec2(calcShadow(vs_mlightviewVertexPos[idx], idx), material.reflectance);
+    float shadowFactor = calcShadow(vs_mlightviewVertexPos[idx], idx);
 
     if ( vs_selected > 0 ) {
-        fs_diffuse = vec3(fs_diffuse.x, fs_diffuse.y, 1);
+        diffuse = vec3(diffuse.x, diffuse.y, 1);
     }
+
+#ifdef COMPACT_GBUFFER
+    fs_normal     = encodeNormal(normal);
+    fs_diffuse    = vec4(diffuse, shadowFactor);
+    fs_specular   = vec4(speculrC.xyz, material.reflectance);
+#else
+    fs_worldpos   = vs_mvVertexPos.xyz;
+    fs_diffuse    = diffuse;
+    fs_specular   = speculrC.xyz;
+    fs_normal     = normal;
+	fs_shadow     = vec2(shadowFactor, material.reflectance);
+#endif
 }
\ No newline at end of file
@@ -13,13 +13,21 @@ layout (location=5) in mat4 modelInstancedMatrix;
 layout (location=9) in vec2 texOffset;
 layout (location=10) in float selectedInstanced;
 
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform int isInstanced;
-uniform mat4 viewMatrix;
-uniform mat4 projectionMatrix;
 uniform mat4 modelNonInstancedMatrix;
 uniform mat4 jointsMatrix[MAX_JOINTS];
-uniform mat4 lightViewMatrix[NUM_CASCADES];
-uniform mat4 orthoProjectionMatrix[NUM_CASCADES];
 uniform int numCols;
 uniform int numRows;
 uniform float selectedNonInstanced;
@@ -0,0 +1,13 @@
+#version 330
+
+in vec2 outTexCoord;
+
+out vec4 fragColor;
+
+uniform sampler2D texture_sampler;
+uniform vec4 colour;
+
+void main()
+{
+    fragColor = colour * texture(texture_sampler, outTexCoord);
+}
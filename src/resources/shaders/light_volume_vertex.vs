@@ -0,0 +1,35 @@
+#version 330
+
+const int NUM_CASCADES = 3;
+
+layout (location=0) in vec3 position;
+// View position and radius of the light
+layout (location=1) in vec4 lightPosition;
+// Colour and intensity
+layout (location=2) in vec4 lightColour;
+// Constant, linear and exponent attenuation
+layout (location=3) in vec4 lightAttenuation;
+
+flat out vec4 vLightPosition;
+flat out vec4 vLightColour;
+flat out vec4 vLightAttenuation;
+
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
+void main()
+{
+    vLightPosition = lightPosition;
+    vLightColour = lightColour;
+    vLightAttenuation = lightAttenuation;
+    gl_Position = projectionMatrix * vec4(lightPosition.xyz + position * lightPosition.w, 1.0);
+}
@@ -1,5 +1,7 @@
 #version 330
 
+const int NUM_CASCADES = 3;
+
 out vec4 fragColor;
 
 struct Attenuation
@@ -18,23 +20,74 @@ struct PointLight
     Attenuation att;
 };
 
+#ifdef COMPACT_GBUFFER
+uniform sampler2D normalsText;
+uniform sampler2D diffuseText;
+uniform sampler2D specularText;
+uniform sampler2D depthText;
+#else
 uniform sampler2D positionsText;
 uniform sampler2D diffuseText;
 uniform sampler2D specularText;
 uniform sampler2D normalsText;
 uniform sampler2D shadowText;
 uniform sampler2D depthText;
+#endif
 
 uniform vec2 screenSize;
 
+layout (std140) uniform FrameData
+{
+    mat4 viewMatrix;
+    mat4 projectionMatrix;
+    mat4 orthoProjectionMatrix[NUM_CASCADES];
+    mat4 lightViewMatrix[NUM_CASCADES];
+    vec4 cascadeFarPlanes;
+    vec4 ambientLight;
+    vec4 dirLightColour;
+    vec4 dirLightDirection;
+};
+
 uniform float specularPower;
+#ifdef LIGHT_VOLUME
+flat in vec4 vLightPosition;
+flat in vec4 vLightColour;
+flat in vec4 vLightAttenuation;
+#else
 uniform PointLight pointLight;
+#endif
 
 vec2 getTextCoord()
 {
     return gl_FragCoord.xy / screenSize;
 }
 
+#ifdef COMPACT_GBUFFER
+vec2 signNotZero(vec2 v)
+{
+    return vec2(v.x >= 0.0 ? 1.0 : -1.0, v.y >= 0.0 ? 1.0 : -1.0);
+}
+
+vec3 decodeNormal(vec2 e)
+{
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0.0)
+    {
+        n.xy = (1.0 - abs(n.yx)) * signNotZero(n.xy);
+    }
+    return normalize(n);
+}
+
+// View coordinates from the depth buffer and the perspective projection
+vec3 getPosition(vec2 textCoord)
+{
+    float ndcZ = texture(depthText, textCoord).r * 2.0 - 1.0;
+    float viewZ = -projectionMatrix[3][2] / (ndcZ + projectionMatrix[2][2]);
+    vec2 ndcXY = textCoord * 2.0 - 1.0;
+    return vec3(ndcXY * -viewZ / vec2(projectionMatrix[0][0], projectionMatrix[1][1]), viewZ);
+}
+#endif
+
 vec4 calcLightColour(vec4 diffuseC, vec4 speculrC, float reflectance, vec3 light_colour, float light_intensity, vec3 position, vec3 to_light_dir, vec3 normal)
 {
     vec4 diffuseColour = vec4(0, 0, 0, 1);
@@ -71,6 +124,16 @@ vec4 calcPointLight(vec4 diffuseC, vec4 speculrC, float reflectance, PointLight
 void main()
 {
     vec2 textCoord = getTextCoord();
+#ifdef COMPACT_GBUFFER
+    vec3 worldPos = getPosition(textCoord);
+    vec4 diffuseShadow = texture(diffuseText, textCoord);
+    vec4 specularReflectance = texture(specularText, textCoord);
+    vec4 diffuseC = vec4(diffuseShadow.rgb, 1);
+    vec4 speculrC = vec4(specularReflectance.rgb, 1);
+    vec3 normal  = decodeNormal(texture(normalsText, textCoord).xy);
+	float shadowFactor = diffuseShadow.a;
+	float reflectance = specularReflectance.a;
+#else
     float depth = texture(depthText, textCoord).r;
     vec3 worldPos = texture(positionsText, textCoord).xyz;
     vec4 diffuseC = texture(diffuseText, textCoord);
@@ -78,6 +141,11 @@ void main()
     vec3 normal  = texture(normalsText, textCoord).xyz;
 	float shadowFactor = texture(shadowText, textCoord).r;
 	float reflectance = texture(shadowText, textCoord).g;
+#endif
 
+#ifdef LIGHT_VOLUME
+    PointLight pointLight = PointLight(vLightColour.rgb, vLightPosition.xyz, vLightColour.a,
+        Attenuation(vLightAttenuation.x, vLightAttenuation.y, vLightAttenuation.z));
+#endif
 	fragColor = calcPointLight(diffuseC, speculrC, reflectance, pointLight, worldPos.xyz, normal.xyz) * shadowFactor;
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.lwjgl.system.MemoryUtil.*;
+import engine.bench.HeadlessGL;
+import engine.graph.Camera;
+import engine.graph.InstancedMesh;
+import engine.graph.Material;
+import engine.graph.Mesh;
+import engine.graph.MeshCache;
+import engine.graph.Renderer;
+import engine.graph.Texture;
+import engine.graph.TextureCache;
+import engine.graph.VertexBufferCache;
+import engine.graph.lights.DirectionalLight;
+import engine.graph.lights.PointLight;
+import engine.graph.particles.FlowParticleEmitter;
+import engine.graph.particles.IParticleEmitter;
+import engine.graph.particles.Particle;
+import engine.items.GameItem;
+import engine.items.SkyBox;
+import engine.items.TransformStore;
+import engine.loaders.obj.OBJLoader;
+
+/**
+ * Renders a scene with the headless GL functions and checks that the steady
+ * state frames do not allocate on the heap. The scene is built from the
+ * cube and particle models and a generated texture, and has static, moving
+ * and instanced items, shadows, point lights and particles. The allocations
+ * are counted on the main thread with the thread MX bean. The warm up goes
+ * once around the camera path, so the lists of visible items and casters
+ * have reached their largest size, and gives the JIT time to compile the hot
+ * paths.
+ */
+public class FrameAllocationTest {
+
+    private static final float INTERVAL = 1.0f / 60.0f;
+
+    private static final int WARMUP_FRAMES = 2000;
+
+    private static final int FRAMES = 300;
+
+    private static final int GRID_SIDE = 8;
+
+    private static final float SPACING = 10.0f;
+
+    private static final int NUM_MOVING = 16;
+
+    private static final int NUM_INSTANCES = 64;
+
+    private static final int NUM_PARTICLES = 200;
+
+    private static final int NUM_LIGHTS = 8;
+
+    private static final int TEXTURE_SIZE = 16;
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    private Window.WindowOptions opts;
+
+    private Scene scene;
+
+    private Camera camera;
+
+    private GameItem[] movingItems;
+
+    private FlowParticleEmitter particleEmitter;
+
+    private Quaternionf rotation;
+
+    private float time;
+
+    @BeforeClass
+    public static void setUpClass() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("The JVM can not count the allocated bytes", bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        HeadlessGL.makeCurrent();
+    }
+
+    @Before
+    public void setUp() {
+        opts = new Window.WindowOptions();
+        opts.headless = true;
+        rotation = new Quaternionf();
+        time = 0;
+    }
+
+    @Test
+    public void defaultOptionsDoNotAllocate() throws Exception {
+        assertEquals(0.0, measureBytesPerFrame(), 0.0);
+    }
+
+    @Test
+    public void allOptionsDoNotAllocate() throws Exception {
+        opts.cullFace = true;
+        opts.frustumCulling = true;
+        opts.exactFrustumCulling = true;
+        opts.compactGBuffer = true;
+        opts.clusteredLighting = true;
+        opts.batchStaticMeshes = true;
+        assertEquals(0.0, measureBytesPerFrame(), 0.0);
+    }
+
+    /**
+     * @return The bytes allocated by the main thread per measured frame
+     */
+    private double measureBytesPerFrame() throws Exception {
+        // The window is not initialised, only its size and options are used
+        Window window = new Window("allocations", 1280, 720, false, opts);
+        Renderer renderer = new Renderer();
+        JobSystem jobSystem = new JobSystem(1);
+        long threadId = Thread.currentThread().getId();
+        try {
+            renderer.init(window);
+            createScene();
+            long startBytes = 0;
+            for (int i = 0; i < WARMUP_FRAMES + FRAMES; i++) {
+                if (i == WARMUP_FRAMES) {
+                    startBytes = threadBean.getThreadAllocatedBytes(threadId);
+                }
+                update(jobSystem);
+                renderer.render(window, camera, scene, true);
+            }
+            return (double) (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / FRAMES;
+        } finally {
+            renderer.cleanup();
+            if (scene != null) {
+                scene.cleanup();
+            }
+            jobSystem.cleanup();
+            MeshCache.getInstance().cleanup();
+            TextureCache.getInstance().cleanup();
+            VertexBufferCache.getInstance().cleanup();
+        }
+    }
+
+    private void createScene() throws Exception {
+        scene = new Scene();
+        scene.setTransformStore(new TransformStore());
+        Material material = new Material(createTexture(), 1.0f);
+        float extent = GRID_SIDE * SPACING * 0.5f;
+
+        Mesh cube = OBJLoader.loadMesh("models/cube.obj");
+        cube.setMaterial(material);
+        GameItem[] staticItems = new GameItem[GRID_SIDE * GRID_SIDE];
+        for (int i = 0; i < staticItems.length; i++) {
+            staticItems[i] = new GameItem(cube);
+            staticItems[i].setPosition((i % GRID_SIDE) * SPACING - extent, 0, (i / GRID_SIDE) * SPACING - extent);
+        }
+        scene.setGameItems(staticItems);
+
+        Mesh movingCube = OBJLoader.loadMesh("models/cube.obj");
+        movingCube.setMaterial(new Material(new Vector4f(1, 0, 0, 1), 0.5f));
+        movingItems = new GameItem[NUM_MOVING];
+        for (int i = 0; i < movingItems.length; i++) {
+            movingItems[i] = new GameItem(movingCube);
+            movingItems[i].setScale(0.5f);
+        }
+        scene.setGameItems(movingItems);
+
+        InstancedMesh instancedCube = (InstancedMesh) OBJLoader.loadMesh("models/cube.obj", NUM_INSTANCES);
+        instancedCube.setMaterial(material);
+        GameItem[] instancedItems = new GameItem[NUM_INSTANCES];
+        for (int i = 0; i < instancedItems.length; i++) {
+            instancedItems[i] = new GameItem(instancedCube);
+            instancedItems[i].setScale(0.25f);
+            instancedItems[i].setPosition((i % GRID_SIDE) * SPACING - extent, 5.0f, (i / GRID_SIDE) * SPACING - extent);
+        }
+        scene.setGameItems(instancedItems);
+
+        Mesh particleMesh = OBJLoader.loadMesh("models/particle.obj", NUM_PARTICLES);
+        particleMesh.setMaterial(material);
+        Particle particle = new Particle(particleMesh, new Vector3f(0, 2.5f, 0), 4000, 100);
+        particle.setScale(0.5f);
+        particleEmitter = new FlowParticleEmitter(particle, NUM_PARTICLES, 20);
+        particleEmitter.setSeed(1);
+        particleEmitter.setPositionRndRange(extent);
+        particleEmitter.setSpeedRndRange(2.0f);
+        scene.setParticleEmitters(new IParticleEmitter[] {particleEmitter});
+
+        SceneLight sceneLight = new SceneLight();
+        sceneLight.setAmbientLight(new Vector3f(0.3f, 0.3f, 0.3f));
+        sceneLight.setSkyBoxLight(new Vector3f(1.0f, 1.0f, 1.0f));
+        sceneLight.setDirectionalLight(new DirectionalLight(new Vector3f(1, 1, 1), new Vector3f(0, 1, 1).normalize(), 1.0f));
+        PointLight[] pointLights = new PointLight[NUM_LIGHTS];
+        for (int i = 0; i < pointLights.length; i++) {
+            Vector3f position = new Vector3f((i % 4) * SPACING * 2 - extent, 10.0f, (i / 4) * SPACING * 2 - extent);
+            pointLights[i] = new PointLight(new Vector3f(1, 1, 1), position, 1.0f, new PointLight.Attenuation(1, 0.1f, 0.05f));
+        }
+        sceneLight.setPointLightList(pointLights);
+        scene.setSceneLight(sceneLight);
+        scene.setRenderShadows(true);
+
+        SkyBox skyBox = new SkyBox("models/skybox.obj", new Vector4f(0.5f, 0.6f, 0.9f, 1.0f));
+        skyBox.setScale(100.0f);
+        scene.setSkyBox(skyBox);
+
+        camera = new Camera();
+    }
+
+    /**
+     * Creates a black and white checker texture.
+     */
+    private static Texture createTexture() {
+        ByteBuffer pixels = memAlloc(TEXTURE_SIZE * TEXTURE_SIZE * 4);
+        try {
+            for (int i = 0; i < TEXTURE_SIZE * TEXTURE_SIZE; i++) {
+                byte value = (byte) (((i % TEXTURE_SIZE) + (i / TEXTURE_SIZE)) % 2 == 0 ? 0xFF : 0);
+                pixels.put(value).put(value).put(value).put((byte) 0xFF);
+            }
+            pixels.flip();
+            return new Texture(pixels, TEXTURE_SIZE, TEXTURE_SIZE);
+        } finally {
+            memFree(pixels);
+        }
+    }
+
+    /**
+     * Moves the moving items around the centre and the camera around the
+     * scene, which goes round once in the warm up.
+     */
+    private void update(JobSystem jobSystem) {
+        time += INTERVAL;
+        for (int i = 0; i < movingItems.length; i++) {
+            float angle = time + i * 2 * (float) Math.PI / movingItems.length;
+            movingItems[i].setPosition(20.0f * (float) Math.cos(angle), 2.0f, 20.0f * (float) Math.sin(angle));
+            movingItems[i].setRotation(rotation.rotationY(angle));
+        }
+        particleEmitter.update((long) (INTERVAL * 1000), jobSystem);
+
+        float angle = 2 * (float) Math.PI * time / (WARMUP_FRAMES * INTERVAL);
+        float radius = GRID_SIDE * SPACING + 20.0f;
+        float height = 30.0f;
+        camera.setPosition(radius * (float) Math.sin(angle), height, radius * (float) Math.cos(angle));
+        camera.setRotation((float) Math.toDegrees(Math.atan2(height, radius)), (float) Math.toDegrees(-angle), 0);
+        camera.updateViewMatrix();
+    }
+}